@@ -0,0 +1,67 @@
+package com.j256.simplemetrics.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+
+/**
+ * Compares the single atomic-long counter in {@link ControlledMetricAccum} with the striped counter as the number of
+ * incrementing threads goes up.
+ * 
+ * @author graywatson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccumBenchmark {
+
+	@Param({ "false", "true" })
+	private boolean striped;
+
+	private ControlledMetricAccum metric;
+
+	@Setup
+	public void setup() {
+		metric = new ControlledMetricAccum("bench", "accum", "increments", "benchmark counter", null, striped);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public long incrementThreads1() {
+		return metric.increment();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public long incrementThreads8() {
+		return metric.increment();
+	}
+
+	@Benchmark
+	@Threads(32)
+	public long incrementThreads32() {
+		return metric.increment();
+	}
+
+	@Benchmark
+	@Threads(64)
+	public long incrementThreads64() {
+		return metric.increment();
+	}
+}
@@ -0,0 +1,38 @@
+package com.j256.simplemetrics.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the recording benchmarks with an increasing number of threads to show contention scaling and then the persist
+ * and file-format benchmarks. All of them are run with the gc profiler so the allocation rate (gc.alloc.rate.norm) is
+ * reported with each result. Individual benchmarks can be run with the standard JMH main class:
+ * 
+ * <pre>
+ * java -jar benchmarks/target/simplemetrics-benchmarks.jar RecordingBenchmark -t 8 -prof gc
+ * </pre>
+ * 
+ * @author graywatson
+ */
+public class BenchmarkRunner {
+
+	private static final int[] THREAD_COUNTS = new int[] { 1, 8, 32, 64 };
+
+	public static void main(String[] args) throws RunnerException {
+		for (int threads : THREAD_COUNTS) {
+			Options options = new OptionsBuilder().include(RecordingBenchmark.class.getSimpleName())
+					.threads(threads)
+					.addProfiler(GCProfiler.class)
+					.build();
+			new Runner(options).run();
+		}
+		Options options = new OptionsBuilder().include(PersistBenchmark.class.getSimpleName())
+				.include(FileFormatBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,147 @@
+package com.j256.simplemetrics.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
+import com.j256.simplemetrics.metric.MetricsSnapshot;
+import com.j256.simplemetrics.persister.BinaryFileMetricsPersister;
+import com.j256.simplemetrics.persister.TextFileMetricsPersister;
+
+/**
+ * Compares the cost of appending a snapshot of the metrics to the text-file segments and to the compact binary files.
+ * The snapshots are built in the setup so only the persisting is measured. The number of bytes written per persist by
+ * each format is printed when the trial is torn down.
+ * 
+ * @author graywatson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileFormatBenchmark {
+
+	private static final int NUM_SNAPSHOTS = 16;
+
+	@Param({ "1000", "10000" })
+	private int numMetrics;
+
+	private File directory;
+	private TextFileMetricsPersister textPersister;
+	private BinaryFileMetricsPersister binaryPersister;
+	private MetricsSnapshot[] snapshots;
+	private int snapshotIndex;
+	private long timeMillis = System.currentTimeMillis();
+	private long textBytes;
+	private long textPersists;
+	private long binaryPersists;
+
+	@Setup
+	public void setup() throws IOException {
+		directory = File.createTempFile("fileformat", "");
+		directory.delete();
+		directory.mkdirs();
+		textPersister = new TextFileMetricsPersister();
+		textPersister.setOutputDirectory(directory);
+		textPersister.setLogFileNamePrefix("text.");
+		textPersister.setUseSegments(true);
+		binaryPersister = new BinaryFileMetricsPersister();
+		binaryPersister.setOutputDirectory(directory);
+		binaryPersister.setLogFileNamePrefix("binary.");
+		// half accumulators and half values
+		ControlledMetricAccum[] accums = new ControlledMetricAccum[(numMetrics + 1) / 2];
+		ControlledMetricValue[] values = new ControlledMetricValue[numMetrics / 2];
+		for (int i = 0; i < accums.length; i++) {
+			accums[i] = new ControlledMetricAccum("bench", "format", "accum" + i, "accumulator", null);
+		}
+		for (int i = 0; i < values.length; i++) {
+			values[i] = new ControlledMetricValue("bench", "format", "value" + i, "value", null);
+		}
+		Random random = new Random(1);
+		snapshots = new MetricsSnapshot[NUM_SNAPSHOTS];
+		for (int i = 0; i < snapshots.length; i++) {
+			snapshots[i] = buildSnapshot(accums, values, random);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith("text.") && name.endsWith(TextFileMetricsPersister.SEGMENT_EXTENSION)) {
+				textBytes += file.length();
+			}
+			file.delete();
+		}
+		directory.delete();
+		if (textPersists > 0) {
+			System.out.println("text bytes per persist: " + textBytes / textPersists);
+		}
+		if (binaryPersists > 0) {
+			System.out.println("binary bytes per persist: " + binaryPersister.getBytesWritten() / binaryPersists);
+		}
+	}
+
+	@Benchmark
+	public void persistText() throws IOException {
+		textPersister.persist(nextSnapshot());
+		textPersists++;
+	}
+
+	@Benchmark
+	public void persistBinary() throws IOException {
+		binaryPersister.persist(nextSnapshot());
+		binaryPersists++;
+	}
+
+	/**
+	 * Return the next of the prebuilt snapshots with its time set a minute after the last one.
+	 */
+	private MetricsSnapshot nextSnapshot() {
+		MetricsSnapshot snapshot = snapshots[snapshotIndex];
+		snapshotIndex = (snapshotIndex + 1) % snapshots.length;
+		timeMillis += 60000;
+		snapshot.setTimeCollectedMillis(timeMillis);
+		return snapshot;
+	}
+
+	/**
+	 * Adjust the metrics a little and collect them into a new snapshot.
+	 */
+	private static MetricsSnapshot buildSnapshot(ControlledMetricAccum[] accums, ControlledMetricValue[] values,
+			Random random) {
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		snapshot.reset(0);
+		int id = 0;
+		for (ControlledMetricAccum accum : accums) {
+			accum.add(random.nextInt(5));
+			snapshot.setMetric(id, accum);
+			accum.persistToSnapshot(snapshot, id++);
+		}
+		for (ControlledMetricValue value : values) {
+			value.adjustValue(100 + random.nextInt(3));
+			snapshot.setMetric(id, value);
+			value.persistToSnapshot(snapshot, id++);
+		}
+		return snapshot;
+	}
+}
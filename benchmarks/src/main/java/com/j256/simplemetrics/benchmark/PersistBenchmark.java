@@ -0,0 +1,133 @@
+package com.j256.simplemetrics.benchmark;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
+import com.j256.simplemetrics.metric.MetricValueDetails;
+import com.j256.simplemetrics.metric.MetricsSnapshot;
+import com.j256.simplemetrics.persister.MetricDetailsPersister;
+import com.j256.simplemetrics.persister.MetricValuesPersister;
+import com.j256.simplemetrics.persister.MetricsSnapshotPersister;
+
+/**
+ * Measures the cost of snapshotting and handing the metrics to the persisters with a varying number of registered
+ * metrics. The persisters just consume the maps so this is the overhead of the manager itself. The snapshot variant
+ * uses a persister which reads the columnar snapshot directly so no maps are built. The metrics are adjusted before
+ * each invocation, outside of the measurement, so the persist has something to reset.
+ * 
+ * <p>
+ * The per-invocation setup means JMH takes timestamps around each call and the adjusted metrics are warm in the cache
+ * so the results are biased a bit, mostly with the smaller numbers of metrics. The {@link #baseline()} benchmark has
+ * the same setup but does nothing so its time can be subtracted from the others.
+ * </p>
+ * 
+ * @author graywatson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistBenchmark {
+
+	@Param({ "10", "1000", "10000", "100000" })
+	private int numMetrics;
+
+	private MetricsManager manager;
+	private MetricsManager snapshotManager;
+	private ControlledMetricAccum[] accums;
+	private ControlledMetricValue[] values;
+
+	@Setup
+	public void setup(final Blackhole blackhole) {
+		manager = new MetricsManager();
+		snapshotManager = new MetricsManager();
+		// half accumulators and half values
+		accums = new ControlledMetricAccum[(numMetrics + 1) / 2];
+		values = new ControlledMetricValue[numMetrics / 2];
+		for (int i = 0; i < accums.length; i++) {
+			accums[i] = new ControlledMetricAccum("bench", "persist", "accum" + i, "accumulator", null);
+			manager.registerMetric(accums[i]);
+			snapshotManager.registerMetric(accums[i]);
+		}
+		for (int i = 0; i < values.length; i++) {
+			values[i] = new ControlledMetricValue("bench", "persist", "value" + i, "value", null);
+			manager.registerMetric(values[i]);
+			snapshotManager.registerMetric(values[i]);
+		}
+		manager.setMetricValuesPersisters(new MetricValuesPersister[] { new MetricValuesPersister() {
+			@Override
+			public void persist(Map<ControlledMetric<?, ?>, Number> metricValues, long timeCollectedMillis) {
+				blackhole.consume(metricValues);
+			}
+		} });
+		manager.setMetricDetailsPersisters(new MetricDetailsPersister[] { new MetricDetailsPersister() {
+			@Override
+			public void persist(Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetails,
+					long timeCollectedMillis) {
+				blackhole.consume(metricValueDetails);
+			}
+		} });
+		snapshotManager.setMetricsSnapshotPersisters(new MetricsSnapshotPersister[] { new MetricsSnapshotPersister() {
+			@Override
+			public void persist(MetricsSnapshot snapshot) {
+				for (int id = 0; id < snapshot.getSize(); id++) {
+					blackhole.consume(snapshot.getValue(id));
+				}
+			}
+		} });
+	}
+
+	/**
+	 * Adjust the metrics so the persist has something to reset.
+	 */
+	@Setup(Level.Invocation)
+	public void adjustMetrics() {
+		for (ControlledMetricAccum accum : accums) {
+			accum.increment();
+		}
+		for (ControlledMetricValue value : values) {
+			value.adjustValue(10L);
+		}
+	}
+
+	@Benchmark
+	public void baseline() {
+		// measures the overhead of the invocation setup only
+	}
+
+	@Benchmark
+	public void persist() throws IOException {
+		manager.persist();
+	}
+
+	@Benchmark
+	public void persistValuesOnly() throws IOException {
+		manager.persistValuesOnly();
+	}
+
+	@Benchmark
+	public void persistSnapshot() throws IOException {
+		snapshotManager.persist();
+	}
+}
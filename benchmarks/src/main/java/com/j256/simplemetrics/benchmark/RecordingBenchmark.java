@@ -0,0 +1,127 @@
+package com.j256.simplemetrics.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricHistogram;
+import com.j256.simplemetrics.metric.ControlledMetricRatio;
+import com.j256.simplemetrics.metric.ControlledMetricShardedValue;
+import com.j256.simplemetrics.metric.ControlledMetricTimer;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
+
+/**
+ * Measures the hot recording path of the various metric types. The metrics are shared by all of the benchmark threads
+ * so running with a different number of threads (-t) shows how they scale under contention. Run with the gc profiler
+ * (-prof gc) to see the allocation rate. See {@link BenchmarkRunner}.
+ * 
+ * @author graywatson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordingBenchmark {
+
+	private ControlledMetricAccum accum;
+	private ControlledMetricAccum stripedAccum;
+	private ControlledMetricValue value;
+	private ControlledMetricValue primitiveValue;
+	private ControlledMetricShardedValue shardedValue;
+	private ControlledMetricRatio ratio;
+	private ControlledMetricTimer timer;
+	private ControlledMetricTimer primitiveTimer;
+	private ControlledMetricHistogram histogram;
+	private ControlledMetricTimer nanoTimer;
+	private long startMillis;
+
+	@Setup
+	public void setup() {
+		accum = new ControlledMetricAccum("bench", "record", "accum", "accumulator", null);
+		stripedAccum = new ControlledMetricAccum("bench", "record", "stripedAccum", "striped accumulator", null, true);
+		value = new ControlledMetricValue("bench", "record", "value", "value", null);
+		primitiveValue = new ControlledMetricValue("bench", "record", "primitiveValue", "primitive value", null, true);
+		shardedValue = new ControlledMetricShardedValue("bench", "record", "shardedValue", "sharded value", null);
+		ratio = new ControlledMetricRatio("bench", "record", "ratio", "ratio", null);
+		timer = new ControlledMetricTimer("bench", "record", "timer", "timer");
+		primitiveTimer = new ControlledMetricTimer("bench", "record", "primitiveTimer", "primitive timer", true);
+		histogram = new ControlledMetricHistogram("bench", "record", "histogram", "histogram", null);
+		nanoTimer = new ControlledMetricTimer("bench", "record", "nanoTimer", "nano timer", TimeUnit.MICROSECONDS,
+				new ControlledMetricHistogram("bench", "record", "nanoTimerHistogram", "nano timer histogram",
+						"microseconds"));
+		startMillis = System.currentTimeMillis();
+	}
+
+	@Benchmark
+	public long accumIncrement() {
+		return accum.increment();
+	}
+
+	@Benchmark
+	public long accumStripedIncrement() {
+		return stripedAccum.increment();
+	}
+
+	@Benchmark
+	public void valueAdjust() {
+		value.adjustValue(100L);
+	}
+
+	@Benchmark
+	public void valuePrimitiveAdjust() {
+		primitiveValue.adjustValue(100L);
+	}
+
+	@Benchmark
+	public void valueShardedAdjust() {
+		shardedValue.adjustValue(100L);
+	}
+
+	@Benchmark
+	public void ratioAdjust() {
+		ratio.adjustValue(1, 2);
+	}
+
+	@Benchmark
+	public long timerStopAndAdd() {
+		return timer.stopAndAdd(startMillis);
+	}
+
+	@Benchmark
+	public long timerPrimitiveStopAndAdd() {
+		return primitiveTimer.stopAndAdd(startMillis);
+	}
+
+	@Benchmark
+	public void histogramAdjust(HistogramValues histogramValues) {
+		// spread the values across a number of buckets
+		histogram.adjustValue((histogramValues.next++ & 1023) + 1);
+	}
+
+	@Benchmark
+	public void timerNanoSample() {
+		try (ControlledMetricTimer.Sample sample = nanoTimer.startSample()) {
+			// nothing to time
+		}
+	}
+
+	/**
+	 * Per-thread counter for the histogram values so the threads don't contend on it instead of the histogram.
+	 */
+	@State(Scope.Thread)
+	public static class HistogramValues {
+		long next;
+	}
+}
@@ -0,0 +1,18 @@
+package com.j256.simplemetrics.manager;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+
+/**
+ * Creates a metric when it is not already registered. Used with
+ * {@link MetricsManager#getOrCreateMetric(String, String, String, Class, MetricFactory)}.
+ * 
+ * @author graywatson
+ */
+public interface MetricFactory<M extends ControlledMetric<?, ?>> {
+
+	/**
+	 * Create a metric with the component, module, and name arguments. This may be called more than once if multiple
+	 * threads are creating the same metric at the same time but only one of the metrics will be registered.
+	 */
+	public M createMetric(String component, String module, String name);
+}
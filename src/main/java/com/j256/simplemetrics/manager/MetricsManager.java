@@ -1,18 +1,36 @@
 package com.j256.simplemetrics.manager;
 
 import java.io.IOException;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.j256.simplemetrics.manager.PersisterDispatcher.PersistTask;
+import com.j256.simplemetrics.manager.UpdaterDispatcher.UpdateTask;
 import com.j256.simplemetrics.metric.ControlledMetric;
 import com.j256.simplemetrics.metric.MetricValueDetails;
+import com.j256.simplemetrics.metric.MetricsSnapshot;
 import com.j256.simplemetrics.persister.MetricDetailsPersister;
+import com.j256.simplemetrics.persister.MetricDetailsPersisterAdapter;
 import com.j256.simplemetrics.persister.MetricValuesPersister;
+import com.j256.simplemetrics.persister.MetricValuesPersisterAdapter;
+import com.j256.simplemetrics.persister.MetricsSnapshotPersister;
 import com.j256.simplemetrics.utils.MiscUtils;
 
 /**
@@ -20,24 +38,89 @@ import com.j256.simplemetrics.utils.MiscUtils;
  * metrics with this class, register classes that need to manually update metrics values, and controls the metrics
  * persistence.
  * 
+ * <p>
+ * The metrics are stored in a concurrent map keyed by their component, module, and name so registering, unregistering,
+ * and looking up metrics do not take a global lock and do not block persisting. Iterating across the metrics, while
+ * persisting for example, is weakly consistent and will see metrics that were registered or unregistered concurrently
+ * either way.
+ * </p>
+ * 
+ * <p>
+ * When persisting, the values of the metrics are collected into a columnar {@link MetricsSnapshot} indexed by an id
+ * assigned to each metric when it is registered. Two snapshots are reused between persist cycles so collecting the
+ * values does not allocate per metric. {@link MetricsSnapshotPersister}s are handed the snapshot directly while the
+ * {@link MetricValuesPersister}s and {@link MetricDetailsPersister}s are handed maps built from it.
+ * </p>
+ * 
+ * <p>
+ * By default the persisters are called one after another by the thread calling {@link #persist()}. If an executor is
+ * set with {@link #setPersisterExecutor(Executor)} then the snapshot of the metrics is handed to each of the persisters
+ * on the executor so a slow persister does not delay the others. See {@link PersisterDispatcher}. In the same way the
+ * {@link MetricsUpdater}s can be called in parallel by setting {@link #setUpdaterExecutor(Executor)}. See
+ * {@link UpdaterDispatcher}.
+ * </p>
+ * 
  * @author graywatson
  */
 public class MetricsManager {
 
+	/** default number of millis that a persister can take when run on the persister executor */
+	public static final long DEFAULT_PERSISTER_TIMEOUT_MILLIS = 30000;
+	/** default number of snapshots that can queue up behind a persister that is running on the persister executor */
+	public static final int DEFAULT_PERSISTER_QUEUE_SIZE = 2;
+	/** default number of millis that we wait for an updater that is running on the updater executor */
+	public static final long DEFAULT_UPDATER_TIMEOUT_MILLIS = 10000;
+
 	private MetricValuesPersister[] metricValuesPersisters = new MetricValuesPersister[0];
 	private MetricDetailsPersister[] metricDetailsPersisters = new MetricDetailsPersister[0];
+	private MetricsSnapshotPersister[] metricsSnapshotPersisters = new MetricsSnapshotPersister[0];
+	private volatile PersisterList persisterList;
+	private Executor persisterExecutor;
+	private long persisterTimeoutMillis = DEFAULT_PERSISTER_TIMEOUT_MILLIS;
+	private int persisterQueueSize = DEFAULT_PERSISTER_QUEUE_SIZE;
+	private boolean waitForPersisters = true;
+	private final Map<Object, PersisterDispatcher> persisterDispatchers =
+			new IdentityHashMap<Object, PersisterDispatcher>();
+	private final Map<Object, Long> persisterTimeoutOverrides = new IdentityHashMap<Object, Long>();
+	private final Map<Object, Integer> persisterQueueSizeOverrides = new IdentityHashMap<Object, Integer>();
 
-	private final List<ControlledMetric<?, ?>> metrics = new ArrayList<ControlledMetric<?, ?>>();
-	private final List<MetricsUpdater> metricsUpdaters = new ArrayList<MetricsUpdater>();
-	private final List<MetricsRegisterListener> registerListeners = new ArrayList<MetricsRegisterListener>();
+	private final ConcurrentMap<MetricKey, RegisteredMetric> metrics =
+			new ConcurrentHashMap<MetricKey, RegisteredMetric>();
+	private final Collection<ControlledMetric<?, ?>> unmodifiableMetrics = new MetricCollection();
+	private final AtomicInteger nextMetricId = new AtomicInteger();
+	private final Queue<Integer> freeMetricIds = new ConcurrentLinkedQueue<Integer>();
+	private final Queue<Integer> releasedMetricIds = new ConcurrentLinkedQueue<Integer>();
+	private final List<UpdaterDispatcher> updaterDispatchers = new CopyOnWriteArrayList<UpdaterDispatcher>();
+	private Executor updaterExecutor;
+	private volatile long updaterTimeoutMillis = DEFAULT_UPDATER_TIMEOUT_MILLIS;
+	private volatile boolean registerUpdaterMetrics;
+	private final List<MetricsRegisterListener> registerListeners =
+			new CopyOnWriteArrayList<MetricsRegisterListener>();
+	private final Object snapshotLock = new Object();
+	private final MetricsSnapshot[] snapshots = new MetricsSnapshot[2];
+	private int nextSnapshotIndex;
 	private int persistCount;
 
 	/**
-	 * Register a metric with the manager.
+	 * Register a metric with the manager. If another metric with the same component, module, and name is already
+	 * registered then it is replaced and unregistered.
 	 */
 	public void registerMetric(ControlledMetric<?, ?> metric) {
-		synchronized (metrics) {
-			metrics.add(metric);
+		MetricKey key = new MetricKey(metric);
+		RegisteredMetric existing = metrics.get(key);
+		if (existing != null && existing.metric == metric) {
+			return;
+		}
+		existing = metrics.put(key, new RegisteredMetric(metric, allocateMetricId()));
+		if (existing != null) {
+			freeMetricId(existing.id);
+			if (existing.metric == metric) {
+				// someone else registered it at the same time
+				return;
+			}
+			for (MetricsRegisterListener registerListener : registerListeners) {
+				registerListener.metricUnregistered(existing.metric);
+			}
 		}
 		for (MetricsRegisterListener registerListener : registerListeners) {
 			registerListener.metricRegistered(metric);
@@ -48,105 +131,179 @@ public class MetricsManager {
 	 * Unregister a metric with the manager.
 	 */
 	public void unregisterMetric(ControlledMetric<?, ?> metric) {
-		boolean removed;
-		synchronized (metrics) {
-			removed = metrics.remove(metric);
-		}
-		if (removed) {
+		MetricKey key = new MetricKey(metric);
+		RegisteredMetric registered = metrics.get(key);
+		if (registered != null && registered.metric.equals(metric) && metrics.remove(key, registered)) {
+			freeMetricId(registered.id);
 			for (MetricsRegisterListener registerListener : registerListeners) {
-				registerListener.metricUnregistered(metric);
+				registerListener.metricUnregistered(registered.metric);
 			}
 		}
 	}
 
 	/**
-	 * Register a {@link MetricsUpdater} to be called right before persist writes the metrics.
+	 * Return the metric registered with the component, module, and name or null if none.
+	 * 
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview". Can be null.
+	 * @param name
+	 *            String label description the metric.
 	 */
-	public void registerUpdater(MetricsUpdater metricsUpdater) {
-		synchronized (metricsUpdaters) {
-			metricsUpdaters.add(metricsUpdater);
+	public ControlledMetric<?, ?> getMetric(String component, String module, String name) {
+		RegisteredMetric registered = metrics.get(new MetricKey(component, normalizeModule(module), name));
+		if (registered == null) {
+			return null;
+		} else {
+			return registered.metric;
 		}
 	}
 
 	/**
-	 * Register a listener for metrics registered and unregistered.
+	 * Return the metric registered with the component, module, and name or create it with the factory and register it
+	 * if there is none. This is designed to be called on the hot path, for example by code which has metrics per
+	 * customer, and does not take any global locks if the metric already exists.
+	 * 
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview". Can be null.
+	 * @param name
+	 *            String label description the metric.
+	 * @param metricClass
+	 *            Class of the metric which should be returned.
+	 * @param factory
+	 *            Called to create the metric if it does not exist.
+	 * @throws IllegalArgumentException
+	 *             If the metric registered is not an instance of the metric-class or if the factory created a metric
+	 *             with a different component, module, or name.
 	 */
-	public void registerRegisterListener(MetricsRegisterListener registerListener) {
-		synchronized (registerListener) {
-			registerListeners.add(registerListener);
-		}
-		if (!metrics.isEmpty()) {
-			synchronized (metrics) {
-				for (ControlledMetric<?, ?> metric : metrics) {
-					registerListener.metricRegistered(metric);
+	public <M extends ControlledMetric<?, ?>> M getOrCreateMetric(String component, String module, String name,
+			Class<M> metricClass, MetricFactory<M> factory) {
+		// the metrics store a blank module as null so we need to do the same for the key to match
+		module = normalizeModule(module);
+		MetricKey key = new MetricKey(component, module, name);
+		RegisteredMetric registered = metrics.get(key);
+		if (registered == null) {
+			M created = factory.createMetric(component, module, name);
+			if (!key.equals(new MetricKey(created))) {
+				throw new IllegalArgumentException("Factory created metric " + created + " which does not match "
+						+ component + "." + module + "." + name);
+			}
+			RegisteredMetric createdRegistered = new RegisteredMetric(created, allocateMetricId());
+			registered = metrics.putIfAbsent(key, createdRegistered);
+			if (registered == null) {
+				// we won the race so tell the listeners
+				for (MetricsRegisterListener registerListener : registerListeners) {
+					registerListener.metricRegistered(created);
 				}
+				return created;
 			}
+			freeMetricId(createdRegistered.id);
 		}
+		ControlledMetric<?, ?> metric = registered.metric;
+		if (!metricClass.isInstance(metric)) {
+			throw new IllegalArgumentException("Metric " + metric + " is a " + metric.getClass().getSimpleName()
+					+ " not a " + metricClass.getSimpleName());
+		}
+		return metricClass.cast(metric);
 	}
 
 	/**
-	 * Persists the configured metrics by calling to the registered updaters, extracting the value-details from the
-	 * metrics, and then calling the registered value and details persisters.
+	 * Return null if the module is blank like the metric constructors do.
 	 */
-	public void persist() throws IOException {
+	private static String normalizeModule(String module) {
+		if (MiscUtils.isBlank(module)) {
+			return null;
+		} else {
+			return module;
+		}
+	}
 
-		// update the metric values if necessary
-		updateMetrics();
+	/**
+	 * Register a {@link MetricsUpdater} to be called right before persist writes the metrics.
+	 */
+	public void registerUpdater(MetricsUpdater metricsUpdater) {
+		registerUpdater(metricsUpdater, 0);
+	}
 
-		// if we aren't persisting details then this is easy
-		if (metricDetailsPersisters.length == 0) {
-			persistValuesOnly();
-			return;
-		}
+	/**
+	 * Register a {@link MetricsUpdater} to be called right before persist writes the metrics but not more often than
+	 * every refresh-interval millis. This is useful for updaters that are expensive to call.
+	 */
+	public void registerUpdater(MetricsUpdater metricsUpdater, long refreshIntervalMillis) {
+		registerUpdater(metricsUpdater, refreshIntervalMillis, 0);
+	}
 
-		// first we make a map of metric -> details for the persisters
-		long timeCollectedMillis = System.currentTimeMillis();
-		Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetailMap;
-		synchronized (metrics) {
-			metricValueDetailMap = new HashMap<ControlledMetric<?, ?>, MetricValueDetails>(metrics.size());
-			for (ControlledMetric<?, ?> metric : metrics) {
-				metricValueDetailMap.put(metric, metric.getValueDetailsToPersist());
+	/**
+	 * Register a {@link MetricsUpdater} like {@link #registerUpdater(MetricsUpdater, long)} but with its own number of
+	 * millis that we wait for it when it is run on the updater executor. If the timeout is 0 then the manager's
+	 * {@link #setUpdaterTimeoutMillis(long)} is used.
+	 */
+	public void registerUpdater(MetricsUpdater metricsUpdater, long refreshIntervalMillis, long timeoutMillis) {
+		UpdaterDispatcher dispatcher;
+		synchronized (updaterDispatchers) {
+			// make the latency metric name unique if we have multiple updaters of the same class
+			String name = metricsUpdater.getClass().getSimpleName();
+			if (name.length() == 0) {
+				name = "updater";
 			}
-		}
-
-		// if we have value persisters then extract the values from the details map
-		Map<ControlledMetric<?, ?>, Number> metricValueMap = null;
-		if (metricValuesPersisters.length > 0) {
-			metricValueMap = new HashMap<ControlledMetric<?, ?>, Number>(metricValueDetailMap.size());
-			for (Entry<ControlledMetric<?, ?>, MetricValueDetails> entry : metricValueDetailMap.entrySet()) {
-				metricValueMap.put(entry.getKey(), entry.getValue().getValue());
+			String metricName = name;
+			for (int count = 2; findUpdaterMetric(metricName) != null; count++) {
+				metricName = name + count;
 			}
-			metricValueMap = Collections.unmodifiableMap(metricValueMap);
+			dispatcher = new UpdaterDispatcher(metricsUpdater, metricName, refreshIntervalMillis, timeoutMillis);
+			updaterDispatchers.add(dispatcher);
+		}
+		if (registerUpdaterMetrics) {
+			registerMetric(dispatcher.getLatencyMetric());
 		}
-		metricValueDetailMap = Collections.unmodifiableMap(metricValueDetailMap);
+	}
 
-		Exception wasThrown = null;
-		for (MetricValuesPersister persister : metricValuesPersisters) {
-			try {
-				persister.persist(metricValueMap, timeCollectedMillis);
-			} catch (Exception e) {
-				// hold any exceptions thrown by them so we can get through all persisters
-				wasThrown = e;
+	/**
+	 * Unregister a {@link MetricsUpdater} so it is no longer called. The latency metric of the updater is also
+	 * unregistered.
+	 */
+	public void unregisterUpdater(MetricsUpdater metricsUpdater) {
+		UpdaterDispatcher removed = null;
+		synchronized (updaterDispatchers) {
+			for (UpdaterDispatcher dispatcher : updaterDispatchers) {
+				if (dispatcher.getUpdater() == metricsUpdater) {
+					removed = dispatcher;
+					updaterDispatchers.remove(dispatcher);
+					break;
+				}
 			}
 		}
-		for (MetricDetailsPersister persister : metricDetailsPersisters) {
-			try {
-				persister.persist(metricValueDetailMap, timeCollectedMillis);
-			} catch (Exception e) {
-				// hold any exceptions thrown by them so we can get through all persisters
-				wasThrown = e;
-			}
+		if (removed != null) {
+			unregisterMetric(removed.getLatencyMetric());
 		}
-		persistCount++;
-		if (wasThrown != null) {
-			if (wasThrown instanceof IOException) {
-				throw (IOException) wasThrown;
-			} else {
-				throw new IOException(wasThrown);
-			}
+	}
+
+	/**
+	 * Register a listener for metrics registered and unregistered.
+	 */
+	public void registerRegisterListener(MetricsRegisterListener registerListener) {
+		registerListeners.add(registerListener);
+		for (ControlledMetric<?, ?> metric : unmodifiableMetrics) {
+			registerListener.metricRegistered(metric);
 		}
 	}
 
+	/**
+	 * Persists the configured metrics by calling to the registered updaters, extracting the value-details from the
+	 * metrics into a snapshot, and then calling the registered snapshot, value, and details persisters.
+	 */
+	public void persist() throws IOException {
+
+		// update the metric values if necessary
+		updateMetrics();
+
+		MetricsSnapshot snapshot = takeSnapshot();
+		callPersisters(snapshot, false);
+	}
+
 	/**
 	 * Persists the configured metrics to the value persisters <i>only</i> by extracting the values from the metrics and
 	 * then calling the registered persisters. Usually you will want to call {@link #persist()} instead.
@@ -156,35 +313,8 @@ public class MetricsManager {
 	 * </p>
 	 */
 	public void persistValuesOnly() throws IOException {
-
-		// first we make a unmodifiable map of metric -> persisted value for the persisters
-		long timeCollectedMillis = System.currentTimeMillis();
-		Map<ControlledMetric<?, ?>, Number> metricValues;
-		synchronized (metrics) {
-			metricValues = new HashMap<ControlledMetric<?, ?>, Number>(metrics.size());
-			for (ControlledMetric<?, ?> metric : metrics) {
-				metricValues.put(metric, metric.getValueToPersist());
-			}
-		}
-		metricValues = Collections.unmodifiableMap(metricValues);
-
-		Exception wasThrown = null;
-		for (MetricValuesPersister persister : metricValuesPersisters) {
-			try {
-				persister.persist(metricValues, timeCollectedMillis);
-			} catch (Exception e) {
-				// hold any exceptions thrown by them so we can get through all persisters
-				wasThrown = e;
-			}
-		}
-		persistCount++;
-		if (wasThrown != null) {
-			if (wasThrown instanceof IOException) {
-				throw (IOException) wasThrown;
-			} else {
-				throw new IOException(wasThrown);
-			}
-		}
+		MetricsSnapshot snapshot = takeSnapshot();
+		callPersisters(snapshot, true);
 	}
 
 	/**
@@ -193,19 +323,16 @@ public class MetricsManager {
 	 * NOTE: this does not call {@link #updateMetrics()} beforehand.
 	 */
 	public Map<ControlledMetric<?, ?>, Number> getMetricValuesMap() {
-		synchronized (metrics) {
-			Map<ControlledMetric<?, ?>, Number> metricValues =
-					new HashMap<ControlledMetric<?, ?>, Number>(metrics.size());
-			for (ControlledMetric<?, ?> metric : metrics) {
-				Number value = metric.getValue();
-				// convert the value to a long if possible
-				if (value.doubleValue() == value.longValue()) {
-					value = value.longValue();
-				}
-				metricValues.put(metric, value);
+		Map<ControlledMetric<?, ?>, Number> metricValues = new HashMap<ControlledMetric<?, ?>, Number>(metrics.size());
+		for (ControlledMetric<?, ?> metric : unmodifiableMetrics) {
+			Number value = metric.getValue();
+			// convert the value to a long if possible
+			if (value.doubleValue() == value.longValue()) {
+				value = value.longValue();
 			}
-			return metricValues;
+			metricValues.put(metric, value);
 		}
+		return metricValues;
 	}
 
 	/**
@@ -214,43 +341,119 @@ public class MetricsManager {
 	 * NOTE: this does not call {@link #updateMetrics()} beforehand.
 	 */
 	public Map<ControlledMetric<?, ?>, MetricValueDetails> getMetricValueDetailsMap() {
-		synchronized (metrics) {
-			Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetails =
-					new HashMap<ControlledMetric<?, ?>, MetricValueDetails>(metrics.size());
-			for (ControlledMetric<?, ?> metric : metrics) {
-				metricValueDetails.put(metric, metric.getValueDetails());
-			}
-			return metricValueDetails;
+		Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetails =
+				new HashMap<ControlledMetric<?, ?>, MetricValueDetails>(metrics.size());
+		for (ControlledMetric<?, ?> metric : unmodifiableMetrics) {
+			metricValueDetails.put(metric, metric.getValueDetails());
 		}
+		return metricValueDetails;
 	}
 
 	/**
-	 * Update the various classes' metrics.
+	 * Update the various classes' metrics. If an updater executor has been set then the updaters are called in
+	 * parallel and we wait for each of them up to the updater timeout. Updaters that are still running from an earlier
+	 * call are skipped and exceptions thrown by the updaters are recorded in their {@link UpdaterDispatcher}.
 	 */
 	public void updateMetrics() {
-		synchronized (metricsUpdaters) {
+		long nowMillis = System.currentTimeMillis();
+		Executor executor = updaterExecutor;
+		if (executor == null) {
 			// call our classes to update their stats
-			for (MetricsUpdater metricsUpdater : metricsUpdaters) {
-				metricsUpdater.updateMetrics();
+			for (UpdaterDispatcher dispatcher : updaterDispatchers) {
+				dispatcher.update(nowMillis);
+			}
+			return;
+		}
+
+		List<UpdateTask> tasks = new ArrayList<UpdateTask>(updaterDispatchers.size());
+		List<UpdaterDispatcher> dispatchers = new ArrayList<UpdaterDispatcher>(updaterDispatchers.size());
+		for (UpdaterDispatcher dispatcher : updaterDispatchers) {
+			UpdateTask task = dispatcher.dispatch(executor, nowMillis);
+			if (task != null) {
+				tasks.add(task);
+				dispatchers.add(dispatcher);
+			}
+		}
+		for (int i = 0; i < tasks.size(); i++) {
+			UpdaterDispatcher dispatcher = dispatchers.get(i);
+			UpdateTask task = tasks.get(i);
+			long timeoutMillis = dispatcher.getTimeoutMillis();
+			if (timeoutMillis <= 0) {
+				timeoutMillis = updaterTimeoutMillis;
+			}
+			long waitMillis = task.getDispatchTimeMillis() + timeoutMillis - System.currentTimeMillis();
+			try {
+				task.get(Math.max(0, waitMillis), TimeUnit.MILLISECONDS);
+			} catch (ExecutionException ee) {
+				// already recorded by the dispatcher
+			} catch (TimeoutException te) {
+				// the updater keeps running and later calls to it will be skipped until it finishes
+				dispatcher.timedOut();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
 			}
 		}
 	}
 
 	/**
-	 * @return An unmodifiable collection of metrics we are managing.
+	 * Return the dispatchers, with their counters, for the registered updaters.
 	 */
-	public Collection<ControlledMetric<?, ?>> getMetrics() {
-		synchronized (metrics) {
-			return Collections.unmodifiableList(metrics);
+	public UpdaterDispatcher[] getUpdaterDispatchers() {
+		return updaterDispatchers.toArray(new UpdaterDispatcher[0]);
+	}
+
+	/**
+	 * Set the executor that is used to call the updaters in parallel so a slow updater, blocked on a hung file system
+	 * for example, does not delay the others. If this is not set then the updaters are called one after another by the
+	 * thread calling {@link #updateMetrics()}. The executor is not shutdown by the manager.
+	 */
+	// @NotRequired("Default is to call the updaters from the updating thread")
+	public void setUpdaterExecutor(Executor updaterExecutor) {
+		this.updaterExecutor = updaterExecutor;
+	}
+
+	/**
+	 * Set the number of millis that we wait for each updater when they are run on the updater executor. This applies
+	 * to all of the updaters that were not registered with their own timeout, see
+	 * {@link #registerUpdater(MetricsUpdater, long, long)}.
+	 */
+	// @NotRequired("Default is " + DEFAULT_UPDATER_TIMEOUT_MILLIS)
+	public void setUpdaterTimeoutMillis(long updaterTimeoutMillis) {
+		this.updaterTimeoutMillis = updaterTimeoutMillis;
+	}
+
+	/**
+	 * Set to true to register the latency metric of each updater, see {@link UpdaterDispatcher#getLatencyMetric()},
+	 * with the manager so it is persisted along with the other metrics.
+	 */
+	// @NotRequired("Default is false")
+	public void setRegisterUpdaterMetrics(boolean registerUpdaterMetrics) {
+		this.registerUpdaterMetrics = registerUpdaterMetrics;
+		for (UpdaterDispatcher dispatcher : updaterDispatchers) {
+			if (registerUpdaterMetrics) {
+				registerMetric(dispatcher.getLatencyMetric());
+			} else {
+				unregisterMetric(dispatcher.getLatencyMetric());
+			}
 		}
 	}
 
+	/**
+	 * @return An unmodifiable and weakly consistent view of the metrics we are managing.
+	 */
+	public Collection<ControlledMetric<?, ?>> getMetrics() {
+		return unmodifiableMetrics;
+	}
+
 	/**
 	 * Set the persisters for the metric values.
 	 */
 	// @NotRequired("Default is a value or value-details persister")
 	public void setMetricValuesPersisters(MetricValuesPersister[] metricValuesPersisters) {
 		this.metricValuesPersisters = metricValuesPersisters;
+		this.persisterList = null;
+		removeUnusedPersisterDispatchers();
 	}
 
 	/**
@@ -259,17 +462,112 @@ public class MetricsManager {
 	// @NotRequired("Default is a value or value-details persister")
 	public void setMetricDetailsPersisters(MetricDetailsPersister[] metricDetailsPersisters) {
 		this.metricDetailsPersisters = metricDetailsPersisters;
+		this.persisterList = null;
+		removeUnusedPersisterDispatchers();
+	}
+
+	/**
+	 * Set the persisters which are handed the snapshot of the metrics directly without the maps being built.
+	 */
+	// @NotRequired("Default is a value or value-details persister")
+	public void setMetricsSnapshotPersisters(MetricsSnapshotPersister[] metricsSnapshotPersisters) {
+		this.metricsSnapshotPersisters = metricsSnapshotPersisters;
+		this.persisterList = null;
+		removeUnusedPersisterDispatchers();
+	}
+
+	/**
+	 * Set the executor that is used to call the persisters in parallel. Each persister gets its own
+	 * {@link PersisterDispatcher} so a slow persister does not delay the others. If this is not set then the
+	 * persisters are called one after another by the thread calling {@link #persist()}. The executor is not shutdown by
+	 * the manager.
+	 */
+	// @NotRequired("Default is to call the persisters from the persisting thread")
+	public void setPersisterExecutor(Executor persisterExecutor) {
+		synchronized (persisterDispatchers) {
+			this.persisterExecutor = persisterExecutor;
+		}
+	}
+
+	/**
+	 * Set the number of millis that each persister can take when run on the persister executor. If we are waiting for
+	 * the persisters then {@link #persist()} will throw if a persister takes longer than this. This applies to the
+	 * persisters that don't have their own timeout, see {@link #setPersisterTimeoutMillis(Object, long)}.
+	 */
+	// @NotRequired("Default is " + DEFAULT_PERSISTER_TIMEOUT_MILLIS)
+	public void setPersisterTimeoutMillis(long persisterTimeoutMillis) {
+		synchronized (persisterDispatchers) {
+			this.persisterTimeoutMillis = persisterTimeoutMillis;
+		}
+	}
+
+	/**
+	 * Set the number of millis that a specific persister can take when run on the persister executor. This overrides
+	 * {@link #setPersisterTimeoutMillis(long)} for the persister which should be one of the values, details, or
+	 * snapshot persisters. Set to 0 to go back to using the manager's timeout.
+	 */
+	public void setPersisterTimeoutMillis(Object persister, long timeoutMillis) {
+		synchronized (persisterDispatchers) {
+			if (timeoutMillis <= 0) {
+				persisterTimeoutOverrides.remove(persister);
+			} else {
+				persisterTimeoutOverrides.put(persister, timeoutMillis);
+			}
+		}
+	}
+
+	/**
+	 * Set the number of snapshots that can queue up for each persister that is run on the persister executor while it
+	 * is still working on a previous one. Snapshots past this are dropped for that persister. This applies to the
+	 * persisters that don't have their own queue size, see {@link #setPersisterQueueSize(Object, int)}.
+	 */
+	// @NotRequired("Default is " + DEFAULT_PERSISTER_QUEUE_SIZE)
+	public void setPersisterQueueSize(int persisterQueueSize) {
+		synchronized (persisterDispatchers) {
+			this.persisterQueueSize = persisterQueueSize;
+		}
+	}
+
+	/**
+	 * Set the number of snapshots that can queue up for a specific persister that is run on the persister executor.
+	 * This overrides {@link #setPersisterQueueSize(int)} for the persister which should be one of the values, details,
+	 * or snapshot persisters. Set to 0 to go back to using the manager's queue size.
+	 */
+	public void setPersisterQueueSize(Object persister, int queueSize) {
+		synchronized (persisterDispatchers) {
+			if (queueSize <= 0) {
+				persisterQueueSizeOverrides.remove(persister);
+			} else {
+				persisterQueueSizeOverrides.put(persister, queueSize);
+			}
+		}
+	}
+
+	/**
+	 * Set to false to have {@link #persist()} return as soon as the snapshot has been handed to the persisters running
+	 * on the persister executor. In this case the persister failures are not thrown but are available in the counters
+	 * of the {@link #getPersisterDispatchers()}. This is only used if the persister executor is set.
+	 */
+	// @NotRequired("Default is true")
+	public void setWaitForPersisters(boolean waitForPersisters) {
+		this.waitForPersisters = waitForPersisters;
+	}
+
+	/**
+	 * Return the dispatchers, with their counters, for the persisters that have been run on the persister executor.
+	 */
+	public PersisterDispatcher[] getPersisterDispatchers() {
+		synchronized (persisterDispatchers) {
+			return persisterDispatchers.values().toArray(new PersisterDispatcher[persisterDispatchers.size()]);
+		}
 	}
 
 	public String[] getMetricValues() {
 		// update the metrics
 		updateMetrics();
-		List<String> values;
-		synchronized (metrics) {
-			values = new ArrayList<String>(metrics.size());
-			for (ControlledMetric<?, ?> metric : metrics) {
-				values.add(MiscUtils.metricToString(metric) + "=" + metric.getValue());
-			}
+		List<String> values = new ArrayList<String>(metrics.size());
+		for (ControlledMetric<?, ?> metric : unmodifiableMetrics) {
+			values.add(MiscUtils.metricToString(metric) + "=" + metric.getValue());
 		}
 		return values.toArray(new String[values.size()]);
 	}
@@ -277,4 +575,340 @@ public class MetricsManager {
 	public int getPersistCount() {
 		return persistCount;
 	}
+
+	/**
+	 * Collect the values of the metrics to be persisted into a snapshot. We flip between two snapshots so the one from
+	 * the last persist can still be in use by a persister on the executor. The snapshot is returned retained and must
+	 * be released when we are done with it.
+	 */
+	private MetricsSnapshot takeSnapshot() {
+		long timeCollectedMillis = System.currentTimeMillis();
+		synchronized (snapshotLock) {
+			MetricsSnapshot snapshot = snapshots[nextSnapshotIndex];
+			if (snapshot == null || snapshot.isInUse()) {
+				// a slow persister is still using the snapshot from the time before last so we need a new one
+				snapshot = new MetricsSnapshot(nextMetricId.get());
+				snapshots[nextSnapshotIndex] = snapshot;
+			}
+			nextSnapshotIndex = 1 - nextSnapshotIndex;
+			// the metrics of the released ids were removed before now so the ids can be reused during this snapshot
+			Integer releasedId;
+			while ((releasedId = releasedMetricIds.poll()) != null) {
+				freeMetricIds.add(releasedId);
+			}
+			snapshot.reset(timeCollectedMillis);
+			for (RegisteredMetric registered : metrics.values()) {
+				snapshot.setMetric(registered.id, registered.metric);
+				registered.metric.persistToSnapshot(snapshot, registered.id);
+			}
+			snapshot.retain();
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Call the persisters with the snapshot either directly or by dispatching them to the executor. The snapshot is
+	 * released by us when we are done and by each of the persisters run on the executor.
+	 */
+	private void callPersisters(final MetricsSnapshot snapshot, boolean valuesOnly) throws IOException {
+
+		PersisterList list = getPersisterList();
+		int numPersisters;
+		if (valuesOnly) {
+			numPersisters = list.numValuesPersisters;
+		} else {
+			numPersisters = list.persisters.length;
+		}
+
+		if (persisterExecutor == null) {
+			Exception wasThrown = null;
+			try {
+				for (int i = 0; i < numPersisters; i++) {
+					try {
+						list.persisters[i].persist(snapshot);
+					} catch (Exception e) {
+						// hold any exceptions thrown by them so we can get through all persisters
+						wasThrown = e;
+					}
+				}
+			} finally {
+				snapshot.release();
+			}
+			persistCount++;
+			throwIfNotNull(wasThrown);
+			return;
+		}
+
+		// hand the snapshot off to each of the persisters
+		PersisterDispatcher[] dispatchers = new PersisterDispatcher[numPersisters];
+		PersistTask[] tasks = new PersistTask[numPersisters];
+		try {
+			synchronized (persisterDispatchers) {
+				for (int i = 0; i < numPersisters; i++) {
+					final MetricsSnapshotPersister persister = list.persisters[i];
+					dispatchers[i] = findPersisterDispatcher(list.keys[i]);
+					snapshot.retain();
+					tasks[i] = dispatchers[i].dispatch(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							try {
+								persister.persist(snapshot);
+							} finally {
+								snapshot.release();
+							}
+							return null;
+						}
+					}, new Runnable() {
+						@Override
+						public void run() {
+							// it was dropped so it won't be releasing the snapshot
+							snapshot.release();
+						}
+					});
+				}
+			}
+		} finally {
+			snapshot.release();
+		}
+		persistCount++;
+		if (!waitForPersisters) {
+			return;
+		}
+
+		Exception wasThrown = null;
+		for (int i = 0; i < numPersisters; i++) {
+			PersisterDispatcher dispatcher = dispatchers[i];
+			PersistTask task = tasks[i];
+			if (task == null) {
+				wasThrown = new IOException("Persister queue was full, dropped snapshot for: " + dispatcher);
+				continue;
+			}
+			long waitMillis = task.getDispatchTimeMillis() + dispatcher.getTimeoutMillis() - System.currentTimeMillis();
+			try {
+				task.get(Math.max(0, waitMillis), TimeUnit.MILLISECONDS);
+			} catch (ExecutionException ee) {
+				Throwable cause = ee.getCause();
+				if (cause instanceof Exception) {
+					wasThrown = (Exception) cause;
+				} else {
+					wasThrown = ee;
+				}
+			} catch (TimeoutException te) {
+				wasThrown = new IOException("Persister did not finish in " + dispatcher.getTimeoutMillis() + "ms: "
+						+ dispatcher.getPersister().getClass().getSimpleName(), te);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for persisters", ie);
+			}
+		}
+		throwIfNotNull(wasThrown);
+	}
+
+	/**
+	 * Find the updater dispatcher whose latency metric has the name. Must be called with the dispatchers locked.
+	 */
+	private UpdaterDispatcher findUpdaterMetric(String metricName) {
+		for (UpdaterDispatcher dispatcher : updaterDispatchers) {
+			if (dispatcher.getLatencyMetric().getName().equals(metricName)) {
+				return dispatcher;
+			}
+		}
+		return null;
+	}
+
+	private PersisterList getPersisterList() {
+		PersisterList list = persisterList;
+		if (list == null) {
+			list = new PersisterList(metricValuesPersisters, metricDetailsPersisters, metricsSnapshotPersisters);
+			persisterList = list;
+		}
+		return list;
+	}
+
+	/**
+	 * Find or create the dispatcher for the persister. If the settings have changed since the dispatcher was created
+	 * then it is replaced by one which continues its counters. Must be called with the dispatchers locked.
+	 */
+	private PersisterDispatcher findPersisterDispatcher(Object persister) {
+		Long timeoutMillis = persisterTimeoutOverrides.get(persister);
+		if (timeoutMillis == null) {
+			timeoutMillis = persisterTimeoutMillis;
+		}
+		Integer queueSize = persisterQueueSizeOverrides.get(persister);
+		if (queueSize == null) {
+			queueSize = persisterQueueSize;
+		}
+		PersisterDispatcher dispatcher = persisterDispatchers.get(persister);
+		if (dispatcher == null || !dispatcher.hasSettings(persisterExecutor, timeoutMillis, queueSize)) {
+			dispatcher = new PersisterDispatcher(persister, persisterExecutor, timeoutMillis, queueSize, dispatcher);
+			persisterDispatchers.put(persister, dispatcher);
+		}
+		return dispatcher;
+	}
+
+	/**
+	 * Remove the dispatchers of the persisters that are no longer configured.
+	 */
+	private void removeUnusedPersisterDispatchers() {
+		PersisterList list = getPersisterList();
+		synchronized (persisterDispatchers) {
+			Map<Object, PersisterDispatcher> used = new IdentityHashMap<Object, PersisterDispatcher>();
+			for (Object key : list.keys) {
+				PersisterDispatcher dispatcher = persisterDispatchers.get(key);
+				if (dispatcher != null) {
+					used.put(key, dispatcher);
+				}
+			}
+			persisterDispatchers.clear();
+			persisterDispatchers.putAll(used);
+		}
+	}
+
+	private void throwIfNotNull(Exception wasThrown) throws IOException {
+		if (wasThrown != null) {
+			if (wasThrown instanceof IOException) {
+				throw (IOException) wasThrown;
+			} else {
+				throw new IOException(wasThrown);
+			}
+		}
+	}
+
+	private int allocateMetricId() {
+		Integer id = freeMetricIds.poll();
+		if (id == null) {
+			return nextMetricId.getAndIncrement();
+		} else {
+			return id;
+		}
+	}
+
+	/**
+	 * The id is not reused until the next snapshot is taken otherwise a snapshot being taken right now could see both
+	 * the removed metric and a new metric with the same id.
+	 */
+	private void freeMetricId(int id) {
+		releasedMetricIds.add(id);
+	}
+
+	/**
+	 * Metric in our registry along with the id of its slot in the snapshots.
+	 */
+	private static class RegisteredMetric {
+		final ControlledMetric<?, ?> metric;
+		final int id;
+
+		public RegisteredMetric(ControlledMetric<?, ?> metric, int id) {
+			this.metric = metric;
+			this.id = id;
+		}
+	}
+
+	/**
+	 * Unmodifiable view of the metrics in our registry.
+	 */
+	private class MetricCollection extends AbstractCollection<ControlledMetric<?, ?>> {
+
+		@Override
+		public Iterator<ControlledMetric<?, ?>> iterator() {
+			final Iterator<RegisteredMetric> iterator = metrics.values().iterator();
+			return new Iterator<ControlledMetric<?, ?>>() {
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+
+				@Override
+				public ControlledMetric<?, ?> next() {
+					return iterator.next().metric;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException("Metrics should be unregistered with the manager");
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return metrics.size();
+		}
+	}
+
+	/**
+	 * All of our persisters adapted to take the snapshot with the value persisters first.
+	 */
+	private static class PersisterList {
+		// the persisters as they were configured which are used to key the dispatchers
+		final Object[] keys;
+		final MetricsSnapshotPersister[] persisters;
+		final int numValuesPersisters;
+
+		public PersisterList(MetricValuesPersister[] valuesPersisters, MetricDetailsPersister[] detailsPersisters,
+				MetricsSnapshotPersister[] snapshotPersisters) {
+			int num = valuesPersisters.length + detailsPersisters.length + snapshotPersisters.length;
+			this.keys = new Object[num];
+			this.persisters = new MetricsSnapshotPersister[num];
+			this.numValuesPersisters = valuesPersisters.length;
+			int count = 0;
+			for (MetricValuesPersister persister : valuesPersisters) {
+				keys[count] = persister;
+				persisters[count++] = new MetricValuesPersisterAdapter(persister);
+			}
+			for (MetricDetailsPersister persister : detailsPersisters) {
+				keys[count] = persister;
+				persisters[count++] = new MetricDetailsPersisterAdapter(persister);
+			}
+			for (MetricsSnapshotPersister persister : snapshotPersisters) {
+				keys[count] = persister;
+				persisters[count++] = persister;
+			}
+		}
+	}
+
+	/**
+	 * Key of the metric in our registry.
+	 */
+	private static class MetricKey {
+		private final String component;
+		private final String module;
+		private final String name;
+
+		public MetricKey(ControlledMetric<?, ?> metric) {
+			this(metric.getComponent(), metric.getModule(), metric.getName());
+		}
+
+		public MetricKey(String component, String module, String name) {
+			this.component = component;
+			this.module = module;
+			this.name = name;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = prime + ((component == null) ? 0 : component.hashCode());
+			result = prime * result + ((module == null) ? 0 : module.hashCode());
+			result = prime * result + ((name == null) ? 0 : name.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == null || getClass() != obj.getClass()) {
+				return false;
+			}
+			MetricKey other = (MetricKey) obj;
+			return equals(component, other.component) && equals(module, other.module) && equals(name, other.name);
+		}
+
+		private static boolean equals(String str1, String str2) {
+			if (str1 == null) {
+				return (str2 == null);
+			} else {
+				return str1.equals(str2);
+			}
+		}
+	}
 }
@@ -1,8 +1,23 @@
 package com.j256.simplemetrics.manager;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.management.JMException;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
 
 import com.j256.simplejmx.common.JmxAttributeMethod;
 import com.j256.simplejmx.common.JmxFolderName;
@@ -11,19 +26,37 @@ import com.j256.simplejmx.common.JmxResource;
 import com.j256.simplejmx.common.JmxSelfNaming;
 import com.j256.simplejmx.server.JmxServer;
 import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetricHistogram;
+import com.j256.simplemetrics.metric.ControlledMetricHistogramJmx;
 import com.j256.simplemetrics.metric.ControlledMetricJmx;
+import com.j256.simplemetrics.metric.MetricValueDetails;
+import com.j256.simplemetrics.utils.MiscUtils;
 
 /**
  * Class which optionally handles the JMX publishing of all of the metrics as JMX beans as well as the metrics-manager
- * if the optional SimpleJmx library is available.
- *
+ * if the optional SimpleJmx library is available. The metric values published by the manager bean are cached for
+ * {@link #setMaxStaleMillis(long)} so monitoring tools that poll often don't call the updaters on every read.
+ * 
  * @author graywatson
  */
 @JmxResource(beanName = "MetricsManager", description = "Metrics Manager")
 public class MetricsManagerJmx implements MetricsRegisterListener, JmxSelfNaming {
 
+	private static final long DEFAULT_MAX_STALE_MILLIS = 1000;
+	private static final String[] ROW_ITEM_NAMES =
+			new String[] { "name", "value", "numSamples", "min", "max", "unit", "description" };
+	private static final CompositeType METRIC_ROW_TYPE = createRowType();
+	private static final TabularType METRIC_TABLE_TYPE = createTableType();
+
 	private MetricsManager metricsManager;
 	private JmxServer jmxServer;
+	private long maxStaleMillis = DEFAULT_MAX_STALE_MILLIS;
+
+	private volatile CachedValues cachedValues;
+	private final ReentrantLock refreshLock = new ReentrantLock();
+	private final AtomicLong cacheRefreshCount = new AtomicLong();
+	// guarded by the refresh-lock
+	private Map<ControlledMetric<?, ?>, MetricRow> metricRows = new HashMap<ControlledMetric<?, ?>, MetricRow>();
 	private String jmxDomainName = "com.j256";
 	private JmxFolderName[] jmxFolderNames = { new JmxFolderName("metrics") };
 
@@ -39,7 +72,12 @@ public class MetricsManagerJmx implements MetricsRegisterListener, JmxSelfNaming
 	@Override
 	public void metricRegistered(ControlledMetric<?, ?> metric) {
 		try {
-			jmxServer.register(new ControlledMetricJmx(metric, jmxDomainName, jmxFolderNames));
+			if (metric instanceof ControlledMetricHistogram) {
+				jmxServer.register(new ControlledMetricHistogramJmx((ControlledMetricHistogram) metric, jmxDomainName,
+						jmxFolderNames));
+			} else {
+				jmxServer.register(new ControlledMetricJmx(metric, jmxDomainName, jmxFolderNames));
+			}
 		} catch (JMException e) {
 			// ignored
 		}
@@ -70,9 +108,17 @@ public class MetricsManagerJmx implements MetricsRegisterListener, JmxSelfNaming
 
 	@JmxAttributeMethod(description = "Metric values we are managing")
 	public String[] getMetricValues() {
-		// update the metrics
-		metricsManager.updateMetrics();
-		return metricsManager.getMetricValues();
+		return getCachedValues().values;
+	}
+
+	@JmxAttributeMethod(description = "Metric values, samples, min, and max we are managing")
+	public TabularData getMetricValuesTable() {
+		return getCachedValues().table;
+	}
+
+	@JmxAttributeMethod(description = "Number of times the metric values were updated for JMX")
+	public long getCacheRefreshCount() {
+		return cacheRefreshCount.get();
 	}
 
 	@JmxAttributeMethod(description = "Number of times we have persisted the metrics")
@@ -80,6 +126,25 @@ public class MetricsManagerJmx implements MetricsRegisterListener, JmxSelfNaming
 		return metricsManager.getPersistCount();
 	}
 
+	@JmxAttributeMethod(description = "Counters of the persisters run on the persister executor")
+	public String[] getPersisterDispatchers() {
+		PersisterDispatcher[] dispatchers = metricsManager.getPersisterDispatchers();
+		String[] results = new String[dispatchers.length];
+		for (int i = 0; i < dispatchers.length; i++) {
+			results[i] = dispatchers[i].toString();
+		}
+		return results;
+	}
+
+	/**
+	 * Set the number of millis that the metric values returned to JMX can be old. Monitoring tools often poll every
+	 * second and each refresh calls the updaters of the metrics manager. Set to 0 to refresh on every read.
+	 */
+	// @NotRequired("Default is " + DEFAULT_MAX_STALE_MILLIS)
+	public void setMaxStaleMillis(long maxStaleMillis) {
+		this.maxStaleMillis = maxStaleMillis;
+	}
+
 	// @Required
 	public void setMetricsManager(MetricsManager metricsManager) {
 		this.metricsManager = metricsManager;
@@ -129,4 +194,129 @@ public class MetricsManagerJmx implements MetricsRegisterListener, JmxSelfNaming
 		}
 		this.jmxFolderNames = jmxFolderNames;
 	}
+
+	/**
+	 * Return the cached values, refreshing them if they are too old. Only one thread refreshes at a time. If there are
+	 * cached values then the other threads return them instead of waiting for the refresh.
+	 */
+	private CachedValues getCachedValues() {
+		CachedValues cached = cachedValues;
+		if (cached != null && System.currentTimeMillis() - cached.refreshMillis < maxStaleMillis) {
+			return cached;
+		}
+		if (cached != null) {
+			if (!refreshLock.tryLock()) {
+				// someone else is refreshing
+				return cached;
+			}
+		} else {
+			refreshLock.lock();
+		}
+		try {
+			cached = cachedValues;
+			if (cached != null && System.currentTimeMillis() - cached.refreshMillis < maxStaleMillis) {
+				// refreshed while we were waiting
+				return cached;
+			}
+			cached = refreshValues();
+			cachedValues = cached;
+			return cached;
+		} finally {
+			refreshLock.unlock();
+		}
+	}
+
+	private CachedValues refreshValues() {
+		metricsManager.updateMetrics();
+		cacheRefreshCount.incrementAndGet();
+		List<String> values = new ArrayList<String>();
+		TabularDataSupport table = new TabularDataSupport(METRIC_TABLE_TYPE);
+		// the rows of metrics that have been unregistered are dropped
+		Map<ControlledMetric<?, ?>, MetricRow> newRows = new HashMap<ControlledMetric<?, ?>, MetricRow>();
+		for (ControlledMetric<?, ?> metric : metricsManager.getMetrics()) {
+			MetricRow row = metricRows.get(metric);
+			if (row == null) {
+				row = new MetricRow(metric);
+			}
+			newRows.put(metric, row);
+			row.update(metric.getValueDetails());
+			values.add(row.valueString);
+			table.put(row.compositeData);
+		}
+		metricRows = newRows;
+		return new CachedValues(System.currentTimeMillis(), values.toArray(new String[values.size()]), table);
+	}
+
+	private static CompositeType createRowType() {
+		try {
+			return new CompositeType("MetricValue", "Value of a metric", ROW_ITEM_NAMES, ROW_ITEM_NAMES,
+					new OpenType<?>[] { SimpleType.STRING, SimpleType.DOUBLE, SimpleType.INTEGER, SimpleType.DOUBLE,
+							SimpleType.DOUBLE, SimpleType.STRING, SimpleType.STRING });
+		} catch (OpenDataException ode) {
+			throw new IllegalStateException("Could not create the metric row type", ode);
+		}
+	}
+
+	private static TabularType createTableType() {
+		try {
+			return new TabularType("MetricValues", "Values of the metrics", createRowType(), new String[] { "name" });
+		} catch (OpenDataException ode) {
+			throw new IllegalStateException("Could not create the metric table type", ode);
+		}
+	}
+
+	/**
+	 * Values of the metrics from one refresh.
+	 */
+	private static class CachedValues {
+		final long refreshMillis;
+		final String[] values;
+		final TabularData table;
+
+		public CachedValues(long refreshMillis, String[] values, TabularData table) {
+			this.refreshMillis = refreshMillis;
+			this.values = values;
+			this.table = table;
+		}
+	}
+
+	/**
+	 * The string and composite-data of a metric which are only created again if the metric's value has changed.
+	 */
+	private static class MetricRow {
+		private final ControlledMetric<?, ?> metric;
+		private final String name;
+		private final String valuePrefix;
+		private Number value;
+		private int numSamples;
+		private Number min;
+		private Number max;
+		String valueString;
+		CompositeData compositeData;
+
+		public MetricRow(ControlledMetric<?, ?> metric) {
+			this.metric = metric;
+			this.name = MiscUtils.metricToString(metric);
+			this.valuePrefix = name + "=";
+		}
+
+		public void update(MetricValueDetails details) {
+			if (compositeData != null && details.getValue().equals(value) && details.getNumSamples() == numSamples
+					&& details.getMin().equals(min) && details.getMax().equals(max)) {
+				return;
+			}
+			this.value = details.getValue();
+			this.numSamples = details.getNumSamples();
+			this.min = details.getMin();
+			this.max = details.getMax();
+			this.valueString = valuePrefix + metric.getValue();
+			try {
+				compositeData = new CompositeDataSupport(METRIC_ROW_TYPE, ROW_ITEM_NAMES,
+						new Object[] { name, value.doubleValue(), numSamples, min.doubleValue(), max.doubleValue(),
+								metric.getUnit(), metric.getDescription() });
+			} catch (OpenDataException ode) {
+				throw new IllegalStateException("Could not create the metric row for " + name, ode);
+			}
+		}
+	}
 }
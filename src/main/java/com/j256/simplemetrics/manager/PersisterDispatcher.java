@@ -0,0 +1,258 @@
+package com.j256.simplemetrics.manager;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.j256.simplemetrics.persister.MetricDetailsPersister;
+import com.j256.simplemetrics.persister.MetricValuesPersister;
+
+/**
+ * Hands the snapshots of the metrics to one persister on the executor configured with
+ * {@link MetricsManager#setPersisterExecutor(Executor)}. Each persister has its own dispatcher so a slow persister
+ * doesn't delay the others. The snapshots for a persister are run one at a time in order and a bounded number of them
+ * are queued up behind a persister that is still working. If the queue is full then the snapshot is dropped for that
+ * persister. The dispatcher also tracks the number of snapshots that were persisted, failed, dropped, or took longer
+ * than the timeout. If the settings of the dispatcher are changed then the manager replaces it with a new one that
+ * continues the counters.
+ * 
+ * @author graywatson
+ */
+public class PersisterDispatcher {
+
+	private final Object persister;
+	private final Executor executor;
+	private final long timeoutMillis;
+	private final int maxQueueSize;
+	private final BlockingQueue<PersistTask> queue;
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final Runnable drainer = new Runnable() {
+		@Override
+		public void run() {
+			drainQueue();
+		}
+	};
+
+	private final AtomicLong dispatchedCount;
+	private final AtomicLong completedCount;
+	private final AtomicLong failedCount;
+	private final AtomicLong droppedCount;
+	private final AtomicLong timedOutCount;
+	private volatile Throwable lastFailure;
+
+	PersisterDispatcher(Object persister, Executor executor, long timeoutMillis, int maxQueueSize) {
+		this(persister, executor, timeoutMillis, maxQueueSize, null);
+	}
+
+	/**
+	 * Create a dispatcher which continues the counters of the previous one, if not null, which it is replacing. The
+	 * snapshots already queued in the previous dispatcher are still run by it.
+	 */
+	PersisterDispatcher(Object persister, Executor executor, long timeoutMillis, int maxQueueSize,
+			PersisterDispatcher previous) {
+		this.persister = persister;
+		this.executor = executor;
+		this.timeoutMillis = timeoutMillis;
+		this.maxQueueSize = maxQueueSize;
+		this.queue = new ArrayBlockingQueue<PersistTask>(maxQueueSize);
+		if (previous == null) {
+			this.dispatchedCount = new AtomicLong();
+			this.completedCount = new AtomicLong();
+			this.failedCount = new AtomicLong();
+			this.droppedCount = new AtomicLong();
+			this.timedOutCount = new AtomicLong();
+		} else {
+			// shared so the tasks still running in the previous dispatcher are counted
+			this.dispatchedCount = previous.dispatchedCount;
+			this.completedCount = previous.completedCount;
+			this.failedCount = previous.failedCount;
+			this.droppedCount = previous.droppedCount;
+			this.timedOutCount = previous.timedOutCount;
+			this.lastFailure = previous.lastFailure;
+		}
+	}
+
+	/**
+	 * Return the {@link MetricValuesPersister} or {@link MetricDetailsPersister} that we are dispatching to.
+	 */
+	public Object getPersister() {
+		return persister;
+	}
+
+	/**
+	 * Return the number of millis that a persist call can take before it is considered timed out.
+	 */
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * Return the number of snapshots that can queue up behind the persister while it is still working.
+	 */
+	public int getMaxQueueSize() {
+		return maxQueueSize;
+	}
+
+	/**
+	 * Return the number of snapshots that have been handed to the dispatcher.
+	 */
+	public long getDispatchedCount() {
+		return dispatchedCount.get();
+	}
+
+	/**
+	 * Return the number of snapshots that were persisted successfully.
+	 */
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	/**
+	 * Return the number of snapshots that the persister threw on.
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * Return the number of snapshots that were dropped because the queue was full or the executor rejected them.
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Return the number of snapshots that took longer than the timeout from when they were dispatched to when the
+	 * persister finished with them.
+	 */
+	public long getTimedOutCount() {
+		return timedOutCount.get();
+	}
+
+	/**
+	 * Return the last exception thrown by the persister or null if none.
+	 */
+	public Throwable getLastFailure() {
+		return lastFailure;
+	}
+
+	@Override
+	public String toString() {
+		return persister.getClass().getSimpleName() + ": dispatched " + dispatchedCount.get() + ", completed "
+				+ completedCount.get() + ", failed " + failedCount.get() + ", dropped " + droppedCount.get()
+				+ ", timed-out " + timedOutCount.get();
+	}
+
+	/**
+	 * Return true if the dispatcher was created with these settings.
+	 */
+	boolean hasSettings(Executor executor, long timeoutMillis, int maxQueueSize) {
+		return this.executor == executor && this.timeoutMillis == timeoutMillis && this.maxQueueSize == maxQueueSize;
+	}
+
+	/**
+	 * Queue the persist call and return a task which can be waited on or null if it was dropped. The drop-handler is
+	 * called if the persist call is dropped instead of being called, even if the task was already returned, so any
+	 * resources held for the call can be released.
+	 */
+	PersistTask dispatch(Callable<Void> persistCall, Runnable dropHandler) {
+		dispatchedCount.incrementAndGet();
+		PersistTask task = new PersistTask(persistCall, dropHandler);
+		if (!queue.offer(task)) {
+			droppedCount.incrementAndGet();
+			task.drop(null);
+			return null;
+		}
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				executor.execute(drainer);
+			} catch (RejectedExecutionException ree) {
+				scheduled.set(false);
+				// fail whatever is in the queue so no one waits on them forever
+				PersistTask rejected;
+				while ((rejected = queue.poll()) != null) {
+					droppedCount.incrementAndGet();
+					rejected.drop(ree);
+				}
+				return null;
+			}
+		}
+		return task;
+	}
+
+	/**
+	 * Run the tasks in the queue one at a time.
+	 */
+	private void drainQueue() {
+		while (true) {
+			PersistTask task;
+			while ((task = queue.poll()) != null) {
+				task.run();
+			}
+			scheduled.set(false);
+			// if someone added a task after our last poll but before we reset the flag, we need to run it
+			if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Task that calls the persister and records the results.
+	 */
+	class PersistTask extends FutureTask<Void> {
+
+		private final long dispatchTimeMillis = System.currentTimeMillis();
+		private final Runnable dropHandler;
+
+		public PersistTask(Callable<Void> callable, Runnable dropHandler) {
+			super(callable);
+			this.dropHandler = dropHandler;
+		}
+
+		public long getDispatchTimeMillis() {
+			return dispatchTimeMillis;
+		}
+
+		@Override
+		protected void set(Void result) {
+			// we update the counters first so they are visible to anyone waiting on the task
+			checkTimeout();
+			completedCount.incrementAndGet();
+			super.set(result);
+		}
+
+		@Override
+		protected void setException(Throwable throwable) {
+			checkTimeout();
+			lastFailure = throwable;
+			failedCount.incrementAndGet();
+			super.setException(throwable);
+		}
+
+		/**
+		 * Drop the task without calling the persister. The exception is set in the task, if not null, so anyone
+		 * waiting on it is woken up.
+		 */
+		void drop(Throwable throwable) {
+			if (dropHandler != null) {
+				dropHandler.run();
+			}
+			if (throwable != null) {
+				// this doesn't count as a persister failure
+				super.setException(throwable);
+			}
+		}
+
+		private void checkTimeout() {
+			if (System.currentTimeMillis() - dispatchTimeMillis > timeoutMillis) {
+				timedOutCount.incrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package com.j256.simplemetrics.manager;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.j256.simplemetrics.metric.ControlledMetricValue;
+
+/**
+ * Calls one {@link MetricsUpdater} for the {@link MetricsManager}, either directly or on the executor configured with
+ * {@link MetricsManager#setUpdaterExecutor(Executor)}. If the updater is still running from an earlier call, because
+ * it is blocked reading a hung file system for example, then the call is skipped instead of piling up another one. An
+ * updater can also have its own refresh interval so it is called less often than the metrics are persisted. The
+ * dispatcher tracks the number of calls that were run, skipped, failed, or took longer than the timeout and records
+ * the latency of each call in a metric.
+ * 
+ * @author graywatson
+ */
+public class UpdaterDispatcher {
+
+	private static final String METRICS_COMPONENT = "metrics";
+	private static final String METRICS_MODULE = "updaters";
+
+	private final MetricsUpdater updater;
+	private final long refreshIntervalMillis;
+	private final long timeoutMillis;
+	private final AtomicBoolean running = new AtomicBoolean();
+	private volatile long lastStartMillis;
+	private volatile boolean started;
+	private final ControlledMetricValue latencyMetric;
+
+	private final AtomicLong runCount = new AtomicLong();
+	private final AtomicLong skippedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong timedOutCount = new AtomicLong();
+	private volatile Throwable lastFailure;
+
+	UpdaterDispatcher(MetricsUpdater updater, String metricName, long refreshIntervalMillis, long timeoutMillis) {
+		this.updater = updater;
+		this.refreshIntervalMillis = refreshIntervalMillis;
+		this.timeoutMillis = timeoutMillis;
+		this.latencyMetric = new ControlledMetricValue(METRICS_COMPONENT, METRICS_MODULE, metricName,
+				"Millis that the updater took", "milliseconds");
+	}
+
+	/**
+	 * Return the updater that we are calling.
+	 */
+	public MetricsUpdater getUpdater() {
+		return updater;
+	}
+
+	/**
+	 * Return the number of millis between calls to the updater or 0 if it is called every time.
+	 */
+	public long getRefreshIntervalMillis() {
+		return refreshIntervalMillis;
+	}
+
+	/**
+	 * Return the number of millis that a call can take before it is considered timed out or 0 if the manager's
+	 * {@link MetricsManager#setUpdaterTimeoutMillis(long)} is used.
+	 */
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * Return the metric which records the number of millis that each call to the updater took.
+	 */
+	public ControlledMetricValue getLatencyMetric() {
+		return latencyMetric;
+	}
+
+	/**
+	 * Return true if the updater is being called right now.
+	 */
+	public boolean isRunning() {
+		return running.get();
+	}
+
+	/**
+	 * Return the number of times the updater has been called.
+	 */
+	public long getRunCount() {
+		return runCount.get();
+	}
+
+	/**
+	 * Return the number of calls that were skipped because the updater was still running.
+	 */
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+
+	/**
+	 * Return the number of calls that the updater threw on or that the executor rejected.
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * Return the number of calls that we stopped waiting for because they took longer than the timeout.
+	 */
+	public long getTimedOutCount() {
+		return timedOutCount.get();
+	}
+
+	/**
+	 * Return the last exception thrown by the updater or null if none.
+	 */
+	public Throwable getLastFailure() {
+		return lastFailure;
+	}
+
+	@Override
+	public String toString() {
+		return updater.getClass().getSimpleName() + ": run " + runCount.get() + ", skipped " + skippedCount.get()
+				+ ", failed " + failedCount.get() + ", timed-out " + timedOutCount.get();
+	}
+
+	/**
+	 * Call the updater in the current thread if it is due and not already running.
+	 */
+	void update(long nowMillis) {
+		if (startIfDue(nowMillis)) {
+			new UpdateTask(nowMillis).run();
+		}
+	}
+
+	/**
+	 * Hand the call to the updater to the executor if it is due and not already running. Returns the task which can be
+	 * waited on or null if the updater was not called.
+	 */
+	UpdateTask dispatch(Executor executor, long nowMillis) {
+		if (!startIfDue(nowMillis)) {
+			return null;
+		}
+		UpdateTask task = new UpdateTask(nowMillis);
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException ree) {
+			lastFailure = ree;
+			failedCount.incrementAndGet();
+			running.set(false);
+			return null;
+		}
+		return task;
+	}
+
+	/**
+	 * Record that we stopped waiting for the task.
+	 */
+	void timedOut() {
+		timedOutCount.incrementAndGet();
+	}
+
+	private boolean startIfDue(long nowMillis) {
+		if (started && refreshIntervalMillis > 0 && nowMillis - lastStartMillis < refreshIntervalMillis) {
+			return false;
+		}
+		if (!running.compareAndSet(false, true)) {
+			skippedCount.incrementAndGet();
+			return false;
+		}
+		lastStartMillis = nowMillis;
+		started = true;
+		return true;
+	}
+
+	/**
+	 * Task that calls the updater and records the results.
+	 */
+	class UpdateTask extends FutureTask<Void> {
+
+		private final long dispatchTimeMillis;
+		private long startTimeMillis;
+
+		public UpdateTask(long dispatchTimeMillis) {
+			super(new Runnable() {
+				@Override
+				public void run() {
+					updater.updateMetrics();
+				}
+			}, null);
+			this.dispatchTimeMillis = dispatchTimeMillis;
+		}
+
+		/**
+		 * Return the time that the task was handed off which is used to compute how long to wait for it.
+		 */
+		public long getDispatchTimeMillis() {
+			return dispatchTimeMillis;
+		}
+
+		@Override
+		public void run() {
+			// the latency does not include the other updaters run before us or the time we waited in the executor
+			startTimeMillis = System.currentTimeMillis();
+			super.run();
+		}
+
+		@Override
+		protected void set(Void result) {
+			// we update the counters first so they are visible to anyone waiting on the task
+			finished();
+			super.set(result);
+		}
+
+		@Override
+		protected void setException(Throwable throwable) {
+			lastFailure = throwable;
+			failedCount.incrementAndGet();
+			finished();
+			super.setException(throwable);
+		}
+
+		private void finished() {
+			latencyMetric.adjustValue(System.currentTimeMillis() - startTimeMillis);
+			runCount.incrementAndGet();
+			running.set(false);
+		}
+	}
+}
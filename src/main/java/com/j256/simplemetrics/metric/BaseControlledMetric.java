@@ -107,6 +107,15 @@ public abstract class BaseControlledMetric<V, MV extends MetricValue<V, MV>>
 		return new MetricValueDetails(getMetricValue(true));
 	}
 
+	@Override
+	public void persistToSnapshot(MetricsSnapshot snapshot, int id) {
+		MV value = getMetricValue(true);
+		Number number = value.getValue();
+		snapshot.setValue(id, number.doubleValue(), value.getNumSamples(), value.getMin().doubleValue(),
+				value.getMax().doubleValue());
+		snapshot.setLongValues(id, (number instanceof Long));
+	}
+
 	@Override
 	public String getAggregationTypeName() {
 		return getAggregationType().name();
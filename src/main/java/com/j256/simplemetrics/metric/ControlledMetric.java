@@ -89,6 +89,15 @@ public interface ControlledMetric<V, MV extends MetricValue<V, MV>> {
 	 */
 	public MetricValueDetails getValueDetailsToPersist();
 
+	/**
+	 * Set the value details of the metric suitable to be persisted into the snapshot at the id. This has the same
+	 * semantics as {@link #getValueDetailsToPersist()} but implementations can override it to avoid creating the
+	 * details object.
+	 */
+	public default void persistToSnapshot(MetricsSnapshot snapshot, int id) {
+		snapshot.setValueDetails(id, getValueDetailsToPersist());
+	}
+
 	/**
 	 * Returns the type of aggregation used by this metric.
 	 */
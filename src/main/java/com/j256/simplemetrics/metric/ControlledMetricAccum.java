@@ -1,6 +1,7 @@
 package com.j256.simplemetrics.metric;
 
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.j256.simplemetrics.metric.ControlledMetricAccum.AccumValue;
 
@@ -8,12 +9,22 @@ import com.j256.simplemetrics.metric.ControlledMetricAccum.AccumValue;
  * Managed {@link ControlledMetric} for metrics like page-count or database-accesses that you are adding to continually
  * as opposed to a {@link ControlledMetricValue}.
  * 
+ * <p>
+ * If the metric is going to be incremented by a large number of threads at the same time, you should consider using
+ * the striped constructor which spreads the increments across multiple counter cells so they don't all contend on the
+ * same memory location. The cells are only summed when the value of the metric is needed.
+ * </p>
+ * 
  * @author graywatson
  */
 public class ControlledMetricAccum extends BaseControlledMetric<Long, AccumValue> {
 
 	// We have this intermediate counter because we want to not have every increment cause another metric value object
-	private final AtomicLong counter = new AtomicLong();
+	private final AtomicLong counter;
+	// striped counter which is used instead of the above if we are in striped mode
+	private final LongAdder stripedCounter;
+	// the total of the striped counter that we have already folded into the metric value
+	private final AtomicLong stripedFoldedTotal;
 
 	/**
 	 * @param component
@@ -28,7 +39,36 @@ public class ControlledMetricAccum extends BaseControlledMetric<Long, AccumValue
 	 *            Unit of the metric. Null if none.
 	 */
 	public ControlledMetricAccum(String component, String module, String name, String description, String unit) {
+		this(component, module, name, description, unit, false);
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my". Required.
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview". Null if none.
+	 * @param name
+	 *            String label description the metric. Required.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric. Null if none.
+	 * @param striped
+	 *            Set to true to use a striped counter which does not contend when incremented by many threads at
+	 *            once. In striped mode, {@link #add(long)} and {@link #increment()} do not return the running count.
+	 */
+	public ControlledMetricAccum(String component, String module, String name, String description, String unit,
+			boolean striped) {
 		super(component, module, name, description, unit);
+		if (striped) {
+			this.counter = null;
+			this.stripedCounter = new LongAdder();
+			this.stripedFoldedTotal = new AtomicLong();
+		} else {
+			this.counter = new AtomicLong();
+			this.stripedCounter = null;
+			this.stripedFoldedTotal = null;
+		}
 	}
 
 	@Override
@@ -48,28 +88,44 @@ public class ControlledMetricAccum extends BaseControlledMetric<Long, AccumValue
 
 	/**
 	 * Add a delta value to the metric. This is for metrics (like pageview count) which are incrementing over time.
+	 * 
+	 * @return The count since the value was last retrieved or 0 if the metric is striped.
 	 */
 	public long add(long delta) {
-		return counter.addAndGet(delta);
+		if (stripedCounter == null) {
+			return counter.addAndGet(delta);
+		} else {
+			stripedCounter.add(delta);
+			return 0;
+		}
 	}
 
 	/**
 	 * Add one to the metric.
+	 * 
+	 * @return The count since the value was last retrieved or 0 if the metric is striped.
 	 */
 	public long increment() {
-		return counter.incrementAndGet();
+		return add(1);
 	}
 
 	@Override
 	public void adjustValue(long value) {
 		// we overload this so so we don't generate a new object on every adjustment
-		counter.addAndGet(value);
+		add(value);
 	}
 
 	@Override
 	public void adjustValue(Number value) {
 		// we overload this so so we don't generate a new object on every adjustment
-		counter.addAndGet(value.longValue());
+		add(value.longValue());
+	}
+
+	/**
+	 * Returns true if the metric is using a striped counter.
+	 */
+	public boolean isStriped() {
+		return (stripedCounter != null);
 	}
 
 	@Override
@@ -96,19 +152,46 @@ public class ControlledMetricAccum extends BaseControlledMetric<Long, AccumValue
 		return super.getValueDetailsToPersist();
 	}
 
+	@Override
+	public void persistToSnapshot(MetricsSnapshot snapshot, int id) {
+		adjustValue();
+		super.persistToSnapshot(snapshot, id);
+	}
+
 	@Override
 	public AggregationType getAggregationType() {
 		return AggregationType.SUM;
 	}
 
 	private void adjustValue() {
-		long value = counter.getAndSet(0);
+		long value;
+		if (stripedCounter == null) {
+			value = counter.getAndSet(0);
+		} else {
+			value = foldStripedCounter();
+		}
 		if (value > 0) {
 			// we adjust here only when the value is needed so we don't generate a new object on every adjustment
 			super.adjustValue(value);
 		}
 	}
 
+	/**
+	 * Return the amount that the striped counter has been incremented since the last time we folded it into the metric
+	 * value. We don't use {@link LongAdder#sumThenReset()} because under Java 8 it can lose concurrent increments.
+	 * Instead we keep track of the total that we have already folded.
+	 */
+	private long foldStripedCounter() {
+		while (true) {
+			long folded = stripedFoldedTotal.get();
+			// this has to be read after the folded total so we don't go backwards if another thread folds
+			long total = stripedCounter.sum();
+			if (stripedFoldedTotal.compareAndSet(folded, total)) {
+				return total - folded;
+			}
+		}
+	}
+
 	/**
 	 * Wrapper around a long counter and a reset flag.
 	 */
@@ -0,0 +1,472 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import com.j256.simplemetrics.metric.ControlledMetricHistogram.HistogramValue;
+
+/**
+ * Managed {@link ControlledMetric} that records the distribution of its adjustments so that percentiles such as the
+ * median or the 99th percentile can be published. This is most often used for latencies where the average hides the
+ * slow requests. The value of the metric is the average of the adjustments like the {@link ControlledMetricValue} and
+ * the percentiles are available from the {@link HistogramValueDetails} returned by {@link #getValueDetails()} and
+ * {@link #getValueDetailsToPersist()}.
+ * 
+ * <p>
+ * The adjustments are counted in a fixed number of log-linear buckets. Each power of 2 is split into
+ * {@value #NUM_SUB_BUCKETS} linear buckets so the percentiles are accurate to within a couple of percent of the actual
+ * value. Values from {@value #MIN_EXPONENT} to {@value #MAX_EXPONENT} powers of 2 are tracked in their own buckets,
+ * smaller values (including 0 and negative values) are counted in the first bucket and larger values in the last.
+ * Recording an adjustment does not lock or allocate any objects. NaN and infinite adjustments are ignored because they
+ * would poison the average of the interval.
+ * </p>
+ * 
+ * @author graywatson
+ */
+public class ControlledMetricHistogram extends BaseControlledMetric<Double, HistogramValue> {
+
+	/** number of bits of the mantissa that are used to pick the linear sub-bucket */
+	static final int SUB_BUCKET_BITS = 4;
+	/** number of linear buckets that each power of 2 is divided into */
+	public static final int NUM_SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** smallest power of 2 which has its own buckets */
+	public static final int MIN_EXPONENT = -16;
+	/** largest power of 2 which has its own buckets */
+	public static final int MAX_EXPONENT = 47;
+	/** 1 underflow bucket plus the log-linear buckets */
+	static final int NUM_BUCKETS = 1 + (MAX_EXPONENT - MIN_EXPONENT + 1) * NUM_SUB_BUCKETS;
+	private static final double MIN_BUCKET_VALUE = Math.scalb(1.0, MIN_EXPONENT);
+	/** default percentiles that are published: median, 90th, 99th, and 99.9th */
+	public static final double[] DEFAULT_PERCENTILES = new double[] { 50, 90, 99, 99.9 };
+
+	private static final long POSITIVE_INFINITY_BITS = Double.doubleToLongBits(Double.POSITIVE_INFINITY);
+	private static final long NEGATIVE_INFINITY_BITS = Double.doubleToLongBits(Double.NEGATIVE_INFINITY);
+
+	private final double[] percentiles;
+	private final AtomicLongArray bucketCounts = new AtomicLongArray(NUM_BUCKETS);
+	private final DoubleAdder sum = new DoubleAdder();
+	private final AtomicLong minBits = new AtomicLong(POSITIVE_INFINITY_BITS);
+	private final AtomicLong maxBits = new AtomicLong(NEGATIVE_INFINITY_BITS);
+	private final Object persistLock = new Object();
+	// last value that we persisted which is returned until we get another adjustment
+	private volatile HistogramValue lastPersistedValue = HistogramValue.createInitialValue();
+
+	/**
+	 * Create a histogram which publishes the {@link #DEFAULT_PERCENTILES}.
+	 * 
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 */
+	public ControlledMetricHistogram(String component, String module, String name, String description, String unit) {
+		this(component, module, name, description, unit, DEFAULT_PERCENTILES);
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param percentiles
+	 *            Percentiles from 0 to 100 that are published with the value details.
+	 */
+	public ControlledMetricHistogram(String component, String module, String name, String description, String unit,
+			double[] percentiles) {
+		super(component, module, name, description, unit);
+		for (double percentile : percentiles) {
+			if (percentile < 0 || percentile > 100) {
+				throw new IllegalArgumentException("Percentile " + percentile + " must be between 0 and 100");
+			}
+		}
+		this.percentiles = percentiles.clone();
+	}
+
+	@Override
+	public HistogramValue createInitialValue() {
+		return HistogramValue.createInitialValue();
+	}
+
+	@Override
+	public Double makeValueFromLong(long value) {
+		return (double) value;
+	}
+
+	@Override
+	public Double makeValueFromNumber(Number value) {
+		return value.doubleValue();
+	}
+
+	@Override
+	public AggregationType getAggregationType() {
+		return AggregationType.AVERAGE;
+	}
+
+	@Override
+	public void adjustValue(long value) {
+		adjustValue((double) value);
+	}
+
+	@Override
+	public void adjustValue(Number value) {
+		adjustValue(value.doubleValue());
+	}
+
+	/**
+	 * Record a value into the histogram. NaN and infinite values are ignored.
+	 */
+	public void adjustValue(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return;
+		}
+		bucketCounts.incrementAndGet(bucketIndex(value));
+		sum.add(value);
+		long valueBits = Double.doubleToLongBits(value);
+		while (true) {
+			long currentBits = minBits.get();
+			if (value >= Double.longBitsToDouble(currentBits) || minBits.compareAndSet(currentBits, valueBits)) {
+				break;
+			}
+		}
+		while (true) {
+			long currentBits = maxBits.get();
+			if (value <= Double.longBitsToDouble(currentBits) || maxBits.compareAndSet(currentBits, valueBits)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Return the percentiles that are published with the value details.
+	 */
+	public double[] getPercentiles() {
+		return percentiles.clone();
+	}
+
+	@Override
+	public HistogramValueDetails getValueDetails() {
+		return new HistogramValueDetails(getMetricValue(false), percentiles);
+	}
+
+	@Override
+	public HistogramValueDetails getValueDetailsToPersist() {
+		return new HistogramValueDetails(getMetricValue(true), percentiles);
+	}
+
+	@Override
+	public void persistToSnapshot(MetricsSnapshot snapshot, int id) {
+		// we need the details in the snapshot so the percentiles can be persisted
+		snapshot.setValueDetails(id, getValueDetailsToPersist());
+	}
+
+	@Override
+	protected HistogramValue getMetricValue(boolean persisting) {
+		if (!persisting) {
+			HistogramValue value;
+			synchronized (persistLock) {
+				value = snapshot(false);
+			}
+			if (value == null) {
+				return lastPersistedValue;
+			} else {
+				return value;
+			}
+		}
+
+		synchronized (persistLock) {
+			HistogramValue value = snapshot(true);
+			if (value != null) {
+				lastPersistedValue = value;
+			}
+			return lastPersistedValue;
+		}
+	}
+
+	/**
+	 * Return the index of the bucket that the value is counted in.
+	 */
+	static int bucketIndex(double value) {
+		// this is also true for NaN
+		if (!(value >= MIN_BUCKET_VALUE)) {
+			return 0;
+		}
+		int exponent = Math.getExponent(value);
+		if (exponent > MAX_EXPONENT) {
+			return NUM_BUCKETS - 1;
+		}
+		// the top bits of the mantissa tell us where we are linearly between this power of 2 and the next
+		int subBucket = (int) (Double.doubleToRawLongBits(value) >>> (52 - SUB_BUCKET_BITS)) & (NUM_SUB_BUCKETS - 1);
+		return 1 + (exponent - MIN_EXPONENT) * NUM_SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Return the smallest value that is counted in the bucket.
+	 */
+	static double bucketLowerBound(int index) {
+		if (index == 0) {
+			return 0;
+		}
+		int exponent = (index - 1) / NUM_SUB_BUCKETS + MIN_EXPONENT;
+		int subBucket = (index - 1) % NUM_SUB_BUCKETS;
+		return Math.scalb(1.0 + (double) subBucket / NUM_SUB_BUCKETS, exponent);
+	}
+
+	/**
+	 * Return the value just past the largest value that is counted in the bucket.
+	 */
+	static double bucketUpperBound(int index) {
+		if (index == 0) {
+			return MIN_BUCKET_VALUE;
+		}
+		int exponent = (index - 1) / NUM_SUB_BUCKETS + MIN_EXPONENT;
+		int subBucket = (index - 1) % NUM_SUB_BUCKETS;
+		return Math.scalb(1.0 + (double) (subBucket + 1) / NUM_SUB_BUCKETS, exponent);
+	}
+
+	/**
+	 * Build a value from the buckets, resetting them if we are persisting. Returns null if there have been no
+	 * adjustments since the last persist. Must be called with the persist-lock held.
+	 */
+	private HistogramValue snapshot(boolean persisting) {
+		// we first count the buckets in use so we can allocate our sparse arrays
+		int numUsed = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			if (bucketCounts.get(i) != 0) {
+				numUsed++;
+			}
+		}
+		if (numUsed == 0) {
+			return null;
+		}
+		int[] indexes = new int[numUsed];
+		long[] counts = new long[numUsed];
+		long total = 0;
+		int used = 0;
+		for (int i = 0; i < NUM_BUCKETS && used < numUsed; i++) {
+			long count;
+			if (persisting) {
+				count = bucketCounts.getAndSet(i, 0);
+			} else {
+				count = bucketCounts.get(i);
+			}
+			if (count != 0) {
+				indexes[used] = i;
+				counts[used] = count;
+				total += count;
+				used++;
+			}
+		}
+		if (used < numUsed) {
+			// can't happen with one reader but let's be careful out there
+			indexes = Arrays.copyOf(indexes, used);
+			counts = Arrays.copyOf(counts, used);
+		}
+		double intervalSum;
+		double min;
+		double max;
+		if (persisting) {
+			// reset the sum each interval so it doesn't grow until the new adjustments are lost in its precision
+			intervalSum = sum.sumThenReset();
+			min = Double.longBitsToDouble(minBits.getAndSet(POSITIVE_INFINITY_BITS));
+			max = Double.longBitsToDouble(maxBits.getAndSet(NEGATIVE_INFINITY_BITS));
+		} else {
+			intervalSum = sum.sum();
+			min = Double.longBitsToDouble(minBits.get());
+			max = Double.longBitsToDouble(maxBits.get());
+		}
+		// if we raced with an adjustment, the min or max may not have been set yet
+		if (min > max) {
+			min = bucketLowerBound(indexes[0]);
+			max = bucketUpperBound(indexes[used - 1]);
+		}
+		return new HistogramValue(indexes, counts, total, intervalSum, min, max, persisting);
+	}
+
+	/**
+	 * Snapshot of the counts from the non-empty buckets of the histogram.
+	 */
+	public static class HistogramValue implements MetricValue<Double, HistogramValue> {
+		private static final int[] EMPTY_INDEXES = new int[0];
+		private static final long[] EMPTY_COUNTS = new long[0];
+
+		private final int[] bucketIndexes;
+		private final long[] bucketCounts;
+		private final long count;
+		private final double sum;
+		private final double min;
+		private final double max;
+		private final boolean persisted;
+
+		private HistogramValue(int[] bucketIndexes, long[] bucketCounts, long count, double sum, double min,
+				double max, boolean persisted) {
+			this.bucketIndexes = bucketIndexes;
+			this.bucketCounts = bucketCounts;
+			this.count = count;
+			this.sum = sum;
+			this.min = min;
+			this.max = max;
+			this.persisted = persisted;
+		}
+
+		public static HistogramValue createInitialValue() {
+			return new HistogramValue(EMPTY_INDEXES, EMPTY_COUNTS, 0, 0.0, 0.0, 0.0, true);
+		}
+
+		@Override
+		public HistogramValue makePersisted() {
+			/*
+			 * NOTE: this doesn't change the value because we don't want this to drop to 0 just because there wasn't an
+			 * adjustment event. This is the same as the value metrics.
+			 */
+			return new HistogramValue(bucketIndexes, bucketCounts, count, sum, min, max, true);
+		}
+
+		@Override
+		public HistogramValue makeAdjusted(Double value) {
+			// NOTE: the histogram metric records into its buckets directly so this is not used on the hot path
+			int index = bucketIndex(value);
+			if (persisted || count == 0) {
+				return new HistogramValue(new int[] { index }, new long[] { 1 }, 1, value, value, value, false);
+			}
+			int pos = Arrays.binarySearch(bucketIndexes, index);
+			int[] indexes;
+			long[] counts;
+			if (pos >= 0) {
+				indexes = bucketIndexes;
+				counts = bucketCounts.clone();
+				counts[pos]++;
+			} else {
+				int insert = -(pos + 1);
+				indexes = new int[bucketIndexes.length + 1];
+				counts = new long[bucketCounts.length + 1];
+				System.arraycopy(bucketIndexes, 0, indexes, 0, insert);
+				System.arraycopy(bucketCounts, 0, counts, 0, insert);
+				indexes[insert] = index;
+				counts[insert] = 1;
+				System.arraycopy(bucketIndexes, insert, indexes, insert + 1, bucketIndexes.length - insert);
+				System.arraycopy(bucketCounts, insert, counts, insert + 1, bucketCounts.length - insert);
+			}
+			return new HistogramValue(indexes, counts, count + 1, sum + value, Math.min(min, value),
+					Math.max(max, value), false);
+		}
+
+		@Override
+		public Number getValue() {
+			if (count == 0) {
+				return Double.valueOf(0.0);
+			} else {
+				// value is an _average_ of all the adjustments
+				return Double.valueOf(sum / count);
+			}
+		}
+
+		@Override
+		public int getNumSamples() {
+			if (count >= Integer.MAX_VALUE) {
+				return Integer.MAX_VALUE;
+			} else {
+				return (int) count;
+			}
+		}
+
+		@Override
+		public Number getMin() {
+			return Double.valueOf(min);
+		}
+
+		@Override
+		public Number getMax() {
+			return Double.valueOf(max);
+		}
+
+		/**
+		 * Return the value at the percentile (0 to 100) of the recorded adjustments. This is the middle of the bucket
+		 * that the percentile falls in bounded by the min and max values.
+		 */
+		public double getPercentile(double percentile) {
+			if (count == 0) {
+				return 0.0;
+			}
+			if (percentile <= 0) {
+				return min;
+			}
+			if (percentile >= 100) {
+				return max;
+			}
+			long rank = (long) Math.ceil(percentile / 100.0 * count);
+			long seen = 0;
+			for (int i = 0; i < bucketIndexes.length; i++) {
+				seen += bucketCounts[i];
+				if (seen >= rank) {
+					return bucketValue(bucketIndexes[i]);
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * Return the value that represents each of the non-empty buckets in the same manner as
+		 * {@link #getPercentile(double)}. The entries match up with {@link #getBucketCounts()}.
+		 */
+		public double[] getBucketValues() {
+			double[] values = new double[bucketIndexes.length];
+			for (int i = 0; i < bucketIndexes.length; i++) {
+				values[i] = bucketValue(bucketIndexes[i]);
+			}
+			return values;
+		}
+
+		/**
+		 * Return the number of adjustments in each bucket. The entries match up with {@link #getBucketUpperBounds()}.
+		 */
+		public long[] getBucketCounts() {
+			return bucketCounts.clone();
+		}
+
+		/**
+		 * Return the value just past the largest value that is counted in each of the non-empty buckets.
+		 */
+		public double[] getBucketUpperBounds() {
+			double[] bounds = new double[bucketIndexes.length];
+			for (int i = 0; i < bucketIndexes.length; i++) {
+				bounds[i] = bucketUpperBound(bucketIndexes[i]);
+			}
+			return bounds;
+		}
+
+		/**
+		 * Middle of the bucket bounded by the min and max values.
+		 */
+		private double bucketValue(int index) {
+			if (index == 0) {
+				// the underflow bucket has no useful midpoint so we use the smallest value
+				return min;
+			} else if (index == NUM_BUCKETS - 1 && max >= bucketUpperBound(index)) {
+				// same for the overflow bucket if it has values past its range
+				return max;
+			}
+			double value = (bucketLowerBound(index) + bucketUpperBound(index)) / 2.0;
+			if (value < min) {
+				return min;
+			} else if (value > max) {
+				return max;
+			} else {
+				return value;
+			}
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package com.j256.simplemetrics.metric;
+
+import com.j256.simplejmx.common.JmxAttributeMethod;
+import com.j256.simplejmx.common.JmxFolderName;
+import com.j256.simplemetrics.manager.MetricsManagerJmx;
+
+/**
+ * Wrapper around a {@link ControlledMetricHistogram} that provides JMX publishing of the metric and its percentiles.
+ * This is used by the {@link MetricsManagerJmx} if the optional SimpleJmx library is available.
+ * 
+ * @author graywatson
+ */
+public class ControlledMetricHistogramJmx extends ControlledMetricJmx {
+
+	private final ControlledMetricHistogram histogram;
+
+	public ControlledMetricHistogramJmx(ControlledMetricHistogram histogram, String jmxDomainName,
+			JmxFolderName[] managerFolderNames) {
+		super(histogram, jmxDomainName, managerFolderNames);
+		this.histogram = histogram;
+	}
+
+	@JmxAttributeMethod(description = "Current percentiles of the metric.")
+	public String[] getPercentiles() {
+		HistogramValueDetails details = histogram.getValueDetails();
+		double[] percentiles = details.getPercentiles();
+		double[] values = details.getPercentileValues();
+		String[] results = new String[percentiles.length];
+		for (int i = 0; i < percentiles.length; i++) {
+			results[i] = HistogramValueDetails.percentileName(percentiles[i]) + " = " + values[i];
+		}
+		return results;
+	}
+}
@@ -0,0 +1,200 @@
+package com.j256.simplemetrics.metric;
+
+/**
+ * Version of the {@link ControlledMetricValue} that is designed for metrics that are adjusted by a large number of
+ * threads at the same time. Instead of every thread contending to update the same value, each thread records its
+ * adjustments into one of a number of shards which is picked using the thread-id. The shards hold the partial sum,
+ * count, min, and max of the adjustments and are merged together when the metric is read or persisted.
+ * 
+ * <p>
+ * The persist semantics are the same as the {@link ControlledMetricValue}. The value is retained after it is persisted
+ * until the next adjustment.
+ * </p>
+ * 
+ * @author graywatson
+ */
+public class ControlledMetricShardedValue extends ControlledMetricValue {
+
+	private static final int DEFAULT_NUM_SHARDS = Runtime.getRuntime().availableProcessors();
+	private static final int MAX_NUM_SHARDS = 1024;
+
+	private final Shard[] shards;
+	private final int shardMask;
+	private final Object persistLock = new Object();
+	// last value that we persisted which is returned until we get another adjustment
+	private volatile ValueCount lastPersistedValue = ValueCount.createInitialValue();
+
+	/**
+	 * Create a metric with a number of shards equal to the number of processors.
+	 * 
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 */
+	public ControlledMetricShardedValue(String component, String module, String name, String description,
+			String unit) {
+		this(component, module, name, description, unit, DEFAULT_NUM_SHARDS);
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param numShards
+	 *            Number of shards to spread the adjustments across. This will be rounded up to a power of 2.
+	 */
+	public ControlledMetricShardedValue(String component, String module, String name, String description, String unit,
+			int numShards) {
+		super(component, module, name, description, unit, false);
+		if (numShards <= 0) {
+			throw new IllegalArgumentException("Number of shards must be positive: " + numShards);
+		}
+		int size = 1;
+		while (size < numShards && size < MAX_NUM_SHARDS) {
+			size <<= 1;
+		}
+		this.shards = new Shard[size];
+		for (int i = 0; i < size; i++) {
+			this.shards[i] = new Shard();
+		}
+		this.shardMask = size - 1;
+	}
+
+	@Override
+	public void adjustValue(long value) {
+		currentShard().record(value);
+	}
+
+	@Override
+	public void adjustValue(Number value) {
+		currentShard().record(value.doubleValue());
+	}
+
+	@Override
+	public void adjustValue(double value) {
+		currentShard().record(value);
+	}
+
+	@Override
+	public boolean isPrimitiveRecording() {
+		return true;
+	}
+
+	/**
+	 * Return the number of shards that the adjustments are spread across.
+	 */
+	public int getNumShards() {
+		return shards.length;
+	}
+
+	@Override
+	protected ValueCount getMetricValue(boolean persisting) {
+		if (!persisting) {
+			// take a look at the shards without resetting them
+			ValueCount value = mergeShards(false);
+			if (value == null) {
+				return lastPersistedValue;
+			} else {
+				return value;
+			}
+		}
+
+		synchronized (persistLock) {
+			ValueCount value = mergeShards(true);
+			if (value != null) {
+				lastPersistedValue = value;
+			}
+			return lastPersistedValue;
+		}
+	}
+
+	/**
+	 * Merge the shards together and return the resulting value or null if there have been no adjustments since the
+	 * last persist.
+	 */
+	private ValueCount mergeShards(boolean persisting) {
+		double sum = 0;
+		int count = 0;
+		double min = 0;
+		double max = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				if (shard.count == 0) {
+					continue;
+				}
+				if (count == 0) {
+					min = shard.min;
+					max = shard.max;
+				} else {
+					if (shard.min < min) {
+						min = shard.min;
+					}
+					if (shard.max > max) {
+						max = shard.max;
+					}
+				}
+				sum += shard.sum;
+				count += shard.count;
+				if (persisting) {
+					shard.count = 0;
+					shard.sum = 0;
+				}
+			}
+		}
+		if (count == 0) {
+			return null;
+		} else {
+			// if we are persisting then the value will be reset on the next adjustment
+			return new ValueCount(sum, count, min, max, persisting);
+		}
+	}
+
+	private Shard currentShard() {
+		// mix the thread-id a bit in case the ids are not sequential
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 16)) * 0x9E3779B9;
+		return shards[(hash >>> 16) & shardMask];
+	}
+
+	/**
+	 * Partial adjustments made by the threads which map to this shard since the last persist.
+	 */
+	private static class Shard {
+		// padding so that the shards that are allocated together don't share a cache-line
+		@SuppressWarnings("unused")
+		long pad1, pad2, pad3, pad4, pad5, pad6, pad7;
+		double sum;
+		int count;
+		double min;
+		double max;
+		@SuppressWarnings("unused")
+		long pad8, pad9, pad10, pad11, pad12, pad13, pad14;
+
+		synchronized void record(double value) {
+			if (count == 0) {
+				min = value;
+				max = value;
+			} else if (value < min) {
+				min = value;
+			} else if (value > max) {
+				max = value;
+			}
+			sum += value;
+			count++;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package com.j256.simplemetrics.metric;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Convenience to allow tracking of the elapsed time of events as a metric. Basically you do a:
  * 
@@ -11,12 +13,32 @@ package com.j256.simplemetrics.metric;
  * timer.stopAndAdd(millis);
  * </pre>
  * 
- * The rest is done by the class and the metric system.
+ * The rest is done by the class and the metric system. If the timer is stopped very frequently, you may want to use
+ * the primitive-recording constructor so the timings don't allocate any objects. See {@link ControlledMetricValue}.
+ * 
+ * <p>
+ * The timers created with a {@link TimeUnit} use {@link System#nanoTime()} which is precise for sub-millisecond
+ * operations and is not affected by changes to the wall-clock. The elapsed time is recorded in the unit specified.
+ * These timers can also feed a {@link ControlledMetricHistogram} so the tail latencies are not averaged away. They
+ * also support a {@link Sample} handle for try-with-resources:
+ * </p>
+ * 
+ * <pre>
+ * try (ControlledMetricTimer.Sample sample = timer.startSample()) {
+ * 	dao.createEntry(...);
+ * }
+ * </pre>
  * 
  * @author graywatson
  */
 public class ControlledMetricTimer extends ControlledMetricValue {
 
+	private final boolean nanoTiming;
+	private final TimeUnit timeUnit;
+	private final double nanosPerUnit;
+	private final ControlledMetricHistogram histogram;
+	private final ThreadLocal<Sample> threadSample = new ThreadLocal<Sample>();
+
 	/**
 	 * @param component
 	 *            Component short name such as "my".
@@ -28,17 +50,90 @@ public class ControlledMetricTimer extends ControlledMetricValue {
 	 *            Description for more information which may not be persisted.
 	 */
 	public ControlledMetricTimer(String component, String module, String name, String description) {
-		super(component, module, name, description, "milliseconds");
+		this(component, module, name, description, false);
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param primitiveRecording
+	 *            Set to true to record timings in primitive fields so we don't allocate objects on each stop.
+	 */
+	public ControlledMetricTimer(String component, String module, String name, String description,
+			boolean primitiveRecording) {
+		super(component, module, name, description, "milliseconds", primitiveRecording);
+		this.nanoTiming = false;
+		this.timeUnit = TimeUnit.MILLISECONDS;
+		this.nanosPerUnit = TimeUnit.MILLISECONDS.toNanos(1);
+		this.histogram = null;
+	}
+
+	/**
+	 * Create a timer which uses {@link System#nanoTime()} and records the elapsed times in primitive fields.
+	 * 
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param timeUnit
+	 *            Unit of the elapsed times that are recorded such as {@link TimeUnit#MICROSECONDS}. Fractions of the
+	 *            unit are kept.
+	 */
+	public ControlledMetricTimer(String component, String module, String name, String description,
+			TimeUnit timeUnit) {
+		this(component, module, name, description, timeUnit, null);
+	}
+
+	/**
+	 * Create a timer which uses {@link System#nanoTime()} and records the elapsed times in primitive fields.
+	 * 
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param timeUnit
+	 *            Unit of the elapsed times that are recorded such as {@link TimeUnit#MICROSECONDS}. Fractions of the
+	 *            unit are kept.
+	 * @param histogram
+	 *            Histogram which is also adjusted with each of the elapsed times so percentiles can be published or
+	 *            null if none. The histogram needs to be registered separately with the metrics manager.
+	 */
+	public ControlledMetricTimer(String component, String module, String name, String description,
+			TimeUnit timeUnit, ControlledMetricHistogram histogram) {
+		super(component, module, name, description, unitName(timeUnit), true);
+		this.nanoTiming = true;
+		this.timeUnit = timeUnit;
+		this.nanosPerUnit = timeUnit.toNanos(1);
+		this.histogram = histogram;
 	}
 
 	/**
 	 * Start the timer on a particular event. You should call the {@link #stopAndAdd(long)} method after the event that
 	 * you want to track completes.
 	 * 
-	 * @return Millis which should be passed to {@link #stop(long)} as the argument.
+	 * @return Millis, or the {@link System#nanoTime()} value for timers created with a {@link TimeUnit}, which should
+	 *         be passed to {@link #stopAndAdd(long)} as the argument.
 	 */
 	public long start() {
-		return System.currentTimeMillis();
+		if (nanoTiming) {
+			return System.nanoTime();
+		} else {
+			return System.currentTimeMillis();
+		}
 	}
 
 	/**
@@ -55,11 +150,115 @@ public class ControlledMetricTimer extends ControlledMetricValue {
 	 * @param startMillis
 	 *            Value returned from a previous call to {@link #start()}.
 	 * 
-	 * @return the calculated time difference added to the counter
+	 * @return the calculated time difference added to the counter. For timers created with a {@link TimeUnit} this is
+	 *         in that unit with any fraction truncated.
 	 */
 	public long stopAndAdd(long startMillis) {
-		long elapsed = System.currentTimeMillis() - startMillis;
+		if (!nanoTiming) {
+			long elapsed = System.currentTimeMillis() - startMillis;
+			adjustValue(elapsed);
+			return elapsed;
+		}
+		long elapsedNanos = System.nanoTime() - startMillis;
+		double elapsed = elapsedNanos / nanosPerUnit;
 		adjustValue(elapsed);
-		return elapsed;
+		if (histogram != null) {
+			histogram.adjustValue(elapsed);
+		}
+		return timeUnit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Create a new sample handle for this timer. The sample can be started and closed any number of times without
+	 * allocating so it can be stored, for example, in a field of an object that is used by a single thread.
+	 */
+	public Sample createSample() {
+		return new Sample(this);
+	}
+
+	/**
+	 * Start a sample which will record the elapsed time when it is closed. This uses a sample which is cached per
+	 * thread so it does not allocate after the first call by each thread unless the samples are nested.
+	 */
+	public Sample startSample() {
+		Sample sample = threadSample.get();
+		if (sample == null) {
+			sample = new Sample(this);
+			threadSample.set(sample);
+		} else if (sample.running) {
+			// nested samples from the same thread need their own handle
+			sample = new Sample(this);
+		}
+		return sample.start();
+	}
+
+	/**
+	 * Returns true if the timer uses {@link System#nanoTime()} to calculate the elapsed time.
+	 */
+	public boolean isNanoTiming() {
+		return nanoTiming;
+	}
+
+	/**
+	 * Return the unit of the elapsed times that are recorded.
+	 */
+	public TimeUnit getTimeUnit() {
+		return timeUnit;
+	}
+
+	/**
+	 * Return the histogram that is also fed the elapsed times or null if none.
+	 */
+	public ControlledMetricHistogram getHistogram() {
+		return histogram;
+	}
+
+	private static String unitName(TimeUnit timeUnit) {
+		return timeUnit.name().toLowerCase();
+	}
+
+	/**
+	 * Reusable handle which records the time between its {@link #start()} and {@link #close()} calls into the timer.
+	 * This is not thread-safe and should be used by one thread at a time.
+	 */
+	public static class Sample implements AutoCloseable {
+
+		private final ControlledMetricTimer timer;
+		private long startValue;
+		private boolean running;
+
+		private Sample(ControlledMetricTimer timer) {
+			this.timer = timer;
+		}
+
+		/**
+		 * Start or restart the timing of the sample.
+		 * 
+		 * @return This sample for try-with-resources.
+		 */
+		public Sample start() {
+			startValue = timer.start();
+			running = true;
+			return this;
+		}
+
+		/**
+		 * Stop the timing of the sample and add the elapsed time to the timer. This does nothing if the sample is not
+		 * running.
+		 */
+		@Override
+		public void close() {
+			if (running) {
+				running = false;
+				timer.stopAndAdd(startValue);
+			}
+		}
+
+		/**
+		 * Returns true if the sample has been started but not closed.
+		 */
+		public boolean isRunning() {
+			return running;
+		}
 	}
 }
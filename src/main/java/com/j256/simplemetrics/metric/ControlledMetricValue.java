@@ -8,10 +8,19 @@ import com.j256.simplemetrics.metric.ControlledMetricValue.ValueCount;
  * you are reseting it each time as opposed to a {@link ControlledMetricAccum}. If you need to poll a system property or
  * other object value then you may want your class to implement {@link MetricsUpdater}.
  * 
+ * <p>
+ * By default each adjustment creates a new immutable value object. If the metric is adjusted very frequently, you can
+ * use the primitive-recording constructor which records the adjustments into mutable primitive fields and only creates
+ * a value object when the metric is read or persisted.
+ * </p>
+ * 
  * @author graywatson
  */
 public class ControlledMetricValue extends BaseControlledMetric<Double, ValueCount> {
 
+	// if not null then we are recording adjustments in primitive fields instead of the metric-value
+	private final ValueCell valueCell;
+
 	/**
 	 * @param component
 	 *            Component short name such as "my".
@@ -25,7 +34,31 @@ public class ControlledMetricValue extends BaseControlledMetric<Double, ValueCou
 	 *            Unit of the metric.
 	 */
 	public ControlledMetricValue(String component, String module, String name, String description, String unit) {
+		this(component, module, name, description, unit, false);
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param primitiveRecording
+	 *            Set to true to record adjustments in primitive fields so we don't allocate objects on each adjustment.
+	 */
+	public ControlledMetricValue(String component, String module, String name, String description, String unit,
+			boolean primitiveRecording) {
 		super(component, module, name, description, unit);
+		if (primitiveRecording) {
+			this.valueCell = new ValueCell();
+		} else {
+			this.valueCell = null;
+		}
 	}
 
 	@Override
@@ -48,6 +81,61 @@ public class ControlledMetricValue extends BaseControlledMetric<Double, ValueCou
 		return AggregationType.AVERAGE;
 	}
 
+	@Override
+	public void adjustValue(long value) {
+		if (valueCell == null) {
+			super.adjustValue(value);
+		} else {
+			valueCell.record(value);
+		}
+	}
+
+	@Override
+	public void adjustValue(Number value) {
+		if (valueCell == null) {
+			super.adjustValue(value);
+		} else {
+			valueCell.record(value.doubleValue());
+		}
+	}
+
+	/**
+	 * Adjust the metric with a double primitive value. This will not box the value if we are in primitive-recording
+	 * mode.
+	 */
+	public void adjustValue(double value) {
+		if (valueCell == null) {
+			storeValue(value);
+		} else {
+			valueCell.record(value);
+		}
+	}
+
+	/**
+	 * Returns true if the metric is recording its adjustments in primitive fields.
+	 */
+	public boolean isPrimitiveRecording() {
+		return (valueCell != null);
+	}
+
+	@Override
+	protected ValueCount getMetricValue(boolean persisting) {
+		if (valueCell == null) {
+			return super.getMetricValue(persisting);
+		} else {
+			return valueCell.snapshot(persisting);
+		}
+	}
+
+	@Override
+	public void persistToSnapshot(MetricsSnapshot snapshot, int id) {
+		if (valueCell == null) {
+			super.persistToSnapshot(snapshot, id);
+		} else {
+			valueCell.persistToSnapshot(snapshot, id);
+		}
+	}
+
 	/**
 	 * Wrapper around a current value and count so we can calculate averages internally.
 	 */
@@ -58,7 +146,7 @@ public class ControlledMetricValue extends BaseControlledMetric<Double, ValueCou
 		private final double max;
 		private final boolean resetNext;
 
-		private ValueCount(double value, int count, double min, double max, boolean resetNext) {
+		ValueCount(double value, int count, double min, double max, boolean resetNext) {
 			this.value = value;
 			this.count = count;
 			this.min = min;
@@ -120,4 +208,61 @@ public class ControlledMetricValue extends BaseControlledMetric<Double, ValueCou
 			return Double.valueOf(max);
 		}
 	}
+
+	/**
+	 * Mutable primitive version of the {@link ValueCount} that is used in primitive-recording mode. Adjustments are
+	 * recorded under the cell lock and a value-count is only created when the metric is read or persisted.
+	 */
+	static class ValueCell {
+		private double value;
+		private int count;
+		private double min;
+		private double max;
+		private boolean resetNext = true;
+
+		/**
+		 * Record the value into the cell with the same semantics as {@link ValueCount#makeAdjusted(Double)}.
+		 */
+		synchronized void record(double value) {
+			if (resetNext) {
+				this.value = value;
+				this.count = 1;
+				this.min = value;
+				this.max = value;
+				this.resetNext = false;
+				return;
+			}
+			if (value < min) {
+				min = value;
+			} else if (value > max) {
+				max = value;
+			}
+			// NOTE: we are adding in the value because we will be averaging later divided by count
+			this.value += value;
+			this.count++;
+		}
+
+		/**
+		 * Return a value-count from the cell. If we are persisting then the cell will be reset on the next record.
+		 */
+		synchronized ValueCount snapshot(boolean persisting) {
+			if (persisting) {
+				resetNext = true;
+			}
+			return new ValueCount(value, count, min, max, resetNext);
+		}
+
+		/**
+		 * Set the same information as {@link #snapshot(boolean)} into the metrics snapshot without creating any
+		 * objects and reset the cell on the next record.
+		 */
+		synchronized void persistToSnapshot(MetricsSnapshot snapshot, int id) {
+			resetNext = true;
+			double average = value;
+			if (count > 1) {
+				average /= count;
+			}
+			snapshot.setValue(id, average, count, min, max);
+		}
+	}
 }
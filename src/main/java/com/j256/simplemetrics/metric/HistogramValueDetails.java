@@ -0,0 +1,89 @@
+package com.j256.simplemetrics.metric;
+
+import com.j256.simplemetrics.metric.ControlledMetricHistogram.HistogramValue;
+
+/**
+ * Value detail information for a {@link ControlledMetricHistogram} which adds the percentiles of the recorded values.
+ * 
+ * @author graywatson
+ */
+public class HistogramValueDetails extends MetricValueDetails {
+
+	private final HistogramValue histogramValue;
+	private final double[] percentiles;
+	private final double[] percentileValues;
+
+	public HistogramValueDetails(HistogramValue histogramValue, double[] percentiles) {
+		super(histogramValue);
+		this.histogramValue = histogramValue;
+		this.percentiles = percentiles;
+		this.percentileValues = new double[percentiles.length];
+		for (int i = 0; i < percentiles.length; i++) {
+			percentileValues[i] = histogramValue.getPercentile(percentiles[i]);
+		}
+	}
+
+	/**
+	 * Get the percentiles (0 to 100) that were configured on the histogram.
+	 */
+	public double[] getPercentiles() {
+		return percentiles.clone();
+	}
+
+	/**
+	 * Get the values of the configured percentiles. These match up with the entries returned by
+	 * {@link #getPercentiles()}.
+	 */
+	public double[] getPercentileValues() {
+		return percentileValues.clone();
+	}
+
+	/**
+	 * Get the value of the percentile (0 to 100) of the recorded values.
+	 */
+	public double getPercentile(double percentile) {
+		return histogramValue.getPercentile(percentile);
+	}
+
+	/**
+	 * Get the value that represents each of the non-empty buckets of the histogram. These match up with the entries
+	 * returned by {@link #getBucketCounts()} and can be used to publish the distribution of the recorded values.
+	 */
+	public double[] getBucketValues() {
+		return histogramValue.getBucketValues();
+	}
+
+	/**
+	 * Get the number of recorded values in each of the non-empty buckets of the histogram.
+	 */
+	public long[] getBucketCounts() {
+		return histogramValue.getBucketCounts();
+	}
+
+	/**
+	 * Return the name of the percentile used when publishing it such as "p50" for 50 or "p999" for 99.9.
+	 */
+	public static String percentileName(double percentile) {
+		String str;
+		if (percentile == (long) percentile) {
+			str = Long.toString((long) percentile);
+		} else {
+			str = Double.toString(percentile).replace(".", "");
+		}
+		return "p" + str;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("HistogramValueDetails [value=").append(getValue());
+		sb.append(", numSamples=").append(getNumSamples());
+		sb.append(", min=").append(getMin());
+		sb.append(", max=").append(getMax());
+		for (int i = 0; i < percentiles.length; i++) {
+			sb.append(", ").append(percentileName(percentiles[i])).append('=').append(percentileValues[i]);
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+}
@@ -25,6 +25,13 @@ public class MetricValueDetails {
 		this.max = metricValue.getMax();
 	}
 
+	public MetricValueDetails(Number value, int numSamples, Number min, Number max) {
+		this.value = value;
+		this.numSamples = numSamples;
+		this.min = min;
+		this.max = max;
+	}
+
 	/**
 	 * Get the number from this metric value.
 	 */
@@ -0,0 +1,337 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+
+/**
+ * Columnar snapshot of the persisted values of all of the metrics. The values, number of samples, minimums, and
+ * maximums are stored in parallel primitive arrays indexed by the id that the {@link MetricsManager} assigned to each
+ * metric when it was registered. The ids are stable while the metric is registered but there may be holes in the
+ * range of ids so {@link #getMetric(int)} will return null for an id with no metric.
+ * 
+ * <p>
+ * The manager reuses two snapshots between persist cycles so filling them does not allocate objects per metric. This
+ * means that the snapshot must not be used by a persister after its persist call has returned. If a persister needs
+ * the values later it should copy them out. The {@link #toValuesMap()} and {@link #toValueDetailsMap()} methods create
+ * copies in the older map format.
+ * </p>
+ * 
+ * <pre>
+ * for (int id = 0; id &lt; snapshot.getSize(); id++) {
+ * 	ControlledMetric&lt;?, ?&gt; metric = snapshot.getMetric(id);
+ * 	if (metric != null) {
+ * 		double value = snapshot.getValue(id);
+ * 		...
+ * 	}
+ * }
+ * </pre>
+ * 
+ * <p>
+ * <b>NOTE:</b> the values are stored as doubles so accumulator values larger than 2^53 lose precision.
+ * </p>
+ * 
+ * @author graywatson
+ */
+public class MetricsSnapshot {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private ControlledMetric<?, ?>[] metrics;
+	private double[] values;
+	private int[] numSamples;
+	private double[] mins;
+	private double[] maxes;
+	// whether the metric reports its values as longs, like the accumulators, instead of doubles
+	private boolean[] longValues;
+	// extended details, such as the histogram percentiles, which are null for most metrics
+	private MetricValueDetails[] extendedDetails;
+	private int size;
+	private int numMetrics;
+	private long timeCollectedMillis;
+	private final AtomicInteger userCount = new AtomicInteger();
+
+	// copies in the map format which are created on demand and cached until the snapshot is reset
+	private Map<ControlledMetric<?, ?>, Number> valuesMap;
+	private Map<ControlledMetric<?, ?>, MetricValueDetails> valueDetailsMap;
+
+	public MetricsSnapshot() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public MetricsSnapshot(int capacity) {
+		allocateArrays(Math.max(1, capacity));
+	}
+
+	/**
+	 * Clear the snapshot so it can be filled in again. This is called by the {@link MetricsManager}.
+	 */
+	public void reset(long timeCollectedMillis) {
+		Arrays.fill(metrics, 0, size, null);
+		Arrays.fill(extendedDetails, 0, size, null);
+		this.size = 0;
+		this.numMetrics = 0;
+		this.timeCollectedMillis = timeCollectedMillis;
+		synchronized (this) {
+			valuesMap = null;
+			valueDetailsMap = null;
+		}
+	}
+
+	/**
+	 * Add the metric into the snapshot with the id. This is called by the {@link MetricsManager} before it calls
+	 * {@link ControlledMetric#persistToSnapshot(MetricsSnapshot, int)}.
+	 */
+	public void setMetric(int id, ControlledMetric<?, ?> metric) {
+		if (id >= metrics.length) {
+			growArrays(id + 1);
+		}
+		if (id >= size) {
+			size = id + 1;
+		}
+		if (metrics[id] == null) {
+			numMetrics++;
+		}
+		metrics[id] = metric;
+		// in case the metric doesn't set all of the fields
+		values[id] = 0;
+		numSamples[id] = 0;
+		mins[id] = 0;
+		maxes[id] = 0;
+		longValues[id] = false;
+		extendedDetails[id] = null;
+	}
+
+	/**
+	 * Set the value information for the metric with the id.
+	 */
+	public void setValue(int id, double value, int numSamples, double min, double max) {
+		this.values[id] = value;
+		this.numSamples[id] = numSamples;
+		this.mins[id] = min;
+		this.maxes[id] = max;
+	}
+
+	/**
+	 * Set the value information for the metric with the id from the details. If the details are a subclass of
+	 * {@link MetricValueDetails}, such as {@link HistogramValueDetails}, then they are also kept in the snapshot.
+	 */
+	public void setValueDetails(int id, MetricValueDetails details) {
+		setValue(id, details.getValue().doubleValue(), details.getNumSamples(), details.getMin().doubleValue(),
+				details.getMax().doubleValue());
+		longValues[id] = (details.getValue() instanceof Long);
+		if (details.getClass() != MetricValueDetails.class) {
+			extendedDetails[id] = details;
+		}
+	}
+
+	/**
+	 * Set whether the metric with the id reports its values as longs, like the accumulators, or as doubles. This
+	 * determines the type of the min and max in {@link #getValueDetails(int)} so they match the metric's own details.
+	 * Default is doubles.
+	 */
+	public void setLongValues(int id, boolean longValues) {
+		this.longValues[id] = longValues;
+	}
+
+	/**
+	 * Return true if the metric with the id reports its values as longs. See {@link #setLongValues(int, boolean)}.
+	 */
+	public boolean isLongValues(int id) {
+		return longValues[id];
+	}
+
+	/**
+	 * Return the number of ids in the snapshot. Ids range from 0 to size - 1 but not all of them may have metrics.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Return the number of metrics in the snapshot.
+	 */
+	public int getNumMetrics() {
+		return numMetrics;
+	}
+
+	/**
+	 * Return the time in millis when the metrics were collected.
+	 */
+	public long getTimeCollectedMillis() {
+		return timeCollectedMillis;
+	}
+
+	/**
+	 * Set the time in millis when the metrics were collected. This is used when combining multiple snapshots into one.
+	 */
+	public void setTimeCollectedMillis(long timeCollectedMillis) {
+		this.timeCollectedMillis = timeCollectedMillis;
+	}
+
+	/**
+	 * Return the metric with the id or null if there is none.
+	 */
+	public ControlledMetric<?, ?> getMetric(int id) {
+		if (id >= size) {
+			return null;
+		} else {
+			return metrics[id];
+		}
+	}
+
+	/**
+	 * Return the value of the metric with the id.
+	 */
+	public double getValue(int id) {
+		return values[id];
+	}
+
+	/**
+	 * Return the number of samples of the metric with the id.
+	 */
+	public int getNumSamples(int id) {
+		return numSamples[id];
+	}
+
+	/**
+	 * Return the minimum value of the metric with the id.
+	 */
+	public double getMin(int id) {
+		return mins[id];
+	}
+
+	/**
+	 * Return the maximum value of the metric with the id.
+	 */
+	public double getMax(int id) {
+		return maxes[id];
+	}
+
+	/**
+	 * Return the value details of the metric with the id. This returns the extended details, such as
+	 * {@link HistogramValueDetails}, if the metric provided them otherwise a new {@link MetricValueDetails} is created.
+	 * Like {@link MetricValueDetails#MetricValueDetails(MetricValue)}, the value is converted to a long if possible
+	 * while the min and max are longs or doubles to match the metric's own details. See
+	 * {@link #setLongValues(int, boolean)}.
+	 */
+	public MetricValueDetails getValueDetails(int id) {
+		MetricValueDetails details = extendedDetails[id];
+		if (details == null) {
+			details = new MetricValueDetails(toNumber(values[id]), numSamples[id], toDetailsNumber(id, mins[id]),
+					toDetailsNumber(id, maxes[id]));
+		}
+		return details;
+	}
+
+	/**
+	 * Return an unmodifiable map of metric to value in the format used by the older persisters. The map is created on
+	 * the first call and cached.
+	 */
+	public synchronized Map<ControlledMetric<?, ?>, Number> toValuesMap() {
+		if (valuesMap == null) {
+			Map<ControlledMetric<?, ?>, Number> map =
+					new HashMap<ControlledMetric<?, ?>, Number>(numMetrics * 4 / 3 + 1);
+			for (int id = 0; id < size; id++) {
+				if (metrics[id] != null) {
+					map.put(metrics[id], toNumber(values[id]));
+				}
+			}
+			valuesMap = Collections.unmodifiableMap(map);
+		}
+		return valuesMap;
+	}
+
+	/**
+	 * Return an unmodifiable map of metric to value-details in the format used by the older persisters. The map is
+	 * created on the first call and cached.
+	 */
+	public synchronized Map<ControlledMetric<?, ?>, MetricValueDetails> toValueDetailsMap() {
+		if (valueDetailsMap == null) {
+			Map<ControlledMetric<?, ?>, MetricValueDetails> map =
+					new HashMap<ControlledMetric<?, ?>, MetricValueDetails>(numMetrics * 4 / 3 + 1);
+			for (int id = 0; id < size; id++) {
+				if (metrics[id] != null) {
+					map.put(metrics[id], getValueDetails(id));
+				}
+			}
+			valueDetailsMap = Collections.unmodifiableMap(map);
+		}
+		return valueDetailsMap;
+	}
+
+	/**
+	 * Mark the snapshot as being used by a persister so it is not reused by the manager. This is called by the
+	 * {@link MetricsManager}.
+	 */
+	public void retain() {
+		userCount.incrementAndGet();
+	}
+
+	/**
+	 * Mark that a persister is done with the snapshot. This is called by the {@link MetricsManager}.
+	 */
+	public void release() {
+		userCount.decrementAndGet();
+	}
+
+	/**
+	 * Returns true if a persister is still using the snapshot.
+	 */
+	public boolean isInUse() {
+		return (userCount.get() > 0);
+	}
+
+	/**
+	 * Convert the value to a long if possible like {@link BaseControlledMetric#getValueToPersist()}.
+	 */
+	public static Number toNumber(double value) {
+		long longValue = (long) value;
+		if (value == longValue) {
+			return Long.valueOf(longValue);
+		} else {
+			return Double.valueOf(value);
+		}
+	}
+
+	private Number toDetailsNumber(int id, double value) {
+		if (longValues[id] && value == (long) value) {
+			return Long.valueOf((long) value);
+		} else {
+			return Double.valueOf(value);
+		}
+	}
+
+	private void growArrays(int minCapacity) {
+		int capacity = Math.max(minCapacity, metrics.length * 2);
+		ControlledMetric<?, ?>[] oldMetrics = metrics;
+		double[] oldValues = values;
+		int[] oldNumSamples = numSamples;
+		double[] oldMins = mins;
+		double[] oldMaxes = maxes;
+		boolean[] oldLongValues = longValues;
+		MetricValueDetails[] oldExtendedDetails = extendedDetails;
+		allocateArrays(capacity);
+		System.arraycopy(oldMetrics, 0, metrics, 0, size);
+		System.arraycopy(oldValues, 0, values, 0, size);
+		System.arraycopy(oldNumSamples, 0, numSamples, 0, size);
+		System.arraycopy(oldMins, 0, mins, 0, size);
+		System.arraycopy(oldMaxes, 0, maxes, 0, size);
+		System.arraycopy(oldLongValues, 0, longValues, 0, size);
+		System.arraycopy(oldExtendedDetails, 0, extendedDetails, 0, size);
+	}
+
+	private void allocateArrays(int capacity) {
+		metrics = new ControlledMetric<?, ?>[capacity];
+		values = new double[capacity];
+		numSamples = new int[capacity];
+		mins = new double[capacity];
+		maxes = new double[capacity];
+		longValues = new boolean[capacity];
+		extendedDetails = new MetricValueDetails[capacity];
+	}
+}
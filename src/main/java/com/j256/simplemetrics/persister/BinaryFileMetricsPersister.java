@@ -0,0 +1,337 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.MetricValueDetails;
+import com.j256.simplemetrics.metric.MetricsSnapshot;
+import com.j256.simplemetrics.utils.MiscUtils;
+
+/**
+ * Appends the value, min, max, and number of samples of the metrics to compact binary files for long-term local
+ * retention. The times are written as delta-of-deltas and the values are XOR-ed with the previous value of the same
+ * metric in the Gorilla style so metrics that don't change, or change a little, take only a few bits per persist. The
+ * metric names are written once per file in a dictionary of metric-ids. Use {@link BinaryMetricsReader} to read the
+ * files back.
+ * 
+ * <p>
+ * A new file named with the prefix, the time of its first snapshot, and {@link #FILE_EXTENSION} is started every
+ * {@link #setFileMaxMillis(long)} so each file can be read and deleted on its own. The metric-ids are assigned again
+ * in each file so metrics that are no longer persisted don't keep their ids and names around. Histogram percentiles
+ * and other extended details are not written.
+ * </p>
+ * 
+ * @author graywatson
+ */
+public class BinaryFileMetricsPersister implements MetricDetailsPersister, MetricsSnapshotPersister {
+
+	/**
+	 * Extension of the binary metrics files.
+	 */
+	public static final String FILE_EXTENSION = ".bin";
+	private static final long DEFAULT_FILE_MAX_MILLIS = 60 * 60 * 1000;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File outputDirectory;
+	private String logFileNamePrefix;
+	private long fileMaxMillis = DEFAULT_FILE_MAX_MILLIS;
+
+	// our own ids which are assigned again in each file so a file never has two metrics with the same id
+	private final Map<ControlledMetric<?, ?>, Integer> metricIds = new WeakHashMap<ControlledMetric<?, ?>, Integer>();
+	private int nextMetricId;
+	private byte[][] nameBytesById = new byte[16][];
+
+	// the metrics of the current persist staged by our id so they are written in ascending id order
+	private ControlledMetric<?, ?>[] stagedMetrics = new ControlledMetric<?, ?>[16];
+	private double[] stagedValues = new double[16];
+	private double[] stagedMins = new double[16];
+	private double[] stagedMaxes = new double[16];
+	private long[] stagedNumSamples = new long[16];
+	private int stagedSize;
+
+	private final BitOutput output = new BitOutput(64 * 1024);
+	private final BinaryMetricsFormat.XorState xorState = new BinaryMetricsFormat.XorState();
+	private boolean[] inDictionary = new boolean[16];
+	private File currentFile;
+	private long fileStartMillis;
+	private long previousTimeMillis;
+	private long previousDeltaMillis;
+	private boolean firstInFile;
+
+	private final AtomicLong dumpCount = new AtomicLong(0);
+	private final AtomicLong bytesWritten = new AtomicLong(0);
+	private final AtomicLong cleanupCount = new AtomicLong(0);
+
+	@Override
+	public synchronized void persist(Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetails,
+			long timeCollectedMillis) throws IOException {
+		startPersist(timeCollectedMillis);
+		for (Map.Entry<ControlledMetric<?, ?>, MetricValueDetails> entry : metricValueDetails.entrySet()) {
+			MetricValueDetails details = entry.getValue();
+			stageMetric(entry.getKey(), details.getValue().doubleValue(), details.getMin().doubleValue(),
+					details.getMax().doubleValue(), details.getNumSamples());
+		}
+		writeSnapshot(timeCollectedMillis);
+	}
+
+	@Override
+	public synchronized void persist(MetricsSnapshot snapshot) throws IOException {
+		startPersist(snapshot.getTimeCollectedMillis());
+		for (int id = 0; id < snapshot.getSize(); id++) {
+			ControlledMetric<?, ?> metric = snapshot.getMetric(id);
+			if (metric != null) {
+				stageMetric(metric, snapshot.getValue(id), snapshot.getMin(id), snapshot.getMax(id),
+						snapshot.getNumSamples(id));
+			}
+		}
+		writeSnapshot(snapshot.getTimeCollectedMillis());
+	}
+
+	/**
+	 * Delete the binary metrics files that have not been modified in a certain number of milliseconds. The current file
+	 * is never deleted.
+	 */
+	public void cleanMetricFilesOlderThanMillis(long millisOld) {
+		long tooOld = System.currentTimeMillis() - millisOld;
+		File current;
+		synchronized (this) {
+			current = currentFile;
+		}
+		for (File file : outputDirectory.listFiles()) {
+			String name = file.getName();
+			if (name.startsWith(logFileNamePrefix) && name.endsWith(FILE_EXTENSION) && !file.equals(current)
+					&& file.lastModified() < tooOld) {
+				if (file.delete()) {
+					cleanupCount.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Directory where the files are written.
+	 */
+	// @Required
+	public void setOutputDirectory(File outputDirectory) {
+		outputDirectory.mkdirs();
+		if (!outputDirectory.isDirectory()) {
+			throw new IllegalArgumentException("OutputDirectory is not directory: " + outputDirectory);
+		}
+		if (!outputDirectory.canWrite()) {
+			throw new IllegalArgumentException("Can not write to OutputDirectory: " + outputDirectory);
+		}
+		this.outputDirectory = outputDirectory;
+	}
+
+	public File getOutputDirectory() {
+		return outputDirectory;
+	}
+
+	/**
+	 * Prefix of the file names which are followed by the time millis of the first snapshot and the extension.
+	 */
+	// @Required
+	public void setLogFileNamePrefix(String logFileNamePrefix) {
+		this.logFileNamePrefix = logFileNamePrefix;
+	}
+
+	public String getLogFileNamePrefix() {
+		return logFileNamePrefix;
+	}
+
+	/**
+	 * Maximum number of milliseconds between the first snapshot of a file and the snapshot that starts a new file.
+	 */
+	// @NotRequired("Default is " + DEFAULT_FILE_MAX_MILLIS)
+	public void setFileMaxMillis(long fileMaxMillis) {
+		this.fileMaxMillis = fileMaxMillis;
+	}
+
+	/**
+	 * Number of times the metrics have been persisted.
+	 */
+	public long getDumpCount() {
+		return dumpCount.get();
+	}
+
+	/**
+	 * Number of bytes that have been written to the files.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * Number of files that have been cleaned up.
+	 */
+	public long getCleanupCount() {
+		return cleanupCount.get();
+	}
+
+	/**
+	 * Number of metric-ids that have been assigned in the current file.
+	 */
+	synchronized int getNumMetricIds() {
+		return nextMetricId;
+	}
+
+	/**
+	 * Reset the output and start a new file if necessary. This has to be done before the metrics are staged because
+	 * starting a file resets the metric-ids.
+	 */
+	private void startPersist(long timeMillis) {
+		output.reset();
+		if (currentFile == null || timeMillis - fileStartMillis >= fileMaxMillis || timeMillis < previousTimeMillis) {
+			startFile(timeMillis);
+		}
+	}
+
+	private void stageMetric(ControlledMetric<?, ?> metric, double value, double min, double max, long numSamples) {
+		Integer id = metricIds.get(metric);
+		if (id == null) {
+			id = nextMetricId++;
+			metricIds.put(metric, id);
+			if (id >= nameBytesById.length) {
+				nameBytesById = Arrays.copyOf(nameBytesById, Math.max(id + 1, nameBytesById.length * 2));
+			}
+			nameBytesById[id] = MiscUtils.metricToString(metric).getBytes(UTF8);
+		}
+		if (id >= stagedMetrics.length) {
+			int length = Math.max(id + 1, stagedMetrics.length * 2);
+			stagedMetrics = Arrays.copyOf(stagedMetrics, length);
+			stagedValues = Arrays.copyOf(stagedValues, length);
+			stagedMins = Arrays.copyOf(stagedMins, length);
+			stagedMaxes = Arrays.copyOf(stagedMaxes, length);
+			stagedNumSamples = Arrays.copyOf(stagedNumSamples, length);
+		}
+		stagedMetrics[id] = metric;
+		stagedValues[id] = value;
+		stagedMins[id] = min;
+		stagedMaxes[id] = max;
+		stagedNumSamples[id] = numSamples;
+		if (id >= stagedSize) {
+			stagedSize = id + 1;
+		}
+	}
+
+	/**
+	 * Encode the staged metrics and append them to the current file, starting a new one if necessary.
+	 */
+	private void writeSnapshot(long timeMillis) throws IOException {
+		try {
+			writeDictionary();
+
+			output.writeBits(BinaryMetricsFormat.RECORD_SNAPSHOT, 8);
+			int lengthOffset = output.getByteLength();
+			output.writeBits(0, 32);
+			if (firstInFile) {
+				output.writeBits(timeMillis, 64);
+				previousDeltaMillis = 0;
+				firstInFile = false;
+			} else {
+				long deltaMillis = timeMillis - previousTimeMillis;
+				BinaryMetricsFormat.writeDeltaOfDelta(output, deltaMillis - previousDeltaMillis);
+				previousDeltaMillis = deltaMillis;
+			}
+			previousTimeMillis = timeMillis;
+
+			int numMetrics = 0;
+			for (int id = 0; id < stagedSize; id++) {
+				if (stagedMetrics[id] != null) {
+					numMetrics++;
+				}
+			}
+			output.writeBits(numMetrics, 32);
+			int lastId = -1;
+			for (int id = 0; id < stagedSize; id++) {
+				if (stagedMetrics[id] == null) {
+					continue;
+				}
+				int gap = id - lastId - 1;
+				if (gap == 0) {
+					output.writeBits(0, 1);
+				} else {
+					output.writeBits(1, 1);
+					output.writeBits(gap, 32);
+				}
+				lastId = id;
+				xorState.write(output, id, BinaryMetricsFormat.FIELD_VALUE, Double.doubleToLongBits(stagedValues[id]));
+				if (stagedMins[id] == stagedValues[id] && stagedMaxes[id] == stagedValues[id]) {
+					output.writeBits(0, 1);
+				} else {
+					output.writeBits(1, 1);
+					xorState.write(output, id, BinaryMetricsFormat.FIELD_MIN, Double.doubleToLongBits(stagedMins[id]));
+					xorState.write(output, id, BinaryMetricsFormat.FIELD_MAX,
+							Double.doubleToLongBits(stagedMaxes[id]));
+				}
+				xorState.write(output, id, BinaryMetricsFormat.FIELD_NUM_SAMPLES, stagedNumSamples[id]);
+			}
+			output.alignToByte();
+			output.setInt(lengthOffset, output.getByteLength() - lengthOffset - 4);
+
+			appendToFile();
+		} catch (IOException e) {
+			File file = currentFile;
+			// the compression state no longer matches the file so start a new one
+			currentFile = null;
+			throw new IOException("Could not append metrics to " + file, e);
+		} finally {
+			Arrays.fill(stagedMetrics, 0, stagedSize, null);
+			stagedSize = 0;
+		}
+		dumpCount.incrementAndGet();
+	}
+
+	private void startFile(long timeMillis) {
+		currentFile = new File(outputDirectory, logFileNamePrefix + timeMillis + FILE_EXTENSION);
+		fileStartMillis = timeMillis;
+		firstInFile = true;
+		xorState.reset();
+		Arrays.fill(inDictionary, false);
+		// the dictionary is written again in each file so the ids can be assigned again from 0
+		metricIds.clear();
+		Arrays.fill(nameBytesById, 0, nextMetricId, null);
+		nextMetricId = 0;
+		output.writeBytes(BinaryMetricsFormat.MAGIC);
+	}
+
+	/**
+	 * Write the names of the metrics which have not been written to this file yet.
+	 */
+	private void writeDictionary() {
+		if (stagedSize > inDictionary.length) {
+			inDictionary = Arrays.copyOf(inDictionary, Math.max(stagedSize, inDictionary.length * 2));
+		}
+		for (int id = 0; id < stagedSize; id++) {
+			if (stagedMetrics[id] != null && !inDictionary[id]) {
+				byte[] nameBytes = nameBytesById[id];
+				output.writeBits(BinaryMetricsFormat.RECORD_DICTIONARY, 8);
+				output.writeBits(id, 32);
+				output.writeBits(nameBytes.length, 16);
+				output.writeBytes(nameBytes);
+				inDictionary[id] = true;
+			}
+		}
+	}
+
+	private void appendToFile() throws IOException {
+		int length = output.getByteLength();
+		try (FileChannel channel = FileChannel.open(currentFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);) {
+			ByteBuffer buffer = ByteBuffer.wrap(output.getBytes(), 0, length);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+		bytesWritten.addAndGet(length);
+	}
+}
@@ -0,0 +1,189 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.EOFException;
+import java.util.Arrays;
+
+/**
+ * Constants and the compression shared by the {@link BinaryFileMetricsPersister} and the {@link BinaryMetricsReader}.
+ * 
+ * <p>
+ * A file starts with the {@link #MAGIC} bytes followed by records. Each record starts with a type byte. A dictionary
+ * record has a 4 byte metric-id, a 2 byte length, and the UTF-8 bytes of the metric name. It is written before the
+ * first snapshot in the file that has the metric. A snapshot record has a 4 byte length and then a bit-packed payload:
+ * the time as a delta-of-delta, a 4 byte count of the metrics, and then for each metric in ascending order its id as a
+ * gap from the last id, its value, a bit that is set if the min and max follow, and its number-of-samples. The value,
+ * min, max, and number-of-samples are each XOR-ed against the same field from the previous snapshot in the Gorilla
+ * style. The min and max are not written if they are the same as the value which is the case for most counters. The
+ * compression state and the metric-ids are reset at the start of each file so each file can be read on its own.
+ * </p>
+ * 
+ * @author graywatson
+ */
+class BinaryMetricsFormat {
+
+	static final byte[] MAGIC = new byte[] { 'S', 'M', 'B', '1' };
+	static final int RECORD_DICTIONARY = 1;
+	static final int RECORD_SNAPSHOT = 2;
+
+	static final int FIELD_VALUE = 0;
+	static final int FIELD_MIN = 1;
+	static final int FIELD_MAX = 2;
+	static final int FIELD_NUM_SAMPLES = 3;
+	static final int NUM_FIELDS = 4;
+
+	private BinaryMetricsFormat() {
+		// only for static methods
+	}
+
+	/**
+	 * Write the difference between the delta of this time and the last one and the delta before that. Regular persist
+	 * intervals mean that this is almost always 0 which takes a single bit.
+	 */
+	static void writeDeltaOfDelta(BitOutput output, long deltaOfDelta) {
+		// zig-zag so small negative numbers are small as well
+		long zigZag = (deltaOfDelta << 1) ^ (deltaOfDelta >> 63);
+		// the zig-zag value is unsigned
+		if (zigZag == 0) {
+			output.writeBits(0, 1);
+		} else if ((zigZag >>> 7) == 0) {
+			output.writeBits(0b10, 2);
+			output.writeBits(zigZag, 7);
+		} else if ((zigZag >>> 9) == 0) {
+			output.writeBits(0b110, 3);
+			output.writeBits(zigZag, 9);
+		} else if ((zigZag >>> 12) == 0) {
+			output.writeBits(0b1110, 4);
+			output.writeBits(zigZag, 12);
+		} else if ((zigZag >>> 32) == 0) {
+			output.writeBits(0b11110, 5);
+			output.writeBits(zigZag, 32);
+		} else {
+			output.writeBits(0b11111, 5);
+			output.writeBits(zigZag, 64);
+		}
+	}
+
+	static long readDeltaOfDelta(BitInput input) throws EOFException {
+		int numOnes = 0;
+		while (numOnes < 5 && input.readBit()) {
+			numOnes++;
+		}
+		long zigZag;
+		switch (numOnes) {
+			case 0:
+				return 0;
+			case 1:
+				zigZag = input.readBits(7);
+				break;
+			case 2:
+				zigZag = input.readBits(9);
+				break;
+			case 3:
+				zigZag = input.readBits(12);
+				break;
+			case 4:
+				zigZag = input.readBits(32);
+				break;
+			default:
+				zigZag = input.readBits(64);
+				break;
+		}
+		return (zigZag >>> 1) ^ -(zigZag & 1);
+	}
+
+	/**
+	 * Gorilla style XOR compression state of each field of each metric-id.
+	 */
+	static class XorState {
+
+		private long[] previousBits = new long[0];
+		// -1 means no window has been written yet
+		private byte[] leadingZeros = new byte[0];
+		private byte[] trailingZeros = new byte[0];
+
+		/**
+		 * Forget all of the previous values at the start of a file.
+		 */
+		public void reset() {
+			Arrays.fill(previousBits, 0);
+			Arrays.fill(leadingZeros, (byte) -1);
+			Arrays.fill(trailingZeros, (byte) 0);
+		}
+
+		/**
+		 * Write the bits of the field of the metric-id XOR-ed with the previous bits. The same bits take a single bit.
+		 * Otherwise the meaningful bits are written inside of the previous window of leading and trailing zeros if they
+		 * fit or with a new window.
+		 */
+		public void write(BitOutput output, int id, int field, long bits) {
+			int index = index(id, field);
+			long xor = bits ^ previousBits[index];
+			previousBits[index] = bits;
+			if (xor == 0) {
+				output.writeBits(0, 1);
+				return;
+			}
+			int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+			int trailing = Long.numberOfTrailingZeros(xor);
+			int previousLeading = leadingZeros[index];
+			int previousTrailing = trailingZeros[index];
+			if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+				output.writeBits(0b10, 2);
+				output.writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+			} else {
+				int numMeaningful = 64 - leading - trailing;
+				output.writeBits(0b11, 2);
+				output.writeBits(leading, 5);
+				output.writeBits(numMeaningful - 1, 6);
+				output.writeBits(xor >>> trailing, numMeaningful);
+				leadingZeros[index] = (byte) leading;
+				trailingZeros[index] = (byte) trailing;
+			}
+		}
+
+		/**
+		 * Read the bits of the field of the metric-id written by {@link #write(BitOutput, int, int, long)}.
+		 */
+		public long read(BitInput input, int id, int field) throws EOFException {
+			int index = index(id, field);
+			if (!input.readBit()) {
+				return previousBits[index];
+			}
+			long xor;
+			if (!input.readBit()) {
+				int previousLeading = leadingZeros[index];
+				int previousTrailing = trailingZeros[index];
+				if (previousLeading < 0) {
+					throw new EOFException("Corrupt value with no previous window for metric-id " + id);
+				}
+				xor = input.readBits(64 - previousLeading - previousTrailing) << previousTrailing;
+			} else {
+				int leading = (int) input.readBits(5);
+				int numMeaningful = (int) input.readBits(6) + 1;
+				int trailing = 64 - leading - numMeaningful;
+				if (trailing < 0) {
+					throw new EOFException("Corrupt value window for metric-id " + id);
+				}
+				xor = input.readBits(numMeaningful) << trailing;
+				leadingZeros[index] = (byte) leading;
+				trailingZeros[index] = (byte) trailing;
+			}
+			long bits = previousBits[index] ^ xor;
+			previousBits[index] = bits;
+			return bits;
+		}
+
+		private int index(int id, int field) {
+			int index = id * NUM_FIELDS + field;
+			if (index >= previousBits.length) {
+				int oldLength = previousBits.length;
+				int newLength = Math.max((id + 1) * NUM_FIELDS, oldLength * 2);
+				previousBits = Arrays.copyOf(previousBits, newLength);
+				leadingZeros = Arrays.copyOf(leadingZeros, newLength);
+				trailingZeros = Arrays.copyOf(trailingZeros, newLength);
+				Arrays.fill(leadingZeros, oldLength, newLength, (byte) -1);
+			}
+			return index;
+		}
+	}
+}
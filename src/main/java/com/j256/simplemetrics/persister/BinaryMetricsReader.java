@@ -0,0 +1,196 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Reads the snapshots from a file written by the {@link BinaryFileMetricsPersister}. The reader is a cursor so reading
+ * does not allocate per metric. A snapshot that was only partially written, because of a crash for example, ends the
+ * file.
+ * 
+ * <pre>
+ * BinaryMetricsReader reader = new BinaryMetricsReader(file);
+ * while (reader.next()) {
+ * 	long timeMillis = reader.getTimeMillis();
+ * 	for (int i = 0; i &lt; reader.getNumMetrics(); i++) {
+ * 		String name = reader.getMetricName(i);
+ * 		double value = reader.getValue(i);
+ * 		...
+ * 	}
+ * }
+ * </pre>
+ * 
+ * @author graywatson
+ */
+public class BinaryMetricsReader {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final byte[] bytes;
+	private int offset;
+	private final BinaryMetricsFormat.XorState xorState = new BinaryMetricsFormat.XorState();
+	private String[] namesById = new String[16];
+
+	private boolean firstSnapshot = true;
+	private long timeMillis;
+	private long previousDeltaMillis;
+	private int numMetrics;
+	private int[] ids = new int[16];
+	private double[] values = new double[16];
+	private double[] mins = new double[16];
+	private double[] maxes = new double[16];
+	private long[] numSamples = new long[16];
+
+	public BinaryMetricsReader(File file) throws IOException {
+		this.bytes = Files.readAllBytes(file.toPath());
+		byte[] magic = BinaryMetricsFormat.MAGIC;
+		if (bytes.length < magic.length || !Arrays.equals(Arrays.copyOf(bytes, magic.length), magic)) {
+			throw new IOException("File is not a binary metrics file: " + file);
+		}
+		this.offset = magic.length;
+	}
+
+	/**
+	 * Move to the next snapshot in the file. Returns false if there are no more.
+	 */
+	public boolean next() throws IOException {
+		while (offset < bytes.length) {
+			int type = bytes[offset];
+			if (type == BinaryMetricsFormat.RECORD_DICTIONARY) {
+				if (!readDictionary()) {
+					return false;
+				}
+			} else if (type == BinaryMetricsFormat.RECORD_SNAPSHOT) {
+				return readSnapshot();
+			} else {
+				throw new IOException("Unknown record type " + type + " at offset " + offset);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Time in millis when the current snapshot was collected.
+	 */
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	/**
+	 * Number of metrics in the current snapshot.
+	 */
+	public int getNumMetrics() {
+		return numMetrics;
+	}
+
+	/**
+	 * Return the metric-id of the metric at the index which is the same for the metric in all of the snapshots of the
+	 * file.
+	 */
+	public int getMetricId(int index) {
+		return ids[index];
+	}
+
+	/**
+	 * Return the name of the metric at the index in the component.module.name format.
+	 */
+	public String getMetricName(int index) {
+		return namesById[ids[index]];
+	}
+
+	public double getValue(int index) {
+		return values[index];
+	}
+
+	public double getMin(int index) {
+		return mins[index];
+	}
+
+	public double getMax(int index) {
+		return maxes[index];
+	}
+
+	public long getNumSamples(int index) {
+		return numSamples[index];
+	}
+
+	private boolean readDictionary() {
+		// type, id, and length
+		if (offset + 7 > bytes.length) {
+			return false;
+		}
+		int id = readInt(offset + 1);
+		int length = ((bytes[offset + 5] & 0xFF) << 8) | (bytes[offset + 6] & 0xFF);
+		if (offset + 7 + length > bytes.length) {
+			return false;
+		}
+		if (id >= namesById.length) {
+			namesById = Arrays.copyOf(namesById, Math.max(id + 1, namesById.length * 2));
+		}
+		namesById[id] = new String(bytes, offset + 7, length, UTF8);
+		offset += 7 + length;
+		return true;
+	}
+
+	private boolean readSnapshot() throws EOFException {
+		// type and length
+		if (offset + 5 > bytes.length) {
+			return false;
+		}
+		int length = readInt(offset + 1);
+		if (length < 0 || offset + 5 + length > bytes.length) {
+			return false;
+		}
+		BitInput input = new BitInput(bytes, offset + 5, length);
+		offset += 5 + length;
+
+		if (firstSnapshot) {
+			timeMillis = input.readBits(64);
+			previousDeltaMillis = 0;
+			firstSnapshot = false;
+		} else {
+			long deltaMillis = previousDeltaMillis + BinaryMetricsFormat.readDeltaOfDelta(input);
+			timeMillis += deltaMillis;
+			previousDeltaMillis = deltaMillis;
+		}
+		numMetrics = (int) input.readBits(32);
+		if (numMetrics > ids.length) {
+			int newLength = Math.max(numMetrics, ids.length * 2);
+			ids = Arrays.copyOf(ids, newLength);
+			values = Arrays.copyOf(values, newLength);
+			mins = Arrays.copyOf(mins, newLength);
+			maxes = Arrays.copyOf(maxes, newLength);
+			numSamples = Arrays.copyOf(numSamples, newLength);
+		}
+		int lastId = -1;
+		for (int i = 0; i < numMetrics; i++) {
+			int id;
+			if (input.readBit()) {
+				id = lastId + 1 + (int) input.readBits(32);
+			} else {
+				id = lastId + 1;
+			}
+			lastId = id;
+			ids[i] = id;
+			values[i] = Double.longBitsToDouble(xorState.read(input, id, BinaryMetricsFormat.FIELD_VALUE));
+			if (input.readBit()) {
+				mins[i] = Double.longBitsToDouble(xorState.read(input, id, BinaryMetricsFormat.FIELD_MIN));
+				maxes[i] = Double.longBitsToDouble(xorState.read(input, id, BinaryMetricsFormat.FIELD_MAX));
+			} else {
+				mins[i] = values[i];
+				maxes[i] = values[i];
+			}
+			numSamples[i] = xorState.read(input, id, BinaryMetricsFormat.FIELD_NUM_SAMPLES);
+		}
+		return true;
+	}
+
+	private int readInt(int index) {
+		return ((bytes[index] & 0xFF) << 24) | ((bytes[index + 1] & 0xFF) << 16) | ((bytes[index + 2] & 0xFF) << 8)
+				| (bytes[index + 3] & 0xFF);
+	}
+}
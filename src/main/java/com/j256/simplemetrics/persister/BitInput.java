@@ -0,0 +1,45 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.EOFException;
+
+/**
+ * Reads bits, most significant first, from a range of a byte array written by {@link BitOutput}.
+ * 
+ * @author graywatson
+ */
+class BitInput {
+
+	private final byte[] bytes;
+	private final int bitLimit;
+	private int bitPosition;
+
+	public BitInput(byte[] bytes, int byteOffset, int byteLength) {
+		this.bytes = bytes;
+		this.bitPosition = byteOffset * 8;
+		this.bitLimit = (byteOffset + byteLength) * 8;
+	}
+
+	public boolean readBit() throws EOFException {
+		return (readBits(1) != 0);
+	}
+
+	/**
+	 * Read numBits, up to 64, and return them in the low bits of the result.
+	 */
+	public long readBits(int numBits) throws EOFException {
+		if (bitPosition + numBits > bitLimit) {
+			throw new EOFException("Tried to read " + numBits + " bits past the end of the record");
+		}
+		long result = 0;
+		while (numBits > 0) {
+			int byteIndex = bitPosition >>> 3;
+			int available = 8 - (bitPosition & 7);
+			int num = Math.min(available, numBits);
+			int chunk = (bytes[byteIndex] >>> (available - num)) & ((1 << num) - 1);
+			result = (result << num) | chunk;
+			bitPosition += num;
+			numBits -= num;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,94 @@
+package com.j256.simplemetrics.persister;
+
+import java.util.Arrays;
+
+/**
+ * Writes bits, most significant first, into a growable byte array which is reused between records.
+ * 
+ * @author graywatson
+ */
+class BitOutput {
+
+	private byte[] bytes;
+	private int bitPosition;
+
+	public BitOutput(int initialSize) {
+		this.bytes = new byte[Math.max(1, initialSize)];
+	}
+
+	/**
+	 * Clear the output so it can be reused.
+	 */
+	public void reset() {
+		Arrays.fill(bytes, 0, getByteLength(), (byte) 0);
+		bitPosition = 0;
+	}
+
+	public void writeBit(boolean bit) {
+		writeBits(bit ? 1 : 0, 1);
+	}
+
+	/**
+	 * Write the low numBits of the value, most significant bit first.
+	 */
+	public void writeBits(long value, int numBits) {
+		ensureCapacity((bitPosition + numBits + 7) >>> 3);
+		while (numBits > 0) {
+			int byteIndex = bitPosition >>> 3;
+			int free = 8 - (bitPosition & 7);
+			int num = Math.min(free, numBits);
+			int chunk = (int) ((value >>> (numBits - num)) & ((1 << num) - 1));
+			bytes[byteIndex] |= chunk << (free - num);
+			bitPosition += num;
+			numBits -= num;
+		}
+	}
+
+	/**
+	 * Write the bytes which must start on a byte boundary.
+	 */
+	public void writeBytes(byte[] source) {
+		alignToByte();
+		int byteIndex = bitPosition >>> 3;
+		ensureCapacity(byteIndex + source.length);
+		System.arraycopy(source, 0, bytes, byteIndex, source.length);
+		bitPosition += source.length * 8;
+	}
+
+	/**
+	 * Skip to the start of the next byte if we are in the middle of one.
+	 */
+	public void alignToByte() {
+		bitPosition = (bitPosition + 7) & ~7;
+	}
+
+	/**
+	 * Overwrite 4 bytes at the byte offset with the value.
+	 */
+	public void setInt(int byteOffset, int value) {
+		bytes[byteOffset] = (byte) (value >>> 24);
+		bytes[byteOffset + 1] = (byte) (value >>> 16);
+		bytes[byteOffset + 2] = (byte) (value >>> 8);
+		bytes[byteOffset + 3] = (byte) value;
+	}
+
+	/**
+	 * Return the number of bytes written including a partially written last byte.
+	 */
+	public int getByteLength() {
+		return (bitPosition + 7) >>> 3;
+	}
+
+	/**
+	 * Return the underlying array. Only the first {@link #getByteLength()} bytes are valid.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	private void ensureCapacity(int numBytes) {
+		if (numBytes > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(numBytes, bytes.length * 2));
+		}
+	}
+}
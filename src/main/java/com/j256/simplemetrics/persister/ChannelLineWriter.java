@@ -0,0 +1,159 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the lines of a metrics file into a reusable direct buffer which is flushed to the file with a
+ * {@link FileChannel}. Numbers are encoded straight into the buffer so writing a line does not create any strings.
+ * The writer is reused from one file to the next and is not thread-safe.
+ * 
+ * @author graywatson
+ */
+class ChannelLineWriter implements Closeable {
+
+	static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	private static final byte[] LONG_MIN_VALUE_BYTES = Long.toString(Long.MIN_VALUE).getBytes();
+
+	private final ByteBuffer buffer;
+	private final byte[] digits = new byte[20];
+	// reused to format doubles which does not allocate a string
+	private final StringBuilder doubleBuilder = new StringBuilder(32);
+	private FileChannel channel;
+	private long bytesWritten;
+
+	public ChannelLineWriter() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	public ChannelLineWriter(int bufferSize) {
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	/**
+	 * Open the file for writing, truncating it if it exists.
+	 */
+	public void open(File file) throws IOException {
+		open(file, false);
+	}
+
+	/**
+	 * Open the file for writing, either appending to the end of it or truncating it if it exists.
+	 */
+	public void open(File file, boolean append) throws IOException {
+		buffer.clear();
+		bytesWritten = 0;
+		if (append) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+		} else {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+	}
+
+	public void write(byte[] bytes) throws IOException {
+		int offset = 0;
+		while (offset < bytes.length) {
+			if (!buffer.hasRemaining()) {
+				flush();
+			}
+			int length = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.put(bytes, offset, length);
+			offset += length;
+		}
+	}
+
+	public void write(byte b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			flush();
+		}
+		buffer.put(b);
+	}
+
+	/**
+	 * Write the decimal digits of the value.
+	 */
+	public void writeLong(long value) throws IOException {
+		if (value == Long.MIN_VALUE) {
+			// can't be negated
+			write(LONG_MIN_VALUE_BYTES);
+			return;
+		}
+		if (value < 0) {
+			write((byte) '-');
+			value = -value;
+		}
+		int pos = digits.length;
+		do {
+			digits[--pos] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		if (buffer.remaining() < digits.length - pos) {
+			flush();
+		}
+		buffer.put(digits, pos, digits.length - pos);
+	}
+
+	/**
+	 * Write the value in the same format as {@link Double#toString(double)}.
+	 */
+	public void writeDouble(double value) throws IOException {
+		doubleBuilder.setLength(0);
+		doubleBuilder.append(value);
+		int length = doubleBuilder.length();
+		if (buffer.remaining() < length) {
+			flush();
+		}
+		for (int i = 0; i < length; i++) {
+			// the double characters are all ascii
+			buffer.put((byte) doubleBuilder.charAt(i));
+		}
+	}
+
+	/**
+	 * Write the buffer out to the file.
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			bytesWritten += channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Flush the buffer and force the contents of the file to the storage device.
+	 */
+	public void sync() throws IOException {
+		flush();
+		channel.force(false);
+	}
+
+	/**
+	 * Return the number of bytes that have been written since the file was opened including those still in the buffer.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten + buffer.position();
+	}
+
+	/**
+	 * Flush the buffer and close the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			channel.close();
+			channel = null;
+		}
+	}
+}
@@ -9,24 +9,44 @@ import java.net.Inet4Address;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.manager.MetricsRegisterListener;
 import com.j256.simplemetrics.metric.ControlledMetric;
 import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricTimer;
+import com.j256.simplemetrics.metric.HistogramValueDetails;
 import com.j256.simplemetrics.metric.MetricValueDetails;
 import com.j256.simplemetrics.utils.MiscUtils;
 
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClientBuilder;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClientBuilder;
 import software.amazon.awssdk.services.cloudwatch.model.Dimension;
 import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
 import software.amazon.awssdk.services.cloudwatch.model.MetricDatum.Builder;
 import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataResponse;
 import software.amazon.awssdk.services.cloudwatch.model.StandardUnit;
 import software.amazon.awssdk.services.cloudwatch.model.StatisticSet;
 
@@ -35,17 +55,40 @@ import software.amazon.awssdk.services.cloudwatch.model.StatisticSet;
  * be in the classpath to compile.
  * 
  * <p>
+ * By default the metrics are posted with the blocking client one request after another. If
+ * {@link #setUseAsyncClient(boolean)} is set to true then the {@link CloudWatchAsyncClient} is used to post up to
+ * {@link #MAX_NUM_DATUM_ALLOWED_PER_ASYNC_POST} datum per request with a number of requests in flight at the same
+ * time. Requests that fail are retried with an exponential backoff. The latency of each request and the number of
+ * failures and retries are recorded in metrics which are registered if {@link #setMetricsManager(MetricsManager)} is
+ * called.
+ * </p>
+ * 
+ * <p>
  * <b>NOTE:</b> If you are using the no-arg constructor (like with Spring) you will need to make sure that
  * {@link #initialize()} is called.
  * </p>
  */
-public class CloudWatchMetricsPersister implements MetricDetailsPersister {
+public class CloudWatchMetricsPersister implements MetricDetailsPersister, MetricsRegisterListener {
 
 	private static final String DEFAULT_NAME_SPACE_PREFIX = "Application";
 	private static final String INSTANCE_ID_DIMENSION = "InstanceId";
 	private static final String COMPONENT_DIMENSION = "Component";
 	private static final String MODULE_DIMENSION = "Module";
 	static final int MAX_NUM_DATUM_ALLOWED_PER_POST = 20;
+	/** maximum number of datum that are posted in each request when using the async client */
+	public static final int MAX_NUM_DATUM_ALLOWED_PER_ASYNC_POST = 1000;
+	/** default number of requests that are in flight at the same time when using the async client */
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+	/** default number of times a request that fails is retried when using the async client */
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	/** default number of millis to wait before the first retry which doubles with each retry */
+	public static final long DEFAULT_RETRY_BACKOFF_MILLIS = 100;
+	/** default number of millis to wait for each batch of requests to complete when using the async client */
+	public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 60000;
+	private static final long MAX_RETRY_BACKOFF_MILLIS = 10000;
+	private static final int MAX_NUM_VALUES_ALLOWED_PER_DATUM = 150;
+	private static final String METRIC_COMPONENT_NAME = "simplemetrics";
+	private static final String METRIC_MODULE_NAME = "cloudwatch";
 	private static final StandardUnit DEFAULT_AWS_UNIT = StandardUnit.COUNT;
 	static final double ZERO_NUM_SAMPLES_REPLACEMENT = 0.000000001D;
 
@@ -62,8 +105,29 @@ public class CloudWatchMetricsPersister implements MetricDetailsPersister {
 	private String nameSpacePrefix = DEFAULT_NAME_SPACE_PREFIX;
 	private boolean addInstanceData = true;
 	private String awsRegion;
+	private boolean useAsyncClient;
+	private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private long retryBackoffMillis = DEFAULT_RETRY_BACKOFF_MILLIS;
+	private long requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+	private boolean useValuesAndCounts;
+	private MetricsManager metricsManager;
+	// dimensions and units of the metrics which are invalidated when metrics are registered or unregistered
+	private final Map<ControlledMetric<?, ?>, MetricInfo> metricInfoCache =
+			new ConcurrentHashMap<ControlledMetric<?, ?>, MetricInfo>();
+
+	private final ControlledMetricTimer requestLatencyMetric = new ControlledMetricTimer(METRIC_COMPONENT_NAME,
+			METRIC_MODULE_NAME, "requestLatency", "Time to post a request to CloudWatch", TimeUnit.MILLISECONDS);
+	private final ControlledMetricAccum requestCountMetric = new ControlledMetricAccum(METRIC_COMPONENT_NAME,
+			METRIC_MODULE_NAME, "requests", "Number of requests posted to CloudWatch", "count");
+	private final ControlledMetricAccum requestFailureMetric = new ControlledMetricAccum(METRIC_COMPONENT_NAME,
+			METRIC_MODULE_NAME, "requestFailures", "Number of requests to CloudWatch that failed", "count");
+	private final ControlledMetricAccum requestRetryMetric = new ControlledMetricAccum(METRIC_COMPONENT_NAME,
+			METRIC_MODULE_NAME, "requestRetries", "Number of requests to CloudWatch that were retried", "count");
 
 	private CloudWatchClient cloudWatchClient;
+	private CloudWatchAsyncClient cloudWatchAsyncClient;
+	private boolean metricsRegistered;
 	private static String instanceId;
 
 	static {
@@ -104,27 +168,34 @@ public class CloudWatchMetricsPersister implements MetricDetailsPersister {
 
 	/**
 	 * Should be called if the no-arg construct is being used and after the file metrics have been set. Maybe by Springs
-	 * init mechanism?
+	 * init mechanism? It can be called again to build a client that is missing or to download the instance-id again
+	 * but the request metrics are only registered the first time.
 	 */
-	public void initialize() {
-		if (cloudWatchClient == null) {
-			CloudWatchClientBuilder builder = CloudWatchClient.builder();
-			if (awsRegion == null) {
-				awsRegion = System.getenv(AWS_REGION_ENV_VAR);
-			}
-			if (awsRegion != null) {
-				builder.region(Region.of(awsRegion));
-			}
-			try {
-				cloudWatchClient = builder.build();
-			} catch (Exception e) {
-				throw new RuntimeException("Could not build CloudWatch client", e);
+	public synchronized void initialize() {
+		if (awsRegion == null) {
+			awsRegion = System.getenv(AWS_REGION_ENV_VAR);
+		}
+		if (useAsyncClient) {
+			if (cloudWatchAsyncClient == null) {
+				cloudWatchAsyncClient = buildAsyncClient();
 			}
+		} else if (cloudWatchClient == null) {
+			cloudWatchClient = buildClient();
+		}
+		if (metricsManager != null && !metricsRegistered) {
+			metricsManager.registerMetric(requestLatencyMetric);
+			metricsManager.registerMetric(requestCountMetric);
+			metricsManager.registerMetric(requestFailureMetric);
+			metricsManager.registerMetric(requestRetryMetric);
+			metricsManager.registerRegisterListener(this);
+			metricsRegistered = true;
 		}
 		if (addInstanceData) {
 			instanceId = downloadInstanceId(AWS_CONNECT_TIMEOUT_MILLIS);
 			// NOTE: instanceId could be null
 		}
+		// the instance-id dimensions may have changed
+		metricInfoCache.clear();
 	}
 
 	@Override
@@ -133,6 +204,18 @@ public class CloudWatchMetricsPersister implements MetricDetailsPersister {
 
 		Map<String, List<MetricDatum>> metricMap = buildMetricsMap(metricValues);
 
+		if (useAsyncClient) {
+			// the async client may have been enabled after initialize() was called
+			if (cloudWatchAsyncClient == null) {
+				cloudWatchAsyncClient = buildAsyncClient();
+			}
+			persistAsync(metricMap);
+			return;
+		}
+		if (cloudWatchClient == null) {
+			cloudWatchClient = buildClient();
+		}
+
 		// now write them to cloud-watch
 		for (Map.Entry<String, List<MetricDatum>> entry : metricMap.entrySet()) {
 
@@ -158,15 +241,31 @@ public class CloudWatchMetricsPersister implements MetricDetailsPersister {
 
 				PutMetricDataRequest request =
 						PutMetricDataRequest.builder().namespace(nameSpace).metricData(requestDatumList).build();
+				long startNanos = requestLatencyMetric.start();
+				requestCountMetric.increment();
 				try {
 					cloudWatchClient.putMetricData(request);
 				} catch (Exception e) {
+					requestFailureMetric.increment();
 					throw new IOException("Could not publish metrics to CloudWatch", e);
+				} finally {
+					requestLatencyMetric.stopAndAdd(startNanos);
 				}
 			}
 		}
 	}
 
+	@Override
+	public void metricRegistered(ControlledMetric<?, ?> metric) {
+		// in case it replaced a metric with the same name but different unit
+		metricInfoCache.remove(metric);
+	}
+
+	@Override
+	public void metricUnregistered(ControlledMetric<?, ?> metric) {
+		metricInfoCache.remove(metric);
+	}
+
 	/**
 	 * Set our application name which will be used to identify the namespace for the metric.
 	 */
@@ -199,26 +298,284 @@ public class CloudWatchMetricsPersister implements MetricDetailsPersister {
 		this.cloudWatchClient = cloudWatchClient;
 	}
 
+	/**
+	 * For testing purposes. Setting this also turns on the use of the async client.
+	 */
+	// @NotRequired("Default is create one in initialize() with the credentials if using the async client")
+	public void setCloudWatchAsyncClient(CloudWatchAsyncClient cloudWatchAsyncClient) {
+		this.cloudWatchAsyncClient = cloudWatchAsyncClient;
+		this.useAsyncClient = true;
+	}
+
 	public void setAwsRegion(String awsRegion) {
 		this.awsRegion = awsRegion;
 	}
 
+	/**
+	 * Set to true to post the metrics with the async client with multiple requests in flight at the same time. If this
+	 * is set after {@link #initialize()} was called then the async client is built on the next persist.
+	 */
+	// @NotRequired("Default is false")
+	public void setUseAsyncClient(boolean useAsyncClient) {
+		this.useAsyncClient = useAsyncClient;
+	}
+
+	/**
+	 * Set the maximum number of requests that are in flight at the same time when using the async client.
+	 */
+	// @NotRequired("Default is " + DEFAULT_MAX_CONCURRENT_REQUESTS)
+	public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+		this.maxConcurrentRequests = maxConcurrentRequests;
+	}
+
+	/**
+	 * Set the number of times a request that fails is retried when using the async client. Set to 0 for no retries.
+	 */
+	// @NotRequired("Default is " + DEFAULT_MAX_RETRIES)
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Set the number of millis to wait before the first retry when using the async client. The wait doubles with each
+	 * retry up to 10 seconds.
+	 */
+	// @NotRequired("Default is " + DEFAULT_RETRY_BACKOFF_MILLIS)
+	public void setRetryBackoffMillis(long retryBackoffMillis) {
+		this.retryBackoffMillis = retryBackoffMillis;
+	}
+
+	/**
+	 * Set the number of millis to wait for each batch of requests to complete when using the async client before the
+	 * persist throws an exception.
+	 */
+	// @NotRequired("Default is " + DEFAULT_REQUEST_TIMEOUT_MILLIS)
+	public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+		this.requestTimeoutMillis = requestTimeoutMillis;
+	}
+
+	/**
+	 * Set to true to publish the histograms as CloudWatch values and counts arrays with the number of recorded values
+	 * in each of their buckets. This replaces the statistic-set and percentile datum of each histogram with a single
+	 * datum and CloudWatch can then calculate any percentile, across instances as well.
+	 */
+	// @NotRequired("Default is false")
+	public void setUseValuesAndCounts(boolean useValuesAndCounts) {
+		this.useValuesAndCounts = useValuesAndCounts;
+	}
+
+	/**
+	 * Set the metrics manager which our request latency and failure metrics are registered with in
+	 * {@link #initialize()}. We also listen for metrics being registered or unregistered so we can invalidate the
+	 * dimensions that we cache for each metric.
+	 */
+	// @NotRequired("Default is not to register our metrics")
+	public void setMetricsManager(MetricsManager metricsManager) {
+		this.metricsManager = metricsManager;
+	}
+
+	/**
+	 * Return the timer of the CloudWatch requests.
+	 */
+	public ControlledMetricTimer getRequestLatencyMetric() {
+		return requestLatencyMetric;
+	}
+
+	/**
+	 * Return the number of the CloudWatch requests.
+	 */
+	public ControlledMetricAccum getRequestCountMetric() {
+		return requestCountMetric;
+	}
+
+	/**
+	 * Return the number of the CloudWatch requests that failed including those that were then retried.
+	 */
+	public ControlledMetricAccum getRequestFailureMetric() {
+		return requestFailureMetric;
+	}
+
+	/**
+	 * Return the number of the CloudWatch requests that were retried.
+	 */
+	public ControlledMetricAccum getRequestRetryMetric() {
+		return requestRetryMetric;
+	}
+
+	/**
+	 * Post the metrics with the async client with up to max-concurrent-requests in flight. The requests which fail are
+	 * retried, after a backoff, in rounds until they succeed or we run out of retries.
+	 */
+	private CloudWatchClient buildClient() {
+		CloudWatchClientBuilder builder = CloudWatchClient.builder();
+		if (awsRegion != null) {
+			builder.region(Region.of(awsRegion));
+		}
+		try {
+			return builder.build();
+		} catch (Exception e) {
+			throw new RuntimeException("Could not build CloudWatch client", e);
+		}
+	}
+
+	private CloudWatchAsyncClient buildAsyncClient() {
+		CloudWatchAsyncClientBuilder builder = CloudWatchAsyncClient.builder();
+		if (awsRegion != null) {
+			builder.region(Region.of(awsRegion));
+		}
+		try {
+			return builder.build();
+		} catch (Exception e) {
+			throw new RuntimeException("Could not build CloudWatch async client", e);
+		}
+	}
+
+	private void persistAsync(Map<String, List<MetricDatum>> metricMap) throws IOException {
+
+		List<PutMetricDataRequest> requests = new ArrayList<PutMetricDataRequest>();
+		for (Map.Entry<String, List<MetricDatum>> entry : metricMap.entrySet()) {
+			String nameSpace = nameSpacePrefix + ": " + MiscUtils.capitalize(entry.getKey());
+			List<MetricDatum> datumList = entry.getValue();
+			int endIndex;
+			for (int startIndex = 0; startIndex < datumList.size(); startIndex = endIndex) {
+				endIndex = Math.min(startIndex + MAX_NUM_DATUM_ALLOWED_PER_ASYNC_POST, datumList.size());
+				requests.add(PutMetricDataRequest.builder()
+						.namespace(nameSpace)
+						.metricData(datumList.subList(startIndex, endIndex))
+						.build());
+			}
+		}
+
+		long backoffMillis = retryBackoffMillis;
+		for (int retryCount = 0; !requests.isEmpty(); retryCount++) {
+			Throwable[] failures = postRequests(requests);
+			List<PutMetricDataRequest> retryRequests = new ArrayList<PutMetricDataRequest>();
+			Throwable lastFailure = null;
+			for (int i = 0; i < failures.length; i++) {
+				if (failures[i] == null) {
+					continue;
+				}
+				lastFailure = failures[i];
+				if (retryCount >= maxRetries || !isRetryable(lastFailure)) {
+					throw new IOException("Could not publish metrics to CloudWatch", lastFailure);
+				}
+				retryRequests.add(requests.get(i));
+			}
+			if (lastFailure != null) {
+				try {
+					Thread.sleep(backoffMillis);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting to retry CloudWatch requests", ie);
+				}
+				backoffMillis = Math.min(backoffMillis * 2, MAX_RETRY_BACKOFF_MILLIS);
+				requestRetryMetric.add(retryRequests.size());
+			}
+			requests = retryRequests;
+		}
+	}
+
+	/**
+	 * Post the requests with the async client and wait for them to complete.
+	 * 
+	 * @return An array with the exception thrown by each request or null if it succeeded.
+	 */
+	private Throwable[] postRequests(List<PutMetricDataRequest> requests) throws IOException {
+		final Semaphore inFlight = new Semaphore(maxConcurrentRequests);
+		final Throwable[] failures = new Throwable[requests.size()];
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[requests.size()];
+		long timeoutNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(requestTimeoutMillis);
+		try {
+			for (int i = 0; i < futures.length; i++) {
+				if (!inFlight.tryAcquire(timeoutNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+					throw new TimeoutException();
+				}
+				final int requestIndex = i;
+				final long startNanos = requestLatencyMetric.start();
+				requestCountMetric.increment();
+				CompletableFuture<PutMetricDataResponse> future;
+				try {
+					future = cloudWatchAsyncClient.putMetricData(requests.get(i));
+				} catch (Exception e) {
+					future = new CompletableFuture<PutMetricDataResponse>();
+					future.completeExceptionally(e);
+				}
+				futures[i] = future.handle(new BiFunction<PutMetricDataResponse, Throwable, Void>() {
+					@Override
+					public Void apply(PutMetricDataResponse response, Throwable throwable) {
+						requestLatencyMetric.stopAndAdd(startNanos);
+						if (throwable != null) {
+							requestFailureMetric.increment();
+							failures[requestIndex] = unwrapThrowable(throwable);
+						}
+						inFlight.release();
+						return null;
+					}
+				});
+			}
+			CompletableFuture.allOf(futures).get(timeoutNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while posting metrics to CloudWatch", ie);
+		} catch (TimeoutException te) {
+			throw new IOException(
+					"Posting metrics to CloudWatch did not complete within " + requestTimeoutMillis + " millis", te);
+		} catch (ExecutionException ee) {
+			// shouldn't happen since we handle the exceptions above
+			throw new IOException("Could not publish metrics to CloudWatch", ee.getCause());
+		}
+		return failures;
+	}
+
+	private static Throwable unwrapThrowable(Throwable throwable) {
+		while ((throwable instanceof CompletionException || throwable instanceof ExecutionException)
+				&& throwable.getCause() != null) {
+			throwable = throwable.getCause();
+		}
+		return throwable;
+	}
+
+	/**
+	 * Return true if the request should be retried. Throttling and 5XX errors from the service are retried as are the
+	 * other SDK exceptions, such as connection failures, that the SDK marks as retryable. Other errors from the
+	 * service, such as a bad datum, and exceptions from outside the SDK are not.
+	 */
+	private static boolean isRetryable(Throwable throwable) {
+		if (throwable instanceof SdkServiceException) {
+			SdkServiceException serviceException = (SdkServiceException) throwable;
+			return (serviceException.isThrottlingException() || serviceException.statusCode() >= 500
+					|| serviceException.retryable());
+		} else if (throwable instanceof SdkException) {
+			return ((SdkException) throwable).retryable();
+		} else {
+			return false;
+		}
+	}
+
 	/**
 	 * Return a map of metric name to associated data.
 	 */
 	private Map<String, List<MetricDatum>>
 			buildMetricsMap(Map<ControlledMetric<?, ?>, MetricValueDetails> metricValues) {
 
+		if (metricsManager == null && metricInfoCache.size() > metricValues.size()) {
+			// we aren't told about unregistered metrics so clear out the old ones
+			metricInfoCache.clear();
+		}
+
 		Map<String, List<MetricDatum>> metricMap = new HashMap<String, List<MetricDatum>>(metricValues.size());
+		List<MetricDatum> nameSpaceMetrics = new ArrayList<MetricDatum>(metricValues.size());
+		metricMap.put(applicationName, nameSpaceMetrics);
 		for (Map.Entry<ControlledMetric<?, ?>, MetricValueDetails> entry : metricValues.entrySet()) {
 
 			ControlledMetric<?, ?> metric = entry.getKey();
 			MetricValueDetails details = entry.getValue();
+			MetricInfo info = findMetricInfo(metric);
 
-			List<MetricDatum> nameSpaceMetrics = metricMap.get(applicationName);
-			if (nameSpaceMetrics == null) {
-				nameSpaceMetrics = new ArrayList<MetricDatum>();
-				metricMap.put(applicationName, nameSpaceMetrics);
+			// histograms can publish their distribution which CloudWatch turns into percentiles itself
+			if (useValuesAndCounts && details instanceof HistogramValueDetails) {
+				addValuesAndCountsData(nameSpaceMetrics, metric, (HistogramValueDetails) details, info);
+				continue;
 			}
 
 			double value = details.getValue().doubleValue();
@@ -247,13 +604,7 @@ public class CloudWatchMetricsPersister implements MetricDetailsPersister {
 			}
 
 			Builder datumBuilder =
-					MetricDatum.builder().metricName(metric.getName()).unit(convertUnit(metric.getUnit()));
-			List<Dimension> dimensions = new ArrayList<Dimension>(3 /* max */);
-			dimensions.add(Dimension.builder().name(COMPONENT_DIMENSION).value(metric.getComponent()).build());
-			if (metric.getModule() != null) {
-				dimensions.add(Dimension.builder().name(MODULE_DIMENSION).value(metric.getModule()).build());
-			}
-			datumBuilder.dimensions(dimensions);
+					MetricDatum.builder().metricName(metric.getName()).unit(info.unit).dimensions(info.dimensions);
 
 			// create a statisticSet or just a value
 			if (numSamples == 1) {
@@ -277,30 +628,88 @@ public class CloudWatchMetricsPersister implements MetricDetailsPersister {
 						.build());
 			}
 
-			MetricDatum datum = datumBuilder.build();
-			nameSpaceMetrics.add(datum);
+			addDatum(nameSpaceMetrics, datumBuilder, info);
 
-			// copy our metric and add another one in with the instance-id
-			if (instanceId != null) {
-				MetricDatum.Builder instanceDatumBuilder = copyDatum(datum);
-				dimensions.add(Dimension.builder().name(INSTANCE_ID_DIMENSION).value(instanceId).build());
-				instanceDatumBuilder.dimensions(dimensions);
-				nameSpaceMetrics.add(instanceDatumBuilder.build());
+			// histograms also publish each of their percentiles as a separate metric
+			if (details instanceof HistogramValueDetails) {
+				addPercentileData(nameSpaceMetrics, (HistogramValueDetails) details, info);
 			}
 		}
 
 		return metricMap;
 	}
 
-	private MetricDatum.Builder copyDatum(MetricDatum datum) {
-		MetricDatum.Builder copyBuilder = MetricDatum.builder().metricName(datum.metricName()).unit(datum.unit());
-		Double datumValue = datum.value();
-		if (datumValue == null) {
-			copyBuilder.statisticValues(datum.statisticValues());
-		} else {
-			copyBuilder.value(datumValue);
+	/**
+	 * Add a datum for each of the percentiles of the histogram named with the metric name and a percentile suffix such
+	 * as "name.p99".
+	 */
+	private void addPercentileData(List<MetricDatum> nameSpaceMetrics, HistogramValueDetails details,
+			MetricInfo info) {
+		// no samples means that there are no percentiles to publish
+		if (details.getNumSamples() == 0) {
+			return;
+		}
+		double[] percentileValues = details.getPercentileValues();
+		String[] percentileNames = info.getPercentileNames(details);
+		for (int i = 0; i < percentileValues.length; i++) {
+			addDatum(nameSpaceMetrics, MetricDatum.builder()
+					.metricName(percentileNames[i])
+					.unit(info.unit)
+					.dimensions(info.dimensions)
+					.value(percentileValues[i]), info);
+		}
+	}
+
+	/**
+	 * Add the distribution of the histogram as values and counts so CloudWatch can calculate any percentile itself. If
+	 * there are more buckets than are allowed in one datum then the distribution is split across multiple datum.
+	 */
+	private void addValuesAndCountsData(List<MetricDatum> nameSpaceMetrics, ControlledMetric<?, ?> metric,
+			HistogramValueDetails details, MetricInfo info) {
+		// no samples means that there is no distribution to publish
+		if (details.getNumSamples() == 0) {
+			return;
+		}
+		double[] bucketValues = details.getBucketValues();
+		long[] bucketCounts = details.getBucketCounts();
+		int endIndex;
+		for (int startIndex = 0; startIndex < bucketValues.length; startIndex = endIndex) {
+			endIndex = Math.min(startIndex + MAX_NUM_VALUES_ALLOWED_PER_DATUM, bucketValues.length);
+			List<Double> values = new ArrayList<Double>(endIndex - startIndex);
+			List<Double> counts = new ArrayList<Double>(endIndex - startIndex);
+			for (int i = startIndex; i < endIndex; i++) {
+				values.add(bucketValues[i]);
+				counts.add((double) bucketCounts[i]);
+			}
+			addDatum(nameSpaceMetrics, MetricDatum.builder()
+					.metricName(metric.getName())
+					.unit(info.unit)
+					.dimensions(info.dimensions)
+					.values(values)
+					.counts(counts), info);
+		}
+	}
+
+	/**
+	 * Build and add the datum and, if we know our instance-id, a copy of it with the instance-id dimension.
+	 */
+	private void addDatum(List<MetricDatum> nameSpaceMetrics, MetricDatum.Builder datumBuilder, MetricInfo info) {
+		nameSpaceMetrics.add(datumBuilder.build());
+		if (info.instanceDimensions != null) {
+			nameSpaceMetrics.add(datumBuilder.dimensions(info.instanceDimensions).build());
 		}
-		return copyBuilder;
+	}
+
+	/**
+	 * Find the cached information for the metric or build it if this is the first time we are persisting it.
+	 */
+	private MetricInfo findMetricInfo(ControlledMetric<?, ?> metric) {
+		MetricInfo info = metricInfoCache.get(metric);
+		if (info == null) {
+			info = new MetricInfo(metric, convertUnit(metric.getUnit()), instanceId);
+			metricInfoCache.put(metric, info);
+		}
+		return info;
 	}
 
 	/**
@@ -350,4 +759,51 @@ public class CloudWatchMetricsPersister implements MetricDetailsPersister {
 			return null;
 		}
 	}
+
+	/**
+	 * Dimensions and unit of a metric which are cached between persists.
+	 */
+	private static class MetricInfo {
+		final String name;
+		final StandardUnit unit;
+		final List<Dimension> dimensions;
+		// null if we don't know our instance-id
+		final List<Dimension> instanceDimensions;
+		private double[] percentiles;
+		private String[] percentileNames;
+
+		public MetricInfo(ControlledMetric<?, ?> metric, StandardUnit unit, String instanceId) {
+			this.name = metric.getName();
+			this.unit = unit;
+			List<Dimension> dimensions = new ArrayList<Dimension>(2);
+			dimensions.add(Dimension.builder().name(COMPONENT_DIMENSION).value(metric.getComponent()).build());
+			if (metric.getModule() != null) {
+				dimensions.add(Dimension.builder().name(MODULE_DIMENSION).value(metric.getModule()).build());
+			}
+			this.dimensions = Collections.unmodifiableList(dimensions);
+			if (instanceId == null) {
+				this.instanceDimensions = null;
+			} else {
+				List<Dimension> instanceDimensions = new ArrayList<Dimension>(dimensions);
+				instanceDimensions.add(Dimension.builder().name(INSTANCE_ID_DIMENSION).value(instanceId).build());
+				this.instanceDimensions = Collections.unmodifiableList(instanceDimensions);
+			}
+		}
+
+		/**
+		 * Return the names of the percentile metrics such as "name.p99" which are built the first time.
+		 */
+		public String[] getPercentileNames(HistogramValueDetails details) {
+			double[] detailsPercentiles = details.getPercentiles();
+			if (!Arrays.equals(percentiles, detailsPercentiles)) {
+				String[] names = new String[detailsPercentiles.length];
+				for (int i = 0; i < detailsPercentiles.length; i++) {
+					names[i] = name + "." + HistogramValueDetails.percentileName(detailsPercentiles[i]);
+				}
+				percentileNames = names;
+				percentiles = detailsPercentiles;
+			}
+			return percentileNames;
+		}
+	}
 }
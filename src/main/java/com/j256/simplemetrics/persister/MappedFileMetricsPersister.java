@@ -0,0 +1,272 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.MetricsSnapshot;
+import com.j256.simplemetrics.utils.MiscUtils;
+
+/**
+ * Publishes the latest snapshot of the metrics into a memory-mapped file so sidecar agents and other local processes
+ * can poll the values with the {@link MappedMetricsReader} without any system calls or JMX overhead. The file has a
+ * fixed layout of a header, a slot of values for each metric, and a dictionary of the metric names. Each slot is
+ * protected by a sequence lock so readers never see a partially written set of values. See
+ * {@link MappedMetricsFormat} for the layout.
+ * 
+ * <p>
+ * The file holds up to {@link #setCapacity(int)} metrics. Metrics past that are not published and are counted by
+ * {@link #getDroppedMetricCount()}. Names longer than {@link #setNameWidth(int)} bytes are truncated.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> The sequence numbers are ordered with the values by store fences from {@code VarHandle} under Java 9+
+ * or {@code sun.misc.Unsafe} under Java 8. If neither is available then the fences fall back to volatile accesses
+ * which only order the values on platforms with strong memory models like x86 and not on ARM.
+ * </p>
+ * 
+ * @author graywatson
+ */
+public class MappedFileMetricsPersister implements MetricsSnapshotPersister {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int DEFAULT_CAPACITY = 1024;
+	private static final int DEFAULT_NAME_WIDTH = 128;
+
+	private File file;
+	private int capacity = DEFAULT_CAPACITY;
+	private int nameWidth = DEFAULT_NAME_WIDTH;
+
+	private MappedByteBuffer buffer;
+	private int namesOffset;
+	private final Map<ControlledMetric<?, ?>, Integer> metricSlots = new HashMap<ControlledMetric<?, ?>, Integer>();
+	private ControlledMetric<?, ?>[] slotMetrics;
+	private long[] slotSequences;
+	private long[] slotLastPersists;
+	private long layoutSequence;
+	private long persistCount;
+	private boolean layoutChanged;
+	// snapshot ids of the new metrics that didn't have a free slot in the first pass
+	private int[] pendingIds = new int[0];
+	private int numPendingIds;
+
+	private final AtomicLong droppedMetricCount = new AtomicLong(0);
+
+	public MappedFileMetricsPersister() {
+		// for spring
+	}
+
+	public MappedFileMetricsPersister(File file) throws IOException {
+		this.file = file;
+		initialize();
+	}
+
+	/**
+	 * Should be called if the no-arg construct is being used and after the file has been set. Creates the file and
+	 * maps it into memory.
+	 */
+	public synchronized void initialize() throws IOException {
+		if (buffer != null) {
+			return;
+		}
+		namesOffset = MappedMetricsFormat.HEADER_SIZE + capacity * MappedMetricsFormat.SLOT_SIZE;
+		int size = namesOffset + capacity * nameWidth;
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");) {
+			// never truncated because readers that still have the file mapped would crash accessing the missing pages
+			if (randomAccessFile.length() < size) {
+				randomAccessFile.setLength(size);
+			}
+			buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		// continue the layout sequence of an earlier run so readers know that the names have changed
+		if (buffer.getInt(MappedMetricsFormat.MAGIC_OFFSET) == MappedMetricsFormat.MAGIC) {
+			layoutSequence = (buffer.getLong(MappedMetricsFormat.LAYOUT_SEQUENCE_OFFSET) | 1) + 1;
+		}
+		// invalidate the file for the readers and then clear any old contents
+		buffer.putInt(MappedMetricsFormat.MAGIC_OFFSET, 0);
+		MemoryFences.storeFence();
+		for (int offset = 4; offset < size; offset++) {
+			buffer.put(offset, (byte) 0);
+		}
+		slotMetrics = new ControlledMetric<?, ?>[capacity];
+		slotSequences = new long[capacity];
+		slotLastPersists = new long[capacity];
+		buffer.putInt(MappedMetricsFormat.VERSION_OFFSET, MappedMetricsFormat.VERSION);
+		buffer.putInt(MappedMetricsFormat.CAPACITY_OFFSET, capacity);
+		buffer.putInt(MappedMetricsFormat.NAME_WIDTH_OFFSET, nameWidth);
+		buffer.putInt(MappedMetricsFormat.SLOTS_OFFSET_OFFSET, MappedMetricsFormat.HEADER_SIZE);
+		buffer.putInt(MappedMetricsFormat.NAMES_OFFSET_OFFSET, namesOffset);
+		buffer.putLong(MappedMetricsFormat.LAYOUT_SEQUENCE_OFFSET, layoutSequence);
+		MemoryFences.storeFence();
+		// magic is written last so readers don't see a partial header
+		buffer.putInt(MappedMetricsFormat.MAGIC_OFFSET, MappedMetricsFormat.MAGIC);
+	}
+
+	@Override
+	public synchronized void persist(MetricsSnapshot snapshot) throws IOException {
+		if (buffer == null) {
+			initialize();
+		}
+		persistCount++;
+		layoutChanged = false;
+		numPendingIds = 0;
+		long timeMillis = snapshot.getTimeCollectedMillis();
+		for (int id = 0; id < snapshot.getSize(); id++) {
+			ControlledMetric<?, ?> metric = snapshot.getMetric(id);
+			if (metric == null) {
+				continue;
+			}
+			Integer slot = metricSlots.get(metric);
+			if (slot == null) {
+				slot = assignFreeSlot(metric);
+				if (slot == null) {
+					// try again after the slots of the metrics that went away are freed
+					addPendingId(id);
+					continue;
+				}
+			}
+			slotLastPersists[slot] = persistCount;
+			writeSlot(slot, snapshot, id, timeMillis);
+		}
+
+		// free the slots of the metrics that are no longer being persisted
+		for (int slot = 0; slot < capacity; slot++) {
+			if (slotMetrics[slot] != null && slotLastPersists[slot] != persistCount) {
+				startLayoutChange();
+				metricSlots.remove(slotMetrics[slot]);
+				slotMetrics[slot] = null;
+				writeName(slot, null);
+			}
+		}
+		for (int i = 0; i < numPendingIds; i++) {
+			int id = pendingIds[i];
+			Integer slot = assignFreeSlot(snapshot.getMetric(id));
+			if (slot == null) {
+				droppedMetricCount.incrementAndGet();
+			} else {
+				slotLastPersists[slot] = persistCount;
+				writeSlot(slot, snapshot, id, timeMillis);
+			}
+		}
+		if (layoutChanged) {
+			MemoryFences.storeFence();
+			layoutSequence++;
+			buffer.putLong(MappedMetricsFormat.LAYOUT_SEQUENCE_OFFSET, layoutSequence);
+		}
+		buffer.putLong(MappedMetricsFormat.PERSIST_MILLIS_OFFSET, timeMillis);
+		buffer.putLong(MappedMetricsFormat.PERSIST_COUNT_OFFSET, persistCount);
+	}
+
+	/**
+	 * File that is memory-mapped.
+	 */
+	// @Required
+	public void setFile(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Maximum number of metrics in the file.
+	 */
+	// @NotRequired("Default is " + DEFAULT_CAPACITY)
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Number of bytes reserved for each metric name including the 2 byte length.
+	 */
+	// @NotRequired("Default is " + DEFAULT_NAME_WIDTH)
+	public void setNameWidth(int nameWidth) {
+		this.nameWidth = nameWidth;
+	}
+
+	/**
+	 * Number of metrics that could not be published because the file was full.
+	 */
+	public long getDroppedMetricCount() {
+		return droppedMetricCount.get();
+	}
+
+	/**
+	 * Put the metric into a free slot and write its name. Returns null if there are no free slots.
+	 */
+	private Integer assignFreeSlot(ControlledMetric<?, ?> metric) {
+		for (int slot = 0; slot < capacity; slot++) {
+			if (slotMetrics[slot] == null) {
+				startLayoutChange();
+				metricSlots.put(metric, slot);
+				slotMetrics[slot] = metric;
+				writeName(slot, MiscUtils.metricToString(metric).getBytes(UTF8));
+				return slot;
+			}
+		}
+		return null;
+	}
+
+	private void addPendingId(int id) {
+		if (numPendingIds >= pendingIds.length) {
+			pendingIds = Arrays.copyOf(pendingIds, Math.max(16, pendingIds.length * 2));
+		}
+		pendingIds[numPendingIds++] = id;
+	}
+
+	/**
+	 * Write the values into the slot protected by its sequence lock.
+	 */
+	private void writeSlot(int slot, MetricsSnapshot snapshot, int id, long timeMillis) {
+		int offset = MappedMetricsFormat.HEADER_SIZE + slot * MappedMetricsFormat.SLOT_SIZE;
+		long sequence = slotSequences[slot] + 1;
+		buffer.putLong(offset + MappedMetricsFormat.SLOT_SEQUENCE, sequence);
+		MemoryFences.storeFence();
+		buffer.putDouble(offset + MappedMetricsFormat.SLOT_VALUE, snapshot.getValue(id));
+		buffer.putLong(offset + MappedMetricsFormat.SLOT_NUM_SAMPLES, snapshot.getNumSamples(id));
+		buffer.putDouble(offset + MappedMetricsFormat.SLOT_MIN, snapshot.getMin(id));
+		buffer.putDouble(offset + MappedMetricsFormat.SLOT_MAX, snapshot.getMax(id));
+		buffer.putLong(offset + MappedMetricsFormat.SLOT_TIME_MILLIS, timeMillis);
+		MemoryFences.storeFence();
+		sequence++;
+		buffer.putLong(offset + MappedMetricsFormat.SLOT_SEQUENCE, sequence);
+		slotSequences[slot] = sequence;
+	}
+
+	/**
+	 * Mark the names as being changed if they aren't already in this persist.
+	 */
+	private void startLayoutChange() {
+		if (!layoutChanged) {
+			layoutSequence++;
+			buffer.putLong(MappedMetricsFormat.LAYOUT_SEQUENCE_OFFSET, layoutSequence);
+			MemoryFences.storeFence();
+			layoutChanged = true;
+		}
+	}
+
+	/**
+	 * Write the name into the dictionary entry of the slot or clear it if null.
+	 */
+	private void writeName(int slot, byte[] nameBytes) {
+		int offset = namesOffset + slot * nameWidth;
+		if (nameBytes == null) {
+			buffer.putShort(offset, (short) 0);
+			return;
+		}
+		int length = Math.min(nameBytes.length, nameWidth - 2);
+		buffer.putShort(offset, (short) length);
+		for (int i = 0; i < length; i++) {
+			buffer.put(offset + 2 + i, nameBytes[i]);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.j256.simplemetrics.persister;
+
+/**
+ * Layout of the memory-mapped file shared by the {@link MappedFileMetricsPersister} and the
+ * {@link MappedMetricsReader}. All numbers are big-endian.
+ * 
+ * <pre>
+ * header (64 bytes):
+ *    0 int    magic
+ *    4 int    version
+ *    8 int    capacity, number of slots
+ *   12 int    name width, bytes per name entry
+ *   16 long   layout sequence, odd while the names are being changed
+ *   24 long   persist count, incremented after each persist
+ *   32 long   time in millis of the last persist
+ *   40 int    offset of the slots
+ *   44 int    offset of the names
+ * slots (capacity * 48 bytes):
+ *    0 long   slot sequence, odd while the values are being changed
+ *    8 double value
+ *   16 long   number of samples
+ *   24 double min
+ *   32 double max
+ *   40 long   time in millis the value was collected
+ * names (capacity * name width bytes):
+ *    0 short  length of the UTF-8 name or 0 if the slot is empty
+ *    2 bytes  UTF-8 name in the component.module.name format
+ * </pre>
+ * 
+ * @author graywatson
+ */
+class MappedMetricsFormat {
+
+	static final int MAGIC = 0x534D4D46;
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 64;
+	static final int MAGIC_OFFSET = 0;
+	static final int VERSION_OFFSET = 4;
+	static final int CAPACITY_OFFSET = 8;
+	static final int NAME_WIDTH_OFFSET = 12;
+	static final int LAYOUT_SEQUENCE_OFFSET = 16;
+	static final int PERSIST_COUNT_OFFSET = 24;
+	static final int PERSIST_MILLIS_OFFSET = 32;
+	static final int SLOTS_OFFSET_OFFSET = 40;
+	static final int NAMES_OFFSET_OFFSET = 44;
+
+	static final int SLOT_SIZE = 48;
+	static final int SLOT_SEQUENCE = 0;
+	static final int SLOT_VALUE = 8;
+	static final int SLOT_NUM_SAMPLES = 16;
+	static final int SLOT_MIN = 24;
+	static final int SLOT_MAX = 32;
+	static final int SLOT_TIME_MILLIS = 40;
+
+	private MappedMetricsFormat() {
+		// only for constants
+	}
+}
@@ -0,0 +1,244 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the metrics published by the {@link MappedFileMetricsPersister} from the memory-mapped file, possibly from
+ * another process. Once the file is mapped, polling the values does not make any system calls. The names are cached
+ * and only read again when the persister changes them. The reader is not thread-safe.
+ * 
+ * <pre>
+ * MappedMetricsReader reader = new MappedMetricsReader(file);
+ * SlotValues values = new SlotValues();
+ * int slot = reader.findSlot(&quot;comp.mod.label&quot;);
+ * if (slot &gt;= 0 &amp;&amp; reader.readSlot(slot, values)) {
+ * 	double value = values.getValue();
+ * 	...
+ * }
+ * </pre>
+ * 
+ * @author graywatson
+ */
+public class MappedMetricsReader {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_READ_ATTEMPTS = 10000;
+
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final int nameWidth;
+	private final int slotsOffset;
+	private final int namesOffset;
+
+	private final String[] names;
+	private final Map<String, Integer> nameSlots = new HashMap<String, Integer>();
+	// -1 means that the names have not been read
+	private long namesLayoutSequence = -1;
+
+	public MappedMetricsReader(File file) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");) {
+			long size = randomAccessFile.length();
+			if (size < MappedMetricsFormat.HEADER_SIZE) {
+				throw new IOException("File is too small to be a mapped metrics file: " + file);
+			}
+			buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		if (buffer.getInt(MappedMetricsFormat.MAGIC_OFFSET) != MappedMetricsFormat.MAGIC) {
+			throw new IOException("File is not an initialized mapped metrics file: " + file);
+		}
+		int version = buffer.getInt(MappedMetricsFormat.VERSION_OFFSET);
+		if (version != MappedMetricsFormat.VERSION) {
+			throw new IOException("Unknown mapped metrics file version " + version + ": " + file);
+		}
+		this.capacity = buffer.getInt(MappedMetricsFormat.CAPACITY_OFFSET);
+		this.nameWidth = buffer.getInt(MappedMetricsFormat.NAME_WIDTH_OFFSET);
+		this.slotsOffset = buffer.getInt(MappedMetricsFormat.SLOTS_OFFSET_OFFSET);
+		this.namesOffset = buffer.getInt(MappedMetricsFormat.NAMES_OFFSET_OFFSET);
+		if ((long) namesOffset + (long) capacity * nameWidth > buffer.capacity()) {
+			throw new IOException("Mapped metrics file is smaller than its layout: " + file);
+		}
+		this.names = new String[capacity];
+	}
+
+	/**
+	 * Returns true if the file is still valid. If the persister is restarted with a different capacity or name width
+	 * then this returns false and a new reader must be created.
+	 */
+	public boolean isValid() {
+		return (buffer.getInt(MappedMetricsFormat.MAGIC_OFFSET) == MappedMetricsFormat.MAGIC
+				&& buffer.getInt(MappedMetricsFormat.CAPACITY_OFFSET) == capacity
+				&& buffer.getInt(MappedMetricsFormat.NAME_WIDTH_OFFSET) == nameWidth);
+	}
+
+	/**
+	 * Number of slots in the file.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Number of times the persister has published the metrics. This can be polled to see if there are new values.
+	 */
+	public long getPersistCount() {
+		return buffer.getLong(MappedMetricsFormat.PERSIST_COUNT_OFFSET);
+	}
+
+	/**
+	 * Time in millis of the last snapshot that was published.
+	 */
+	public long getLastPersistMillis() {
+		return buffer.getLong(MappedMetricsFormat.PERSIST_MILLIS_OFFSET);
+	}
+
+	/**
+	 * Return the name of the metric in the slot or null if the slot is empty.
+	 */
+	public String getMetricName(int slot) {
+		refreshNames();
+		return names[slot];
+	}
+
+	/**
+	 * Return the slot of the metric with the name in the component.module.name format or -1 if not found.
+	 */
+	public int findSlot(String name) {
+		refreshNames();
+		Integer slot = nameSlots.get(name);
+		if (slot == null) {
+			return -1;
+		} else {
+			return slot;
+		}
+	}
+
+	/**
+	 * Read a consistent copy of the values in the slot. Returns false if the slot is empty or if the values could not
+	 * be read because the persister was writing them the whole time.
+	 */
+	public boolean readSlot(int slot, SlotValues values) {
+		int offset = slotsOffset + slot * MappedMetricsFormat.SLOT_SIZE;
+		for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+			long layoutSequence = refreshNames();
+			long sequence = buffer.getLong(offset + MappedMetricsFormat.SLOT_SEQUENCE);
+			if ((sequence & 1) != 0) {
+				// being written
+				continue;
+			}
+			MemoryFences.loadFence();
+			double value = buffer.getDouble(offset + MappedMetricsFormat.SLOT_VALUE);
+			long numSamples = buffer.getLong(offset + MappedMetricsFormat.SLOT_NUM_SAMPLES);
+			double min = buffer.getDouble(offset + MappedMetricsFormat.SLOT_MIN);
+			double max = buffer.getDouble(offset + MappedMetricsFormat.SLOT_MAX);
+			long timeMillis = buffer.getLong(offset + MappedMetricsFormat.SLOT_TIME_MILLIS);
+			MemoryFences.loadFence();
+			if (sequence == buffer.getLong(offset + MappedMetricsFormat.SLOT_SEQUENCE)
+					&& layoutSequence == buffer.getLong(MappedMetricsFormat.LAYOUT_SEQUENCE_OFFSET)) {
+				if (names[slot] == null) {
+					return false;
+				}
+				values.value = value;
+				values.numSamples = numSamples;
+				values.min = min;
+				values.max = max;
+				values.timeMillis = timeMillis;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Read a consistent copy of the values of the metric with the name. Returns false if the metric was not found.
+	 */
+	public boolean readMetric(String name, SlotValues values) {
+		int slot = findSlot(name);
+		return (slot >= 0 && readSlot(slot, values));
+	}
+
+	/**
+	 * Read the names again if the persister has changed them and return the layout sequence.
+	 */
+	private long refreshNames() {
+		for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+			long layoutSequence = buffer.getLong(MappedMetricsFormat.LAYOUT_SEQUENCE_OFFSET);
+			if ((layoutSequence & 1) != 0) {
+				// being written
+				continue;
+			}
+			if (layoutSequence == namesLayoutSequence) {
+				return layoutSequence;
+			}
+			MemoryFences.loadFence();
+			nameSlots.clear();
+			for (int slot = 0; slot < capacity; slot++) {
+				names[slot] = readName(slot);
+				if (names[slot] != null) {
+					nameSlots.put(names[slot], slot);
+				}
+			}
+			MemoryFences.loadFence();
+			if (layoutSequence == buffer.getLong(MappedMetricsFormat.LAYOUT_SEQUENCE_OFFSET)) {
+				namesLayoutSequence = layoutSequence;
+				return layoutSequence;
+			}
+		}
+		return namesLayoutSequence;
+	}
+
+	private String readName(int slot) {
+		int offset = namesOffset + slot * nameWidth;
+		int length = buffer.getShort(offset);
+		if (length <= 0 || length > nameWidth - 2) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + 2 + i);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Values of a metric that are filled in by {@link MappedMetricsReader#readSlot(int, SlotValues)} so they can be
+	 * reused.
+	 */
+	public static class SlotValues {
+
+		double value;
+		long numSamples;
+		double min;
+		double max;
+		long timeMillis;
+
+		public double getValue() {
+			return value;
+		}
+
+		public long getNumSamples() {
+			return numSamples;
+		}
+
+		public double getMin() {
+			return min;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		/**
+		 * Time in millis when the values were collected.
+		 */
+		public long getTimeMillis() {
+			return timeMillis;
+		}
+	}
+}
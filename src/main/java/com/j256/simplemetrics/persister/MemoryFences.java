@@ -0,0 +1,113 @@
+package com.j256.simplemetrics.persister;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Memory fences which order the plain gets and puts into a memory-mapped buffer for the sequence locks shared by the
+ * {@link MappedFileMetricsPersister} and the {@link MappedMetricsReader}. The JMM gives no ordering to plain accesses
+ * around a volatile access to an unrelated field so we need real fences. They come from the static fence methods of
+ * {@code VarHandle} under Java 9+ or from {@code sun.misc.Unsafe} under Java 8. The method-handles are constants so the
+ * JIT inlines the calls to the fence instructions.
+ * 
+ * <p>
+ * <b>NOTE:</b> If neither is available then we fall back to a volatile write and read which only orders the mapped
+ * accesses on platforms with strong memory models like x86. See {@link #isFenced()}.
+ * </p>
+ * 
+ * @author graywatson
+ */
+class MemoryFences {
+
+	private static final MethodHandle STORE_FENCE;
+	private static final MethodHandle LOAD_FENCE;
+	private static volatile int volatileFence;
+	@SuppressWarnings("unused")
+	private static int readVolatileFence;
+
+	static {
+		MethodHandle[] fences = findVarHandleFences();
+		if (fences == null) {
+			fences = findUnsafeFences();
+		}
+		if (fences == null) {
+			STORE_FENCE = null;
+			LOAD_FENCE = null;
+		} else {
+			STORE_FENCE = fences[0];
+			LOAD_FENCE = fences[1];
+		}
+	}
+
+	private MemoryFences() {
+		// only static methods
+	}
+
+	/**
+	 * Ensure that the stores before the fence are not reordered with the stores after it.
+	 */
+	public static void storeFence() {
+		if (STORE_FENCE == null) {
+			volatileFence = 0;
+			return;
+		}
+		try {
+			STORE_FENCE.invokeExact();
+		} catch (Throwable th) {
+			throw new IllegalStateException("Store fence failed", th);
+		}
+	}
+
+	/**
+	 * Ensure that the loads before the fence are not reordered with the loads after it.
+	 */
+	public static void loadFence() {
+		if (LOAD_FENCE == null) {
+			// the volatile read is all that we can do
+			readVolatileFence = volatileFence;
+			return;
+		}
+		try {
+			LOAD_FENCE.invokeExact();
+		} catch (Throwable th) {
+			throw new IllegalStateException("Load fence failed", th);
+		}
+	}
+
+	/**
+	 * Return true if we found real fences or false if we are falling back to volatile accesses.
+	 */
+	public static boolean isFenced() {
+		return (STORE_FENCE != null);
+	}
+
+	private static MethodHandle[] findVarHandleFences() {
+		try {
+			Class<?> varHandleClass = Class.forName("java.lang.invoke.VarHandle");
+			MethodType type = MethodType.methodType(void.class);
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			return new MethodHandle[] { lookup.findStatic(varHandleClass, "storeFence", type),
+					lookup.findStatic(varHandleClass, "loadFence", type) };
+		} catch (Exception e) {
+			// not Java 9+
+			return null;
+		}
+	}
+
+	private static MethodHandle[] findUnsafeFences() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			MethodType type = MethodType.methodType(void.class);
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			return new MethodHandle[] { lookup.findVirtual(unsafeClass, "storeFence", type).bindTo(unsafe),
+					lookup.findVirtual(unsafeClass, "loadFence", type).bindTo(unsafe) };
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.IOException;
+
+import com.j256.simplemetrics.metric.MetricsSnapshot;
+
+/**
+ * Adapts a {@link MetricDetailsPersister} so it can be called with a {@link MetricsSnapshot}. The map of value-details
+ * is created from the snapshot once and shared by all of the details persisters.
+ * 
+ * @author graywatson
+ */
+public class MetricDetailsPersisterAdapter implements MetricsSnapshotPersister {
+
+	private final MetricDetailsPersister persister;
+
+	public MetricDetailsPersisterAdapter(MetricDetailsPersister persister) {
+		this.persister = persister;
+	}
+
+	@Override
+	public void persist(MetricsSnapshot snapshot) throws IOException {
+		persister.persist(snapshot.toValueDetailsMap(), snapshot.getTimeCollectedMillis());
+	}
+
+	/**
+	 * Return the persister that we are adapting.
+	 */
+	public MetricDetailsPersister getPersister() {
+		return persister;
+	}
+}
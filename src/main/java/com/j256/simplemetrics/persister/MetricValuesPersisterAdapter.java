@@ -0,0 +1,32 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.IOException;
+
+import com.j256.simplemetrics.metric.MetricsSnapshot;
+
+/**
+ * Adapts a {@link MetricValuesPersister} so it can be called with a {@link MetricsSnapshot}. The map of values is
+ * created from the snapshot once and shared by all of the value persisters.
+ * 
+ * @author graywatson
+ */
+public class MetricValuesPersisterAdapter implements MetricsSnapshotPersister {
+
+	private final MetricValuesPersister persister;
+
+	public MetricValuesPersisterAdapter(MetricValuesPersister persister) {
+		this.persister = persister;
+	}
+
+	@Override
+	public void persist(MetricsSnapshot snapshot) throws IOException {
+		persister.persist(snapshot.toValuesMap(), snapshot.getTimeCollectedMillis());
+	}
+
+	/**
+	 * Return the persister that we are adapting.
+	 */
+	public MetricValuesPersister getPersister() {
+		return persister;
+	}
+}
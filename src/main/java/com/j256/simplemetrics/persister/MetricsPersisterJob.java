@@ -1,31 +1,75 @@
 package com.j256.simplemetrics.persister;
 
 import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
 
 /**
- * Metrics persister thread that can be used to call {@link MetricsManager#persistValuesOnly()} at a specific frequency.
- * This is used if you don't have another mechanism to call the persisting on your own. If you are using the no-arg
- * constructor (like with Spring) you will need to make sure that {@link #initialize()} is called.
+ * Metrics persister job that can be used to call {@link MetricsManager#persist()} at a specific frequency. This is used
+ * if you don't have another mechanism to call the persisting on your own. If you are using the no-arg constructor (like
+ * with Spring) you will need to make sure that {@link #initialize()} is called.
+ * 
+ * <p>
+ * The job is run by a {@link ScheduledExecutorService} which can be shared with other jobs by calling
+ * {@link #setExecutorService(ScheduledExecutorService)}. The caller can also pass in an executor whose threads are
+ * virtual threads on JDKs that support them. Otherwise the job creates an executor with a single thread. Each persist
+ * is scheduled from the start time of the first one so the persists don't drift and, with
+ * {@link #setAlignToPeriod(boolean)}, they happen at wall-clock multiples of the period. If a persist takes longer than
+ * the period then the missed persists are skipped and counted as overruns. The job records the time each persist took
+ * and the number of overruns and failures in metrics which are registered with the manager.
+ * </p>
+ * 
+ * <p>
+ * To call some persisters at a longer period without taking another snapshot, wrap them in a
+ * {@link PeriodMetricsPersister}.
+ * </p>
  * 
  * @author graywatson
  */
 public class MetricsPersisterJob implements Runnable {
 
+	private static final String METRICS_COMPONENT = "metrics";
+	private static final String METRICS_MODULE = "persisterJob";
+
 	private MetricsManager metricsManager;
 	private long delayTimeMillis = -1;
 	private long periodTimeMillis;
 	private boolean daemonThread = true;
+	private boolean alignToPeriod;
+	private boolean registerMetrics = true;
+	private ScheduledExecutorService executorService;
+
+	private boolean ownExecutorService;
+	private volatile boolean destroyed;
+	private final Object runLock = new Object();
+	// guarded by runLock
+	private long nextTickMillis;
+	private volatile ScheduledFuture<?> future;
+	private volatile IOException lastException;
+	private final AtomicLong failureCount = new AtomicLong(0);
+	private final AtomicLong overrunCount = new AtomicLong(0);
 
-	private Thread thread;
+	private final ControlledMetricValue persistTimeMillisMetric = new ControlledMetricValue(METRICS_COMPONENT,
+			METRICS_MODULE, "persistTimeMillis", "Time that the persist took", "milliseconds");
+	private final ControlledMetricAccum overrunsMetric = new ControlledMetricAccum(METRICS_COMPONENT, METRICS_MODULE,
+			"overruns", "Number of persists skipped because the previous one was still running", "count");
+	private final ControlledMetricAccum failuresMetric = new ControlledMetricAccum(METRICS_COMPONENT, METRICS_MODULE,
+			"failures", "Number of persists that threw an exception", "count");
 
 	public MetricsPersisterJob() {
 		// for spring
 	}
 
 	/**
-	 * Create the MetricsPersisterThread and calls {@link #initialize()}.
+	 * Create the MetricsPersisterJob and calls {@link #initialize()}.
 	 */
 	public MetricsPersisterJob(MetricsManager metricsManager, long delayTimeMillis, long periodTimeMillis,
 			boolean daemonThread) {
@@ -40,18 +84,52 @@ public class MetricsPersisterJob implements Runnable {
 	 * Should be called if the no-arg construct is being used and after the file metrics have been set. Maybe by
 	 * Spring's init mechanism?
 	 */
-	public void initialize() {
-		this.thread = new Thread(this, getClass().getSimpleName());
-		this.thread.setDaemon(daemonThread);
-		this.thread.start();
+	public synchronized void initialize() {
+		if (registerMetrics) {
+			metricsManager.registerMetric(persistTimeMillisMetric);
+			metricsManager.registerMetric(overrunsMetric);
+			metricsManager.registerMetric(failuresMetric);
+		}
+		if (executorService == null) {
+			executorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, MetricsPersisterJob.class.getSimpleName());
+					thread.setDaemon(daemonThread);
+					return thread;
+				}
+			});
+			ownExecutorService = true;
+		}
+		long firstMillis = System.currentTimeMillis() + Math.max(0, delayTimeMillis);
+		if (alignToPeriod && periodTimeMillis > 0) {
+			// round up to the next multiple of the period
+			firstMillis = ((firstMillis + periodTimeMillis - 1) / periodTimeMillis) * periodTimeMillis;
+		}
+		synchronized (runLock) {
+			nextTickMillis = firstMillis;
+			scheduleNextTick();
+		}
 	}
 
 	/**
-	 * Call when you want to shutdown the publisher thread. You should call {@link #destroyAndJoin()} if you want to
-	 * destroy the thread _and_ join with it after it has terminated.
+	 * Call when you want to shutdown the job. You should call {@link #destroyAndJoin()} if you want to destroy the job
+	 * _and_ wait for a running persist to finish.
 	 */
 	public void destroy() {
-		this.thread.interrupt();
+		destroyed = true;
+		ScheduledFuture<?> future = this.future;
+		if (future != null) {
+			future.cancel(false);
+		}
+		if (ownExecutorService) {
+			executorService.shutdownNow();
+		}
+		if (registerMetrics) {
+			metricsManager.unregisterMetric(persistTimeMillisMetric);
+			metricsManager.unregisterMetric(overrunsMetric);
+			metricsManager.unregisterMetric(failuresMetric);
+		}
 		// NOTE: we are not waiting for the thread to finish on purpose
 	}
 
@@ -64,58 +142,108 @@ public class MetricsPersisterJob implements Runnable {
 	}
 
 	/**
-	 * Call when you want to destroy the background persisting thread and then wait for it to finish.
+	 * Call when you want to destroy the background persisting job and then wait for it to finish.
 	 */
 	public void destroyAndJoin() {
 		destroy();
-		try {
-			this.thread.join();
-		} catch (InterruptedException e) {
-			Thread.currentThread().interrupt();
+		if (ownExecutorService) {
+			try {
+				executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} else {
+			// wait for a running persist to finish
+			synchronized (runLock) {
+				// nothing to do
+			}
 		}
 	}
 
 	/**
-	 * Run by the thread to persist the metrics by calling {@link MetricsManager#persist()}.
+	 * Run by the executor to persist the metrics by calling {@link MetricsManager#persist()} and then to schedule the
+	 * next persist.
 	 */
 	@Override
 	public void run() {
-		// initial sleep to wait for the systems to spin up before we start logging
-		if (delayTimeMillis >= 0) {
-			try {
-				Thread.sleep(delayTimeMillis);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
+		synchronized (runLock) {
+			if (destroyed) {
 				return;
 			}
-		}
-
-		// we do a sleep here so no need to test for Thread.isInterrupted()
-		while (true) {
-			long lastStartMillis = System.currentTimeMillis();
+			long startMillis = System.currentTimeMillis();
 			try {
 				metricsManager.persist();
 			} catch (IOException ioe) {
-				// ignore I guess
+				lastException = ioe;
+				failureCount.incrementAndGet();
+				failuresMetric.increment();
+			} catch (RuntimeException re) {
+				// if this was thrown out of the executor then the persists would stop
+				lastException = new IOException("Persisting threw", re);
+				failureCount.incrementAndGet();
+				failuresMetric.increment();
 			}
+			long nowMillis = System.currentTimeMillis();
+			persistTimeMillisMetric.adjustValue(nowMillis - startMillis);
 
-			// sleep the number of millis so that we start the persisting at the same period each time
-			long sleepMillis = lastStartMillis + periodTimeMillis - System.currentTimeMillis();
-			if (sleepMillis <= 0) {
-				if (Thread.currentThread().isInterrupted()) {
-					return;
-				}
-			} else {
-				try {
-					Thread.sleep(sleepMillis);
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-					return;
-				}
+			// schedule from the last tick time so we start the persisting at the same period each time
+			nextTickMillis += periodTimeMillis;
+			if (nextTickMillis <= nowMillis && periodTimeMillis > 0) {
+				// we took longer than the period so skip the ticks we missed
+				long numMissed = (nowMillis - nextTickMillis) / periodTimeMillis + 1;
+				overrunCount.addAndGet(numMissed);
+				overrunsMetric.add(numMissed);
+				nextTickMillis += numMissed * periodTimeMillis;
+			}
+			if (!destroyed) {
+				scheduleNextTick();
 			}
 		}
 	}
 
+	/**
+	 * Return the exception thrown by the last failed persist or null if none.
+	 */
+	public IOException getLastException() {
+		return lastException;
+	}
+
+	/**
+	 * Return the total number of persists that threw.
+	 */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	 * Return the total number of persists that were skipped because the previous one took longer than the period.
+	 */
+	public long getOverrunCount() {
+		return overrunCount.get();
+	}
+
+	/**
+	 * Return the metric which records the number of millis that each persist took.
+	 */
+	public ControlledMetricValue getPersistTimeMillisMetric() {
+		return persistTimeMillisMetric;
+	}
+
+	/**
+	 * Return the metric which counts the persists that were skipped because the previous one took longer than the
+	 * period.
+	 */
+	public ControlledMetricAccum getOverrunsMetric() {
+		return overrunsMetric;
+	}
+
+	/**
+	 * Return the metric which counts the persists that threw.
+	 */
+	public ControlledMetricAccum getFailuresMetric() {
+		return failuresMetric;
+	}
+
 	// @Required
 	public void setMetricsManager(MetricsManager metricsManager) {
 		this.metricsManager = metricsManager;
@@ -131,7 +259,7 @@ public class MetricsPersisterJob implements Runnable {
 	}
 
 	/**
-	 * Number of millis to sleep between each persisting call.
+	 * Number of millis between the start of each persisting call.
 	 */
 	// @Required
 	public void setPeriodTimeMillis(long periodTimeMillis) {
@@ -141,12 +269,42 @@ public class MetricsPersisterJob implements Runnable {
 		}
 	}
 
+	/**
+	 * Set to true to have the persists happen at wall-clock multiples of the period. For example, with a period of 60
+	 * seconds the persists happen at the start of each minute. The first persist is the first multiple after the delay.
+	 */
+	// @NotRequired("Default is false")
+	public void setAlignToPeriod(boolean alignToPeriod) {
+		this.alignToPeriod = alignToPeriod;
+	}
+
+	/**
+	 * Executor that runs the job which can be shared with other jobs. It is not shutdown by the job.
+	 */
+	// @NotRequired("Default is to create an executor with a single thread")
+	public void setExecutorService(ScheduledExecutorService executorService) {
+		this.executorService = executorService;
+	}
+
+	/**
+	 * Set to false to not register the metrics of the job with the metrics manager.
+	 */
+	// @NotRequired("Default is true")
+	public void setRegisterMetrics(boolean registerMetrics) {
+		this.registerMetrics = registerMetrics;
+	}
+
 	/**
 	 * Whether or not the thread is a daemon thread. If true then the JVM will quit even if this thread is still
-	 * running.
+	 * running. This is only used if the executor service is not set.
 	 */
 	// @NotRequired("Default is false")
 	public void setDaemonThread(boolean daemonThread) {
 		this.daemonThread = daemonThread;
 	}
+
+	private void scheduleNextTick() {
+		future = executorService.schedule(this, Math.max(0, nextTickMillis - System.currentTimeMillis()),
+				TimeUnit.MILLISECONDS);
+	}
 }
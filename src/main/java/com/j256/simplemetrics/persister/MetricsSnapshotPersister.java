@@ -0,0 +1,27 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.IOException;
+
+import com.j256.simplemetrics.metric.MetricsSnapshot;
+
+/**
+ * Class which publishes our metrics to disk, a cloud service, or to some other repository from the columnar
+ * {@link MetricsSnapshot}. Unlike the {@link MetricValuesPersister} and {@link MetricDetailsPersister}, the snapshot
+ * is reused between persist cycles so the metrics manager does not need to create maps and value objects for every
+ * metric each time it persists.
+ * 
+ * @author graywatson
+ */
+public interface MetricsSnapshotPersister {
+
+	/**
+	 * Persists the metrics in the snapshot to disk or some repository. The snapshot must not be used after this method
+	 * returns.
+	 * 
+	 * @param snapshot
+	 *            The values of the metrics we are persisting along with the time they were collected.
+	 * @throws IOException
+	 *             If there was an i/o error while persisting.
+	 */
+	public void persist(MetricsSnapshot snapshot) throws IOException;
+}
@@ -0,0 +1,179 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.IOException;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+import com.j256.simplemetrics.metric.MetricsSnapshot;
+
+/**
+ * Wraps a persister so it is called at a longer period than the {@link MetricsPersisterJob} persists the metrics. For
+ * example, the job might persist every 10 seconds to a text file and this would call the CloudWatch persister every 60
+ * seconds. Instead of taking a separate snapshot, which would reset the accumulators, the snapshots of each persist
+ * are combined until the wall-clock period boundary is crossed and then the persister is called with the combined
+ * snapshot.
+ * 
+ * <p>
+ * Metrics with the {@link AggregationType#SUM} aggregation type are added together and the others are averaged
+ * weighted by their number of samples. The min and max values and the number of samples are combined. The percentiles
+ * of histograms can't be combined so they are only passed along if the period has a single snapshot. If a metric is
+ * unregistered and its id is reused by another metric during the period then the persister is called early with the
+ * snapshots combined so far so the values of the old metric are not lost.
+ * </p>
+ * 
+ * <pre>
+ * MetricsSnapshotPersister cloudWatch = new MetricDetailsPersisterAdapter(cloudWatchPersister);
+ * metricsManager.setMetricsSnapshotPersisters(new MetricsSnapshotPersister[] { textFilePersister,
+ * 		new PeriodMetricsPersister(cloudWatch, 60000) });
+ * </pre>
+ * 
+ * @author graywatson
+ */
+public class PeriodMetricsPersister implements MetricsSnapshotPersister {
+
+	private MetricsSnapshotPersister persister;
+	private long periodMillis;
+
+	private final MetricsSnapshot combined = new MetricsSnapshot();
+	private int numCombined;
+	private long periodBoundary = -1;
+	private long callCount;
+
+	public PeriodMetricsPersister() {
+		// for spring
+	}
+
+	public PeriodMetricsPersister(MetricsSnapshotPersister persister, long periodMillis) {
+		this.persister = persister;
+		this.periodMillis = periodMillis;
+	}
+
+	@Override
+	public synchronized void persist(MetricsSnapshot snapshot) throws IOException {
+		long timeMillis = snapshot.getTimeCollectedMillis();
+		// persists that are a little early for the boundary, because of clock adjustments, count as the next period
+		long boundary = (timeMillis + periodMillis / 20) / periodMillis;
+		if (periodBoundary < 0) {
+			periodBoundary = boundary;
+		}
+		if (hasReusedId(snapshot)) {
+			// persist the period early instead of mixing the values of the old metric into the new one
+			flush();
+		}
+		combineSnapshot(snapshot);
+		if (boundary != periodBoundary) {
+			periodBoundary = boundary;
+			flush();
+		}
+	}
+
+	/**
+	 * Call the persister with the snapshots that have been combined so far in the current period. This should be
+	 * called on shutdown so the values from a partial period are not lost.
+	 */
+	public synchronized void flush() throws IOException {
+		if (numCombined == 0) {
+			return;
+		}
+		try {
+			callCount++;
+			persister.persist(combined);
+		} finally {
+			combined.reset(0);
+			numCombined = 0;
+		}
+	}
+
+	/**
+	 * Persister that is called at the period.
+	 */
+	// @Required
+	public void setPersister(MetricsSnapshotPersister persister) {
+		this.persister = persister;
+	}
+
+	public MetricsSnapshotPersister getPersister() {
+		return persister;
+	}
+
+	/**
+	 * Period in millis at which the persister is called. This should be a multiple of the period of the
+	 * {@link MetricsPersisterJob}.
+	 */
+	// @Required
+	public void setPeriodMillis(long periodMillis) {
+		this.periodMillis = periodMillis;
+	}
+
+	public long getPeriodMillis() {
+		return periodMillis;
+	}
+
+	/**
+	 * Number of times the persister has been called.
+	 */
+	public synchronized long getCallCount() {
+		return callCount;
+	}
+
+	/**
+	 * Return true if the snapshot has a metric with an id that is used by a different metric in the combined snapshot.
+	 */
+	private boolean hasReusedId(MetricsSnapshot snapshot) {
+		for (int id = 0; id < snapshot.getSize(); id++) {
+			ControlledMetric<?, ?> metric = snapshot.getMetric(id);
+			ControlledMetric<?, ?> combinedMetric = combined.getMetric(id);
+			if (metric != null && combinedMetric != null && combinedMetric != metric) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void combineSnapshot(MetricsSnapshot snapshot) {
+		combined.setTimeCollectedMillis(snapshot.getTimeCollectedMillis());
+		numCombined++;
+		for (int id = 0; id < snapshot.getSize(); id++) {
+			ControlledMetric<?, ?> metric = snapshot.getMetric(id);
+			if (metric == null) {
+				continue;
+			}
+			if (combined.getMetric(id) != metric) {
+				// first time in this period, this also copies any histogram details
+				combined.setMetric(id, metric);
+				combined.setValueDetails(id, snapshot.getValueDetails(id));
+				continue;
+			}
+
+			double value1 = combined.getValue(id);
+			int numSamples1 = combined.getNumSamples(id);
+			double value2 = snapshot.getValue(id);
+			int numSamples2 = snapshot.getNumSamples(id);
+			long numSamples = (long) numSamples1 + numSamples2;
+			double value;
+			if (metric.getAggregationType() == AggregationType.SUM) {
+				value = value1 + value2;
+			} else if (numSamples == 0) {
+				value = value2;
+			} else {
+				value = (value1 * numSamples1 + value2 * numSamples2) / numSamples;
+			}
+			double min;
+			double max;
+			if (numSamples1 == 0) {
+				min = snapshot.getMin(id);
+				max = snapshot.getMax(id);
+			} else if (numSamples2 == 0) {
+				min = combined.getMin(id);
+				max = combined.getMax(id);
+			} else {
+				min = Math.min(combined.getMin(id), snapshot.getMin(id));
+				max = Math.max(combined.getMax(id), snapshot.getMax(id));
+			}
+			// setting the metric again clears the histogram details which no longer match the values
+			combined.setMetric(id, metric);
+			combined.setValue(id, value, (int) Math.min(numSamples, Integer.MAX_VALUE), min, max);
+			combined.setLongValues(id, snapshot.isLongValues(id));
+		}
+	}
+}
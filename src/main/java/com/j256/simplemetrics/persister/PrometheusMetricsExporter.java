@@ -0,0 +1,480 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.manager.MetricsRegisterListener;
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetricHistogram;
+import com.j256.simplemetrics.metric.HistogramValueDetails;
+import com.j256.simplemetrics.metric.MetricValueDetails;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the registered metrics in the Prometheus text exposition format from a small HTTP server built on the JDK's
+ * {@code com.sun.net.httpserver} package. The names, help, and type lines of each metric are encoded once when the
+ * metric is registered with the {@link MetricsManager} and the response is rendered into a reusable buffer.
+ * 
+ * <p>
+ * The name of the metric becomes the Prometheus metric name and the component and module are exposed as the
+ * {@code component} and {@code module} labels. Metrics whose names are the same after the characters that are not
+ * allowed are replaced, such as the same name in different modules, share a single family with one help and type
+ * line.
+ * </p>
+ * 
+ * <p>
+ * Scrapes use the {@link ControlledMetric#getValue()} and {@link ControlledMetric#getValueDetails()} methods which do
+ * not reset the metrics so scraping can be done alongside the persisters. Because the accumulators are reset by each
+ * persist, all of the metrics are exposed as gauges except for the histograms which are exposed as summaries.
+ * </p>
+ * 
+ * <pre>
+ * PrometheusMetricsExporter exporter = new PrometheusMetricsExporter();
+ * exporter.setMetricsManager(metricsManager);
+ * exporter.setPort(9400);
+ * exporter.initialize();
+ * </pre>
+ * 
+ * @author graywatson
+ */
+public class PrometheusMetricsExporter implements MetricsRegisterListener {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private static final String DEFAULT_PATH = "/metrics";
+	private static final int DEFAULT_PORT = 9400;
+	private static final byte[] POSITIVE_INFINITY_BYTES = "+Inf".getBytes(UTF8);
+	private static final byte[] NEGATIVE_INFINITY_BYTES = "-Inf".getBytes(UTF8);
+	private static final byte[] NAN_BYTES = "NaN".getBytes(UTF8);
+
+	private MetricsManager metricsManager;
+	private String host;
+	private int port = DEFAULT_PORT;
+	private String path = DEFAULT_PATH;
+
+	// these are guarded by this
+	private final Map<ControlledMetric<?, ?>, MetricEncoding> encodings =
+			new HashMap<ControlledMetric<?, ?>, MetricEncoding>();
+	private final Map<String, MetricFamily> families = new LinkedHashMap<String, MetricFamily>();
+	private final ExpositionBuffer buffer = new ExpositionBuffer();
+	private HttpServer server;
+	private volatile long scrapeCount;
+
+	public PrometheusMetricsExporter() {
+		// for spring
+	}
+
+	public PrometheusMetricsExporter(MetricsManager metricsManager, int port) throws IOException {
+		this.metricsManager = metricsManager;
+		this.port = port;
+		initialize();
+	}
+
+	/**
+	 * Should be called if the no-arg construct is being used and after the setters have been called. Registers with the
+	 * metrics manager and starts the HTTP server.
+	 */
+	public void initialize() throws IOException {
+		if (server != null) {
+			return;
+		}
+		metricsManager.registerRegisterListener(this);
+		InetSocketAddress address;
+		if (host == null) {
+			address = new InetSocketAddress(port);
+		} else {
+			address = new InetSocketAddress(host, port);
+		}
+		server = HttpServer.create(address, 0);
+		server.createContext(path, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleScrape(exchange);
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * Stop the HTTP server.
+	 */
+	public void destroy() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	@Override
+	public synchronized void metricRegistered(ControlledMetric<?, ?> metric) {
+		if (encodings.containsKey(metric)) {
+			return;
+		}
+		boolean summary = (metric instanceof ControlledMetricHistogram);
+		String name = metricToPrometheusName(metric);
+		MetricFamily family = families.get(name);
+		if (family != null && family.summary != summary) {
+			// a family can only have one type so we have to give this one a different name
+			name = name + (summary ? "_summary" : "_gauge");
+			family = families.get(name);
+		}
+		if (family == null) {
+			family = new MetricFamily(name, metric.getDescription(), summary);
+			families.put(name, family);
+		}
+		MetricEncoding encoding = new MetricEncoding(metric, name);
+		family.encodings.add(encoding);
+		encodings.put(metric, encoding);
+	}
+
+	@Override
+	public synchronized void metricUnregistered(ControlledMetric<?, ?> metric) {
+		MetricEncoding encoding = encodings.remove(metric);
+		if (encoding == null) {
+			return;
+		}
+		MetricFamily family = families.get(encoding.familyName);
+		family.encodings.remove(encoding);
+		if (family.encodings.isEmpty()) {
+			families.remove(encoding.familyName);
+		}
+	}
+
+	/**
+	 * Return the metrics in the exposition format. Mostly here for debugging and testing.
+	 */
+	public String getMetricsText() {
+		synchronized (this) {
+			renderMetrics();
+			return new String(buffer.bytes, 0, buffer.length, UTF8);
+		}
+	}
+
+	/**
+	 * Metrics manager whose metrics we are serving.
+	 */
+	// @Required
+	public void setMetricsManager(MetricsManager metricsManager) {
+		this.metricsManager = metricsManager;
+	}
+
+	/**
+	 * Host or address that the server listens on.
+	 */
+	// @NotRequired("Default is to listen on all addresses")
+	public void setHost(String host) {
+		this.host = host;
+	}
+
+	/**
+	 * Port that the server listens on. Set to 0 to pick a free port which is returned by {@link #getPort()}.
+	 */
+	// @NotRequired("Default is " + DEFAULT_PORT)
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Return the port that the server is listening on.
+	 */
+	public int getPort() {
+		if (server == null) {
+			return port;
+		} else {
+			return server.getAddress().getPort();
+		}
+	}
+
+	/**
+	 * Path of the URL that the metrics are served from.
+	 */
+	// @NotRequired("Default is " + DEFAULT_PATH)
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	/**
+	 * Number of times the metrics have been scraped.
+	 */
+	public long getScrapeCount() {
+		return scrapeCount;
+	}
+
+	private void handleScrape(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			if (!"GET".equals(method) && !"HEAD".equals(method)) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			byte[] response;
+			synchronized (this) {
+				renderMetrics();
+				scrapeCount++;
+				// copied so a slow client doesn't hold the lock and block the other scrapes and registrations
+				response = Arrays.copyOf(buffer.bytes, buffer.length);
+			}
+			if ("HEAD".equals(method)) {
+				exchange.sendResponseHeaders(200, -1);
+			} else {
+				exchange.sendResponseHeaders(200, response.length);
+				OutputStream outputStream = exchange.getResponseBody();
+				outputStream.write(response);
+				outputStream.flush();
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Render all of the metrics into the buffer.
+	 */
+	private void renderMetrics() {
+		buffer.reset();
+		for (MetricFamily family : families.values()) {
+			buffer.write(family.headerBytes);
+			for (MetricEncoding encoding : family.encodings) {
+				renderMetric(encoding);
+			}
+		}
+	}
+
+	private void renderMetric(MetricEncoding encoding) {
+		if (encoding.quantileBytes == null) {
+			buffer.write(encoding.nameBytes);
+			buffer.writeNumber(encoding.metric.getValue());
+			buffer.write((byte) '\n');
+			return;
+		}
+		MetricValueDetails details = encoding.metric.getValueDetails();
+		if (details instanceof HistogramValueDetails) {
+			double[] percentileValues = ((HistogramValueDetails) details).getPercentileValues();
+			for (int i = 0; i < encoding.quantileBytes.length && i < percentileValues.length; i++) {
+				buffer.write(encoding.quantileBytes[i]);
+				buffer.writeDouble(percentileValues[i]);
+				buffer.write((byte) '\n');
+			}
+		}
+		// the value of the histogram is the average of the samples
+		int numSamples = details.getNumSamples();
+		buffer.write(encoding.sumBytes);
+		buffer.writeDouble(details.getValue().doubleValue() * numSamples);
+		buffer.write((byte) '\n');
+		buffer.write(encoding.countBytes);
+		buffer.writeLong(numSamples);
+		buffer.write((byte) '\n');
+	}
+
+	/**
+	 * Convert the name of the metric into a Prometheus name by replacing the characters that are not allowed. The
+	 * component and module are exposed as labels.
+	 */
+	static String metricToPrometheusName(ControlledMetric<?, ?> metric) {
+		String name = metric.getName();
+		StringBuilder sb = new StringBuilder(name.length() + 1);
+		if (name.isEmpty() || Character.isDigit(name.charAt(0))) {
+			sb.append('_');
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char ch = name.charAt(i);
+			if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_'
+					|| ch == ':') {
+				sb.append(ch);
+			} else {
+				sb.append('_');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Return the component and module labels of the metric without the braces.
+	 */
+	static String metricToPrometheusLabels(ControlledMetric<?, ?> metric) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("component=\"").append(escapeLabelValue(metric.getComponent())).append('"');
+		if (metric.getModule() != null) {
+			sb.append(",module=\"").append(escapeLabelValue(metric.getModule())).append('"');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Escape the help text according to the exposition format.
+	 */
+	private static String escapeHelp(String help) {
+		return help.replace("\\", "\\\\").replace("\n", "\\n");
+	}
+
+	/**
+	 * Escape the label value according to the exposition format.
+	 */
+	private static String escapeLabelValue(String value) {
+		return escapeHelp(value).replace("\"", "\\\"");
+	}
+
+	/**
+	 * The metrics which share a Prometheus name and so have one help and type line.
+	 */
+	private static class MetricFamily {
+
+		final boolean summary;
+		final byte[] headerBytes;
+		final List<MetricEncoding> encodings = new ArrayList<MetricEncoding>();
+
+		public MetricFamily(String name, String description, boolean summary) {
+			this.summary = summary;
+			StringBuilder sb = new StringBuilder();
+			if (description != null) {
+				sb.append("# HELP ").append(name).append(' ').append(escapeHelp(description)).append('\n');
+			}
+			sb.append("# TYPE ").append(name);
+			if (summary) {
+				sb.append(" summary\n");
+			} else {
+				sb.append(" gauge\n");
+			}
+			this.headerBytes = sb.toString().getBytes(UTF8);
+		}
+	}
+
+	/**
+	 * The encoded bytes of a metric which are created once when it is registered.
+	 */
+	private static class MetricEncoding {
+
+		final ControlledMetric<?, ?> metric;
+		final String familyName;
+		final byte[] nameBytes;
+		// these are only set for histograms
+		final byte[][] quantileBytes;
+		final byte[] sumBytes;
+		final byte[] countBytes;
+
+		public MetricEncoding(ControlledMetric<?, ?> metric, String familyName) {
+			this.metric = metric;
+			this.familyName = familyName;
+			String labels = metricToPrometheusLabels(metric);
+			if (metric instanceof ControlledMetricHistogram) {
+				double[] percentiles = ((ControlledMetricHistogram) metric).getPercentiles();
+				this.quantileBytes = new byte[percentiles.length][];
+				for (int i = 0; i < percentiles.length; i++) {
+					// BigDecimal so 99.9 becomes 0.999 without any floating point noise
+					String quantile =
+							new BigDecimal(Double.toString(percentiles[i])).movePointLeft(2).stripTrailingZeros()
+									.toPlainString();
+					quantileBytes[i] =
+							(familyName + '{' + labels + ",quantile=\"" + quantile + "\"} ").getBytes(UTF8);
+				}
+				this.nameBytes = null;
+				this.sumBytes = (familyName + "_sum{" + labels + "} ").getBytes(UTF8);
+				this.countBytes = (familyName + "_count{" + labels + "} ").getBytes(UTF8);
+			} else {
+				this.nameBytes = (familyName + '{' + labels + "} ").getBytes(UTF8);
+				this.quantileBytes = null;
+				this.sumBytes = null;
+				this.countBytes = null;
+			}
+		}
+	}
+
+	/**
+	 * Growable byte array which holds the response and is reused between scrapes. Numbers are encoded straight into
+	 * the array.
+	 */
+	private static class ExpositionBuffer {
+
+		private static final byte[] LONG_MIN_VALUE_BYTES = Long.toString(Long.MIN_VALUE).getBytes(UTF8);
+
+		byte[] bytes = new byte[8192];
+		int length;
+		private final byte[] digits = new byte[20];
+		// reused to format doubles which does not allocate a string
+		private final StringBuilder doubleBuilder = new StringBuilder(32);
+
+		public void reset() {
+			length = 0;
+		}
+
+		public void write(byte[] source) {
+			ensureCapacity(source.length);
+			System.arraycopy(source, 0, bytes, length, source.length);
+			length += source.length;
+		}
+
+		public void write(byte b) {
+			ensureCapacity(1);
+			bytes[length++] = b;
+		}
+
+		public void writeNumber(Number number) {
+			if (number instanceof Long || number instanceof Integer || number instanceof Short
+					|| number instanceof Byte) {
+				writeLong(number.longValue());
+			} else {
+				writeDouble(number.doubleValue());
+			}
+		}
+
+		public void writeLong(long value) {
+			if (value == Long.MIN_VALUE) {
+				// can't be negated
+				write(LONG_MIN_VALUE_BYTES);
+				return;
+			}
+			if (value < 0) {
+				write((byte) '-');
+				value = -value;
+			}
+			int pos = digits.length;
+			do {
+				digits[--pos] = (byte) ('0' + (value % 10));
+				value /= 10;
+			} while (value != 0);
+			ensureCapacity(digits.length - pos);
+			System.arraycopy(digits, pos, bytes, length, digits.length - pos);
+			length += digits.length - pos;
+		}
+
+		public void writeDouble(double value) {
+			if (Double.isNaN(value)) {
+				write(NAN_BYTES);
+			} else if (value == Double.POSITIVE_INFINITY) {
+				write(POSITIVE_INFINITY_BYTES);
+			} else if (value == Double.NEGATIVE_INFINITY) {
+				write(NEGATIVE_INFINITY_BYTES);
+			} else if (value == (long) value && Math.abs(value) < 1.0E15) {
+				writeLong((long) value);
+			} else {
+				doubleBuilder.setLength(0);
+				doubleBuilder.append(value);
+				int doubleLength = doubleBuilder.length();
+				ensureCapacity(doubleLength);
+				for (int i = 0; i < doubleLength; i++) {
+					// the double characters are all ascii
+					bytes[length++] = (byte) doubleBuilder.charAt(i);
+				}
+			}
+		}
+
+		private void ensureCapacity(int numBytes) {
+			if (length + numBytes > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(length + numBytes, bytes.length * 2));
+			}
+		}
+	}
+}
@@ -0,0 +1,378 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+import com.j256.simplemetrics.metric.MetricValueDetails;
+import com.j256.simplemetrics.utils.MiscUtils;
+
+/**
+ * Persister which sends the metrics over UDP to a StatsD or DogStatsD agent. As many lines as fit are packed into each
+ * datagram of up to {@link #setMaxPacketSize(int)} bytes which is sent through a non-blocking {@link DatagramChannel}
+ * from a direct buffer that is reused between persists.
+ * 
+ * <p>
+ * Metrics with the {@link AggregationType#SUM} aggregation type are sent as counters since they are reset every
+ * persist. The others are sent as gauges or, if {@link #setAveragesAsDistributions(boolean)} is set, as DogStatsD
+ * distributions. With DogStatsD tags, which is the default, the component and module of the metric are sent as tags
+ * and the name by itself. Otherwise the name is in the component.module.name format.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> UDP is fire and forget. If the socket buffer is full then the datagram is dropped and counted by
+ * {@link #getDroppedPacketCount()}.
+ * </p>
+ * 
+ * @author graywatson
+ */
+public class StatsdMetricsPersister implements MetricDetailsPersister, Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String DEFAULT_HOST = "localhost";
+	private static final int DEFAULT_PORT = 8125;
+	// fits into a 1500 byte ethernet MTU after the IPv4 and UDP headers with some room for options
+	private static final int DEFAULT_MAX_PACKET_SIZE = 1432;
+	private static final byte[] LONG_MIN_VALUE_BYTES = Long.toString(Long.MIN_VALUE).getBytes(UTF8);
+
+	private String host = DEFAULT_HOST;
+	private int port = DEFAULT_PORT;
+	private int maxPacketSize = DEFAULT_MAX_PACKET_SIZE;
+	private String prefix;
+	private boolean useDogStatsdTags = true;
+	private boolean averagesAsDistributions;
+
+	private DatagramChannel channel;
+	private ByteBuffer packetBuffer;
+	private byte[] lineBytes = new byte[256];
+	private int lineLength;
+	private final byte[] digits = new byte[20];
+	// reused to format doubles which does not allocate a string
+	private final StringBuilder doubleBuilder = new StringBuilder(32);
+	// cleared when the settings that the encodings depend on are changed
+	private final Map<ControlledMetric<?, ?>, MetricBytes> metricBytesCache =
+			new WeakHashMap<ControlledMetric<?, ?>, MetricBytes>();
+
+	private final AtomicLong lineCount = new AtomicLong(0);
+	private final AtomicLong packetCount = new AtomicLong(0);
+	private final AtomicLong droppedPacketCount = new AtomicLong(0);
+
+	public StatsdMetricsPersister() {
+		// for spring
+	}
+
+	public StatsdMetricsPersister(String host, int port) throws IOException {
+		this.host = host;
+		this.port = port;
+		initialize();
+	}
+
+	/**
+	 * Should be called if the no-arg construct is being used and after the setters have been called. Opens the channel
+	 * to the agent.
+	 */
+	public synchronized void initialize() throws IOException {
+		if (channel != null) {
+			return;
+		}
+		packetBuffer = ByteBuffer.allocateDirect(maxPacketSize);
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.connect(new InetSocketAddress(host, port));
+	}
+
+	@Override
+	public synchronized void persist(Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetails,
+			long timeCollectedMillis) throws IOException {
+		if (channel == null) {
+			initialize();
+		}
+		packetBuffer.clear();
+		for (Map.Entry<ControlledMetric<?, ?>, MetricValueDetails> entry : metricValueDetails.entrySet()) {
+			ControlledMetric<?, ?> metric = entry.getKey();
+			MetricBytes metricBytes = metricBytesCache.get(metric);
+			if (metricBytes == null) {
+				metricBytes = new MetricBytes(metric);
+				metricBytesCache.put(metric, metricBytes);
+			}
+			Number value = entry.getValue().getValue();
+			if (metricBytes.gauge && value.doubleValue() < 0) {
+				// a signed gauge value adjusts the previous value in StatsD so it has to be zeroed first
+				lineLength = 0;
+				appendLine(metricBytes.nameBytes);
+				appendByte((byte) '0');
+				appendLine(metricBytes.suffixBytes);
+				addLineToPacket();
+			}
+			lineLength = 0;
+			appendLine(metricBytes.nameBytes);
+			appendNumber(value);
+			appendLine(metricBytes.suffixBytes);
+			addLineToPacket();
+		}
+		sendPacket();
+	}
+
+	/**
+	 * Close the channel to the agent.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * Host name or address of the StatsD agent.
+	 */
+	// @NotRequired("Default is " + DEFAULT_HOST)
+	public void setHost(String host) {
+		this.host = host;
+	}
+
+	/**
+	 * UDP port of the StatsD agent.
+	 */
+	// @NotRequired("Default is " + DEFAULT_PORT)
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Maximum number of bytes in each datagram. This should be set to fit in the MTU of the network to the agent so
+	 * the datagrams are not fragmented. Something like 8932 would be appropriate for a 9000 byte jumbo frame network.
+	 */
+	// @NotRequired("Default is " + DEFAULT_MAX_PACKET_SIZE)
+	public void setMaxPacketSize(int maxPacketSize) {
+		this.maxPacketSize = maxPacketSize;
+	}
+
+	/**
+	 * Prefix added to the name of each metric such as "myapp." which is sent as is.
+	 */
+	// @NotRequired("Default is no prefix")
+	public synchronized void setPrefix(String prefix) {
+		this.prefix = prefix;
+		metricBytesCache.clear();
+	}
+
+	/**
+	 * Set to false to send the metric names in the component.module.name format instead of sending the component and
+	 * module as DogStatsD tags which not all StatsD agents support.
+	 */
+	// @NotRequired("Default is true")
+	public synchronized void setUseDogStatsdTags(boolean useDogStatsdTags) {
+		this.useDogStatsdTags = useDogStatsdTags;
+		metricBytesCache.clear();
+	}
+
+	/**
+	 * Set to true to send the metrics with the {@link AggregationType#AVERAGE} aggregation type as DogStatsD
+	 * distributions instead of gauges.
+	 */
+	// @NotRequired("Default is false")
+	public synchronized void setAveragesAsDistributions(boolean averagesAsDistributions) {
+		this.averagesAsDistributions = averagesAsDistributions;
+		metricBytesCache.clear();
+	}
+
+	/**
+	 * Number of metric lines that have been sent.
+	 */
+	public long getLineCount() {
+		return lineCount.get();
+	}
+
+	/**
+	 * Number of datagrams that have been sent.
+	 */
+	public long getPacketCount() {
+		return packetCount.get();
+	}
+
+	/**
+	 * Number of datagrams that were dropped because the socket buffer was full.
+	 */
+	public long getDroppedPacketCount() {
+		return droppedPacketCount.get();
+	}
+
+	/**
+	 * Add the line to the packet, sending the packet first if the line does not fit.
+	 */
+	private void addLineToPacket() throws IOException {
+		// lines after the first are separated by a newline
+		int needed = lineLength;
+		if (packetBuffer.position() > 0) {
+			needed++;
+		}
+		if (packetBuffer.position() + needed > packetBuffer.capacity()) {
+			sendPacket();
+		}
+		if (lineLength > packetBuffer.capacity()) {
+			// the line is larger than a packet by itself so it is sent on its own
+			sendDatagram(ByteBuffer.wrap(lineBytes, 0, lineLength));
+			lineCount.incrementAndGet();
+			return;
+		}
+		if (packetBuffer.position() > 0) {
+			packetBuffer.put((byte) '\n');
+		}
+		packetBuffer.put(lineBytes, 0, lineLength);
+		lineCount.incrementAndGet();
+	}
+
+	private void sendPacket() throws IOException {
+		if (packetBuffer.position() == 0) {
+			return;
+		}
+		packetBuffer.flip();
+		sendDatagram(packetBuffer);
+		packetBuffer.clear();
+	}
+
+	private void sendDatagram(ByteBuffer buffer) throws IOException {
+		int written;
+		try {
+			// a non-blocking datagram is either sent completely or not at all
+			written = channel.write(buffer);
+		} catch (PortUnreachableException pue) {
+			// an earlier datagram was refused because the agent is not running
+			written = 0;
+		}
+		if (written == 0) {
+			droppedPacketCount.incrementAndGet();
+		} else {
+			packetCount.incrementAndGet();
+		}
+	}
+
+	private void appendLine(byte[] bytes) {
+		ensureLineCapacity(bytes.length);
+		System.arraycopy(bytes, 0, lineBytes, lineLength, bytes.length);
+		lineLength += bytes.length;
+	}
+
+	private void appendByte(byte b) {
+		ensureLineCapacity(1);
+		lineBytes[lineLength++] = b;
+	}
+
+	private void appendNumber(Number number) {
+		double value = number.doubleValue();
+		if (number instanceof Long || number instanceof Integer) {
+			appendLong(number.longValue());
+		} else if (value == (long) value && Math.abs(value) < 1.0E15) {
+			appendLong((long) value);
+		} else {
+			doubleBuilder.setLength(0);
+			doubleBuilder.append(value);
+			int length = doubleBuilder.length();
+			ensureLineCapacity(length);
+			for (int i = 0; i < length; i++) {
+				// the double characters are all ascii
+				lineBytes[lineLength++] = (byte) doubleBuilder.charAt(i);
+			}
+		}
+	}
+
+	private void appendLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			// can't be negated
+			appendLine(LONG_MIN_VALUE_BYTES);
+			return;
+		}
+		if (value < 0) {
+			appendByte((byte) '-');
+			value = -value;
+		}
+		int pos = digits.length;
+		do {
+			digits[--pos] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		ensureLineCapacity(digits.length - pos);
+		System.arraycopy(digits, pos, lineBytes, lineLength, digits.length - pos);
+		lineLength += digits.length - pos;
+	}
+
+	private void ensureLineCapacity(int numBytes) {
+		if (lineLength + numBytes > lineBytes.length) {
+			lineBytes = Arrays.copyOf(lineBytes, Math.max(lineLength + numBytes, lineBytes.length * 2));
+		}
+	}
+
+	/**
+	 * Replace the characters that have meaning in the StatsD line format.
+	 */
+	private static String sanitize(String str, boolean tag) {
+		StringBuilder sb = new StringBuilder(str.length());
+		for (int i = 0; i < str.length(); i++) {
+			char ch = str.charAt(i);
+			if (ch == ':' && tag) {
+				// colons separate the tag name from the value but are allowed in the value
+				sb.append(ch);
+			} else if (ch == ':' || ch == '|' || ch == '@' || ch == '#' || ch == ',' || ch == '\n'
+					|| Character.isWhitespace(ch)) {
+				sb.append('_');
+			} else {
+				sb.append(ch);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The encoded name and the type and tags suffix of a metric.
+	 */
+	private class MetricBytes {
+		final byte[] nameBytes;
+		final byte[] suffixBytes;
+		final boolean gauge;
+
+		public MetricBytes(ControlledMetric<?, ?> metric) {
+			StringBuilder sb = new StringBuilder();
+			if (prefix != null) {
+				sb.append(prefix);
+			}
+			if (useDogStatsdTags) {
+				sb.append(sanitize(metric.getName(), false));
+			} else {
+				sb.append(sanitize(MiscUtils.metricToString(metric), false));
+			}
+			sb.append(':');
+			this.nameBytes = sb.toString().getBytes(UTF8);
+
+			sb.setLength(0);
+			if (metric.getAggregationType() == AggregationType.SUM) {
+				sb.append("|c");
+				this.gauge = false;
+			} else if (averagesAsDistributions) {
+				sb.append("|d");
+				this.gauge = false;
+			} else {
+				sb.append("|g");
+				this.gauge = true;
+			}
+			if (useDogStatsdTags) {
+				sb.append("|#component:").append(sanitize(metric.getComponent(), true));
+				if (metric.getModule() != null) {
+					sb.append(",module:").append(sanitize(metric.getModule(), true));
+				}
+			}
+			this.suffixBytes = sb.toString().getBytes(UTF8);
+		}
+	}
+}
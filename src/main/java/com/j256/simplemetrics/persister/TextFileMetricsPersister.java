@@ -1,81 +1,135 @@
 package com.j256.simplemetrics.persister;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetricHistogram;
+import com.j256.simplemetrics.metric.HistogramValueDetails;
+import com.j256.simplemetrics.metric.MetricValueDetails;
+import com.j256.simplemetrics.metric.MetricsSnapshot;
 import com.j256.simplemetrics.utils.MiscUtils;
 
 /**
  * Publishes metrics to the log file on disk.
  * 
+ * <p>
+ * The file is written in UTF-8 through a reusable direct buffer and a {@link FileChannel}. The bytes of each metric
+ * name are cached and the values are encoded straight into the buffer so dumping the metrics does not allocate in
+ * proportion to the number of metrics, especially if this is set as a {@link MetricsSnapshotPersister}. The file is
+ * written with a temporary name and then renamed. See {@link #setFsyncPolicy(FsyncPolicy)} for making sure that the
+ * files survive a crash of the system.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> The percentiles of a {@link ControlledMetricHistogram} are only written when this is set as a
+ * {@link MetricsSnapshotPersister} because the values map only holds the average of the histogram.
+ * </p>
+ * 
  * @author graywatson
  */
-public class TextFileMetricsPersister implements MetricValuesPersister {
+public class TextFileMetricsPersister implements MetricValuesPersister, MetricsSnapshotPersister {
 
 	private static final String NEWLINE = System.getProperty("line.separator");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] NEWLINE_BYTES = NEWLINE.getBytes(UTF8);
+	private static final byte[] DESCRIPTION_PREFIX_BYTES = "# ".getBytes(UTF8);
 	/**
 	 * Default string that separates a metric from its value. This is exposed so the parser can use it.
 	 */
 	public static final String DEFAULT_SEPARATING_STRING = "=";
+	/**
+	 * Extension of the segment files in segment mode.
+	 */
+	public static final String SEGMENT_EXTENSION = ".seg";
+	/**
+	 * Extension of the index files of the segments in segment mode.
+	 */
+	public static final String SEGMENT_INDEX_EXTENSION = ".idx";
+	/**
+	 * Character at the start of the line that starts each block of metrics in a segment, followed by the time millis.
+	 */
+	public static final char SEGMENT_BLOCK_MARKER = '@';
+	private static final long DEFAULT_SEGMENT_MAX_BYTES = 64 * 1024 * 1024;
+	private static final long DEFAULT_SEGMENT_MAX_MILLIS = 60 * 60 * 1000;
+	// enough for a couple of index entries of a time and an offset
+	private static final int MAX_INDEX_TAIL_BYTES = 128;
 	private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss z");
 
 	private File outputDirectory;
 	private String logFileNamePrefix;
 	private boolean appendSysTimeMillis = true;
 	private String separatingString = DEFAULT_SEPARATING_STRING;
+	private byte[] separatingBytes = DEFAULT_SEPARATING_STRING.getBytes(UTF8);
 	private boolean showDescription = false;
+	private FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+
+	private final ChannelLineWriter lineWriter = new ChannelLineWriter();
+	// weak so the metrics that are unregistered don't stay around
+	private final Map<ControlledMetric<?, ?>, MetricBytes> metricBytesCache =
+			new WeakHashMap<ControlledMetric<?, ?>, MetricBytes>();
+
+	private boolean useSegments;
+	private long segmentMaxBytes = DEFAULT_SEGMENT_MAX_BYTES;
+	private long segmentMaxMillis = DEFAULT_SEGMENT_MAX_MILLIS;
+	// loaded from the directory the first time a segment is written, oldest first
+	private ArrayDeque<Segment> segments;
 
 	private final AtomicLong dumpLogCount = new AtomicLong(0);
 	private final AtomicLong cleanupLogCount = new AtomicLong(0);
 	private long lastDumpTimeMillis;
 
 	/**
-	 * Dump a log file with all of the metrics into a log file.
+	 * Dump a log file with all of the metrics into a log file or append them to the current segment.
 	 */
 	@Override
-	public void persist(Map<ControlledMetric<?, ?>, Number> metricValues, long timeMillis) throws IOException {
-
-		String logName = logFileNamePrefix;
-		if (appendSysTimeMillis) {
-			logName = logFileNamePrefix + timeMillis;
-		}
-		// write to a temp file
-		File outputFile = new File(outputDirectory, logName + ".t");
-		try (Writer writer = new BufferedWriter(new FileWriter(outputFile));) {
-			for (Map.Entry<ControlledMetric<?, ?>, Number> entry : metricValues.entrySet()) {
-				ControlledMetric<?, ?> metric = entry.getKey();
-				if (showDescription) {
-					writer.append("# ").append(metric.getDescription()).append(NEWLINE);
-				}
-				writer.append(MiscUtils.metricToString(metric));
-				writer.append(separatingString);
-				writer.append(entry.getValue().toString());
-				writer.append(NEWLINE);
-			}
-		} catch (IOException e) {
-			throw new IOException("Could not dump logfile to " + logName, e);
+	public synchronized void persist(Map<ControlledMetric<?, ?>, Number> metricValues, long timeMillis)
+			throws IOException {
+		if (useSegments) {
+			appendToSegment(metricValues, null, timeMillis);
+		} else {
+			writeFile(metricValues, null, timeMillis);
 		}
+	}
 
-		// rename to our permanent name
-		File destination = new File(outputDirectory, logName);
-		outputFile.renameTo(destination);
-		dumpLogCount.addAndGet(1);
-		lastDumpTimeMillis = System.currentTimeMillis();
+	/**
+	 * Dump a log file with all of the metrics in the snapshot into a log file or append them to the current segment.
+	 * This reads the primitive values out of the snapshot directly.
+	 */
+	@Override
+	public synchronized void persist(MetricsSnapshot snapshot) throws IOException {
+		if (useSegments) {
+			appendToSegment(null, snapshot, snapshot.getTimeCollectedMillis());
+		} else {
+			writeFile(null, snapshot, snapshot.getTimeCollectedMillis());
+		}
 	}
 
 	/**
-	 * Delete the old metrics files that have not been modified in a certain number of milliseconds.
+	 * Delete the old metrics files that have not been modified in a certain number of milliseconds. In segment mode,
+	 * whole segments whose last block is older are dropped from the front of the list of segments without listing the
+	 * directory. The current segment is never deleted.
 	 */
 	public void cleanMetricFilesOlderThanMillis(long millisOld) {
 		long tooOld = System.currentTimeMillis() - millisOld;
+		if (useSegments) {
+			cleanSegments(tooOld);
+			return;
+		}
 		for (File file : outputDirectory.listFiles()) {
 			// if we have one of our old logfiles
 			if (file.getName().startsWith(logFileNamePrefix) && file.lastModified() < tooOld) {
@@ -145,8 +199,9 @@ public class TextFileMetricsPersister implements MetricValuesPersister {
 	 * Set the separating string between the metric name and value. Default is "=".
 	 */
 	// @NotRequired("Default is " + DEFAULT_SEPARATING_STRING)
-	public void setSeparatingString(String separatingString) {
+	public synchronized void setSeparatingString(String separatingString) {
 		this.separatingString = separatingString;
+		this.separatingBytes = separatingString.getBytes(UTF8);
 	}
 
 	/**
@@ -164,6 +219,58 @@ public class TextFileMetricsPersister implements MetricValuesPersister {
 		this.showDescription = showDescription;
 	}
 
+	/**
+	 * Set the policy for forcing the metrics files to the storage device so they survive a crash of the system. The
+	 * default is to leave this up to the operating system.
+	 */
+	// @NotRequired("Default is FsyncPolicy.NONE")
+	public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+		this.fsyncPolicy = fsyncPolicy;
+	}
+
+	/**
+	 * Set to true to append each persist as a timestamped block to a rolling segment file instead of writing a new file
+	 * each time. Segments are named with the prefix, the time of their first block, and {@link #SEGMENT_EXTENSION}.
+	 * Each has an index file with the time and offset of each of its blocks. In this mode the
+	 * {@link #setAppendSysTimeMillis(boolean)} setting is ignored. Use {@link TextFileSegmentReader} to read the blocks
+	 * in a time range.
+	 */
+	// @NotRequired("Default is false")
+	public void setUseSegments(boolean useSegments) {
+		this.useSegments = useSegments;
+	}
+
+	public boolean isUseSegments() {
+		return useSegments;
+	}
+
+	/**
+	 * Maximum size of a segment file after which a new segment is started. A segment may grow past this by one block.
+	 */
+	// @NotRequired("Default is " + DEFAULT_SEGMENT_MAX_BYTES)
+	public void setSegmentMaxBytes(long segmentMaxBytes) {
+		this.segmentMaxBytes = segmentMaxBytes;
+	}
+
+	/**
+	 * Maximum number of milliseconds between the first block of a segment and the block that starts a new segment.
+	 */
+	// @NotRequired("Default is " + DEFAULT_SEGMENT_MAX_MILLIS)
+	public void setSegmentMaxMillis(long segmentMaxMillis) {
+		this.segmentMaxMillis = segmentMaxMillis;
+	}
+
+	/**
+	 * Number of segments that are currently on disk in segment mode.
+	 */
+	public synchronized int getSegmentCount() {
+		if (segments == null) {
+			return 0;
+		} else {
+			return segments.size();
+		}
+	}
+
 	/**
 	 * Number of times the logs have been dumped to disk.
 	 */
@@ -188,4 +295,366 @@ public class TextFileMetricsPersister implements MetricValuesPersister {
 			return ((SimpleDateFormat) DATE_FORMAT.clone()).format(new Date(lastDumpTimeMillis));
 		}
 	}
+
+	/**
+	 * Write the metrics to a new file which is renamed when it is complete.
+	 */
+	private void writeFile(Map<ControlledMetric<?, ?>, Number> metricValues, MetricsSnapshot snapshot, long timeMillis)
+			throws IOException {
+		String logName = buildLogName(timeMillis);
+		// write to a temp file
+		File outputFile = new File(outputDirectory, logName + ".t");
+		try {
+			lineWriter.open(outputFile);
+			writeMetrics(metricValues, snapshot);
+			finishFile();
+		} catch (IOException e) {
+			throw new IOException("Could not dump logfile to " + logName, e);
+		} finally {
+			lineWriter.close();
+		}
+		renameFile(outputFile, logName);
+	}
+
+	/**
+	 * Append the metrics as a block to the current segment, starting a new one if necessary, and then append the time
+	 * and offset of the block to the segment's index.
+	 */
+	private void appendToSegment(Map<ControlledMetric<?, ?>, Number> metricValues, MetricsSnapshot snapshot,
+			long timeMillis) throws IOException {
+		if (segments == null) {
+			segments = loadSegments();
+		}
+		Segment segment = segments.peekLast();
+		boolean newSegment = false;
+		if (segment == null || (timeMillis != segment.startMillis
+				&& (segment.size >= segmentMaxBytes || timeMillis - segment.startMillis >= segmentMaxMillis))) {
+			segment = new Segment(timeMillis, outputDirectory, logFileNamePrefix, 0);
+			segments.add(segment);
+			newSegment = true;
+		}
+
+		long offset = segment.size;
+		try {
+			lineWriter.open(segment.dataFile, true);
+			lineWriter.write((byte) SEGMENT_BLOCK_MARKER);
+			lineWriter.writeLong(timeMillis);
+			lineWriter.write(NEWLINE_BYTES);
+			writeMetrics(metricValues, snapshot);
+			finishFile();
+			segment.size = offset + lineWriter.getBytesWritten();
+			lineWriter.close();
+
+			lineWriter.open(segment.indexFile, true);
+			lineWriter.writeLong(timeMillis);
+			lineWriter.write((byte) ' ');
+			lineWriter.writeLong(offset);
+			lineWriter.write(NEWLINE_BYTES);
+			finishFile();
+		} catch (IOException e) {
+			// we don't know where a partial block ended so the next block starts a new segment
+			segment.size = Long.MAX_VALUE;
+			throw new IOException("Could not append metrics to segment " + segment.dataFile, e);
+		} finally {
+			lineWriter.close();
+		}
+		segment.endMillis = timeMillis;
+		if (newSegment && fsyncPolicy == FsyncPolicy.DATA_AND_DIRECTORY) {
+			syncDirectory();
+		}
+		dumpLogCount.addAndGet(1);
+		lastDumpTimeMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Find the segments that were written by an earlier run. This is the only time that the directory is listed in
+	 * segment mode. The end of each segment is the time of the last block in its index so it is in the same time-base
+	 * as the blocks.
+	 */
+	private ArrayDeque<Segment> loadSegments() {
+		List<Segment> segmentList = new ArrayList<Segment>();
+		File[] files = outputDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				long startMillis = segmentStartMillis(file.getName(), logFileNamePrefix);
+				if (startMillis >= 0) {
+					Segment segment = new Segment(startMillis, outputDirectory, logFileNamePrefix, file.length());
+					segment.endMillis = readLastIndexMillis(segment.indexFile, startMillis);
+					segmentList.add(segment);
+				}
+			}
+		}
+		Collections.sort(segmentList);
+		return new ArrayDeque<Segment>(segmentList);
+	}
+
+	private synchronized void cleanSegments(long tooOld) {
+		if (segments == null) {
+			segments = loadSegments();
+		}
+		// the current segment at the end is never deleted
+		while (segments.size() > 1 && segments.peekFirst().endMillis < tooOld) {
+			Segment segment = segments.pollFirst();
+			segment.indexFile.delete();
+			if (segment.dataFile.delete()) {
+				cleanupLogCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Return the time of the last complete entry in the index file or the default if there are none. Only the end of
+	 * the file is read.
+	 */
+	static long readLastIndexMillis(File indexFile, long defaultMillis) {
+		byte[] tail;
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(indexFile, "r");) {
+			long length = randomAccessFile.length();
+			tail = new byte[(int) Math.min(length, MAX_INDEX_TAIL_BYTES)];
+			randomAccessFile.seek(length - tail.length);
+			randomAccessFile.readFully(tail);
+		} catch (IOException ioe) {
+			return defaultMillis;
+		}
+		// a partial entry at the end from a crash has no newline so we start from the last newline
+		int end = tail.length;
+		while (end > 0 && tail[end - 1] != '\n') {
+			end--;
+		}
+		while (end > 0) {
+			int start = end - 1;
+			while (start > 0 && tail[start - 1] != '\n') {
+				start--;
+			}
+			String line = new String(tail, start, end - start, UTF8).trim();
+			int index = line.indexOf(' ');
+			if (index > 0) {
+				try {
+					return Long.parseLong(line.substring(0, index));
+				} catch (NumberFormatException nfe) {
+					// try the line before
+				}
+			}
+			end = start;
+		}
+		return defaultMillis;
+	}
+
+	/**
+	 * Return the start millis from the name of a segment file or -1 if it is not one of our segments.
+	 */
+	static long segmentStartMillis(String fileName, String logFileNamePrefix) {
+		if (!fileName.startsWith(logFileNamePrefix) || !fileName.endsWith(SEGMENT_EXTENSION)) {
+			return -1;
+		}
+		String millisString =
+				fileName.substring(logFileNamePrefix.length(), fileName.length() - SEGMENT_EXTENSION.length());
+		try {
+			return Long.parseLong(millisString);
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	private void writeMetrics(Map<ControlledMetric<?, ?>, Number> metricValues, MetricsSnapshot snapshot)
+			throws IOException {
+		if (snapshot == null) {
+			writeValues(metricValues);
+		} else {
+			writeSnapshot(snapshot);
+		}
+	}
+
+	private void writeValues(Map<ControlledMetric<?, ?>, Number> metricValues) throws IOException {
+		for (Map.Entry<ControlledMetric<?, ?>, Number> entry : metricValues.entrySet()) {
+			ControlledMetric<?, ?> metric = entry.getKey();
+			writeMetricName(metric);
+			Number value = entry.getValue();
+			if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				lineWriter.writeLong(value.longValue());
+			} else if (value instanceof Double) {
+				lineWriter.writeDouble(value.doubleValue());
+			} else {
+				// rare so we don't mind the string
+				lineWriter.write(value.toString().getBytes(UTF8));
+			}
+			lineWriter.write(NEWLINE_BYTES);
+		}
+	}
+
+	private void writeSnapshot(MetricsSnapshot snapshot) throws IOException {
+		for (int id = 0; id < snapshot.getSize(); id++) {
+			ControlledMetric<?, ?> metric = snapshot.getMetric(id);
+			if (metric == null) {
+				continue;
+			}
+			MetricBytes metricBytes = writeMetricName(metric);
+			double value = snapshot.getValue(id);
+			// same as the long conversion of the values map
+			if (value == (long) value) {
+				lineWriter.writeLong((long) value);
+			} else {
+				lineWriter.writeDouble(value);
+			}
+			lineWriter.write(NEWLINE_BYTES);
+			if (metric instanceof ControlledMetricHistogram) {
+				MetricValueDetails details = snapshot.getValueDetails(id);
+				if (details instanceof HistogramValueDetails) {
+					writePercentiles(metricBytes, (HistogramValueDetails) details);
+				}
+			}
+		}
+	}
+
+	private String buildLogName(long timeMillis) {
+		if (appendSysTimeMillis) {
+			return logFileNamePrefix + timeMillis;
+		} else {
+			return logFileNamePrefix;
+		}
+	}
+
+	/**
+	 * Write the optional description line and the name of the metric with the separator.
+	 */
+	private MetricBytes writeMetricName(ControlledMetric<?, ?> metric) throws IOException {
+		MetricBytes metricBytes = metricBytesCache.get(metric);
+		if (metricBytes == null) {
+			metricBytes = new MetricBytes(metric);
+			metricBytesCache.put(metric, metricBytes);
+		}
+		if (showDescription) {
+			lineWriter.write(DESCRIPTION_PREFIX_BYTES);
+			lineWriter.write(metricBytes.getDescriptionBytes(metric));
+			lineWriter.write(NEWLINE_BYTES);
+		}
+		lineWriter.write(metricBytes.nameBytes);
+		lineWriter.write(separatingBytes);
+		return metricBytes;
+	}
+
+	/**
+	 * Write a line for each of the percentiles of a histogram metric with the percentile appended to the metric name.
+	 */
+	private void writePercentiles(MetricBytes metricBytes, HistogramValueDetails details) throws IOException {
+		double[] percentileValues = details.getPercentileValues();
+		byte[][] percentileNameBytes = metricBytes.getPercentileNameBytes(details);
+		for (int i = 0; i < percentileValues.length; i++) {
+			lineWriter.write(metricBytes.nameBytes);
+			lineWriter.write(percentileNameBytes[i]);
+			lineWriter.write(separatingBytes);
+			lineWriter.writeDouble(percentileValues[i]);
+			lineWriter.write(NEWLINE_BYTES);
+		}
+	}
+
+	/**
+	 * Flush the file and force it to disk if our policy says so.
+	 */
+	private void finishFile() throws IOException {
+		if (fsyncPolicy == FsyncPolicy.NONE) {
+			lineWriter.flush();
+		} else {
+			lineWriter.sync();
+		}
+	}
+
+	/**
+	 * Rename the temporary file to our permanent name.
+	 */
+	private void renameFile(File outputFile, String logName) {
+		File destination = new File(outputDirectory, logName);
+		outputFile.renameTo(destination);
+		if (fsyncPolicy == FsyncPolicy.DATA_AND_DIRECTORY) {
+			syncDirectory();
+		}
+		dumpLogCount.addAndGet(1);
+		lastDumpTimeMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Force the directory to disk so the rename of the file survives a crash.
+	 */
+	private void syncDirectory() {
+		try (FileChannel channel = FileChannel.open(outputDirectory.toPath(), StandardOpenOption.READ);) {
+			channel.force(true);
+		} catch (IOException e) {
+			// some platforms, such as windows, can't open or sync directories
+		}
+	}
+
+	/**
+	 * Policy for forcing the metrics files to the storage device.
+	 */
+	public enum FsyncPolicy {
+		/** leave it up to the operating system which is the fastest */
+		NONE,
+		/** force the contents of each file to disk before it is renamed */
+		DATA,
+		/** force the contents of each file and then the directory after the rename */
+		DATA_AND_DIRECTORY,
+		// end
+		;
+	}
+
+	/**
+	 * Segment file and its index in segment mode.
+	 */
+	private static class Segment implements Comparable<Segment> {
+		final long startMillis;
+		final File dataFile;
+		final File indexFile;
+		long size;
+		long endMillis;
+
+		public Segment(long startMillis, File outputDirectory, String logFileNamePrefix, long size) {
+			this.startMillis = startMillis;
+			this.dataFile = new File(outputDirectory, logFileNamePrefix + startMillis + SEGMENT_EXTENSION);
+			this.indexFile = new File(outputDirectory, logFileNamePrefix + startMillis + SEGMENT_INDEX_EXTENSION);
+			this.size = size;
+			this.endMillis = startMillis;
+		}
+
+		@Override
+		public int compareTo(Segment other) {
+			return Long.compare(startMillis, other.startMillis);
+		}
+	}
+
+	/**
+	 * Encoded bytes of a metric that are cached between dumps.
+	 */
+	private static class MetricBytes {
+		final byte[] nameBytes;
+		private byte[] descriptionBytes;
+		private double[] percentiles;
+		private byte[][] percentileNameBytes;
+
+		public MetricBytes(ControlledMetric<?, ?> metric) {
+			this.nameBytes = MiscUtils.metricToString(metric).getBytes(UTF8);
+		}
+
+		public byte[] getDescriptionBytes(ControlledMetric<?, ?> metric) {
+			if (descriptionBytes == null) {
+				descriptionBytes = String.valueOf(metric.getDescription()).getBytes(UTF8);
+			}
+			return descriptionBytes;
+		}
+
+		/**
+		 * Return the ".pNN" suffixes of the percentiles of the histogram.
+		 */
+		public byte[][] getPercentileNameBytes(HistogramValueDetails details) {
+			double[] detailsPercentiles = details.getPercentiles();
+			if (!Arrays.equals(percentiles, detailsPercentiles)) {
+				byte[][] nameBytes = new byte[detailsPercentiles.length][];
+				for (int i = 0; i < detailsPercentiles.length; i++) {
+					nameBytes[i] = ("." + HistogramValueDetails.percentileName(detailsPercentiles[i])).getBytes(UTF8);
+				}
+				percentileNameBytes = nameBytes;
+				percentiles = detailsPercentiles;
+			}
+			return percentileNameBytes;
+		}
+	}
 }
@@ -0,0 +1,240 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the blocks of metrics in a time range from the segments written by the {@link TextFileMetricsPersister} in
+ * segment mode. The segments are picked by the start time in their names and the index of each segment is used to
+ * seek straight to the blocks in the range so the segments outside of the range are never opened.
+ * 
+ * <pre>
+ * TextFileSegmentReader reader = new TextFileSegmentReader(directory, &quot;metrics.&quot;);
+ * for (MetricsBlock block : reader.readBlocks(fromMillis, toMillis)) {
+ * 	String value = block.getValues().get(&quot;comp.mod.label&quot;);
+ * 	...
+ * }
+ * </pre>
+ * 
+ * @author graywatson
+ */
+public class TextFileSegmentReader {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File directory;
+	private final String logFileNamePrefix;
+	private String separatingString = TextFileMetricsPersister.DEFAULT_SEPARATING_STRING;
+
+	public TextFileSegmentReader(File directory, String logFileNamePrefix) {
+		this.directory = directory;
+		this.logFileNamePrefix = logFileNamePrefix;
+	}
+
+	/**
+	 * Return the segment files, oldest first, which may have blocks from fromMillis to toMillis inclusive. A segment
+	 * holds the blocks from its start time up to the start time of the next segment.
+	 */
+	public List<File> findSegments(long fromMillis, long toMillis) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return Collections.emptyList();
+		}
+		List<SegmentFile> segmentFiles = new ArrayList<SegmentFile>();
+		for (File file : files) {
+			long startMillis = TextFileMetricsPersister.segmentStartMillis(file.getName(), logFileNamePrefix);
+			if (startMillis >= 0) {
+				segmentFiles.add(new SegmentFile(startMillis, file));
+			}
+		}
+		Collections.sort(segmentFiles);
+		List<File> results = new ArrayList<File>();
+		for (int i = 0; i < segmentFiles.size(); i++) {
+			SegmentFile segmentFile = segmentFiles.get(i);
+			if (segmentFile.startMillis > toMillis) {
+				break;
+			}
+			if (i + 1 < segmentFiles.size() && segmentFiles.get(i + 1).startMillis <= fromMillis) {
+				// the next segment starts before our range so this one is too old
+				continue;
+			}
+			results.add(segmentFile.file);
+		}
+		return results;
+	}
+
+	/**
+	 * Read the blocks of metrics from fromMillis to toMillis inclusive, oldest first.
+	 */
+	public List<MetricsBlock> readBlocks(long fromMillis, long toMillis) throws IOException {
+		List<MetricsBlock> blocks = new ArrayList<MetricsBlock>();
+		for (File segmentFile : findSegments(fromMillis, toMillis)) {
+			readSegment(segmentFile, fromMillis, toMillis, blocks);
+		}
+		return blocks;
+	}
+
+	/**
+	 * Set the string that separates a metric from its value if it was changed on the persister.
+	 */
+	// @NotRequired("Default is " + TextFileMetricsPersister.DEFAULT_SEPARATING_STRING)
+	public void setSeparatingString(String separatingString) {
+		this.separatingString = separatingString;
+	}
+
+	private void readSegment(File segmentFile, long fromMillis, long toMillis, List<MetricsBlock> blocks)
+			throws IOException {
+		String segmentName = segmentFile.getName();
+		File indexFile = new File(segmentFile.getParentFile(),
+				segmentName.substring(0, segmentName.length() - TextFileMetricsPersister.SEGMENT_EXTENSION.length())
+						+ TextFileMetricsPersister.SEGMENT_INDEX_EXTENSION);
+		if (!indexFile.exists()) {
+			return;
+		}
+		List<long[]> entries = readIndex(indexFile);
+		try (FileChannel channel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ);) {
+			long segmentSize = channel.size();
+			for (int i = 0; i < entries.size(); i++) {
+				long timeMillis = entries.get(i)[0];
+				if (timeMillis < fromMillis || timeMillis > toMillis) {
+					continue;
+				}
+				long offset = entries.get(i)[1];
+				long endOffset;
+				if (i + 1 < entries.size()) {
+					endOffset = entries.get(i + 1)[1];
+				} else {
+					endOffset = segmentSize;
+				}
+				if (offset >= endOffset || endOffset > segmentSize) {
+					// block was not completely written
+					continue;
+				}
+				ByteBuffer buffer = ByteBuffer.allocate((int) (endOffset - offset));
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, offset + buffer.position()) < 0) {
+						break;
+					}
+				}
+				blocks.add(new MetricsBlock(timeMillis, parseBlock(new String(buffer.array(), 0,
+						buffer.position(), UTF8))));
+			}
+		}
+	}
+
+	/**
+	 * Read the time and offset entries from the index.
+	 */
+	private List<long[]> readIndex(File indexFile) throws IOException {
+		List<long[]> entries = new ArrayList<long[]>();
+		try (BufferedReader reader =
+				new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF8));) {
+			while (true) {
+				String line = reader.readLine();
+				if (line == null) {
+					break;
+				}
+				int index = line.indexOf(' ');
+				if (index < 0) {
+					// partially written entry
+					continue;
+				}
+				try {
+					entries.add(new long[] { Long.parseLong(line.substring(0, index)),
+							Long.parseLong(line.substring(index + 1)) });
+				} catch (NumberFormatException nfe) {
+					// partially written entry
+				}
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Parse the metrics of the block. The block ends at the next marker line because the data of a block whose index
+	 * entry was never written, from a failed persist or a crash, can follow it.
+	 */
+	private Map<String, String> parseBlock(String block) throws IOException {
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		BufferedReader reader = new BufferedReader(new StringReader(block));
+		boolean seenMarker = false;
+		while (true) {
+			String line = reader.readLine();
+			if (line == null) {
+				break;
+			}
+			if (!line.isEmpty() && line.charAt(0) == TextFileMetricsPersister.SEGMENT_BLOCK_MARKER) {
+				if (seenMarker) {
+					break;
+				}
+				seenMarker = true;
+				continue;
+			}
+			if (line.isEmpty() || line.startsWith("# ")) {
+				continue;
+			}
+			int index = line.indexOf(separatingString);
+			if (index > 0) {
+				values.put(line.substring(0, index), line.substring(index + separatingString.length()));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Metrics from one persist that were read from a segment.
+	 */
+	public static class MetricsBlock {
+
+		private final long timeMillis;
+		private final Map<String, String> values;
+
+		public MetricsBlock(long timeMillis, Map<String, String> values) {
+			this.timeMillis = timeMillis;
+			this.values = values;
+		}
+
+		/**
+		 * Time in millis that the metrics were persisted.
+		 */
+		public long getTimeMillis() {
+			return timeMillis;
+		}
+
+		/**
+		 * Map of the metric name, including the percentile suffixes of histograms, to the value string in the order
+		 * that they were written.
+		 */
+		public Map<String, String> getValues() {
+			return values;
+		}
+	}
+
+	private static class SegmentFile implements Comparable<SegmentFile> {
+		final long startMillis;
+		final File file;
+
+		public SegmentFile(long startMillis, File file) {
+			this.startMillis = startMillis;
+			this.file = file;
+		}
+
+		@Override
+		public int compareTo(SegmentFile other) {
+			return Long.compare(startMillis, other.startMillis);
+		}
+	}
+}
@@ -1,8 +1,6 @@
 package com.j256.simplemetrics.utils;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -24,6 +22,14 @@ import com.j256.simplemetrics.metric.ControlledMetricValue;
  * {@link FileMetricOperation#MULTIPLY} adjustment-operation and an adjustment-value of 512.
  * </p>
  * 
+ * <p>
+ * Files under /proc and /sys are kept open and re-read from the start on each update while other files are re-opened
+ * each time in case they have been replaced. The line and column are found by scanning the bytes and the number is
+ * parsed without creating strings as long as the line-split is a single character, whitespace, or one of those followed
+ * by a '+'. Other line-splits and the line-pattern fall back to the regular-expressions. Updates are synchronized
+ * because the file is read into a buffer that is reused.
+ * </p>
+ * 
  * @author graywatson
  */
 public class FileMetric {
@@ -40,14 +46,20 @@ public class FileMetric {
 	private FileMetricKind kind;
 	private int column = -1;
 	private Pattern splitPattern = Pattern.compile(" ");
+	private int splitByte = ' ';
+	private boolean splitWhitespace;
+	private boolean splitRepeats;
 	private Pattern linePattern;
 	private String prefix;
+	private byte[] prefixBytes;
 	private double adjustmentValueDouble;
 	private long adjustmentValueLong;
 	private FileMetricOperation adjustmentOperation;
 	private int lineNumber;
 	private boolean decimalNumber;
 	private Number lastValue;
+	private Boolean keepFileOpen;
+	private FileMetricReader reader;
 
 	public FileMetric() {
 		// for spring
@@ -63,8 +75,8 @@ public class FileMetric {
 		this.metricFile = metricFile;
 		this.kind = kind;
 		this.column = column;
-		this.splitPattern = Pattern.compile(lineSplit);
-		this.prefix = prefix;
+		setLineSplit(lineSplit);
+		setPrefix(prefix);
 		initialize();
 	}
 
@@ -123,7 +135,7 @@ public class FileMetric {
 	/**
 	 * Update the value in the metric.
 	 */
-	public void updateValue() throws IOException {
+	public synchronized void updateValue() throws IOException {
 		if (kind == FileMetricKind.DIR) {
 			long longValue = metricFile.list().length;
 			if (adjustmentOperation == null) {
@@ -133,7 +145,13 @@ public class FileMetric {
 			}
 			return;
 		}
-		Number value = extractNumberFromFile();
+		setExtractedValue(extractNumberFromFile());
+	}
+
+	/**
+	 * Adjust the value extracted from the file and set it in the metric.
+	 */
+	void setExtractedValue(Number value) {
 		if (adjustmentOperation != null) {
 			value = adjustValue(value);
 		}
@@ -257,6 +275,7 @@ public class FileMetric {
 	// @NotRequired("Can use this or a pattern matcher")
 	public void setLineSplit(String lineSplit) {
 		this.splitPattern = Pattern.compile(lineSplit);
+		classifyLineSplit(lineSplit);
 	}
 
 	/**
@@ -272,6 +291,11 @@ public class FileMetric {
 	 */
 	public void setPrefix(String prefix) {
 		this.prefix = prefix;
+		if (prefix == null) {
+			this.prefixBytes = null;
+		} else {
+			this.prefixBytes = prefix.getBytes(FileMetricReader.FILE_CHARSET);
+		}
 	}
 
 	/**
@@ -327,88 +351,256 @@ public class FileMetric {
 		this.decimalNumber = decimalNumber;
 	}
 
+	/**
+	 * Set to true to keep the file open between updates or false to re-open it on each update. Default is to keep the
+	 * files under /proc and /sys open, since they are rewritten by the kernel, and to re-open other files. If a file
+	 * is replaced instead of being rewritten, by renaming a new file over it for example, then it should not be kept
+	 * open otherwise the old contents will be read.
+	 */
+	// @NotRequired("Default is true for files under /proc and /sys")
+	public void setKeepFileOpen(boolean keepFileOpen) {
+		this.keepFileOpen = keepFileOpen;
+	}
+
+	/**
+	 * Return the file or directory that the metric is read from.
+	 */
+	public File getMetricFile() {
+		return metricFile;
+	}
+
+	/**
+	 * Return true if the metric is the number of entries in a directory instead of a value read from a file.
+	 */
+	public boolean isDirMetric() {
+		return (kind == FileMetricKind.DIR);
+	}
+
+	/**
+	 * Return true if the file is kept open between updates. See {@link #setKeepFileOpen(boolean)}.
+	 */
+	public boolean isKeepFileOpen() {
+		if (keepFileOpen == null) {
+			return FileMetricReader.isKernelFile(metricFile);
+		} else {
+			return keepFileOpen;
+		}
+	}
+
+	/**
+	 * Close the file if it is being kept open between updates. It will be re-opened by the next update.
+	 */
+	public synchronized void close() {
+		if (reader != null) {
+			reader.close();
+		}
+	}
+
 	@Override
 	public String toString() {
 		return MiscUtils.metricToString(metric);
 	}
 
 	private Number extractNumberFromFile() throws IOException {
-		String line;
-		Matcher matcher = null;
-		try (BufferedReader reader = new BufferedReader(new FileReader(metricFile));) {
-			int lineCount = 0;
-			while (true) {
-				line = reader.readLine();
-				if (line == null) {
-					break;
-				}
-				lineCount++;
-				// check our line number
-				if (lineNumber > 0) {
-					if (lineCount == lineNumber) {
-						break;
-					} else {
-						continue;
-					}
-				}
-				if (prefix != null) {
-					if (!line.startsWith(prefix)) {
-						continue;
-					}
-				}
-				if (linePattern == null) {
-					// prefix is null or this line starts with it
-					break;
-				}
-				// try our line pattern
-				matcher = linePattern.matcher(line);
-				if (matcher.matches()) {
-					break;
-				}
-				matcher = null;
-			}
+		if (reader == null) {
+			reader = new FileMetricReader(metricFile, isKeepFileOpen());
+		}
+		int length;
+		try {
+			length = reader.read();
 		} catch (IOException e) {
 			throw new IOException("Problems reading metric " + metricName + " from file " + metricFile, e);
 		}
-		if (line == null) {
-			if (prefix == null) {
-				throw new IOException("No line read for metric " + metricName + " from file " + metricFile);
-			} else {
-				throw new IOException(
-						"Prefix " + prefix + " not found for metric " + metricName + " from file " + metricFile);
+		return extractNumber(reader.getBytes(), length);
+	}
+
+	/**
+	 * Find our line and column in the contents of the file and extract the number.
+	 */
+	private Number extractNumber(byte[] bytes, int length) throws IOException {
+		int lineCount = 0;
+		int pos = 0;
+		while (pos < length) {
+			int lineEnd = FileMetricReader.findLineEnd(bytes, pos, length);
+			lineCount++;
+			Number value = extractNumberFromLine(bytes, pos, lineEnd, lineCount);
+			if (value != null) {
+				return value;
 			}
+			pos = FileMetricReader.findNextLine(bytes, lineEnd, length);
 		}
+		throw lineNotFoundException();
+	}
 
-		String value;
-		if (matcher == null) {
-			String[] columns = splitPattern.split(line);
-			if (column >= columns.length) {
-				throw new IOException("Column " + column + " more than split size " + columns.length + " in metrics "
-						+ metricName + " in file " + metricFile);
+	/**
+	 * Return the exception thrown when none of the lines in the file matched.
+	 */
+	IOException lineNotFoundException() {
+		if (prefix == null) {
+			return new IOException("No line read for metric " + metricName + " from file " + metricFile);
+		} else {
+			return new IOException(
+					"Prefix " + prefix + " not found for metric " + metricName + " from file " + metricFile);
+		}
+	}
+
+	/**
+	 * Extract our number from the line if it is the one that we are looking for otherwise return null. This allows a
+	 * number of metrics to be extracted from the same file in one pass.
+	 * 
+	 * @throws IOException
+	 *             If this is our line but the column is missing or the number is invalid.
+	 */
+	Number extractNumberFromLine(byte[] bytes, int lineStart, int lineEnd, int lineCount) throws IOException {
+		Matcher matcher = null;
+		if (lineNumber > 0) {
+			// check our line number
+			if (lineCount != lineNumber) {
+				return null;
 			}
-			value = columns[column];
 		} else {
+			if (prefixBytes != null && !startsWith(bytes, lineStart, lineEnd, prefixBytes)) {
+				return null;
+			}
+			if (linePattern != null) {
+				// try our line pattern
+				matcher = linePattern.matcher(lineToString(bytes, lineStart, lineEnd));
+				if (!matcher.matches()) {
+					return null;
+				}
+			}
+		}
+
+		if (matcher != null) {
 			if (column > matcher.groupCount()) {
 				throw new IOException("Column " + column + " more than line pattern column-count "
 						+ matcher.groupCount() + " in metrics " + metricName + " in file " + metricFile);
 			}
-			value = matcher.group(column);
+			String value = matcher.group(column);
 			if (value == null) {
 				// may not happen but let's be careful out there
 				throw new IOException(
 						"Column " + column + " did not match line in metrics " + metricName + " in file " + metricFile);
 			}
+			byte[] valueBytes = value.getBytes(FileMetricReader.FILE_CHARSET);
+			return parseNumber(valueBytes, 0, valueBytes.length);
 		}
+		if (splitByte < 0 && !splitWhitespace) {
+			// complicated line-split so we have to use the regex
+			String[] columns = splitPattern.split(lineToString(bytes, lineStart, lineEnd));
+			if (column >= columns.length) {
+				throw new IOException("Column " + column + " more than split size " + columns.length + " in metrics "
+						+ metricName + " in file " + metricFile);
+			}
+			byte[] valueBytes = columns[column].getBytes(FileMetricReader.FILE_CHARSET);
+			return parseNumber(valueBytes, 0, valueBytes.length);
+		}
+
+		/*
+		 * Split the line the same way as Pattern.split(...) which includes a leading empty column if the line starts
+		 * with the split but drops any trailing empty columns.
+		 */
+		int columnCount = 0;
+		int nonEmptyCount = 0;
+		boolean splitSeen = false;
+		int columnStart = lineStart;
+		int valueStart = -1;
+		int valueEnd = -1;
+		for (int i = lineStart; i <= lineEnd; i++) {
+			if (i < lineEnd && !isSplitByte(bytes[i])) {
+				continue;
+			}
+			if (columnCount == column) {
+				valueStart = columnStart;
+				valueEnd = i;
+			}
+			columnCount++;
+			if (i > columnStart) {
+				nonEmptyCount = columnCount;
+			}
+			if (i < lineEnd) {
+				splitSeen = true;
+				if (splitRepeats) {
+					while (i + 1 < lineEnd && isSplitByte(bytes[i + 1])) {
+						i++;
+					}
+				}
+				columnStart = i + 1;
+			}
+		}
+		int numColumns = (splitSeen ? nonEmptyCount : 1);
+		if (column >= numColumns) {
+			throw new IOException("Column " + column + " more than split size " + numColumns + " in metrics "
+					+ metricName + " in file " + metricFile);
+		}
+		return parseNumber(bytes, valueStart, valueEnd);
+	}
+
+	private Number parseNumber(byte[] bytes, int start, int end) throws IOException {
 		try {
 			if (decimalNumber) {
-				return Long.parseLong(value);
+				return FileMetricReader.parseLong(bytes, start, end);
 			} else {
-				return Double.parseDouble(value);
+				return FileMetricReader.parseDouble(bytes, start, end);
 			}
 		} catch (NumberFormatException e) {
-			throw new IOException("Invalid number '" + value + "' in metrics " + metricName + " in file " + metricFile
-					+ " column " + column);
+			throw new IOException("Invalid number '" + lineToString(bytes, start, end) + "' in metrics " + metricName
+					+ " in file " + metricFile + " column " + column);
+		}
+	}
+
+	private boolean isSplitByte(byte b) {
+		if (splitWhitespace) {
+			// same as the \s regex character class
+			return (b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r');
+		} else {
+			return (b == splitByte);
+		}
+	}
+
+	/**
+	 * See if the line-split regex is a simple one that we can handle without a regex: a single character or whitespace
+	 * optionally followed by a '+'.
+	 */
+	private void classifyLineSplit(String lineSplit) {
+		splitByte = -1;
+		splitWhitespace = false;
+		splitRepeats = false;
+		String single = lineSplit;
+		if (single.length() > 1 && single.endsWith("+") && !single.endsWith("\\+")) {
+			single = single.substring(0, single.length() - 1);
+			splitRepeats = true;
 		}
+		if (single.equals("\\s")) {
+			splitWhitespace = true;
+		} else if (single.equals("\\t")) {
+			splitByte = '\t';
+		} else if (single.length() == 1 && single.charAt(0) < 0x80
+				&& "\\^$.|?*+()[]{}".indexOf(single.charAt(0)) < 0) {
+			splitByte = single.charAt(0);
+		} else if (single.length() == 2 && single.charAt(0) == '\\' && single.charAt(1) < 0x80
+				&& !Character.isLetterOrDigit(single.charAt(1))) {
+			// escaped punctuation
+			splitByte = single.charAt(1);
+		} else {
+			splitRepeats = false;
+		}
+	}
+
+	private static boolean startsWith(byte[] bytes, int start, int end, byte[] prefixBytes) {
+		if (end - start < prefixBytes.length) {
+			return false;
+		}
+		for (int i = 0; i < prefixBytes.length; i++) {
+			if (bytes[start + i] != prefixBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String lineToString(byte[] bytes, int start, int end) {
+		return new String(bytes, start, end - start, FileMetricReader.FILE_CHARSET);
 	}
 
 	private Number adjustValue(Number value) {
@@ -0,0 +1,238 @@
+package com.j256.simplemetrics.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the contents of a metric file into a reusable buffer. The file channel can be kept open between reads and the
+ * file is re-read from the start with positional reads so a /proc file can be polled without opening it, allocating
+ * readers, or creating strings each time. A kept-open channel will not see a file that has been replaced by a rename
+ * so that should only be used for files which are rewritten in place. This class is not thread-safe. The number
+ * parsing methods work on the bytes directly and only fall back to the {@link Long} and {@link Double} parsers with a
+ * string for the unusual formats.
+ * 
+ * @author graywatson
+ */
+class FileMetricReader implements Closeable {
+
+	private static final int DEFAULT_BUFFER_SIZE = 4096;
+	/** biggest mantissa digit-count and power of 10 that can be combined without any rounding errors */
+	private static final int MAX_EXACT_DIGITS = 15;
+	private static final double[] EXACT_POWERS_OF_TEN = new double[] { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+			1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	private static final int MAX_EXACT_LONG_DIGITS = 18;
+	/** same as the FileReader that we used to use */
+	static final Charset FILE_CHARSET = Charset.defaultCharset();
+
+	private final File file;
+	private final boolean keepOpen;
+	private FileChannel channel;
+	private byte[] bytes;
+	private ByteBuffer buffer;
+
+	public FileMetricReader(File file, boolean keepOpen) {
+		this.file = file;
+		this.keepOpen = keepOpen;
+		this.bytes = new byte[DEFAULT_BUFFER_SIZE];
+		this.buffer = ByteBuffer.wrap(bytes);
+	}
+
+	/**
+	 * Read the whole file into the buffer returned by {@link #getBytes()} and return the number of bytes read. The
+	 * buffer is grown if the file doesn't fit.
+	 */
+	public int read() throws IOException {
+		if (channel == null) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+		int length = 0;
+		try {
+			while (true) {
+				if (length == bytes.length) {
+					bytes = Arrays.copyOf(bytes, bytes.length * 2);
+					buffer = ByteBuffer.wrap(bytes);
+				}
+				buffer.limit(bytes.length);
+				buffer.position(length);
+				// /proc files report a size of 0 so we have to read until the end
+				int numRead = channel.read(buffer, length);
+				if (numRead < 0) {
+					break;
+				}
+				length += numRead;
+			}
+		} catch (IOException e) {
+			// we'll re-open the file next time in case it was replaced
+			close();
+			throw e;
+		}
+		if (!keepOpen) {
+			close();
+		}
+		return length;
+	}
+
+	/**
+	 * Return true if the file is in the /proc or /sys file-systems which the kernel rewrites in place so they can be
+	 * kept open between reads.
+	 */
+	public static boolean isKernelFile(File file) {
+		if (file == null) {
+			return false;
+		}
+		String path = file.getAbsolutePath();
+		return (path.startsWith("/proc/") || path.startsWith("/sys/"));
+	}
+
+	/**
+	 * Return the buffer that the file was read into.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// ignored
+			}
+			channel = null;
+		}
+	}
+
+	/**
+	 * Return the index of the '\n' or '\r' at the end of the line that starts at the position or the length if it is
+	 * the last line.
+	 */
+	public static int findLineEnd(byte[] bytes, int pos, int length) {
+		while (pos < length && bytes[pos] != '\n' && bytes[pos] != '\r') {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Return the start of the line after the line that ends at lineEnd. This uses the same line terminators as
+	 * {@link java.io.BufferedReader#readLine()}.
+	 */
+	public static int findNextLine(byte[] bytes, int lineEnd, int length) {
+		if (lineEnd + 1 < length && bytes[lineEnd] == '\r' && bytes[lineEnd + 1] == '\n') {
+			return lineEnd + 2;
+		} else {
+			return lineEnd + 1;
+		}
+	}
+
+	/**
+	 * Parse a long value from the bytes with the same results as {@link Long#parseLong(String)}.
+	 */
+	public static long parseLong(byte[] bytes, int start, int end) throws NumberFormatException {
+		int pos = start;
+		boolean negative = false;
+		if (pos < end && (bytes[pos] == '-' || bytes[pos] == '+')) {
+			negative = (bytes[pos] == '-');
+			pos++;
+		}
+		int numDigits = end - pos;
+		if (numDigits == 0 || numDigits > MAX_EXACT_LONG_DIGITS) {
+			// let the string parser throw or handle the overflow checks
+			return Long.parseLong(new String(bytes, start, end - start, FILE_CHARSET));
+		}
+		long value = 0;
+		for (; pos < end; pos++) {
+			int digit = bytes[pos] - '0';
+			if (digit < 0 || digit > 9) {
+				return Long.parseLong(new String(bytes, start, end - start, FILE_CHARSET));
+			}
+			value = value * 10 + digit;
+		}
+		return (negative ? -value : value);
+	}
+
+	/**
+	 * Parse a double value from the bytes with the same results as {@link Double#parseDouble(String)}. Simple decimal
+	 * numbers, which can be converted exactly, are handled here and everything else is passed to the string parser.
+	 */
+	public static double parseDouble(byte[] bytes, int start, int end) throws NumberFormatException {
+		int pos = start;
+		boolean negative = false;
+		if (pos < end && (bytes[pos] == '-' || bytes[pos] == '+')) {
+			negative = (bytes[pos] == '-');
+			pos++;
+		}
+		long mantissa = 0;
+		int numDigits = 0;
+		int fractionDigits = 0;
+		boolean seenDot = false;
+		for (; pos < end; pos++) {
+			byte b = bytes[pos];
+			if (b >= '0' && b <= '9') {
+				mantissa = mantissa * 10 + (b - '0');
+				if (++numDigits > MAX_EXACT_DIGITS) {
+					return parseDoubleString(bytes, start, end);
+				}
+				if (seenDot) {
+					fractionDigits++;
+				}
+			} else if (b == '.' && !seenDot) {
+				seenDot = true;
+			} else {
+				break;
+			}
+		}
+		if (numDigits == 0) {
+			return parseDoubleString(bytes, start, end);
+		}
+		int exponent = 0;
+		if (pos < end && (bytes[pos] == 'e' || bytes[pos] == 'E')) {
+			pos++;
+			boolean negativeExponent = false;
+			if (pos < end && (bytes[pos] == '-' || bytes[pos] == '+')) {
+				negativeExponent = (bytes[pos] == '-');
+				pos++;
+			}
+			int exponentStart = pos;
+			for (; pos < end && bytes[pos] >= '0' && bytes[pos] <= '9'; pos++) {
+				if (pos - exponentStart >= 3) {
+					return parseDoubleString(bytes, start, end);
+				}
+				exponent = exponent * 10 + (bytes[pos] - '0');
+			}
+			if (pos == exponentStart) {
+				return parseDoubleString(bytes, start, end);
+			}
+			if (negativeExponent) {
+				exponent = -exponent;
+			}
+		}
+		if (pos != end) {
+			// trailing whitespace, type suffixes, hex, etc.
+			return parseDoubleString(bytes, start, end);
+		}
+		exponent -= fractionDigits;
+		double value;
+		if (exponent == 0) {
+			value = mantissa;
+		} else if (exponent > 0 && exponent < EXACT_POWERS_OF_TEN.length) {
+			value = mantissa * EXACT_POWERS_OF_TEN[exponent];
+		} else if (exponent < 0 && -exponent < EXACT_POWERS_OF_TEN.length) {
+			value = mantissa / EXACT_POWERS_OF_TEN[-exponent];
+		} else {
+			return parseDoubleString(bytes, start, end);
+		}
+		return (negative ? -value : value);
+	}
+
+	private static double parseDoubleString(byte[] bytes, int start, int end) throws NumberFormatException {
+		return Double.parseDouble(new String(bytes, start, end - start, FILE_CHARSET));
+	}
+}
@@ -1,8 +1,12 @@
 package com.j256.simplemetrics.utils;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.j256.simplemetrics.manager.MetricsManager;
@@ -14,6 +18,12 @@ import com.j256.simplemetrics.manager.MetricsUpdater;
  * file-descriptors being used by the JVM.
  * 
  * <p>
+ * The file metrics are grouped by their file so each file is read once per update and all of the metrics from it are
+ * extracted in one pass through its lines. The number of reads, failures, and the read latency are tracked per file.
+ * See {@link #getFileGroups()}.
+ * </p>
+ * 
+ * <p>
  * <b>NOTE:</b> If you are using the no-arg constructor (like with Spring) you will need to make sure that
  * {@link #initialize()} is called.
  * </p>
@@ -24,8 +34,7 @@ public class FileMetricsPublisher implements MetricsUpdater {
 
 	private MetricsManager metricsManager;
 	private List<FileMetric> fileMetrics;
-
-	private final AtomicLong failedUpdateCount = new AtomicLong(0);
+	private volatile FileGroup[] fileGroups = new FileGroup[0];
 
 	public FileMetricsPublisher() {
 		// for spring
@@ -48,6 +57,7 @@ public class FileMetricsPublisher implements MetricsUpdater {
 		for (FileMetric metric : fileMetrics) {
 			metricsManager.registerMetric(metric.getMetric());
 		}
+		this.fileGroups = groupByFile(fileMetrics);
 		this.metricsManager.registerUpdater(this);
 	}
 
@@ -73,22 +83,79 @@ public class FileMetricsPublisher implements MetricsUpdater {
 		}
 	}
 
+	/**
+	 * Unregister our updater from the manager and close the files that are being kept open.
+	 */
+	public void destroy() {
+		if (metricsManager != null) {
+			metricsManager.unregisterUpdater(this);
+		}
+		for (FileGroup fileGroup : fileGroups) {
+			fileGroup.close();
+		}
+	}
+
 	@Override
 	public void updateMetrics() {
-		for (FileMetric fileMetric : fileMetrics) {
-			try {
-				fileMetric.updateValue();
-			} catch (IOException e) {
-				failedUpdateCount.incrementAndGet();
-			}
+		for (FileGroup fileGroup : fileGroups) {
+			fileGroup.update();
 		}
 	}
 
 	/**
-	 * Number of times we were unable to update a metric because of some i/o or parse problem.
+	 * Number of times we were unable to update a metric because of some i/o or parse problem. This is the total of the
+	 * read and extract failures of all of the files. See {@link #getFileGroups()} for the counts per file.
 	 */
 	public long getFailedUpdateCount() {
-		return failedUpdateCount.get();
+		long total = 0;
+		for (FileGroup fileGroup : fileGroups) {
+			total += fileGroup.getReadFailedCount() + fileGroup.getExtractFailedCount();
+		}
+		return total;
+	}
+
+	/**
+	 * Return the groups of file metrics with the same file. Each group has the read and failure counts of the file.
+	 */
+	public FileGroup[] getFileGroups() {
+		return fileGroups;
+	}
+
+	/**
+	 * Get the read statistics of each of the files.
+	 */
+	public String[] getFileStats() {
+		FileGroup[] groups = fileGroups;
+		String[] results = new String[groups.length];
+		for (int i = 0; i < groups.length; i++) {
+			results[i] = groups[i].toString();
+		}
+		return results;
+	}
+
+	/**
+	 * Group the file metrics by their file so each file is only read once.
+	 */
+	static FileGroup[] groupByFile(List<FileMetric> fileMetrics) {
+		Map<File, List<FileMetric>> fileMetricMap = new LinkedHashMap<File, List<FileMetric>>();
+		for (FileMetric metric : fileMetrics) {
+			if (!metric.isInitialized()) {
+				// the file doesn't exist on this system
+				continue;
+			}
+			File file = metric.getMetricFile().getAbsoluteFile();
+			List<FileMetric> metrics = fileMetricMap.get(file);
+			if (metrics == null) {
+				metrics = new ArrayList<FileMetric>();
+				fileMetricMap.put(file, metrics);
+			}
+			metrics.add(metric);
+		}
+		List<FileGroup> groups = new ArrayList<FileGroup>(fileMetricMap.size());
+		for (Map.Entry<File, List<FileMetric>> entry : fileMetricMap.entrySet()) {
+			groups.add(new FileGroup(entry.getKey(), entry.getValue()));
+		}
+		return groups.toArray(new FileGroup[groups.size()]);
 	}
 
 	/**
@@ -101,4 +168,210 @@ public class FileMetricsPublisher implements MetricsUpdater {
 		}
 		return results.toArray(new String[results.size()]);
 	}
+
+	/**
+	 * File metrics which are read from the same file.
+	 */
+	public static class FileGroup {
+
+		private final File file;
+		private final FileMetric[] metrics;
+		private final boolean dirMetrics;
+		private final FileMetricReader reader;
+		private final boolean[] extracted;
+
+		private final AtomicLong readCount = new AtomicLong();
+		private final AtomicLong readFailedCount = new AtomicLong();
+		private final AtomicLong extractFailedCount = new AtomicLong();
+		private final AtomicLong totalReadMicros = new AtomicLong();
+		private volatile long lastReadMicros;
+		private volatile long maxReadMicros;
+		private volatile IOException lastException;
+
+		FileGroup(File file, List<FileMetric> metricList) {
+			this.file = file;
+			this.metrics = metricList.toArray(new FileMetric[metricList.size()]);
+			this.dirMetrics = metrics[0].isDirMetric();
+			boolean keepOpen = true;
+			for (FileMetric metric : metrics) {
+				keepOpen &= metric.isKeepFileOpen();
+			}
+			this.reader = new FileMetricReader(file, keepOpen);
+			this.extracted = new boolean[metrics.length];
+		}
+
+		/**
+		 * Return the file that the metrics are read from.
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Return the metrics that are read from the file.
+		 */
+		public FileMetric[] getMetrics() {
+			return metrics;
+		}
+
+		/**
+		 * Return the number of times that the file has been read.
+		 */
+		public long getReadCount() {
+			return readCount.get();
+		}
+
+		/**
+		 * Return the number of times that the file could not be read. None of the metrics are updated when this
+		 * happens.
+		 */
+		public long getReadFailedCount() {
+			return readFailedCount.get();
+		}
+
+		/**
+		 * Return the number of times that a metric could not be extracted from the file because its line was missing or
+		 * the number was invalid.
+		 */
+		public long getExtractFailedCount() {
+			return extractFailedCount.get();
+		}
+
+		/**
+		 * Return the number of micros that the last read and extract of the file took.
+		 */
+		public long getLastReadMicros() {
+			return lastReadMicros;
+		}
+
+		/**
+		 * Return the maximum number of micros that a read and extract of the file took.
+		 */
+		public long getMaxReadMicros() {
+			return maxReadMicros;
+		}
+
+		/**
+		 * Return the average number of micros that the reads and extracts of the file took.
+		 */
+		public long getAverageReadMicros() {
+			long count = readCount.get();
+			if (count == 0) {
+				return 0;
+			} else {
+				return totalReadMicros.get() / count;
+			}
+		}
+
+		/**
+		 * Return the last exception from reading the file or extracting a metric or null if none.
+		 */
+		public IOException getLastException() {
+			return lastException;
+		}
+
+		@Override
+		public String toString() {
+			return file + ": reads " + readCount.get() + ", read-failures " + readFailedCount.get()
+					+ ", extract-failures " + extractFailedCount.get() + ", last " + lastReadMicros + "us, avg "
+					+ getAverageReadMicros() + "us, max " + maxReadMicros + "us";
+		}
+
+		/**
+		 * Close the file if it is being kept open. It will be re-opened by the next update.
+		 */
+		public synchronized void close() {
+			reader.close();
+			for (FileMetric metric : metrics) {
+				metric.close();
+			}
+		}
+
+		/**
+		 * Read the file and update all of our metrics. This is synchronized because the file is read into a buffer that
+		 * is reused.
+		 */
+		synchronized void update() {
+			long startNanos = System.nanoTime();
+			try {
+				if (dirMetrics) {
+					updateDirMetrics();
+				} else {
+					updateFileMetrics();
+				}
+			} finally {
+				long micros = (System.nanoTime() - startNanos) / 1000;
+				lastReadMicros = micros;
+				if (micros > maxReadMicros) {
+					maxReadMicros = micros;
+				}
+				totalReadMicros.addAndGet(micros);
+				readCount.incrementAndGet();
+			}
+		}
+
+		private void updateDirMetrics() {
+			for (FileMetric metric : metrics) {
+				try {
+					metric.updateValue();
+				} catch (IOException e) {
+					lastException = e;
+					readFailedCount.incrementAndGet();
+				}
+			}
+		}
+
+		private void updateFileMetrics() {
+			int length;
+			try {
+				length = reader.read();
+			} catch (IOException e) {
+				lastException = new IOException("Problems reading metrics from file " + file, e);
+				readFailedCount.incrementAndGet();
+				return;
+			}
+			byte[] bytes = reader.getBytes();
+			Arrays.fill(extracted, false);
+			int numLeft = metrics.length;
+			int lineCount = 0;
+			int pos = 0;
+			// go through the lines once and give each to the metrics that haven't found their line yet
+			while (pos < length && numLeft > 0) {
+				int lineEnd = FileMetricReader.findLineEnd(bytes, pos, length);
+				lineCount++;
+				for (int i = 0; i < metrics.length; i++) {
+					if (extracted[i]) {
+						continue;
+					}
+					Number value;
+					try {
+						value = metrics[i].extractNumberFromLine(bytes, pos, lineEnd, lineCount);
+					} catch (IOException e) {
+						extractFailed(e);
+						extracted[i] = true;
+						numLeft--;
+						continue;
+					}
+					if (value != null) {
+						metrics[i].setExtractedValue(value);
+						extracted[i] = true;
+						numLeft--;
+					}
+				}
+				pos = FileMetricReader.findNextLine(bytes, lineEnd, length);
+			}
+			if (numLeft > 0) {
+				for (int i = 0; i < metrics.length; i++) {
+					if (!extracted[i]) {
+						extractFailed(metrics[i].lineNotFoundException());
+					}
+				}
+			}
+		}
+
+		private void extractFailed(IOException e) {
+			lastException = e;
+			extractFailedCount.incrementAndGet();
+		}
+	}
 }
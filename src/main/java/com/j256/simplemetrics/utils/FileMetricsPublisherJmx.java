@@ -32,6 +32,11 @@ public class FileMetricsPublisherJmx implements JmxSelfNaming {
 		return metricsPublisher.getFailedUpdateCount();
 	}
 
+	@JmxAttributeMethod(description = "Reads, failures, and latency of each file")
+	public String[] getFileStats() {
+		return metricsPublisher.getFileStats();
+	}
+
 	@JmxAttributeMethod(description = "Values of configured file metrics")
 	public String[] getMetricsValues() {
 		return metricsPublisher.getMetricsValues();
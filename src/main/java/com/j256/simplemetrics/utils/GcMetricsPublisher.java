@@ -0,0 +1,460 @@
+package com.j256.simplemetrics.utils;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.manager.MetricsUpdater;
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Publishes garbage collection, allocation, and memory pool metrics from the JVM. If you are using the no-arg
+ * constructor (like with Spring) you will need to make sure that {@link #initialize()} is called.
+ * 
+ * <p>
+ * The duration of each collection is recorded as it happens by listening for the notifications of the garbage
+ * collector MBeans so the count, total, and maximum of each collector are exact instead of being sampled. For
+ * concurrent collectors, such as the G1 concurrent cycle or ZGC, the duration is of the cycle and not of a pause. If
+ * the JVM doesn't send the notifications then the collection counts and times are polled on each update instead.
+ * </p>
+ * 
+ * <p>
+ * The bytes allocated by all of the threads are read in one bulk call if the JVM supports it and published as a total
+ * and a rate. The memory pools and the direct and mapped buffer pools change slowly and there can be a lot of them so
+ * they are polled by a separate updater which is only called every {@link #setPoolRefreshMillis(long)} millis.
+ * </p>
+ * 
+ * @author graywatson
+ */
+public class GcMetricsPublisher implements MetricsUpdater {
+
+	private static final String METRIC_COMPONENT_NAME = "java";
+	private static final long DEFAULT_POOL_REFRESH_MILLIS = 60000;
+
+	private MetricsManager metricsManager;
+	private long poolRefreshMillis = DEFAULT_POOL_REFRESH_MILLIS;
+
+	private final List<CollectorMetrics> collectors = new ArrayList<CollectorMetrics>();
+	private final Map<String, CollectorMetrics> collectorNameMap = new HashMap<String, CollectorMetrics>();
+	private final Map<NotificationEmitter, NotificationListener> listeners =
+			new LinkedHashMap<NotificationEmitter, NotificationListener>();
+	private final AtomicLong notificationCount = new AtomicLong();
+
+	private com.sun.management.ThreadMXBean allocationThreadMxBean;
+	private Map<Long, Long> lastThreadAllocatedBytes;
+	private long lastAllocationTimeMillis;
+	private ControlledMetricAccum allocatedBytes;
+	private ControlledMetricValue allocationRate;
+
+	private final PoolUpdater poolUpdater = new PoolUpdater();
+
+	public GcMetricsPublisher() {
+		// for spring
+	}
+
+	/**
+	 * Constructs our publisher and calls {@link #initialize()}.
+	 */
+	public GcMetricsPublisher(MetricsManager metricsManager) {
+		this.metricsManager = metricsManager;
+		initialize();
+	}
+
+	/**
+	 * Should be called after all of the setter methods have been completed. Maybe by Spring's init mechanism?
+	 */
+	public void initialize() {
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			CollectorMetrics collector = new CollectorMetrics(bean);
+			collectors.add(collector);
+			collectorNameMap.put(bean.getName(), collector);
+			collector.register(metricsManager);
+			if (bean instanceof NotificationEmitter) {
+				NotificationEmitter emitter = (NotificationEmitter) bean;
+				NotificationListener listener = new NotificationListener() {
+					@Override
+					public void handleNotification(Notification notification, Object handback) {
+						handleGcNotification(notification);
+					}
+				};
+				emitter.addNotificationListener(listener, null, null);
+				listeners.put(emitter, listener);
+				collector.notifications = true;
+			}
+		}
+
+		ThreadMXBean threadMxBean = ManagementFactory.getThreadMXBean();
+		if (threadMxBean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) threadMxBean;
+			if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+				allocationThreadMxBean = sunBean;
+				allocatedBytes = new ControlledMetricAccum(METRIC_COMPONENT_NAME, "alloc", "allocatedBytes",
+						"Bytes allocated by all of the threads", "bytes");
+				allocationRate = new ControlledMetricValue(METRIC_COMPONENT_NAME, "alloc", "allocationRate",
+						"Bytes allocated per second by all of the threads", "bytes/second");
+				metricsManager.registerMetric(allocatedBytes);
+				metricsManager.registerMetric(allocationRate);
+			}
+		}
+
+		poolUpdater.initialize();
+		metricsManager.registerUpdater(this);
+		metricsManager.registerUpdater(poolUpdater, poolRefreshMillis);
+	}
+
+	/**
+	 * Stop listening for the garbage collection notifications and unregister our updaters and metrics.
+	 */
+	public void destroy() {
+		for (Map.Entry<NotificationEmitter, NotificationListener> entry : listeners.entrySet()) {
+			try {
+				entry.getKey().removeNotificationListener(entry.getValue());
+			} catch (ListenerNotFoundException lnfe) {
+				// ignored
+			}
+		}
+		listeners.clear();
+		if (metricsManager == null) {
+			return;
+		}
+		metricsManager.unregisterUpdater(this);
+		metricsManager.unregisterUpdater(poolUpdater);
+		for (CollectorMetrics collector : collectors) {
+			collector.unregister(metricsManager);
+		}
+		collectors.clear();
+		collectorNameMap.clear();
+		if (allocationThreadMxBean != null) {
+			metricsManager.unregisterMetric(allocatedBytes);
+			metricsManager.unregisterMetric(allocationRate);
+			allocationThreadMxBean = null;
+			lastThreadAllocatedBytes = null;
+		}
+		poolUpdater.destroy();
+	}
+
+	@Override
+	public void updateMetrics() {
+		for (CollectorMetrics collector : collectors) {
+			collector.update();
+		}
+		if (allocationThreadMxBean != null) {
+			updateAllocation();
+		}
+	}
+
+	/**
+	 * Required metrics manager that manages the metrics we create here.
+	 */
+	// @Required
+	public void setMetricsManager(MetricsManager metricsManager) {
+		this.metricsManager = metricsManager;
+	}
+
+	/**
+	 * Number of millis between polls of the memory pools and buffer pools. Default is 60000.
+	 */
+	// @NotRequired("Default is " + DEFAULT_POOL_REFRESH_MILLIS)
+	public void setPoolRefreshMillis(long poolRefreshMillis) {
+		this.poolRefreshMillis = poolRefreshMillis;
+	}
+
+	/**
+	 * Return the number of garbage collection notifications that have been received.
+	 */
+	public long getNotificationCount() {
+		return notificationCount.get();
+	}
+
+	/**
+	 * Return the number of times that the memory pools have been polled.
+	 */
+	public long getPoolPollCount() {
+		return poolUpdater.pollCount.get();
+	}
+
+	/**
+	 * Return the metrics of each of the garbage collectors.
+	 */
+	public List<CollectorMetrics> getCollectorMetrics() {
+		return collectors;
+	}
+
+	private void handleGcNotification(Notification notification) {
+		if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+			return;
+		}
+		GarbageCollectionNotificationInfo info =
+				GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+		CollectorMetrics collector = collectorNameMap.get(info.getGcName());
+		if (collector != null) {
+			collector.recordCollection(info.getGcInfo().getDuration());
+		}
+		// counted after the metrics are updated so anyone waiting on the count sees them
+		notificationCount.incrementAndGet();
+	}
+
+	private void updateAllocation() {
+		long[] ids = allocationThreadMxBean.getAllThreadIds();
+		long[] bytes = allocationThreadMxBean.getThreadAllocatedBytes(ids);
+		Map<Long, Long> threadAllocatedBytes = new HashMap<Long, Long>(ids.length * 2);
+		long total = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (bytes[i] < 0) {
+				// thread has died
+				continue;
+			}
+			threadAllocatedBytes.put(ids[i], bytes[i]);
+			if (lastThreadAllocatedBytes != null) {
+				// the bytes of threads that died since the last update are lost
+				Long lastBytes = lastThreadAllocatedBytes.get(ids[i]);
+				total += bytes[i] - (lastBytes == null ? 0 : lastBytes);
+			}
+		}
+		long now = System.currentTimeMillis();
+		if (lastThreadAllocatedBytes != null) {
+			allocatedBytes.add(total);
+			long timeDiff = now - lastAllocationTimeMillis;
+			if (timeDiff > 0) {
+				allocationRate.adjustValue(total * 1000 / timeDiff);
+			}
+		}
+		lastThreadAllocatedBytes = threadAllocatedBytes;
+		lastAllocationTimeMillis = now;
+	}
+
+	/**
+	 * Turn the name of a collector or pool into something that can be used in a metric name.
+	 */
+	static String toMetricName(String name) {
+		StringBuilder sb = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char ch = name.charAt(i);
+			if (Character.isLetterOrDigit(ch) || ch == '-' || ch == '_') {
+				sb.append(ch);
+			} else {
+				sb.append('_');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Metrics for one of the garbage collectors.
+	 */
+	public static class CollectorMetrics {
+
+		private final GarbageCollectorMXBean bean;
+		private final ControlledMetricValue durations;
+		private final ControlledMetricAccum count;
+		private final ControlledMetricAccum totalTime;
+		private final ControlledMetricValue maxDuration;
+		private final AtomicLong maxDurationSinceUpdate = new AtomicLong();
+		private volatile boolean notifications;
+		private long lastCount;
+		private long lastTimeMillis;
+
+		CollectorMetrics(GarbageCollectorMXBean bean) {
+			this.bean = bean;
+			String name = toMetricName(bean.getName());
+			this.durations = new ControlledMetricValue(METRIC_COMPONENT_NAME, "gc", name + ".durations",
+					"Duration of each collection by " + bean.getName(), "milliseconds");
+			this.count = new ControlledMetricAccum(METRIC_COMPONENT_NAME, "gc", name + ".count",
+					"Number of collections by " + bean.getName(), "count");
+			this.totalTime = new ControlledMetricAccum(METRIC_COMPONENT_NAME, "gc", name + ".totalTime",
+					"Total duration of the collections by " + bean.getName(), "milliseconds");
+			this.maxDuration = new ControlledMetricValue(METRIC_COMPONENT_NAME, "gc", name + ".maxDuration",
+					"Longest collection by " + bean.getName() + " since the last update", "milliseconds");
+			this.lastCount = Math.max(0, bean.getCollectionCount());
+			this.lastTimeMillis = Math.max(0, bean.getCollectionTime());
+		}
+
+		/**
+		 * Return the name of the collector.
+		 */
+		public String getName() {
+			return bean.getName();
+		}
+
+		/**
+		 * Return true if the collections are recorded from the notifications instead of being polled.
+		 */
+		public boolean isNotifications() {
+			return notifications;
+		}
+
+		/**
+		 * Return the metric with the duration of each collection.
+		 */
+		public ControlledMetricValue getDurations() {
+			return durations;
+		}
+
+		/**
+		 * Return the metric with the number of collections.
+		 */
+		public ControlledMetricAccum getCount() {
+			return count;
+		}
+
+		/**
+		 * Return the metric with the total duration of the collections.
+		 */
+		public ControlledMetricAccum getTotalTime() {
+			return totalTime;
+		}
+
+		/**
+		 * Return the metric with the longest collection between updates.
+		 */
+		public ControlledMetricValue getMaxDuration() {
+			return maxDuration;
+		}
+
+		void register(MetricsManager metricsManager) {
+			metricsManager.registerMetric(durations);
+			metricsManager.registerMetric(count);
+			metricsManager.registerMetric(totalTime);
+			metricsManager.registerMetric(maxDuration);
+		}
+
+		void unregister(MetricsManager metricsManager) {
+			metricsManager.unregisterMetric(durations);
+			metricsManager.unregisterMetric(count);
+			metricsManager.unregisterMetric(totalTime);
+			metricsManager.unregisterMetric(maxDuration);
+		}
+
+		/**
+		 * Record a collection from a notification.
+		 */
+		void recordCollection(long durationMillis) {
+			durations.adjustValue(durationMillis);
+			count.increment();
+			totalTime.add(durationMillis);
+			while (true) {
+				long max = maxDurationSinceUpdate.get();
+				if (durationMillis <= max || maxDurationSinceUpdate.compareAndSet(max, durationMillis)) {
+					break;
+				}
+			}
+		}
+
+		void update() {
+			if (!notifications) {
+				// poll the counts, we only know the average duration since the last update
+				long currentCount = bean.getCollectionCount();
+				long currentTimeMillis = bean.getCollectionTime();
+				long countDiff = currentCount - lastCount;
+				long timeDiff = currentTimeMillis - lastTimeMillis;
+				lastCount = currentCount;
+				lastTimeMillis = currentTimeMillis;
+				if (countDiff > 0) {
+					count.add(countDiff);
+					totalTime.add(timeDiff);
+					durations.adjustValue(timeDiff / countDiff);
+					maxDurationSinceUpdate.set(timeDiff / countDiff);
+				}
+			}
+			maxDuration.adjustValue(maxDurationSinceUpdate.getAndSet(0));
+		}
+	}
+
+	/**
+	 * Polls the memory pools and buffer pools which is registered with its own refresh interval.
+	 */
+	private class PoolUpdater implements MetricsUpdater {
+
+		private final List<MemoryPoolMXBean> memoryPools = new ArrayList<MemoryPoolMXBean>();
+		private final List<ControlledMetricValue[]> memoryPoolMetrics = new ArrayList<ControlledMetricValue[]>();
+		private final List<BufferPoolMXBean> bufferPools = new ArrayList<BufferPoolMXBean>();
+		private final List<ControlledMetricValue[]> bufferPoolMetrics = new ArrayList<ControlledMetricValue[]>();
+		private final AtomicLong pollCount = new AtomicLong();
+
+		public void initialize() {
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				String name = toMetricName(pool.getName());
+				ControlledMetricValue[] metrics = new ControlledMetricValue[] {
+						new ControlledMetricValue(METRIC_COMPONENT_NAME, "memPool", name + ".used",
+								"Memory used in the " + pool.getName() + " pool", "bytes"),
+						new ControlledMetricValue(METRIC_COMPONENT_NAME, "memPool", name + ".committed",
+								"Memory committed for the " + pool.getName() + " pool", "bytes") };
+				memoryPools.add(pool);
+				memoryPoolMetrics.add(metrics);
+				for (ControlledMetricValue metric : metrics) {
+					metricsManager.registerMetric(metric);
+				}
+			}
+			// direct and mapped
+			for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+				String name = toMetricName(pool.getName());
+				ControlledMetricValue[] metrics = new ControlledMetricValue[] {
+						new ControlledMetricValue(METRIC_COMPONENT_NAME, "bufferPool", name + ".used",
+								"Memory used by the " + pool.getName() + " buffers", "bytes"),
+						new ControlledMetricValue(METRIC_COMPONENT_NAME, "bufferPool", name + ".count",
+								"Number of " + pool.getName() + " buffers", "count") };
+				bufferPools.add(pool);
+				bufferPoolMetrics.add(metrics);
+				for (ControlledMetricValue metric : metrics) {
+					metricsManager.registerMetric(metric);
+				}
+			}
+		}
+
+		public void destroy() {
+			unregisterMetrics(memoryPoolMetrics);
+			unregisterMetrics(bufferPoolMetrics);
+			memoryPools.clear();
+			memoryPoolMetrics.clear();
+			bufferPools.clear();
+			bufferPoolMetrics.clear();
+		}
+
+		private void unregisterMetrics(List<ControlledMetricValue[]> metricsList) {
+			for (ControlledMetricValue[] metrics : metricsList) {
+				for (ControlledMetricValue metric : metrics) {
+					metricsManager.unregisterMetric(metric);
+				}
+			}
+		}
+
+		@Override
+		public void updateMetrics() {
+			pollCount.incrementAndGet();
+			for (int i = 0; i < memoryPools.size(); i++) {
+				MemoryPoolMXBean pool = memoryPools.get(i);
+				if (!pool.isValid()) {
+					continue;
+				}
+				MemoryUsage usage = pool.getUsage();
+				ControlledMetricValue[] metrics = memoryPoolMetrics.get(i);
+				metrics[0].adjustValue(usage.getUsed());
+				metrics[1].adjustValue(usage.getCommitted());
+			}
+			for (int i = 0; i < bufferPools.size(); i++) {
+				BufferPoolMXBean pool = bufferPools.get(i);
+				ControlledMetricValue[] metrics = bufferPoolMetrics.get(i);
+				metrics[0].adjustValue(pool.getMemoryUsed());
+				metrics[1].adjustValue(pool.getCount());
+			}
+		}
+	}
+}
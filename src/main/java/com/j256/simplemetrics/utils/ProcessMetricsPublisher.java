@@ -0,0 +1,374 @@
+package com.j256.simplemetrics.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.manager.MetricsUpdater;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
+import com.j256.simplemetrics.utils.FileMetric.FileMetricKind;
+import com.j256.simplemetrics.utils.FileMetric.FileMetricOperation;
+import com.j256.simplemetrics.utils.FileMetricsPublisher.FileGroup;
+
+/**
+ * Publishes metrics about the process and its container from the /proc and cgroup file-systems under Linux: the open
+ * file-descriptors, resident memory, threads, and context switches of the process, the bytes it read and wrote, and
+ * the cpu usage, throttling, memory usage, and limits of its cgroup. Both cgroup v1 and v2 are supported. The metrics
+ * are read with {@link FileMetric}s which are grouped by file so each file is read once per update. Files which don't
+ * exist on this system are skipped so this can be used on other operating systems without publishing anything.
+ * 
+ * <p>
+ * <b>NOTE:</b> If you are using the no-arg constructor (like with Spring) you will need to make sure that
+ * {@link #initialize()} is called.
+ * </p>
+ * 
+ * @author graywatson
+ */
+public class ProcessMetricsPublisher implements MetricsUpdater {
+
+	private static final String METRIC_COMPONENT_NAME = "process";
+	private static final String DEFAULT_PROCESS_DIR = "/proc/self";
+	private static final String DEFAULT_CGROUP_DIR = "/sys/fs/cgroup";
+	/** cgroup v1 uses a number close to Long.MAX_VALUE for no memory limit */
+	private static final long CGROUP_V1_NO_LIMIT = Long.MAX_VALUE / 2;
+
+	private MetricsManager metricsManager;
+	private File processDir = new File(DEFAULT_PROCESS_DIR);
+	private File cgroupDir = new File(DEFAULT_CGROUP_DIR);
+
+	private int cgroupVersion;
+	private FileGroup[] fileGroups;
+	private LimitFile cpuMaxFile;
+	private LimitFile cpuQuotaFile;
+	private LimitFile cpuPeriodFile;
+	private LimitFile memoryLimitFile;
+	private final long[] limitValues = new long[2];
+	private ControlledMetricValue cpuLimitCores;
+	private ControlledMetricValue memoryLimit;
+	private final AtomicLong limitFailedCount = new AtomicLong();
+
+	public ProcessMetricsPublisher() {
+		// for spring
+	}
+
+	/**
+	 * Constructs our publisher and calls {@link #initialize()}.
+	 */
+	public ProcessMetricsPublisher(MetricsManager metricsManager) {
+		this.metricsManager = metricsManager;
+		initialize();
+	}
+
+	/**
+	 * Should be called after all of the setter methods have been completed. Maybe by Spring's init mechanism?
+	 */
+	public void initialize() {
+		List<FileMetric> fileMetrics = new ArrayList<FileMetric>();
+
+		// process metrics
+		addDirMetric(fileMetrics, new File(processDir, "fd"), "fd", "openFiles", "Number of open file-descriptors");
+		File status = new File(processDir, "status");
+		addFileMetric(fileMetrics, status, "mem", "rss", "Resident memory of the process", "bytes",
+				FileMetricKind.FILE_VALUE, "VmRSS:", FileMetricOperation.MULTIPLY, 1024);
+		addFileMetric(fileMetrics, status, "threads", "numThreads", "Number of threads in the process", "count",
+				FileMetricKind.FILE_VALUE, "Threads:", null, 0);
+		addFileMetric(fileMetrics, status, "cpu", "voluntaryCtxSwitches",
+				"Context switches from waiting for a resource", "count", FileMetricKind.FILE_ACCUM_DIFF,
+				"voluntary_ctxt_switches:", null, 0);
+		addFileMetric(fileMetrics, status, "cpu", "involuntaryCtxSwitches",
+				"Context switches from being preempted", "count", FileMetricKind.FILE_ACCUM_DIFF,
+				"nonvoluntary_ctxt_switches:", null, 0);
+		File io = new File(processDir, "io");
+		addFileMetric(fileMetrics, io, "io", "readBytes", "Bytes read from storage", "bytes",
+				FileMetricKind.FILE_ACCUM_DIFF, "read_bytes:", null, 0);
+		addFileMetric(fileMetrics, io, "io", "writeBytes", "Bytes written to storage", "bytes",
+				FileMetricKind.FILE_ACCUM_DIFF, "write_bytes:", null, 0);
+
+		// cgroup metrics
+		if (new File(cgroupDir, "cgroup.controllers").exists()) {
+			cgroupVersion = 2;
+			File cpuStat = new File(cgroupDir, "cpu.stat");
+			addFileMetric(fileMetrics, cpuStat, "cgroup", "cpuUsage", "Cpu time used by the cgroup", "milliseconds",
+					FileMetricKind.FILE_ACCUM_DIFF, "usage_usec ", FileMetricOperation.DIVIDE, 1000);
+			addCpuPeriodMetrics(fileMetrics, cpuStat);
+			addFileMetric(fileMetrics, cpuStat, "cgroup", "cpuThrottledTime", "Time the cgroup was throttled",
+					"milliseconds", FileMetricKind.FILE_ACCUM_DIFF, "throttled_usec ", FileMetricOperation.DIVIDE,
+					1000);
+			addFileMetric(fileMetrics, new File(cgroupDir, "memory.current"), "cgroup", "memoryUsage",
+					"Memory used by the cgroup", "bytes", FileMetricKind.FILE_VALUE, null, null, 0);
+			cpuMaxFile = LimitFile.create(new File(cgroupDir, "cpu.max"));
+			memoryLimitFile = LimitFile.create(new File(cgroupDir, "memory.max"));
+		} else if (new File(cgroupDir, "cpu").exists() || new File(cgroupDir, "memory").exists()) {
+			cgroupVersion = 1;
+			addFileMetric(fileMetrics, new File(cgroupDir, "cpuacct/cpuacct.usage"), "cgroup", "cpuUsage",
+					"Cpu time used by the cgroup", "milliseconds", FileMetricKind.FILE_ACCUM_DIFF, null,
+					FileMetricOperation.DIVIDE, 1000000);
+			File cpuStat = new File(cgroupDir, "cpu/cpu.stat");
+			addCpuPeriodMetrics(fileMetrics, cpuStat);
+			addFileMetric(fileMetrics, cpuStat, "cgroup", "cpuThrottledTime", "Time the cgroup was throttled",
+					"milliseconds", FileMetricKind.FILE_ACCUM_DIFF, "throttled_time ", FileMetricOperation.DIVIDE,
+					1000000);
+			addFileMetric(fileMetrics, new File(cgroupDir, "memory/memory.usage_in_bytes"), "cgroup",
+					"memoryUsage", "Memory used by the cgroup", "bytes", FileMetricKind.FILE_VALUE, null, null, 0);
+			cpuQuotaFile = LimitFile.create(new File(cgroupDir, "cpu/cpu.cfs_quota_us"));
+			cpuPeriodFile = LimitFile.create(new File(cgroupDir, "cpu/cpu.cfs_period_us"));
+			memoryLimitFile = LimitFile.create(new File(cgroupDir, "memory/memory.limit_in_bytes"));
+		}
+
+		for (FileMetric fileMetric : fileMetrics) {
+			metricsManager.registerMetric(fileMetric.getMetric());
+		}
+		fileGroups = FileMetricsPublisher.groupByFile(fileMetrics);
+		if (cpuMaxFile != null || (cpuQuotaFile != null && cpuPeriodFile != null)) {
+			cpuLimitCores = new ControlledMetricValue(METRIC_COMPONENT_NAME, "cgroup", "cpuLimit",
+					"Cpu quota of the cgroup in cores or 0 if no limit", "cores");
+			metricsManager.registerMetric(cpuLimitCores);
+		}
+		if (memoryLimitFile != null) {
+			memoryLimit = new ControlledMetricValue(METRIC_COMPONENT_NAME, "cgroup", "memoryLimit",
+					"Memory limit of the cgroup or 0 if no limit", "bytes");
+			metricsManager.registerMetric(memoryLimit);
+		}
+		metricsManager.registerUpdater(this);
+	}
+
+	/**
+	 * Unregister our updater from the manager and close the files that are being kept open.
+	 */
+	public void destroy() {
+		if (metricsManager != null) {
+			metricsManager.unregisterUpdater(this);
+		}
+		if (fileGroups != null) {
+			for (FileGroup fileGroup : fileGroups) {
+				fileGroup.close();
+			}
+		}
+		for (LimitFile limitFile : new LimitFile[] { cpuMaxFile, cpuQuotaFile, cpuPeriodFile, memoryLimitFile }) {
+			if (limitFile != null) {
+				limitFile.close();
+			}
+		}
+	}
+
+	@Override
+	public void updateMetrics() {
+		for (FileGroup fileGroup : fileGroups) {
+			fileGroup.update();
+		}
+		if (cpuLimitCores != null) {
+			updateCpuLimit();
+		}
+		if (memoryLimit != null) {
+			try {
+				long limit = 0;
+				if (memoryLimitFile.read(limitValues) > 0 && limitValues[0] > 0
+						&& limitValues[0] < CGROUP_V1_NO_LIMIT) {
+					limit = limitValues[0];
+				}
+				memoryLimit.adjustValue(limit);
+			} catch (IOException e) {
+				limitFailedCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Required metrics manager that manages the metrics we create here.
+	 */
+	// @Required
+	public void setMetricsManager(MetricsManager metricsManager) {
+		this.metricsManager = metricsManager;
+	}
+
+	/**
+	 * Directory of the process in the /proc file-system. Default is /proc/self.
+	 */
+	// @NotRequired("Default is /proc/self")
+	public void setProcessDir(String processDir) {
+		this.processDir = new File(processDir);
+	}
+
+	/**
+	 * Directory of the cgroup file-system of the process. Default is /sys/fs/cgroup which inside of a container is
+	 * usually the container's cgroup.
+	 */
+	// @NotRequired("Default is /sys/fs/cgroup")
+	public void setCgroupDir(String cgroupDir) {
+		this.cgroupDir = new File(cgroupDir);
+	}
+
+	/**
+	 * Return the version of the cgroup file-system that was found, 1 or 2, or 0 if none.
+	 */
+	public int getCgroupVersion() {
+		return cgroupVersion;
+	}
+
+	/**
+	 * Return the groups of file metrics that are read from each file with their read and failure counts.
+	 */
+	public FileGroup[] getFileGroups() {
+		return fileGroups;
+	}
+
+	/**
+	 * Number of times we were unable to update a metric because of some i/o or parse problem.
+	 */
+	public long getFailedUpdateCount() {
+		long total = limitFailedCount.get();
+		for (FileGroup fileGroup : fileGroups) {
+			total += fileGroup.getReadFailedCount() + fileGroup.getExtractFailedCount();
+		}
+		return total;
+	}
+
+	private void updateCpuLimit() {
+		long quota;
+		long period;
+		try {
+			if (cpuMaxFile == null) {
+				cpuQuotaFile.read(limitValues);
+				quota = limitValues[0];
+				cpuPeriodFile.read(limitValues);
+				period = limitValues[0];
+			} else {
+				// "quota period" where the quota is "max" if there is no limit
+				if (cpuMaxFile.read(limitValues) < 2) {
+					throw new IOException("Quota and period not found in " + cpuMaxFile);
+				}
+				quota = limitValues[0];
+				period = limitValues[1];
+			}
+		} catch (IOException e) {
+			limitFailedCount.incrementAndGet();
+			return;
+		}
+		if (quota > 0 && period > 0) {
+			cpuLimitCores.adjustValue((double) quota / (double) period);
+		} else {
+			cpuLimitCores.adjustValue(0);
+		}
+	}
+
+	private void addDirMetric(List<FileMetric> fileMetrics, File dir, String module, String name, String description) {
+		FileMetric fileMetric = createFileMetric(dir, module, name, description, "count");
+		fileMetric.setKind(FileMetricKind.DIR);
+		fileMetric.initialize();
+		if (fileMetric.isInitialized()) {
+			fileMetrics.add(fileMetric);
+		}
+	}
+
+	private void addFileMetric(List<FileMetric> fileMetrics, File file, String module, String name,
+			String description, String unit, FileMetricKind kind, String prefix, FileMetricOperation operation,
+			long adjustment) {
+		FileMetric fileMetric = createFileMetric(file, module, name, description, unit);
+		fileMetric.setKind(kind);
+		fileMetric.setLineSplit("\\s+");
+		if (prefix == null) {
+			// the file just has the number
+			fileMetric.setColumn(0);
+		} else {
+			fileMetric.setPrefix(prefix);
+			fileMetric.setColumn(1);
+		}
+		if (operation != null) {
+			fileMetric.setAdjustmentOperation(operation);
+			fileMetric.setAdjustmentValue(adjustment);
+		}
+		// dividing converts to a larger unit so we don't want to lose the fraction
+		fileMetric.setDecimalNumber(operation != FileMetricOperation.DIVIDE);
+		fileMetric.initialize();
+		if (fileMetric.isInitialized()) {
+			fileMetrics.add(fileMetric);
+		}
+	}
+
+	private void addCpuPeriodMetrics(List<FileMetric> fileMetrics, File cpuStat) {
+		addFileMetric(fileMetrics, cpuStat, "cgroup", "cpuPeriods", "Number of cpu quota periods", "count",
+				FileMetricKind.FILE_ACCUM_DIFF, "nr_periods ", null, 0);
+		addFileMetric(fileMetrics, cpuStat, "cgroup", "cpuThrottledPeriods",
+				"Number of cpu quota periods where the cgroup was throttled", "count", FileMetricKind.FILE_ACCUM_DIFF,
+				"nr_throttled ", null, 0);
+	}
+
+	private FileMetric createFileMetric(File file, String module, String name, String description, String unit) {
+		FileMetric fileMetric = new FileMetric();
+		fileMetric.setMetricComponent(METRIC_COMPONENT_NAME);
+		fileMetric.setMetricModule(module);
+		fileMetric.setMetricName(name);
+		fileMetric.setDescription(description);
+		fileMetric.setUnit(unit);
+		fileMetric.setMetricFile(file.getPath());
+		return fileMetric;
+	}
+
+	/**
+	 * Small cgroup file with one or two numbers that might be "max" for no limit.
+	 */
+	private static class LimitFile {
+
+		private final File file;
+		private final FileMetricReader reader;
+
+		private LimitFile(File file) {
+			this.file = file;
+			this.reader = new FileMetricReader(file, FileMetricReader.isKernelFile(file));
+		}
+
+		public static LimitFile create(File file) {
+			if (file.exists()) {
+				return new LimitFile(file);
+			} else {
+				return null;
+			}
+		}
+
+		/**
+		 * Read the whitespace separated numbers from the file into the values array with "max" being -1. Returns the
+		 * number of values read.
+		 */
+		public synchronized int read(long[] values) throws IOException {
+			int length = reader.read();
+			byte[] bytes = reader.getBytes();
+			int numValues = 0;
+			int pos = 0;
+			while (pos < length && numValues < values.length) {
+				if (bytes[pos] <= ' ') {
+					pos++;
+					continue;
+				}
+				int start = pos;
+				while (pos < length && bytes[pos] > ' ') {
+					pos++;
+				}
+				if (pos - start == 3 && bytes[start] == 'm' && bytes[start + 1] == 'a' && bytes[start + 2] == 'x') {
+					values[numValues++] = -1;
+					continue;
+				}
+				try {
+					values[numValues++] = FileMetricReader.parseLong(bytes, start, pos);
+				} catch (NumberFormatException nfe) {
+					throw new IOException("Invalid number in cgroup file " + file, nfe);
+				}
+			}
+			return numValues;
+		}
+
+		/**
+		 * Close the file if it is being kept open.
+		 */
+		public synchronized void close() {
+			reader.close();
+		}
+
+		@Override
+		public String toString() {
+			return file.getPath();
+		}
+	}
+}
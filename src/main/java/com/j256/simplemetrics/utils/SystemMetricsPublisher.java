@@ -4,8 +4,11 @@ import java.lang.management.ClassLoadingMXBean;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryPoolMXBean;
 import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.management.Attribute;
 import javax.management.AttributeList;
@@ -15,17 +18,29 @@ import javax.management.ObjectName;
 
 import com.j256.simplemetrics.manager.MetricsManager;
 import com.j256.simplemetrics.manager.MetricsUpdater;
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
 import com.j256.simplemetrics.metric.ControlledMetricValue;
 
 /**
  * Publishes some important system metrics internal to the JVM. If you are using the no-arg constructor (like with
  * Spring) you will need to make sure that {@link #initialize()} is called.
  * 
+ * <p>
+ * The cpu time is the process cpu time from the operating-system MBean which costs the same regardless of the number
+ * of threads. If the JVM doesn't provide it then the cpu times of the threads are added up, in one bulk call if the
+ * JVM supports it. The cpu time broken down by groups of threads with the same name, ignoring any trailing numbers,
+ * can be turned on with {@link #setThreadGroupCpu(boolean)} although it is more expensive. The cpu time that this
+ * publisher takes to update the metrics is published as well.
+ * </p>
+ * 
  * @author graywatson
  */
 public class SystemMetricsPublisher implements MetricsUpdater {
 
 	private static final String METRIC_COMPONENT_NAME = "java";
+	private static final String THREAD_GROUP_MODULE_NAME = "threadGroupCpu";
+	private static final String OTHER_THREAD_GROUP_NAME = "other";
+	private static final int DEFAULT_MAX_THREAD_GROUPS = 50;
 
 	private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
 	private static final ObjectName operatingSystemObject;
@@ -35,8 +50,18 @@ public class SystemMetricsPublisher implements MetricsUpdater {
 	private ClassLoadingMXBean classLoadingMxBean;
 	private MemoryPoolMXBean oldGenMxBean;
 	private ThreadMXBean threadMxBean;
+	private com.sun.management.ThreadMXBean bulkThreadMxBean;
+	private boolean measureUpdateCpu;
 	private long lastCpuPollTimeMillis;
 	private long lastCpuTimeMillis;
+	private double processCpuLoad;
+	private long processCpuTimeNanos;
+	private volatile long lastUpdateCpuMicros;
+
+	private boolean threadGroupCpu;
+	private int maxThreadGroups = DEFAULT_MAX_THREAD_GROUPS;
+	private final Map<String, ControlledMetricAccum> threadGroupMetrics = new HashMap<String, ControlledMetricAccum>();
+	private Map<Long, Long> lastThreadCpuNanos;
 
 	private ControlledMetricValue numberThreads;
 	private ControlledMetricValue totalMemory;
@@ -48,6 +73,7 @@ public class SystemMetricsPublisher implements MetricsUpdater {
 	private ControlledMetricValue threadLoadAveragePercentage;
 	private ControlledMetricValue oldGenMemoryPercentageUsed;
 	private ControlledMetricValue processLoadAveragePercentage;
+	private ControlledMetricValue updateCpuTime;
 
 	static {
 		try {
@@ -84,6 +110,11 @@ public class SystemMetricsPublisher implements MetricsUpdater {
 			}
 		}
 		threadMxBean = ManagementFactory.getThreadMXBean();
+		if (threadMxBean instanceof com.sun.management.ThreadMXBean) {
+			bulkThreadMxBean = (com.sun.management.ThreadMXBean) threadMxBean;
+		}
+		measureUpdateCpu =
+				(threadMxBean.isCurrentThreadCpuTimeSupported() && threadMxBean.isThreadCpuTimeEnabled());
 
 		// create our metrics
 		numberThreads = new ControlledMetricValue(METRIC_COMPONENT_NAME, "threads", "numThreads",
@@ -99,9 +130,9 @@ public class SystemMetricsPublisher implements MetricsUpdater {
 		loadedClasses = new ControlledMetricValue(METRIC_COMPONENT_NAME, "mem", "loadedClasses",
 				"Number of classes loaded by the jvm", "count");
 		totalCpuTime = new ControlledMetricValue(METRIC_COMPONENT_NAME, "cpu", "totalCpuTime",
-				"Total cpu time from the threads in milliseconds", "milliseconds");
+				"Total cpu time of the process in milliseconds", "milliseconds");
 		threadLoadAveragePercentage = new ControlledMetricValue(METRIC_COMPONENT_NAME, "cpu", "threadLoadAvgPerc",
-				"Load average percentage from the thread list", "percent");
+				"Cpu time since the last update as a percentage of one cpu", "percent");
 		oldGenMemoryPercentageUsed = new ControlledMetricValue(METRIC_COMPONENT_NAME, "mem", "oldGenMemUsedPerc",
 				"Old Gen GC pool percentage of used memory", "percent");
 		processLoadAveragePercentage = new ControlledMetricValue(METRIC_COMPONENT_NAME, "cpu", "processCpuTime",
@@ -117,6 +148,11 @@ public class SystemMetricsPublisher implements MetricsUpdater {
 		metricsManager.registerMetric(threadLoadAveragePercentage);
 		metricsManager.registerMetric(oldGenMemoryPercentageUsed);
 		metricsManager.registerMetric(processLoadAveragePercentage);
+		if (measureUpdateCpu) {
+			updateCpuTime = new ControlledMetricValue(METRIC_COMPONENT_NAME, "cpu", "publisherCpuTime",
+					"Cpu time that this publisher took to update the metrics", "microseconds");
+			metricsManager.registerMetric(updateCpuTime);
+		}
 		metricsManager.registerUpdater(this);
 	}
 
@@ -125,6 +161,10 @@ public class SystemMetricsPublisher implements MetricsUpdater {
 	 */
 	@Override
 	public void updateMetrics() {
+		long startCpuNanos = 0;
+		if (measureUpdateCpu) {
+			startCpuNanos = threadMxBean.getCurrentThreadCpuTime();
+		}
 		numberThreads.adjustValue(Thread.activeCount());
 		Runtime runtime = Runtime.getRuntime();
 		totalMemory.adjustValue(runtime.totalMemory());
@@ -134,14 +174,25 @@ public class SystemMetricsPublisher implements MetricsUpdater {
 		if (classLoadingMxBean != null) {
 			loadedClasses.adjustValue(classLoadingMxBean.getLoadedClassCount());
 		}
-		totalCpuTime.adjustValue(getTotalCpuTimeMillis());
-		threadLoadAveragePercentage.adjustValue((long) (calcLoadAveragePercentage() * 100));
+		// one call to the mbean-server for the process cpu time and load
+		extractProcessCpu();
+		long cpuTimeMillis = getTotalCpuTimeMillis();
+		totalCpuTime.adjustValue(cpuTimeMillis);
+		threadLoadAveragePercentage.adjustValue((long) (calcLoadAveragePercentage(cpuTimeMillis) * 100));
 		if (oldGenMxBean != null) {
 			// calculate our memory usage
 			MemoryUsage usage = oldGenMxBean.getUsage();
 			oldGenMemoryPercentageUsed.adjustValue(usage.getUsed() * 100L / usage.getMax());
 		}
-		processLoadAveragePercentage.adjustValue(extractProcessLoadAveragePercentage());
+		processLoadAveragePercentage.adjustValue(processCpuLoad);
+		if (threadGroupCpu) {
+			updateThreadGroupCpu();
+		}
+		if (measureUpdateCpu) {
+			long micros = (threadMxBean.getCurrentThreadCpuTime() - startCpuNanos) / 1000;
+			lastUpdateCpuMicros = micros;
+			updateCpuTime.adjustValue(micros);
+		}
 	}
 
 	/**
@@ -152,10 +203,48 @@ public class SystemMetricsPublisher implements MetricsUpdater {
 		this.metricsManager = metricsManager;
 	}
 
+	/**
+	 * Set to true to publish the cpu time used by each group of threads. Threads are grouped by their name without any
+	 * trailing numbers so the threads of a pool are together. This costs more than the other metrics because it has to
+	 * get the names and cpu times of all of the threads. Default is false.
+	 */
+	// @NotRequired("Default is false")
+	public void setThreadGroupCpu(boolean threadGroupCpu) {
+		this.threadGroupCpu = threadGroupCpu;
+	}
+
+	/**
+	 * Maximum number of thread groups that are published with {@link #setThreadGroupCpu(boolean)}. The cpu time of the
+	 * threads in any other groups are published together as "other". Default is 50.
+	 */
+	// @NotRequired("Default is " + DEFAULT_MAX_THREAD_GROUPS)
+	public void setMaxThreadGroups(int maxThreadGroups) {
+		this.maxThreadGroups = maxThreadGroups;
+	}
+
+	/**
+	 * Return the number of micros of cpu time that the last update took or 0 if the JVM doesn't support measuring it.
+	 */
+	public long getLastUpdateCpuMicros() {
+		return lastUpdateCpuMicros;
+	}
+
+	/**
+	 * Return the thread group cpu time metrics that have been created so far.
+	 */
+	public Map<String, ControlledMetricAccum> getThreadGroupMetrics() {
+		synchronized (threadGroupMetrics) {
+			return new HashMap<String, ControlledMetricAccum>(threadGroupMetrics);
+		}
+	}
+
 	private long getTotalCpuTimeMillis() {
+		if (processCpuTimeNanos >= 0) {
+			return processCpuTimeNanos / 1000000;
+		}
+		// fall back to adding up the threads
 		long total = 0;
-		for (long id : threadMxBean.getAllThreadIds()) {
-			long cpuTime = threadMxBean.getThreadCpuTime(id);
+		for (long cpuTime : getThreadCpuNanos(threadMxBean.getAllThreadIds())) {
 			if (cpuTime > 0) {
 				total += cpuTime;
 			}
@@ -165,45 +254,138 @@ public class SystemMetricsPublisher implements MetricsUpdater {
 		return currentCpuMillis;
 	}
 
-	private double calcLoadAveragePercentage() {
+	private long[] getThreadCpuNanos(long[] ids) {
+		if (bulkThreadMxBean != null) {
+			return bulkThreadMxBean.getThreadCpuTime(ids);
+		}
+		long[] cpuTimes = new long[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			cpuTimes[i] = threadMxBean.getThreadCpuTime(ids[i]);
+		}
+		return cpuTimes;
+	}
+
+	private double calcLoadAveragePercentage(long currentCpuTimeMillis) {
 		long now = System.currentTimeMillis();
 		if (lastCpuPollTimeMillis == 0) {
 			lastCpuPollTimeMillis = now;
+			lastCpuTimeMillis = currentCpuTimeMillis;
+			return 0;
 		}
 		long timeDiff = now - lastCpuPollTimeMillis;
 		if (timeDiff == 0) {
 			timeDiff = 1;
 		}
-		long currentCpuTimeMillis = getTotalCpuTimeMillis();
-		if (lastCpuPollTimeMillis == 0) {
-			lastCpuTimeMillis = currentCpuTimeMillis;
-		}
 		long cpuDiff = currentCpuTimeMillis - lastCpuTimeMillis;
+		lastCpuPollTimeMillis = now;
+		lastCpuTimeMillis = currentCpuTimeMillis;
 		double loadAvg = (double) cpuDiff / (double) timeDiff;
 		return loadAvg;
 	}
 
-	private double extractProcessLoadAveragePercentage() {
+	private void extractProcessCpu() {
+		processCpuLoad = 0.0;
+		processCpuTimeNanos = -1;
 		AttributeList list;
 		try {
-			list = mbeanServer.getAttributes(operatingSystemObject, new String[] { "ProcessCpuLoad" });
+			list = mbeanServer.getAttributes(operatingSystemObject,
+					new String[] { "ProcessCpuLoad", "ProcessCpuTime" });
 		} catch (Exception e) {
 			// ignore it
-			return 0.0;
+			return;
+		}
+		for (Object obj : list) {
+			Attribute att = (Attribute) obj;
+			if ("ProcessCpuLoad".equals(att.getName())) {
+				double value = (Double) att.getValue();
+				// usually takes a couple of seconds before we get real values
+				if (value > 0.0) {
+					// returns a percentage value;
+					processCpuLoad = value * 100.0;
+				}
+			} else if ("ProcessCpuTime".equals(att.getName())) {
+				processCpuTimeNanos = (Long) att.getValue();
+			}
+		}
+	}
+
+	private void updateThreadGroupCpu() {
+		long[] ids = threadMxBean.getAllThreadIds();
+		long[] cpuTimes = getThreadCpuNanos(ids);
+		// no stack traces so this is just the names
+		ThreadInfo[] infos = threadMxBean.getThreadInfo(ids);
+		Map<Long, Long> threadCpuNanos = new HashMap<Long, Long>(ids.length * 2);
+		Map<String, Long> groupCpuNanos = new HashMap<String, Long>();
+		for (int i = 0; i < ids.length; i++) {
+			if (infos[i] == null || cpuTimes[i] < 0) {
+				// thread has died or cpu time is not supported
+				continue;
+			}
+			threadCpuNanos.put(ids[i], cpuTimes[i]);
+			if (lastThreadCpuNanos == null) {
+				// first time through so we just record the times
+				continue;
+			}
+			Long lastNanos = lastThreadCpuNanos.get(ids[i]);
+			long diff = cpuTimes[i] - (lastNanos == null ? 0 : lastNanos);
+			String groupName = threadGroupName(infos[i].getThreadName());
+			Long groupNanos = groupCpuNanos.get(groupName);
+			groupCpuNanos.put(groupName, (groupNanos == null ? diff : groupNanos + diff));
 		}
-		if (list.isEmpty()) {
-			return 0.0;
+		lastThreadCpuNanos = threadCpuNanos;
+		for (Map.Entry<String, Long> entry : groupCpuNanos.entrySet()) {
+			threadGroupMetric(entry.getKey()).add(entry.getValue() / 1000);
 		}
+	}
 
-		Attribute att = (Attribute) list.get(0);
-		Double value = (Double) att.getValue();
+	private ControlledMetricAccum threadGroupMetric(String groupName) {
+		synchronized (threadGroupMetrics) {
+			ControlledMetricAccum metric = threadGroupMetrics.get(groupName);
+			if (metric != null) {
+				return metric;
+			}
+			if (threadGroupMetrics.size() >= maxThreadGroups) {
+				groupName = OTHER_THREAD_GROUP_NAME;
+				metric = threadGroupMetrics.get(groupName);
+				if (metric != null) {
+					return metric;
+				}
+			}
+			metric = new ControlledMetricAccum(METRIC_COMPONENT_NAME, THREAD_GROUP_MODULE_NAME, groupName,
+					"Cpu time used by the threads named " + groupName, "microseconds");
+			threadGroupMetrics.put(groupName, metric);
+			metricsManager.registerMetric(metric);
+			return metric;
+		}
+	}
 
-		// usually takes a couple of seconds before we get real values
-		if (value < 0.0) {
-			return 0.0;
-		} else {
-			// returns a percentage value;
-			return value * 100.0;
+	/**
+	 * Return the name of the thread without the trailing numbers and separators so "pool-1-thread-12" becomes
+	 * "pool-1-thread". Characters other than letters, digits, '-', and '_' are changed to '_' so it can be used as a
+	 * metric name.
+	 */
+	static String threadGroupName(String threadName) {
+		int end = threadName.length();
+		while (end > 0) {
+			char ch = threadName.charAt(end - 1);
+			if (Character.isDigit(ch) || ch == '-' || ch == '_' || ch == '#' || ch == ' ' || ch == '.') {
+				end--;
+			} else {
+				break;
+			}
+		}
+		if (end == 0) {
+			return OTHER_THREAD_GROUP_NAME;
+		}
+		StringBuilder sb = new StringBuilder(end);
+		for (int i = 0; i < end; i++) {
+			char ch = threadName.charAt(i);
+			if (Character.isLetterOrDigit(ch) || ch == '-' || ch == '_') {
+				sb.append(ch);
+			} else {
+				sb.append('_');
+			}
 		}
+		return sb.toString();
 	}
 }
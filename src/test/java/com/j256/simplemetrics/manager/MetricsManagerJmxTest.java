@@ -1,11 +1,24 @@
 package com.j256.simplemetrics.manager;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.management.JMException;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
 
 import org.junit.Test;
 
 import com.j256.simplejmx.server.JmxServer;
 import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
 
 public class MetricsManagerJmxTest {
 
@@ -30,4 +43,57 @@ public class MetricsManagerJmxTest {
 			jmxServer.stop();
 		}
 	}
+
+	@Test
+	public void testCachedValues() {
+		MetricsManager manager = new MetricsManager();
+		final AtomicInteger updateCount = new AtomicInteger();
+		manager.registerUpdater(new MetricsUpdater() {
+			@Override
+			public void updateMetrics() {
+				updateCount.incrementAndGet();
+			}
+		});
+		ControlledMetricValue value = new ControlledMetricValue("comp", "mod", "value", "desc", "unit");
+		manager.registerMetric(value);
+		ControlledMetricValue other = new ControlledMetricValue("comp", "mod", "other", "desc", "unit");
+		manager.registerMetric(other);
+		value.adjustValue(2);
+		other.adjustValue(3);
+
+		MetricsManagerJmx managerJmx = new MetricsManagerJmx(manager, null);
+		managerJmx.setMaxStaleMillis(1000000);
+		String[] values = managerJmx.getMetricValues();
+		assertEquals(2, values.length);
+		assertTrue(Arrays.asList(values).contains("comp.mod.value=2.0"));
+		TabularData table = managerJmx.getMetricValuesTable();
+		// only updated once
+		assertSame(values, managerJmx.getMetricValues());
+		assertEquals(1, updateCount.get());
+		assertEquals(1, managerJmx.getCacheRefreshCount());
+
+		CompositeData valueRow = table.get(new Object[] { "comp.mod.value" });
+		assertEquals(2.0, (Double) valueRow.get("value"), 0);
+		assertEquals(1, valueRow.get("numSamples"));
+		assertEquals("unit", valueRow.get("unit"));
+		CompositeData otherRow = table.get(new Object[] { "comp.mod.other" });
+
+		managerJmx.setMaxStaleMillis(0);
+		value.adjustValue(4);
+		manager.unregisterMetric(other);
+		ControlledMetricValue third = new ControlledMetricValue("comp", "mod", "third", "desc", "unit");
+		manager.registerMetric(third);
+		table = managerJmx.getMetricValuesTable();
+		assertEquals(2, updateCount.get());
+		assertEquals(2, table.size());
+		assertEquals(3.0, (Double) table.get(new Object[] { "comp.mod.value" }).get("value"), 0);
+		assertNull(table.get(new Object[] { "comp.mod.other" }));
+		assertNotNull(otherRow);
+
+		// rows that haven't changed are reused
+		CompositeData thirdRow = table.get(new Object[] { "comp.mod.third" });
+		table = managerJmx.getMetricValuesTable();
+		assertSame(thirdRow, table.get(new Object[] { "comp.mod.third" }));
+		assertNotSame(valueRow, table.get(new Object[] { "comp.mod.value" }));
+	}
 }
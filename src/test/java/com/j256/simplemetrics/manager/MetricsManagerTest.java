@@ -5,23 +5,41 @@ import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.easymock.EasyMock;
 import org.junit.Test;
 
+import com.j256.simplemetrics.manager.PersisterDispatcher.PersistTask;
 import com.j256.simplemetrics.metric.ControlledMetric;
 import com.j256.simplemetrics.metric.ControlledMetricAccum;
 import com.j256.simplemetrics.metric.ControlledMetricValue;
 import com.j256.simplemetrics.metric.MetricValueDetails;
+import com.j256.simplemetrics.metric.MetricsSnapshot;
 import com.j256.simplemetrics.persister.MetricDetailsPersister;
 import com.j256.simplemetrics.persister.MetricValuesPersister;
+import com.j256.simplemetrics.persister.MetricsSnapshotPersister;
 
 public class MetricsManagerTest {
 
@@ -88,6 +106,162 @@ public class MetricsManagerTest {
 		assertEquals(before + 1, updater.pollCount);
 	}
 
+	@Test
+	public void testParallelUpdaters() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			manager.setUpdaterExecutor(executor);
+			manager.setUpdaterTimeoutMillis(100);
+			final CountDownLatch hungLatch = new CountDownLatch(1);
+			MetricsUpdater hungUpdater = new MetricsUpdater() {
+				@Override
+				public void updateMetrics() {
+					try {
+						hungLatch.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			manager.registerUpdater(hungUpdater);
+			LocalMetricsUpdater updater = new LocalMetricsUpdater();
+			manager.registerUpdater(updater);
+			UpdaterDispatcher[] dispatchers = manager.getUpdaterDispatchers();
+			assertEquals(2, dispatchers.length);
+			assertSame(hungUpdater, dispatchers[0].getUpdater());
+
+			long startMillis = System.currentTimeMillis();
+			manager.updateMetrics();
+			assertTrue(System.currentTimeMillis() - startMillis < 2000);
+			assertEquals(1, updater.pollCount);
+			assertEquals(1, dispatchers[0].getTimedOutCount());
+			assertTrue(dispatchers[0].isRunning());
+
+			// the hung one is skipped instead of being called again
+			startMillis = System.currentTimeMillis();
+			manager.updateMetrics();
+			assertTrue(System.currentTimeMillis() - startMillis < 100);
+			assertEquals(2, updater.pollCount);
+			assertEquals(1, dispatchers[0].getSkippedCount());
+			assertEquals(0, dispatchers[0].getRunCount());
+
+			// the latency is measured from when the updater started which can be after it was dispatched
+			Thread.sleep(100);
+			hungLatch.countDown();
+			while (dispatchers[0].isRunning()) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, dispatchers[0].getRunCount());
+			assertTrue(dispatchers[0].getLatencyMetric().getValueDetails().getMax().longValue() >= 100);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testUpdaterTimeouts() throws Exception {
+		final MetricsManager manager = new MetricsManager();
+		ExecutorService executor = Executors.newCachedThreadPool();
+		final CountDownLatch hungLatch = new CountDownLatch(1);
+		try {
+			manager.setUpdaterExecutor(executor);
+			MetricsUpdater hungUpdater = new MetricsUpdater() {
+				@Override
+				public void updateMetrics() {
+					try {
+						hungLatch.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			manager.registerUpdater(hungUpdater);
+			manager.registerUpdater(hungUpdater, 0, 10000000);
+			// set after the updaters were registered
+			manager.setUpdaterTimeoutMillis(100);
+			UpdaterDispatcher[] dispatchers = manager.getUpdaterDispatchers();
+			assertEquals(0, dispatchers[0].getTimeoutMillis());
+			assertEquals(10000000, dispatchers[1].getTimeoutMillis());
+
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					manager.updateMetrics();
+				}
+			};
+			thread.start();
+			thread.join(1000);
+			// we are still waiting on the one with its own long timeout
+			assertTrue(thread.isAlive());
+			assertEquals(1, dispatchers[0].getTimedOutCount());
+			assertEquals(0, dispatchers[1].getTimedOutCount());
+			hungLatch.countDown();
+			thread.join();
+			assertEquals(0, dispatchers[1].getTimedOutCount());
+			assertEquals(1, dispatchers[1].getRunCount());
+		} finally {
+			hungLatch.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testUpdaterRefreshIntervalAndFailures() {
+		MetricsManager manager = new MetricsManager();
+		LocalMetricsUpdater updater = new LocalMetricsUpdater();
+		manager.registerUpdater(updater, 1000000);
+		final RuntimeException expected = new RuntimeException("expected");
+		manager.registerUpdater(new MetricsUpdater() {
+			@Override
+			public void updateMetrics() {
+				throw expected;
+			}
+		});
+		manager.updateMetrics();
+		manager.updateMetrics();
+		// only called once in the interval
+		assertEquals(1, updater.pollCount);
+		UpdaterDispatcher failing = manager.getUpdaterDispatchers()[1];
+		assertEquals(2, failing.getFailedCount());
+		assertSame(expected, failing.getLastFailure());
+	}
+
+	@Test
+	public void testUpdaterLatencyExcludesEarlierUpdaters() {
+		MetricsManager manager = new MetricsManager();
+		manager.registerUpdater(new MetricsUpdater() {
+			@Override
+			public void updateMetrics() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		manager.registerUpdater(new LocalMetricsUpdater());
+		manager.updateMetrics();
+		UpdaterDispatcher[] dispatchers = manager.getUpdaterDispatchers();
+		assertTrue(dispatchers[0].getLatencyMetric().getValueDetails().getMax().longValue() >= 200);
+		// the second updater does not include the time of the first
+		assertTrue(dispatchers[1].getLatencyMetric().getValueDetails().getMax().longValue() < 200);
+	}
+
+	@Test
+	public void testUpdaterMetrics() {
+		MetricsManager manager = new MetricsManager();
+		manager.registerUpdater(new LocalMetricsUpdater());
+		manager.setRegisterUpdaterMetrics(true);
+		manager.registerUpdater(new LocalMetricsUpdater());
+		assertNotNull(manager.getMetric("metrics", "updaters", "LocalMetricsUpdater"));
+		assertNotNull(manager.getMetric("metrics", "updaters", "LocalMetricsUpdater2"));
+		manager.updateMetrics();
+		assertEquals(1, manager.getUpdaterDispatchers()[1].getLatencyMetric().getValueDetails().getNumSamples());
+		manager.setRegisterUpdaterMetrics(false);
+		assertTrue(manager.getMetrics().isEmpty());
+	}
+
 	@Test
 	public void testValuesPersister() throws Exception {
 		MetricsManager manager = new MetricsManager();
@@ -273,6 +447,483 @@ public class MetricsManagerTest {
 		verify(detailsPersister, valuesPersister);
 	}
 
+	@Test
+	public void testGetMetric() {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricValue metric = new ControlledMetricValue("comp", "mod", "name", "desc", null);
+		ControlledMetricValue noModule = new ControlledMetricValue("comp", null, "name", "desc", null);
+		assertNull(manager.getMetric("comp", "mod", "name"));
+		manager.registerMetric(metric);
+		manager.registerMetric(noModule);
+		assertSame(metric, manager.getMetric("comp", "mod", "name"));
+		assertSame(noModule, manager.getMetric("comp", null, "name"));
+		assertNull(manager.getMetric("comp", "mod", "other"));
+		manager.unregisterMetric(metric);
+		assertNull(manager.getMetric("comp", "mod", "name"));
+		assertEquals(1, manager.getMetrics().size());
+	}
+
+	@Test
+	public void testRegisterReplaces() {
+		MetricsManager manager = new MetricsManager();
+		TestRegisterListener listener = new TestRegisterListener();
+		manager.registerRegisterListener(listener);
+		ControlledMetricValue metric = new ControlledMetricValue("comp", "mod", "name", "desc", null);
+		manager.registerMetric(metric);
+		// registering the same metric again does nothing
+		manager.registerMetric(metric);
+		assertEquals(1, listener.registerCount);
+		ControlledMetricAccum replacement = new ControlledMetricAccum("comp", "mod", "name", "desc", null);
+		manager.registerMetric(replacement);
+		assertEquals(1, manager.getMetrics().size());
+		assertSame(replacement, manager.getMetric("comp", "mod", "name"));
+		assertEquals(2, listener.registerCount);
+		assertEquals(1, listener.unregisterCount);
+		// the replaced metric is no longer registered
+		manager.unregisterMetric(metric);
+		assertEquals(1, listener.unregisterCount);
+		assertEquals(1, manager.getMetrics().size());
+	}
+
+	@Test
+	public void testGetOrCreateMetric() {
+		MetricsManager manager = new MetricsManager();
+		TestRegisterListener listener = new TestRegisterListener();
+		manager.registerRegisterListener(listener);
+		AccumFactory factory = new AccumFactory();
+		ControlledMetricAccum metric =
+				manager.getOrCreateMetric("comp", "tenant1", "hits", ControlledMetricAccum.class, factory);
+		assertNotNull(metric);
+		assertEquals("tenant1", metric.getModule());
+		assertEquals(1, factory.createCount);
+		assertEquals(1, listener.registerCount);
+		assertSame(metric, manager.getOrCreateMetric("comp", "tenant1", "hits", ControlledMetricAccum.class, factory));
+		assertEquals(1, factory.createCount);
+		assertEquals(1, listener.registerCount);
+		assertSame(metric, manager.getMetric("comp", "tenant1", "hits"));
+		assertEquals(1, manager.getMetrics().size());
+	}
+
+	@Test
+	public void testGetOrCreateMetricBlankModule() {
+		MetricsManager manager = new MetricsManager();
+		AccumFactory factory = new AccumFactory();
+		ControlledMetricAccum metric =
+				manager.getOrCreateMetric("comp", "", "hits", ControlledMetricAccum.class, factory);
+		assertNull(metric.getModule());
+		assertSame(metric, manager.getOrCreateMetric("comp", null, "hits", ControlledMetricAccum.class, factory));
+		assertSame(metric, manager.getOrCreateMetric("comp", " ", "hits", ControlledMetricAccum.class, factory));
+		assertSame(metric, manager.getMetric("comp", "", "hits"));
+		assertEquals(1, factory.createCount);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetOrCreateMetricWrongClass() {
+		MetricsManager manager = new MetricsManager();
+		manager.registerMetric(new ControlledMetricValue("comp", "mod", "name", "desc", null));
+		manager.getOrCreateMetric("comp", "mod", "name", ControlledMetricAccum.class, new AccumFactory());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetOrCreateMetricFactoryMismatch() {
+		MetricsManager manager = new MetricsManager();
+		manager.getOrCreateMetric("comp", "mod", "name", ControlledMetricAccum.class,
+				new MetricFactory<ControlledMetricAccum>() {
+					@Override
+					public ControlledMetricAccum createMetric(String component, String module, String name) {
+						return new ControlledMetricAccum(component, module, "wrong", null, null);
+					}
+				});
+	}
+
+	@Test(timeout = 10000)
+	public void testConcurrentChurn() throws Exception {
+		final MetricsManager manager = new MetricsManager();
+		TestValuesPersister persister = new TestValuesPersister();
+		manager.setMetricValuesPersisters(new MetricValuesPersister[] { persister });
+		final int numThreads = 4;
+		final int numMetrics = 1000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final String module = "tenant" + i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					AccumFactory factory = new AccumFactory();
+					for (int j = 0; j < numMetrics; j++) {
+						ControlledMetricAccum metric = manager.getOrCreateMetric("comp", module, "hits" + j,
+								ControlledMetricAccum.class, factory);
+						metric.increment();
+						if (j % 2 == 1) {
+							manager.unregisterMetric(metric);
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		// persist while the metrics are being changed
+		for (int i = 0; i < 10; i++) {
+			manager.persist();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(numThreads * numMetrics / 2, manager.getMetrics().size());
+		manager.persist();
+		assertEquals(numThreads * numMetrics / 2, persister.lastValueMap.size());
+	}
+
+	@Test(timeout = 10000)
+	public void testPersisterExecutor() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			MetricsManager manager = new MetricsManager();
+			ControlledMetricAccum metric = new ControlledMetricAccum("comp", "mod", "label", "desc", null);
+			manager.registerMetric(metric);
+			metric.add(10);
+			BlockingPersister slowPersister = new BlockingPersister();
+			TestValuesPersister fastPersister = new TestValuesPersister();
+			TestDetailsPersister detailsPersister = new TestDetailsPersister();
+			manager.setMetricValuesPersisters(new MetricValuesPersister[] { slowPersister, fastPersister });
+			manager.setMetricDetailsPersisters(new MetricDetailsPersister[] { detailsPersister });
+			manager.setPersisterExecutor(executor);
+			manager.setPersisterQueueSize(1);
+			manager.setWaitForPersisters(false);
+
+			// returns even though the slow persister is blocked
+			manager.persist();
+			assertTrue(slowPersister.started.await(5, TimeUnit.SECONDS));
+			waitForCompleted(manager, fastPersister, 1);
+			assertEquals(10, fastPersister.lastValueMap.get(metric).longValue());
+			waitForCompleted(manager, detailsPersister, 1);
+			assertEquals(10, detailsPersister.lastValueMap.get(metric).getValue().longValue());
+
+			// second snapshot is queued and the third is dropped for the slow persister only
+			manager.persist();
+			manager.persist();
+			waitForCompleted(manager, fastPersister, 3);
+			PersisterDispatcher slowDispatcher = findDispatcher(manager, slowPersister);
+			assertEquals(3, slowDispatcher.getDispatchedCount());
+			assertEquals(1, slowDispatcher.getDroppedCount());
+			assertEquals(0, slowDispatcher.getCompletedCount());
+			assertEquals(3, manager.getPersistCount());
+
+			slowPersister.release.countDown();
+			waitForCompleted(manager, slowPersister, 3);
+			assertEquals(2, slowDispatcher.getCompletedCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testPersisterExecutorTimeout() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			MetricsManager manager = new MetricsManager();
+			BlockingPersister slowPersister = new BlockingPersister();
+			TestValuesPersister fastPersister = new TestValuesPersister();
+			manager.setMetricValuesPersisters(new MetricValuesPersister[] { slowPersister, fastPersister });
+			manager.setPersisterExecutor(executor);
+			manager.setPersisterTimeoutMillis(100);
+			try {
+				manager.persist();
+				fail("Should have thrown");
+			} catch (IOException ioe) {
+				// expected
+			}
+			// the fast one still ran
+			assertNotNull(fastPersister.lastValueMap);
+			// make sure we are well past the timeout
+			Thread.sleep(100);
+			slowPersister.release.countDown();
+			waitForCompleted(manager, slowPersister, 1);
+			assertEquals(1, findDispatcher(manager, slowPersister).getTimedOutCount());
+			assertEquals(0, findDispatcher(manager, fastPersister).getTimedOutCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testPersisterSettings() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			MetricsManager manager = new MetricsManager();
+			BlockingPersister slowPersister = new BlockingPersister();
+			TestValuesPersister fastPersister = new TestValuesPersister();
+			manager.setMetricValuesPersisters(new MetricValuesPersister[] { slowPersister, fastPersister });
+			manager.setPersisterExecutor(executor);
+			manager.setWaitForPersisters(false);
+			manager.setPersisterTimeoutMillis(slowPersister, 100000);
+			manager.setPersisterQueueSize(slowPersister, 5);
+			manager.persist();
+			waitForCompleted(manager, fastPersister, 1);
+			PersisterDispatcher slowDispatcher = findDispatcher(manager, slowPersister);
+			assertEquals(100000, slowDispatcher.getTimeoutMillis());
+			assertEquals(5, slowDispatcher.getMaxQueueSize());
+			PersisterDispatcher fastDispatcher = findDispatcher(manager, fastPersister);
+			assertEquals(MetricsManager.DEFAULT_PERSISTER_TIMEOUT_MILLIS, fastDispatcher.getTimeoutMillis());
+			assertEquals(MetricsManager.DEFAULT_PERSISTER_QUEUE_SIZE, fastDispatcher.getMaxQueueSize());
+
+			// the counters are kept when the settings change
+			manager.setPersisterTimeoutMillis(1000);
+			manager.setPersisterQueueSize(slowPersister, 0);
+			manager.setMetricValuesPersisters(new MetricValuesPersister[] { fastPersister, slowPersister });
+			manager.persist();
+			waitForCompleted(manager, fastPersister, 2);
+			fastDispatcher = findDispatcher(manager, fastPersister);
+			assertEquals(1000, fastDispatcher.getTimeoutMillis());
+			assertEquals(2, fastDispatcher.getDispatchedCount());
+			assertEquals(2, fastDispatcher.getCompletedCount());
+			slowDispatcher = findDispatcher(manager, slowPersister);
+			assertEquals(100000, slowDispatcher.getTimeoutMillis());
+			assertEquals(MetricsManager.DEFAULT_PERSISTER_QUEUE_SIZE, slowDispatcher.getMaxQueueSize());
+			assertEquals(2, slowDispatcher.getDispatchedCount());
+
+			// the dispatcher of a persister that was removed is dropped
+			manager.setMetricValuesPersisters(new MetricValuesPersister[] { fastPersister });
+			assertEquals(1, manager.getPersisterDispatchers().length);
+
+			// the snapshots it already had are still persisted
+			slowPersister.release.countDown();
+			while (slowDispatcher.getCompletedCount() < 2) {
+				Thread.sleep(10);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testPersisterExecutorThrows() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			MetricsManager manager = new MetricsManager();
+			final IOException thrown = new IOException("fail");
+			MetricValuesPersister throwingPersister = new MetricValuesPersister() {
+				@Override
+				public void persist(Map<ControlledMetric<?, ?>, Number> metricValues, long timeCollectedMillis)
+						throws IOException {
+					throw thrown;
+				}
+			};
+			TestValuesPersister persister = new TestValuesPersister();
+			manager.setMetricValuesPersisters(new MetricValuesPersister[] { throwingPersister, persister });
+			manager.setPersisterExecutor(executor);
+			try {
+				manager.persist();
+				fail("Should have thrown");
+			} catch (IOException ioe) {
+				assertSame(thrown, ioe);
+			}
+			assertNotNull(persister.lastValueMap);
+			PersisterDispatcher dispatcher = findDispatcher(manager, throwingPersister);
+			assertEquals(1, dispatcher.getFailedCount());
+			assertSame(thrown, dispatcher.getLastFailure());
+			assertEquals(1, findDispatcher(manager, persister).getCompletedCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testSnapshotPersister() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", null);
+		ControlledMetricValue value = new ControlledMetricValue("comp", "mod", "value", "desc", null);
+		manager.registerMetric(accum);
+		manager.registerMetric(value);
+		TestSnapshotPersister snapshotPersister = new TestSnapshotPersister();
+		TestValuesPersister valuesPersister = new TestValuesPersister();
+		manager.setMetricsSnapshotPersisters(new MetricsSnapshotPersister[] { snapshotPersister });
+		manager.setMetricValuesPersisters(new MetricValuesPersister[] { valuesPersister });
+
+		accum.add(10);
+		value.adjustValue(3);
+		manager.persist();
+		MetricsSnapshot first = snapshotPersister.lastSnapshot;
+		assertEquals(2, snapshotPersister.lastValues.size());
+		assertEquals(10.0, snapshotPersister.lastValues.get(accum), 0);
+		assertEquals(3.0, snapshotPersister.lastValues.get(value), 0);
+		assertEquals(10L, valuesPersister.lastValueMap.get(accum));
+		assertFalse(first.isInUse());
+
+		// the snapshots are flipped between persists and then reused
+		manager.persist();
+		MetricsSnapshot second = snapshotPersister.lastSnapshot;
+		assertNotSame(first, second);
+		assertEquals(0.0, snapshotPersister.lastValues.get(accum), 0);
+		manager.persist();
+		assertSame(first, snapshotPersister.lastSnapshot);
+
+		// the value persisters only
+		manager.persistValuesOnly();
+		assertSame(first, snapshotPersister.lastSnapshot);
+
+		// unregistered metrics leave a hole that is reused
+		manager.unregisterMetric(accum);
+		manager.persist();
+		assertEquals(1, snapshotPersister.lastValues.size());
+		ControlledMetricAccum accum2 = new ControlledMetricAccum("comp", "mod", "accum2", "desc", null);
+		manager.registerMetric(accum2);
+		manager.persist();
+		assertEquals(2, snapshotPersister.lastValues.size());
+		assertEquals(2, snapshotPersister.lastSnapshot.getSize());
+	}
+
+	@Test
+	public void testMetricIdsReusedAfterSnapshot() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		TestSnapshotPersister snapshotPersister = new TestSnapshotPersister();
+		manager.setMetricsSnapshotPersisters(new MetricsSnapshotPersister[] { snapshotPersister });
+		ControlledMetricAccum accum1 = new ControlledMetricAccum("comp", "mod", "accum1", "desc", null);
+		manager.registerMetric(accum1);
+		manager.persist();
+		// the id of the unregistered metric isn't reused until after the next snapshot
+		manager.unregisterMetric(accum1);
+		ControlledMetricAccum accum2 = new ControlledMetricAccum("comp", "mod", "accum2", "desc", null);
+		manager.registerMetric(accum2);
+		manager.persist();
+		assertEquals(2, snapshotPersister.lastSnapshot.getSize());
+		assertEquals(1, snapshotPersister.lastValues.size());
+		ControlledMetricAccum accum3 = new ControlledMetricAccum("comp", "mod", "accum3", "desc", null);
+		manager.registerMetric(accum3);
+		manager.persist();
+		assertEquals(2, snapshotPersister.lastSnapshot.getSize());
+		assertEquals(2, snapshotPersister.lastValues.size());
+	}
+
+	@Test
+	public void testRejectedPersisterReleasesSnapshots() {
+		final List<PersistTask> tasks = new ArrayList<PersistTask>();
+		final AtomicInteger released = new AtomicInteger();
+		final Callable<Void> call = new Callable<Void>() {
+			@Override
+			public Void call() {
+				return null;
+			}
+		};
+		final Runnable dropHandler = new Runnable() {
+			@Override
+			public void run() {
+				released.incrementAndGet();
+			}
+		};
+		final AtomicReference<PersisterDispatcher> dispatcherRef = new AtomicReference<PersisterDispatcher>();
+		Executor executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				// another persist queues up a task behind us before we are rejected
+				tasks.add(dispatcherRef.get().dispatch(call, dropHandler));
+				throw new RejectedExecutionException("rejected");
+			}
+		};
+		PersisterDispatcher dispatcher = new PersisterDispatcher("persister", executor, 1000, 2);
+		dispatcherRef.set(dispatcher);
+		assertNull(dispatcher.dispatch(call, dropHandler));
+		// the other task was returned but then dropped so both have been released
+		assertNotNull(tasks.get(0));
+		assertTrue(tasks.get(0).isDone());
+		assertEquals(2, released.get());
+		assertEquals(2, dispatcher.getDroppedCount());
+	}
+
+	@Test(timeout = 10000)
+	public void testSnapshotInUse() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			MetricsManager manager = new MetricsManager();
+			ControlledMetricAccum metric = new ControlledMetricAccum("comp", "mod", "label", "desc", null);
+			manager.registerMetric(metric);
+			BlockingPersister slowPersister = new BlockingPersister();
+			TestSnapshotPersister snapshotPersister = new TestSnapshotPersister();
+			manager.setMetricValuesPersisters(new MetricValuesPersister[] { slowPersister });
+			manager.setMetricsSnapshotPersisters(new MetricsSnapshotPersister[] { snapshotPersister });
+			manager.setPersisterExecutor(executor);
+			manager.setWaitForPersisters(false);
+
+			manager.persist();
+			assertTrue(slowPersister.started.await(5, TimeUnit.SECONDS));
+			waitForCompleted(manager, snapshotPersister, 1);
+			MetricsSnapshot first = snapshotPersister.lastSnapshot;
+			// still in use by the slow persister
+			assertTrue(first.isInUse());
+			manager.persist();
+			waitForCompleted(manager, snapshotPersister, 2);
+			manager.persist();
+			waitForCompleted(manager, snapshotPersister, 3);
+			// so a new snapshot had to be allocated
+			assertNotSame(first, snapshotPersister.lastSnapshot);
+
+			slowPersister.release.countDown();
+			waitForCompleted(manager, slowPersister, 3);
+			assertFalse(first.isInUse());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void waitForCompleted(MetricsManager manager, Object persister, long count) throws InterruptedException {
+		PersisterDispatcher dispatcher = findDispatcher(manager, persister);
+		while (dispatcher.getCompletedCount() + dispatcher.getFailedCount() + dispatcher.getDroppedCount() < count) {
+			Thread.sleep(10);
+		}
+	}
+
+	private PersisterDispatcher findDispatcher(MetricsManager manager, Object persister) {
+		for (PersisterDispatcher dispatcher : manager.getPersisterDispatchers()) {
+			if (dispatcher.getPersister() == persister) {
+				return dispatcher;
+			}
+		}
+		fail("Could not find dispatcher for " + persister);
+		return null;
+	}
+
+	private static class BlockingPersister implements MetricValuesPersister {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public void persist(Map<ControlledMetric<?, ?>, Number> metricValues, long timeCollectedMillis)
+				throws IOException {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+	}
+
+	private static class AccumFactory implements MetricFactory<ControlledMetricAccum> {
+		int createCount;
+
+		@Override
+		public ControlledMetricAccum createMetric(String component, String module, String name) {
+			createCount++;
+			return new ControlledMetricAccum(component, module, name, null, null);
+		}
+	}
+
+	private static class TestRegisterListener implements MetricsRegisterListener {
+		int registerCount;
+		int unregisterCount;
+
+		@Override
+		public void metricRegistered(ControlledMetric<?, ?> metric) {
+			registerCount++;
+		}
+
+		@Override
+		public void metricUnregistered(ControlledMetric<?, ?> metric) {
+			unregisterCount++;
+		}
+	}
+
 	private static class LocalMetricsUpdater implements MetricsUpdater {
 
 		int pollCount = 0;
@@ -284,7 +935,7 @@ public class MetricsManagerTest {
 	}
 
 	private static class TestValuesPersister implements MetricValuesPersister {
-		Map<ControlledMetric<?, ?>, Number> lastValueMap;
+		volatile Map<ControlledMetric<?, ?>, Number> lastValueMap;
 
 		@Override
 		public void persist(Map<ControlledMetric<?, ?>, Number> metricValues, long timeCollectedMillis) {
@@ -292,8 +943,27 @@ public class MetricsManagerTest {
 		}
 	}
 
+	private static class TestSnapshotPersister implements MetricsSnapshotPersister {
+		volatile MetricsSnapshot lastSnapshot;
+		volatile Map<ControlledMetric<?, ?>, Double> lastValues;
+
+		@Override
+		public void persist(MetricsSnapshot snapshot) {
+			// the snapshot is reused so we have to copy the values out
+			Map<ControlledMetric<?, ?>, Double> values = new HashMap<ControlledMetric<?, ?>, Double>();
+			for (int id = 0; id < snapshot.getSize(); id++) {
+				ControlledMetric<?, ?> metric = snapshot.getMetric(id);
+				if (metric != null) {
+					values.put(metric, snapshot.getValue(id));
+				}
+			}
+			lastValues = values;
+			lastSnapshot = snapshot;
+		}
+	}
+
 	private static class TestDetailsPersister implements MetricDetailsPersister {
-		Map<ControlledMetric<?, ?>, MetricValueDetails> lastValueMap;
+		volatile Map<ControlledMetric<?, ?>, MetricValueDetails> lastValueMap;
 
 		@Override
 		public void persist(Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetails,
@@ -1,10 +1,21 @@
 package com.j256.simplemetrics.manager;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
+import com.j256.simplemetrics.metric.MetricsSnapshot;
 import com.j256.simplemetrics.persister.MetricsPersisterJob;
+import com.j256.simplemetrics.persister.MetricsSnapshotPersister;
 
 public class MetricsPersisterJobTest {
 
@@ -78,4 +89,82 @@ public class MetricsPersisterJobTest {
 		job.destroyAndJoin();
 		assertEquals(0, manager.getPersistCount());
 	}
+
+	@Test
+	public void testFailuresAndOverruns() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		final AtomicInteger persistCount = new AtomicInteger();
+		manager.setMetricsSnapshotPersisters(new MetricsSnapshotPersister[] { new MetricsSnapshotPersister() {
+			@Override
+			public void persist(MetricsSnapshot snapshot) throws IOException {
+				if (persistCount.incrementAndGet() == 1) {
+					throw new IOException("expected");
+				}
+				try {
+					// longer than the period
+					Thread.sleep(120);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		} });
+
+		long millis = 50;
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		MetricsPersisterJob job = new MetricsPersisterJob();
+		job.setMetricsManager(manager);
+		job.setExecutorService(executor);
+		job.setDelayTimeMillis(0);
+		job.setPeriodTimeMillis(millis);
+		job.initialize();
+		assertTrue(manager.getMetrics().contains(job.getOverrunsMetric()));
+
+		Thread.sleep(millis * 6);
+		job.destroyAndJoin();
+		assertFalse(manager.getMetrics().contains(job.getOverrunsMetric()));
+		// shared executor is not shutdown
+		assertFalse(executor.isShutdown());
+		executor.shutdown();
+
+		assertEquals("expected", job.getLastException().getMessage());
+		assertEquals(1, job.getFailureCount());
+		assertTrue(job.getOverrunCount() >= 2);
+		assertTrue(job.getPersistTimeMillisMetric().getValueDetails().getMax().longValue() >= 120);
+		// skipped ticks don't pile up
+		assertTrue(persistCount.get() <= 4);
+	}
+
+	@Test
+	public void testAlignToPeriod() throws Exception {
+		final List<Long> times = new ArrayList<Long>();
+		MetricsManager manager = new MetricsManager();
+		manager.setMetricsSnapshotPersisters(new MetricsSnapshotPersister[] { new MetricsSnapshotPersister() {
+			@Override
+			public void persist(MetricsSnapshot snapshot) {
+				synchronized (times) {
+					times.add(snapshot.getTimeCollectedMillis());
+				}
+			}
+		} });
+
+		long millis = 100;
+		MetricsPersisterJob job = new MetricsPersisterJob();
+		job.setMetricsManager(manager);
+		job.setRegisterMetrics(false);
+		job.setDelayTimeMillis(0);
+		job.setPeriodTimeMillis(millis);
+		job.setAlignToPeriod(true);
+		job.initialize();
+		Thread.sleep(millis * 3 + millis / 2);
+		job.destroyAndJoin();
+
+		synchronized (times) {
+			assertTrue(times.size() >= 2);
+			for (long time : times) {
+				// within a bit of the wall-clock boundary
+				assertTrue("time " + time, time % millis < millis / 2);
+			}
+		}
+		assertTrue(manager.getMetrics().isEmpty());
+	}
 }
@@ -7,6 +7,9 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
@@ -159,4 +162,53 @@ public class ControlledMetricAccumTest {
 
 		assertEquals((long) (delta * numberIncrements), metric.getValue());
 	}
+
+	@Test
+	public void testStriped() {
+		ControlledMetricAccum metric = new ControlledMetricAccum("c", "m", "n", "d", null, true);
+		assertTrue(metric.isStriped());
+		assertEquals(0L, metric.getValue());
+		assertEquals(0L, metric.increment());
+		assertEquals(0L, metric.add(99));
+		metric.adjustValue(10L);
+		metric.adjustValue((Number) 5);
+		assertEquals(115L, metric.getValue());
+		assertEquals(115L, metric.getValueToPersist());
+		assertEquals(115L, metric.getValue());
+		assertEquals(0L, metric.getValueToPersist());
+
+		metric.add(50);
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(50L, details.getValue());
+		assertEquals(50, details.getNumSamples());
+		assertEquals(0L, metric.getValueDetailsToPersist().getValue());
+		assertFalse(new ControlledMetricAccum("c", "m", "n", "d", null).isStriped());
+	}
+
+	@Test
+	public void testStripedMultipleThreads() throws Exception {
+		final ControlledMetricAccum metric = new ControlledMetricAccum("c", "m", "n", "d", null, true);
+		final int numThreads = 8;
+		final int numIncrements = 10000;
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		for (int i = 0; i < numThreads; i++) {
+			pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numIncrements; j++) {
+						metric.increment();
+					}
+				}
+			});
+		}
+		// persist while the threads are incrementing to make sure that we don't lose anything
+		long total = 0;
+		for (int i = 0; i < 10; i++) {
+			total += metric.getValueToPersist().longValue();
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+		total += metric.getValueToPersist().longValue();
+		assertEquals((long) numThreads * numIncrements, total);
+	}
 }
@@ -0,0 +1,212 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ControlledMetricHistogramTest {
+
+	@Test
+	public void testStuff() {
+		String component = "comp";
+		String module = "mod";
+		String name = "name";
+		String description = "desc";
+		String unit = "unit";
+		ControlledMetricHistogram metric = new ControlledMetricHistogram(component, module, name, description, unit);
+		assertEquals(component, metric.getComponent());
+		assertEquals(module, metric.getModule());
+		assertEquals(name, metric.getName());
+		assertEquals(description, metric.getDescription());
+		assertEquals(unit, metric.getUnit());
+		assertEquals(ControlledMetric.AggregationType.AVERAGE, metric.getAggregationType());
+		assertArrayEquals(ControlledMetricHistogram.DEFAULT_PERCENTILES, metric.getPercentiles(), 0.0);
+		assertEquals(0.0, metric.getValue());
+		assertEquals(0, metric.getValueDetails().getNumSamples());
+	}
+
+	@Test
+	public void testValue() {
+		ControlledMetricHistogram metric = new ControlledMetricHistogram("c", "m", "n", "d", "u");
+		metric.adjustValue(100);
+		metric.adjustValue(1L);
+		metric.adjustValue((Number) 7);
+		assertEquals(36.0, metric.getValue());
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(3, details.getNumSamples());
+		assertEquals(1.0, details.getMin());
+		assertEquals(100.0, details.getMax());
+	}
+
+	@Test
+	public void testPercentiles() {
+		ControlledMetricHistogram metric = new ControlledMetricHistogram("c", "m", "n", "d", "u");
+		for (int i = 1; i <= 1000; i++) {
+			metric.adjustValue(i);
+		}
+		HistogramValueDetails details = metric.getValueDetails();
+		assertEquals(1000, details.getNumSamples());
+		assertEquals(500.5, details.getValue().doubleValue(), 0.0);
+		assertPercentile(500, details.getPercentile(50));
+		assertPercentile(900, details.getPercentile(90));
+		assertPercentile(990, details.getPercentile(99));
+		assertPercentile(999, details.getPercentile(99.9));
+		assertEquals(1.0, details.getPercentile(0), 0.0);
+		assertEquals(1000.0, details.getPercentile(100), 0.0);
+
+		double[] values = details.getPercentileValues();
+		assertEquals(ControlledMetricHistogram.DEFAULT_PERCENTILES.length, values.length);
+		assertEquals(details.getPercentile(99), values[2], 0.0);
+	}
+
+	@Test
+	public void testSmallAndLargeValues() {
+		ControlledMetricHistogram metric = new ControlledMetricHistogram("c", "m", "n", "d", "u");
+		metric.adjustValue(0);
+		metric.adjustValue(-5);
+		metric.adjustValue(Double.MAX_VALUE);
+		HistogramValueDetails details = metric.getValueDetails();
+		assertEquals(3, details.getNumSamples());
+		assertEquals(-5.0, details.getPercentile(10), 0.0);
+		assertEquals(Double.MAX_VALUE, details.getPercentile(99), 0.0);
+	}
+
+	@Test
+	public void testBuckets() {
+		assertEquals(0, ControlledMetricHistogram.bucketIndex(0));
+		assertEquals(0, ControlledMetricHistogram.bucketIndex(-1));
+		assertEquals(0, ControlledMetricHistogram.bucketIndex(Double.NaN));
+		assertEquals(ControlledMetricHistogram.NUM_BUCKETS - 1,
+				ControlledMetricHistogram.bucketIndex(Double.POSITIVE_INFINITY));
+		for (int i = 1; i < ControlledMetricHistogram.NUM_BUCKETS; i++) {
+			double lower = ControlledMetricHistogram.bucketLowerBound(i);
+			double upper = ControlledMetricHistogram.bucketUpperBound(i);
+			assertEquals(i, ControlledMetricHistogram.bucketIndex(lower));
+			assertEquals(i, ControlledMetricHistogram.bucketIndex(Math.nextDown(upper)));
+			assertEquals(upper, ControlledMetricHistogram.bucketLowerBound(i + 1), 0.0);
+		}
+	}
+
+	@Test
+	public void testBucketValues() {
+		ControlledMetricHistogram metric = new ControlledMetricHistogram("c", "m", "n", "d", "u");
+		metric.adjustValue(-5);
+		metric.adjustValue(10);
+		metric.adjustValue(10);
+		metric.adjustValue(20);
+		HistogramValueDetails details = metric.getValueDetails();
+		double[] values = details.getBucketValues();
+		long[] counts = details.getBucketCounts();
+		assertEquals(3, values.length);
+		assertArrayEquals(new long[] { 1, 2, 1 }, counts);
+		// the underflow bucket uses the min and the largest bucket is bounded by the max
+		assertEquals(-5.0, values[0], 0.0);
+		assertPercentile(10, values[1]);
+		assertEquals(details.getPercentile(50), values[1], 0.0);
+		assertEquals(20.0, values[2], 0.0);
+	}
+
+	@Test
+	public void testPersist() {
+		ControlledMetricHistogram metric = new ControlledMetricHistogram("c", "m", "n", "d", "u");
+		metric.adjustValue(10);
+		metric.adjustValue(20);
+		assertEquals(15L, metric.getValueToPersist());
+		// value is retained after the persist until the next adjustment
+		assertEquals(15.0, metric.getValue());
+		HistogramValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(2, details.getNumSamples());
+
+		metric.adjustValue(100);
+		details = metric.getValueDetailsToPersist();
+		assertEquals(1, details.getNumSamples());
+		assertEquals(100L, details.getValue());
+		assertEquals(100.0, details.getMin());
+		assertEquals(100.0, details.getMax());
+		assertPercentile(100, details.getPercentile(50));
+	}
+
+	@Test
+	public void testSumResetEachPersist() {
+		ControlledMetricHistogram metric = new ControlledMetricHistogram("c", "m", "n", "d", "u");
+		metric.adjustValue(1.0E20);
+		assertEquals(1.0E20, metric.getValueDetailsToPersist().getValue().doubleValue(), 0.0);
+		// small values would be lost in the precision of a sum that was never reset
+		metric.adjustValue(1);
+		metric.adjustValue(2);
+		assertEquals(1.5, metric.getValueDetailsToPersist().getValue());
+	}
+
+	@Test
+	public void testNonFiniteIgnored() {
+		ControlledMetricHistogram metric = new ControlledMetricHistogram("c", "m", "n", "d", "u");
+		metric.adjustValue(Double.NaN);
+		metric.adjustValue(Double.POSITIVE_INFINITY);
+		metric.adjustValue(Double.NEGATIVE_INFINITY);
+		metric.adjustValue(10);
+		HistogramValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(1, details.getNumSamples());
+		assertEquals(10L, details.getValue());
+		assertEquals(10.0, details.getMin());
+		assertEquals(10.0, details.getMax());
+	}
+
+	@Test
+	public void testMultipleThreads() throws Exception {
+		final ControlledMetricHistogram metric = new ControlledMetricHistogram("c", "m", "n", "d", "u");
+		final int numPerThread = 10000;
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 1; j <= numPerThread; j++) {
+						metric.adjustValue(j);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(threads.length * numPerThread, details.getNumSamples());
+		assertEquals((numPerThread + 1) / 2.0, details.getValue().doubleValue(), 0.0001);
+		assertEquals(1.0, details.getMin());
+		assertEquals((double) numPerThread, details.getMax());
+	}
+
+	@Test
+	public void testCustomPercentiles() {
+		ControlledMetricHistogram metric =
+				new ControlledMetricHistogram("c", "m", "n", "d", "u", new double[] { 75, 99.99 });
+		for (int i = 1; i <= 100; i++) {
+			metric.adjustValue(i);
+		}
+		HistogramValueDetails details = metric.getValueDetails();
+		assertArrayEquals(new double[] { 75, 99.99 }, details.getPercentiles(), 0.0);
+		assertPercentile(75, details.getPercentileValues()[0]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidPercentile() {
+		new ControlledMetricHistogram("c", "m", "n", "d", "u", new double[] { 101 });
+	}
+
+	@Test
+	public void testPercentileName() {
+		assertEquals("p50", HistogramValueDetails.percentileName(50));
+		assertEquals("p99", HistogramValueDetails.percentileName(99));
+		assertEquals("p999", HistogramValueDetails.percentileName(99.9));
+		assertEquals("p9999", HistogramValueDetails.percentileName(99.99));
+	}
+
+	private void assertPercentile(double expected, double value) {
+		// each bucket is 1/16th of a power of 2 so the midpoint is within 1/32nd of the value
+		assertTrue("expected " + expected + " but got " + value,
+				Math.abs(expected - value) <= expected / ControlledMetricHistogram.NUM_SUB_BUCKETS);
+	}
+}
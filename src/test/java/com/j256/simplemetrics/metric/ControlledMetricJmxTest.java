@@ -25,4 +25,15 @@ public class ControlledMetricJmxTest {
 		assertEquals(description, metricJmx.getDescription());
 		assertEquals(unit, metricJmx.getUnit());
 	}
+
+	@Test
+	public void testHistogram() {
+		ControlledMetricHistogram metric = new ControlledMetricHistogram("c", "m", "n", "d", "u");
+		ControlledMetricHistogramJmx metricJmx = new ControlledMetricHistogramJmx(metric, "com.j256",
+				new JmxFolderName[] { new JmxFolderName("metrics") });
+		metric.adjustValue(10);
+		String[] percentiles = metricJmx.getPercentiles();
+		assertEquals(ControlledMetricHistogram.DEFAULT_PERCENTILES.length, percentiles.length);
+		assertEquals("p50 = 10.0", percentiles[0]);
+	}
 }
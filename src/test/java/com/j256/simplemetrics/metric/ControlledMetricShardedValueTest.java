@@ -0,0 +1,87 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ControlledMetricShardedValueTest {
+
+	@Test
+	public void testSameAsValue() {
+		ControlledMetricValue metric = new ControlledMetricValue("c", "m", "n", "d", "u");
+		ControlledMetricShardedValue sharded = new ControlledMetricShardedValue("c", "m", "n", "d", "u", 4);
+		assertTrue(sharded.isPrimitiveRecording());
+		assertEquals(4, sharded.getNumShards());
+		assertEquals(metric.getValue(), sharded.getValue());
+
+		double[] values = new double[] { 10, 2.5, 100, -3, 7 };
+		for (double value : values) {
+			metric.adjustValue(value);
+			sharded.adjustValue(value);
+		}
+		metric.adjustValue(5L);
+		sharded.adjustValue(5L);
+		metric.adjustValue((Number) 12);
+		sharded.adjustValue((Number) 12);
+		assertDetailsEquals(metric.getValueDetails(), sharded.getValueDetails());
+		assertEquals(metric.getValueToPersist(), sharded.getValueToPersist());
+		// value is retained after the persist until the next adjustment
+		assertDetailsEquals(metric.getValueDetails(), sharded.getValueDetails());
+		assertDetailsEquals(metric.getValueDetailsToPersist(), sharded.getValueDetailsToPersist());
+
+		metric.adjustValue(1);
+		sharded.adjustValue(1);
+		assertDetailsEquals(metric.getValueDetailsToPersist(), sharded.getValueDetailsToPersist());
+		assertEquals(1, sharded.getValueDetails().getNumSamples());
+	}
+
+	@Test
+	public void testNumShardsRounded() {
+		assertEquals(8, new ControlledMetricShardedValue("c", "m", "n", "d", "u", 5).getNumShards());
+		assertEquals(1, new ControlledMetricShardedValue("c", "m", "n", "d", "u", 1).getNumShards());
+		assertTrue(new ControlledMetricShardedValue("c", "m", "n", "d", "u").getNumShards() >= 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroShards() {
+		new ControlledMetricShardedValue("c", "m", "n", "d", "u", 0);
+	}
+
+	@Test
+	public void testMultipleThreads() throws Exception {
+		final ControlledMetricShardedValue metric = new ControlledMetricShardedValue("c", "m", "n", "d", "u", 4);
+		final int numThreads = 8;
+		final int numAdjustments = 10000;
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		for (int i = 0; i < numThreads; i++) {
+			final int threadNum = i;
+			pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numAdjustments; j++) {
+						metric.adjustValue(threadNum);
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(numThreads * numAdjustments, details.getNumSamples());
+		assertEquals(0.0, details.getMin().doubleValue(), 0);
+		assertEquals(numThreads - 1, details.getMax().doubleValue(), 0);
+		assertEquals((numThreads - 1) / 2.0, details.getValue().doubleValue(), 0);
+	}
+
+	private void assertDetailsEquals(MetricValueDetails expected, MetricValueDetails details) {
+		assertEquals(expected.getValue(), details.getValue());
+		assertEquals(expected.getNumSamples(), details.getNumSamples());
+		assertEquals(expected.getMin(), details.getMin());
+		assertEquals(expected.getMax(), details.getMax());
+	}
+}
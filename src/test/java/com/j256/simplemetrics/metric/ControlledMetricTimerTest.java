@@ -1,6 +1,13 @@
 package com.j256.simplemetrics.metric;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
@@ -41,4 +48,78 @@ public class ControlledMetricTimerTest {
 		ControlledMetricTimer timer = new ControlledMetricTimer(this.getClass().getName(), null, "test", "desc");
 		manager.registerMetric(timer);
 	}
+
+	@Test
+	public void testPrimitiveRecording() {
+		ControlledMetricTimer timer = new ControlledMetricTimer(this.getClass().getName(), null, "test", "desc", true);
+		assertTrue(timer.isPrimitiveRecording());
+		long start = timer.start();
+		long elapsed = timer.stopAndAdd(start);
+		assertTrue(elapsed >= 0);
+		assertEquals(1, timer.getValueDetails().getNumSamples());
+		assertEquals(elapsed, timer.getValueToPersist().longValue());
+	}
+
+	@Test
+	public void testNanoTiming() throws Exception {
+		ControlledMetricTimer timer =
+				new ControlledMetricTimer(getClass().getName(), null, "test", "desc", TimeUnit.MICROSECONDS);
+		assertTrue(timer.isNanoTiming());
+		assertTrue(timer.isPrimitiveRecording());
+		assertEquals(TimeUnit.MICROSECONDS, timer.getTimeUnit());
+		assertEquals("microseconds", timer.getUnit());
+		long start = timer.start();
+		Thread.sleep(MIN_DELAY);
+		long elapsed = timer.stopAndAdd(start);
+		assertTrue(elapsed >= TimeUnit.MILLISECONDS.toMicros(MIN_DELAY));
+		double value = timer.getValue().doubleValue();
+		// the recorded value keeps the fraction of the unit
+		assertTrue(value >= elapsed && value < elapsed + 1);
+	}
+
+	@Test
+	public void testSample() throws Exception {
+		ControlledMetricHistogram histogram = new ControlledMetricHistogram(getClass().getName(), null, "hist", "desc",
+				TimeUnit.MILLISECONDS.name().toLowerCase());
+		ControlledMetricTimer timer = new ControlledMetricTimer(getClass().getName(), null, "test", "desc",
+				TimeUnit.MILLISECONDS, histogram);
+		assertSame(histogram, timer.getHistogram());
+		ControlledMetricTimer.Sample sample;
+		try (ControlledMetricTimer.Sample sample2 = timer.startSample()) {
+			sample = sample2;
+			assertTrue(sample.isRunning());
+			// nested samples get a different handle
+			try (ControlledMetricTimer.Sample nested = timer.startSample()) {
+				assertNotSame(sample, nested);
+			}
+			Thread.sleep(MIN_DELAY);
+		}
+		assertFalse(sample.isRunning());
+		// closing again does nothing
+		sample.close();
+		// the per-thread sample is reused
+		try (ControlledMetricTimer.Sample sample2 = timer.startSample()) {
+			assertSame(sample, sample2);
+		}
+		MetricValueDetails details = timer.getValueDetails();
+		assertEquals(3, details.getNumSamples());
+		assertTrue(details.getMax().doubleValue() >= MIN_DELAY);
+		HistogramValueDetails histogramDetails = histogram.getValueDetails();
+		assertEquals(3, histogramDetails.getNumSamples());
+		assertTrue(histogramDetails.getPercentile(99.9) >= MIN_DELAY);
+	}
+
+	@Test
+	public void testCreateSample() {
+		ControlledMetricTimer timer = new ControlledMetricTimer(getClass().getName(), null, "test", "desc");
+		assertFalse(timer.isNanoTiming());
+		ControlledMetricTimer.Sample sample = timer.createSample();
+		assertFalse(sample.isRunning());
+		for (int i = 0; i < 3; i++) {
+			try (ControlledMetricTimer.Sample started = sample.start()) {
+				assertSame(sample, started);
+			}
+		}
+		assertEquals(3, timer.getValueDetails().getNumSamples());
+	}
 }
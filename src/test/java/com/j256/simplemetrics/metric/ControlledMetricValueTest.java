@@ -1,7 +1,9 @@
 package com.j256.simplemetrics.metric;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Random;
 
@@ -130,4 +132,41 @@ public class ControlledMetricValueTest {
 		details = metric.getValue();
 		assertEquals(((double) 200 + 101.123) / 2, (Double) details, 0);
 	}
+
+	@Test
+	public void testPrimitiveRecording() {
+		ControlledMetricValue metric = new ControlledMetricValue("c", "m", "n", "d", "u", false);
+		ControlledMetricValue primitive = new ControlledMetricValue("c", "m", "n", "d", "u", true);
+		assertFalse(metric.isPrimitiveRecording());
+		assertTrue(primitive.isPrimitiveRecording());
+		assertDetailsEquals(metric.getValueDetails(), primitive.getValueDetails());
+
+		double[] values = new double[] { 10, 2.5, 100, -3, 7 };
+		for (double value : values) {
+			metric.adjustValue(value);
+			primitive.adjustValue(value);
+		}
+		metric.adjustValue(5L);
+		primitive.adjustValue(5L);
+		metric.adjustValue((Number) 12);
+		primitive.adjustValue((Number) 12);
+		assertEquals(metric.getValue(), primitive.getValue());
+		assertDetailsEquals(metric.getValueDetails(), primitive.getValueDetails());
+		assertEquals(metric.getValueToPersist(), primitive.getValueToPersist());
+		// value is retained after the persist until the next adjustment
+		assertDetailsEquals(metric.getValueDetailsToPersist(), primitive.getValueDetailsToPersist());
+		assertEquals(metric.getValue(), primitive.getValue());
+
+		metric.adjustValue(1);
+		primitive.adjustValue(1);
+		assertDetailsEquals(metric.getValueDetailsToPersist(), primitive.getValueDetailsToPersist());
+		assertEquals(1, primitive.getValueDetails().getNumSamples());
+	}
+
+	private void assertDetailsEquals(MetricValueDetails expected, MetricValueDetails details) {
+		assertEquals(expected.getValue(), details.getValue());
+		assertEquals(expected.getNumSamples(), details.getNumSamples());
+		assertEquals(expected.getMin(), details.getMin());
+		assertEquals(expected.getMax(), details.getMax());
+	}
 }
@@ -0,0 +1,95 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MetricsSnapshotTest {
+
+	@Test
+	public void testBasic() {
+		MetricsSnapshot snapshot = new MetricsSnapshot(1);
+		ControlledMetricAccum accum = new ControlledMetricAccum("c", "m", "accum", "d", null);
+		ControlledMetricValue value = new ControlledMetricValue("c", "m", "value", "d", null);
+		accum.add(10);
+		value.adjustValue(1);
+		value.adjustValue(2);
+
+		long now = System.currentTimeMillis();
+		snapshot.reset(now);
+		snapshot.setMetric(0, accum);
+		accum.persistToSnapshot(snapshot, 0);
+		// leave a hole at id 1 and grow the arrays
+		snapshot.setMetric(2, value);
+		value.persistToSnapshot(snapshot, 2);
+
+		assertEquals(now, snapshot.getTimeCollectedMillis());
+		assertEquals(3, snapshot.getSize());
+		assertEquals(2, snapshot.getNumMetrics());
+		assertSame(accum, snapshot.getMetric(0));
+		assertNull(snapshot.getMetric(1));
+		assertSame(value, snapshot.getMetric(2));
+		assertEquals(10, snapshot.getValue(0), 0);
+		assertEquals(1.5, snapshot.getValue(2), 0);
+		assertEquals(2, snapshot.getNumSamples(2));
+		assertEquals(1, snapshot.getMin(2), 0);
+		assertEquals(2, snapshot.getMax(2), 0);
+
+		Map<ControlledMetric<?, ?>, Number> valuesMap = snapshot.toValuesMap();
+		assertEquals(2, valuesMap.size());
+		assertEquals(10L, valuesMap.get(accum));
+		assertEquals(1.5, valuesMap.get(value));
+		assertSame(valuesMap, snapshot.toValuesMap());
+		Map<ControlledMetric<?, ?>, MetricValueDetails> detailsMap = snapshot.toValueDetailsMap();
+		assertEquals(2, detailsMap.get(value).getNumSamples());
+		// the min and max of the value metrics are doubles like in their own details
+		assertEquals(1.0, detailsMap.get(value).getMin());
+		assertEquals(2.0, detailsMap.get(value).getMax());
+		assertEquals(10L, detailsMap.get(accum).getValue());
+		assertEquals(10L, detailsMap.get(accum).getMax());
+
+		snapshot.reset(now + 1);
+		assertEquals(0, snapshot.getSize());
+		assertEquals(0, snapshot.getNumMetrics());
+		assertEquals(0, snapshot.toValuesMap().size());
+		// the old map is not changed by the reset
+		assertEquals(2, valuesMap.size());
+	}
+
+	@Test
+	public void testHistogramDetails() {
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		ControlledMetricHistogram histogram = new ControlledMetricHistogram("c", "m", "hist", "d", null);
+		histogram.adjustValue(5);
+		snapshot.reset(0);
+		snapshot.setMetric(0, histogram);
+		histogram.persistToSnapshot(snapshot, 0);
+		assertEquals(5, snapshot.getValue(0), 0);
+		assertTrue(snapshot.getValueDetails(0) instanceof HistogramValueDetails);
+	}
+
+	@Test
+	public void testRetain() {
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		assertFalse(snapshot.isInUse());
+		snapshot.retain();
+		snapshot.retain();
+		assertTrue(snapshot.isInUse());
+		snapshot.release();
+		assertTrue(snapshot.isInUse());
+		snapshot.release();
+		assertFalse(snapshot.isInUse());
+	}
+
+	@Test
+	public void testToNumber() {
+		assertEquals(10L, MetricsSnapshot.toNumber(10.0));
+		assertEquals(10.5, MetricsSnapshot.toNumber(10.5));
+	}
+}
@@ -0,0 +1,208 @@
+package com.j256.simplemetrics.persister;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
+import com.j256.simplemetrics.metric.MetricValueDetails;
+import com.j256.simplemetrics.metric.MetricsSnapshot;
+
+public class BinaryFileMetricsPersisterTest {
+
+	private final File TEMP_DIR = new File("target/" + getClass().getSimpleName());
+
+	@Before
+	@After
+	public void cleanTmp() {
+		File[] files = TEMP_DIR.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		TEMP_DIR.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		BinaryFileMetricsPersister persister = createPersister();
+		// all in one file
+		persister.setFileMaxMillis(Long.MAX_VALUE);
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", "unit");
+		ControlledMetricValue value = new ControlledMetricValue("comp", "mod", "value", "desc", "unit");
+		ControlledMetricValue later = new ControlledMetricValue("comp", "mod", "later", "desc", "unit");
+
+		int numPersists = 100;
+		for (int i = 0; i < numPersists; i++) {
+			Map<ControlledMetric<?, ?>, MetricValueDetails> details =
+					new HashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+			details.put(accum, new MetricValueDetails(i * 10L, 1, i * 10L, i * 10L));
+			details.put(value, new MetricValueDetails(i + 0.5, 3, 0.25, i * 2.0));
+			if (i >= 50) {
+				details.put(later, new MetricValueDetails(-i, 1, -i, -i));
+			}
+			// one jittered time
+			persister.persist(details, 1000000 + i * 60000 + (i == 20 ? 7 : 0));
+		}
+		assertEquals(numPersists, persister.getDumpCount());
+
+		File file = new File(TEMP_DIR, "bin.1000000" + BinaryFileMetricsPersister.FILE_EXTENSION);
+		assertEquals(persister.getBytesWritten(), file.length());
+		BinaryMetricsReader reader = new BinaryMetricsReader(file);
+		for (int i = 0; i < numPersists; i++) {
+			assertTrue(reader.next());
+			assertEquals(1000000 + i * 60000 + (i == 20 ? 7 : 0), reader.getTimeMillis());
+			assertEquals(i >= 50 ? 3 : 2, reader.getNumMetrics());
+			for (int j = 0; j < reader.getNumMetrics(); j++) {
+				String name = reader.getMetricName(j);
+				if (name.equals("comp.mod.accum")) {
+					assertEquals(i * 10, reader.getValue(j), 0);
+					assertEquals(1, reader.getNumSamples(j));
+				} else if (name.equals("comp.mod.value")) {
+					assertEquals(i + 0.5, reader.getValue(j), 0);
+					assertEquals(0.25, reader.getMin(j), 0);
+					assertEquals(i * 2.0, reader.getMax(j), 0);
+					assertEquals(3, reader.getNumSamples(j));
+				} else {
+					assertEquals("comp.mod.later", name);
+					assertEquals(-i, reader.getValue(j), 0);
+				}
+			}
+		}
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void testSnapshotAndRoll() throws Exception {
+		BinaryFileMetricsPersister persister = createPersister();
+		persister.setFileMaxMillis(1000);
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", "unit");
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		for (int i = 0; i < 4; i++) {
+			accum.add(i + 1);
+			snapshot.reset(i * 600L);
+			// leave a hole at id 0
+			snapshot.setMetric(1, accum);
+			accum.persistToSnapshot(snapshot, 1);
+			persister.persist(snapshot);
+		}
+		// 0 and 600 in the first file, 1200 and 1800 in the second
+		BinaryMetricsReader reader = new BinaryMetricsReader(new File(TEMP_DIR, "bin.1200.bin"));
+		assertTrue(reader.next());
+		assertEquals(1200, reader.getTimeMillis());
+		assertEquals(1, reader.getNumMetrics());
+		assertEquals("comp.mod.accum", reader.getMetricName(0));
+		assertEquals(3, reader.getValue(0), 0);
+		assertTrue(reader.next());
+		assertEquals(1800, reader.getTimeMillis());
+		assertEquals(4, reader.getValue(0), 0);
+		assertFalse(reader.next());
+		assertTrue(new File(TEMP_DIR, "bin.0.bin").exists());
+
+		persister.cleanMetricFilesOlderThanMillis(-1000);
+		assertEquals(1, persister.getCleanupCount());
+		assertFalse(new File(TEMP_DIR, "bin.0.bin").exists());
+		assertTrue(new File(TEMP_DIR, "bin.1200.bin").exists());
+	}
+
+	@Test
+	public void testMetricIdsReassignedEachFile() throws Exception {
+		BinaryFileMetricsPersister persister = createPersister();
+		persister.setFileMaxMillis(1000);
+		Map<ControlledMetric<?, ?>, MetricValueDetails> details =
+				new HashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+		// a different metric each persist like metrics that are churning
+		for (int i = 0; i < 10; i++) {
+			details.clear();
+			details.put(new ControlledMetricAccum("comp", "mod", "accum" + i, "desc", "unit"),
+					new MetricValueDetails((long) i, 1, (long) i, (long) i));
+			persister.persist(details, i * 1000L);
+			assertEquals(1, persister.getNumMetricIds());
+		}
+		BinaryMetricsReader reader = new BinaryMetricsReader(new File(TEMP_DIR, "bin.9000.bin"));
+		assertTrue(reader.next());
+		assertEquals("comp.mod.accum9", reader.getMetricName(0));
+		assertEquals(9, reader.getValue(0), 0);
+	}
+
+	@Test
+	public void testTruncated() throws Exception {
+		BinaryFileMetricsPersister persister = createPersister();
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", "unit");
+		Map<ControlledMetric<?, ?>, MetricValueDetails> details =
+				new HashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+		details.put(accum, new MetricValueDetails(1L, 1, 1L, 1L));
+		persister.persist(details, 1000);
+		details.put(accum, new MetricValueDetails(2L, 1, 2L, 2L));
+		persister.persist(details, 2000);
+
+		File file = new File(TEMP_DIR, "bin.1000.bin");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw");) {
+			raf.setLength(raf.length() - 1);
+		}
+		BinaryMetricsReader reader = new BinaryMetricsReader(file);
+		assertTrue(reader.next());
+		assertEquals(1, reader.getValue(0), 0);
+		assertFalse(reader.next());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotBinaryFile() throws Exception {
+		TEMP_DIR.mkdirs();
+		File file = new File(TEMP_DIR, "notbinary");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw");) {
+			raf.writeBytes("hello there");
+		}
+		new BinaryMetricsReader(file);
+	}
+
+	@Test
+	public void testSmallerThanText() throws Exception {
+		BinaryFileMetricsPersister persister = createPersister();
+		TextFileMetricsPersister textPersister = new TextFileMetricsPersister();
+		textPersister.setOutputDirectory(TEMP_DIR);
+		textPersister.setLogFileNamePrefix("text.");
+		textPersister.setUseSegments(true);
+
+		int numMetrics = 100;
+		ControlledMetricAccum[] accums = new ControlledMetricAccum[numMetrics];
+		for (int i = 0; i < numMetrics; i++) {
+			accums[i] = new ControlledMetricAccum("comp", "mod", "accum" + i, "desc", "unit");
+		}
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		for (int persist = 0; persist < 60; persist++) {
+			snapshot.reset(persist * 60000L);
+			for (int i = 0; i < numMetrics; i++) {
+				// most metrics don't change much
+				accums[i].add(i % 10 == 0 ? persist : 1);
+				snapshot.setMetric(i, accums[i]);
+				accums[i].persistToSnapshot(snapshot, i);
+			}
+			persister.persist(snapshot);
+			textPersister.persist(snapshot);
+		}
+		long textLength = new File(TEMP_DIR, "text.0" + TextFileMetricsPersister.SEGMENT_EXTENSION).length();
+		assertTrue("binary " + persister.getBytesWritten() + " should be much smaller than text " + textLength,
+				persister.getBytesWritten() * 5 < textLength);
+	}
+
+	private BinaryFileMetricsPersister createPersister() {
+		BinaryFileMetricsPersister persister = new BinaryFileMetricsPersister();
+		persister.setOutputDirectory(TEMP_DIR);
+		persister.setLogFileNamePrefix("bin.");
+		return persister;
+	}
+}
@@ -0,0 +1,125 @@
+package com.j256.simplemetrics.persister;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.persister.BinaryMetricsFormat.XorState;
+
+public class BinaryMetricsFormatTest {
+
+	@Test
+	public void testBits() throws Exception {
+		BitOutput output = new BitOutput(1);
+		output.writeBit(true);
+		output.writeBits(0b101, 3);
+		output.writeBits(Long.MIN_VALUE, 64);
+		output.writeBits(-1L, 64);
+		output.writeBits(0x1234, 13);
+		output.alignToByte();
+		output.writeBytes(new byte[] { 1, 2 });
+		assertEquals(21, output.getByteLength());
+
+		BitInput input = new BitInput(output.getBytes(), 0, output.getByteLength());
+		assertTrue(input.readBit());
+		assertEquals(0b101, input.readBits(3));
+		assertEquals(Long.MIN_VALUE, input.readBits(64));
+		assertEquals(-1L, input.readBits(64));
+		assertEquals(0x1234, input.readBits(13));
+		// aligned to the byte
+		input.readBits(7);
+		assertEquals(1, input.readBits(8));
+		assertEquals(2, input.readBits(8));
+		try {
+			input.readBit();
+			fail("should have thrown");
+		} catch (EOFException e) {
+			// expected
+		}
+
+		output.reset();
+		assertEquals(0, output.getByteLength());
+		output.writeBits(0, 3);
+		input = new BitInput(output.getBytes(), 0, 1);
+		assertFalse(input.readBit());
+	}
+
+	@Test
+	public void testDeltaOfDelta() throws Exception {
+		long[] deltaOfDeltas =
+				new long[] { 0, 1, -1, 63, -64, 64, 255, -256, 2047, -2048, 100000, -100000, Long.MAX_VALUE,
+						Long.MIN_VALUE };
+		BitOutput output = new BitOutput(16);
+		for (long deltaOfDelta : deltaOfDeltas) {
+			BinaryMetricsFormat.writeDeltaOfDelta(output, deltaOfDelta);
+		}
+		BitInput input = new BitInput(output.getBytes(), 0, output.getByteLength());
+		for (long deltaOfDelta : deltaOfDeltas) {
+			assertEquals(deltaOfDelta, BinaryMetricsFormat.readDeltaOfDelta(input));
+		}
+	}
+
+	@Test
+	public void testXorRoundTrip() throws Exception {
+		Random random = new Random(1);
+		int numIds = 10;
+		int numRounds = 200;
+		long[][] expected = new long[numRounds][numIds];
+		double value = 100;
+		for (int round = 0; round < numRounds; round++) {
+			for (int id = 0; id < numIds; id++) {
+				switch (id % 4) {
+					case 0:
+						// constant
+						expected[round][id] = Double.doubleToLongBits(12.5);
+						break;
+					case 1:
+						// slowly changing
+						value += random.nextGaussian();
+						expected[round][id] = Double.doubleToLongBits(value);
+						break;
+					case 2:
+						// counter
+						expected[round][id] = round * 10;
+						break;
+					default:
+						expected[round][id] = random.nextLong();
+						break;
+				}
+			}
+		}
+
+		XorState writeState = new XorState();
+		BitOutput output = new BitOutput(16);
+		for (int round = 0; round < numRounds; round++) {
+			for (int id = 0; id < numIds; id++) {
+				writeState.write(output, id, BinaryMetricsFormat.FIELD_VALUE, expected[round][id]);
+			}
+		}
+		XorState readState = new XorState();
+		BitInput input = new BitInput(output.getBytes(), 0, output.getByteLength());
+		for (int round = 0; round < numRounds; round++) {
+			for (int id = 0; id < numIds; id++) {
+				assertEquals(expected[round][id], readState.read(input, id, BinaryMetricsFormat.FIELD_VALUE));
+			}
+		}
+	}
+
+	@Test
+	public void testXorConstantIsOneBit() {
+		XorState state = new XorState();
+		BitOutput output = new BitOutput(16);
+		state.write(output, 0, BinaryMetricsFormat.FIELD_VALUE, Double.doubleToLongBits(10.0));
+		int length = output.getByteLength();
+		for (int i = 0; i < 80; i++) {
+			state.write(output, 0, BinaryMetricsFormat.FIELD_VALUE, Double.doubleToLongBits(10.0));
+		}
+		assertEquals(length + 10, output.getByteLength());
+	}
+}
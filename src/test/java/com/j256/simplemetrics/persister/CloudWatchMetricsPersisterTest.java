@@ -4,10 +4,21 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import org.junit.Test;
 
@@ -15,12 +26,16 @@ import com.j256.simplemetrics.manager.MetricsManager;
 import com.j256.simplemetrics.metric.ControlledMetric;
 import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
 import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricHistogram;
 import com.j256.simplemetrics.metric.ControlledMetricValue;
 
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.CloudWatchException;
 import software.amazon.awssdk.services.cloudwatch.model.Dimension;
 import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
 import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataResponse;
 import software.amazon.awssdk.services.cloudwatch.model.StandardUnit;
 import software.amazon.awssdk.services.cloudwatch.model.StatisticSet;
 
@@ -110,4 +125,261 @@ public class CloudWatchMetricsPersisterTest {
 		manager.persist();
 		verify(cloudWatchClient);
 	}
+
+	@Test(timeout = 10000)
+	public void testAsyncBatches() throws IOException {
+		MetricsManager manager = new MetricsManager();
+		StubAsyncClient asyncClient = new StubAsyncClient(0);
+		CloudWatchMetricsPersister persister = createAsyncPersister(manager, asyncClient);
+		persister.setMaxConcurrentRequests(2);
+		persister.initialize();
+		int numMetrics = CloudWatchMetricsPersister.MAX_NUM_DATUM_ALLOWED_PER_ASYNC_POST * 2 + 500;
+		for (int i = 0; i < numMetrics; i++) {
+			manager.registerMetric(new ControlledMetricValue("test", "stuff", "loop" + i, null, null));
+		}
+		try {
+			manager.persist();
+		} finally {
+			asyncClient.close();
+		}
+		assertEquals(3, asyncClient.datumCounts.size());
+		int total = 0;
+		for (int datumCount : asyncClient.datumCounts) {
+			assertTrue(datumCount <= CloudWatchMetricsPersister.MAX_NUM_DATUM_ALLOWED_PER_ASYNC_POST);
+			total += datumCount;
+		}
+		// includes the persister's own metrics
+		assertEquals(manager.getMetrics().size(), total);
+		assertTrue(asyncClient.maxInFlight.get() <= 2);
+		assertEquals(3, persister.getRequestCountMetric().getValue().longValue());
+		assertEquals(3, persister.getRequestLatencyMetric().getValueDetails().getNumSamples());
+		assertEquals(0, persister.getRequestFailureMetric().getValue().longValue());
+		// our own metrics were registered with the manager
+		assertSame(persister.getRequestLatencyMetric(), manager.getMetric("simplemetrics", "cloudwatch",
+				persister.getRequestLatencyMetric().getName()));
+	}
+
+	@Test(timeout = 10000)
+	public void testAsyncRetry() throws IOException {
+		MetricsManager manager = new MetricsManager();
+		StubAsyncClient asyncClient = new StubAsyncClient(2);
+		CloudWatchMetricsPersister persister = createAsyncPersister(manager, asyncClient);
+		persister.initialize();
+		manager.registerMetric(new ControlledMetricValue("test", "stuff", "value", null, null));
+		try {
+			manager.persist();
+		} finally {
+			asyncClient.close();
+		}
+		// the one request failed twice and then went through
+		assertEquals(3, asyncClient.datumCounts.size());
+		assertEquals(2, persister.getRequestFailureMetric().getValue().longValue());
+		assertEquals(2, persister.getRequestRetryMetric().getValue().longValue());
+	}
+
+	@Test(timeout = 10000)
+	public void testAsyncRetriesExhausted() {
+		MetricsManager manager = new MetricsManager();
+		StubAsyncClient asyncClient = new StubAsyncClient(Integer.MAX_VALUE);
+		CloudWatchMetricsPersister persister = createAsyncPersister(manager, asyncClient);
+		persister.setMaxRetries(1);
+		persister.initialize();
+		manager.registerMetric(new ControlledMetricValue("test", "stuff", "value", null, null));
+		try {
+			manager.persist();
+			fail("Should have thrown");
+		} catch (IOException ioe) {
+			assertTrue(ioe.getCause() instanceof CloudWatchException);
+		} finally {
+			asyncClient.close();
+		}
+		assertEquals(2, persister.getRequestFailureMetric().getValue().longValue());
+	}
+
+	@Test(timeout = 10000)
+	public void testAsyncTimeout() {
+		MetricsManager manager = new MetricsManager();
+		StubAsyncClient asyncClient = new StubAsyncClient(0);
+		// the request never completes
+		asyncClient.hang = true;
+		CloudWatchMetricsPersister persister = createAsyncPersister(manager, asyncClient);
+		persister.setRequestTimeoutMillis(100);
+		persister.initialize();
+		manager.registerMetric(new ControlledMetricValue("test", "stuff", "value", null, null));
+		try {
+			manager.persist();
+			fail("Should have thrown");
+		} catch (IOException ioe) {
+			assertTrue(ioe.getCause() instanceof TimeoutException);
+		} finally {
+			asyncClient.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testAsyncNonSdkFailureNotRetried() {
+		MetricsManager manager = new MetricsManager();
+		StubAsyncClient asyncClient = new StubAsyncClient(0);
+		asyncClient.failure = new IllegalStateException("bug");
+		CloudWatchMetricsPersister persister = createAsyncPersister(manager, asyncClient);
+		persister.initialize();
+		// calling it again doesn't register anything twice
+		persister.initialize();
+		manager.registerMetric(new ControlledMetricValue("test", "stuff", "value", null, null));
+		try {
+			manager.persist();
+			fail("Should have thrown");
+		} catch (IOException ioe) {
+			assertTrue(ioe.getCause() instanceof IllegalStateException);
+		} finally {
+			asyncClient.close();
+		}
+		assertEquals(1, asyncClient.datumCounts.size());
+		assertEquals(0, persister.getRequestRetryMetric().getValue().longValue());
+	}
+
+	@Test(timeout = 10000)
+	public void testValuesAndCounts() throws IOException {
+		MetricsManager manager = new MetricsManager();
+		StubAsyncClient asyncClient = new StubAsyncClient(0);
+		CloudWatchMetricsPersister persister = createAsyncPersister(manager, asyncClient);
+		persister.setMetricsManager(null);
+		persister.setUseValuesAndCounts(true);
+		persister.initialize();
+		ControlledMetricHistogram histogram = new ControlledMetricHistogram("test", "stuff", "hist", null, "ms");
+		manager.registerMetric(histogram);
+		for (int i = 0; i < 10; i++) {
+			histogram.adjustValue(1);
+		}
+		histogram.adjustValue(1000);
+		try {
+			manager.persist();
+		} finally {
+			asyncClient.close();
+		}
+		assertEquals(1, asyncClient.requests.size());
+		List<MetricDatum> data = asyncClient.requests.get(0).metricData();
+		// one datum instead of the statistic-set and the percentiles
+		assertEquals(1, data.size());
+		MetricDatum datum = data.get(0);
+		assertEquals("hist", datum.metricName());
+		assertEquals(StandardUnit.MILLISECONDS, datum.unit());
+		assertEquals(2, datum.values().size());
+		// the values are the middle of the histogram buckets
+		assertEquals(1.0, datum.values().get(0), 1.0 / ControlledMetricHistogram.NUM_SUB_BUCKETS);
+		assertEquals(10.0, datum.counts().get(0), 0);
+		assertEquals(1000.0, datum.values().get(1), 1000.0 / ControlledMetricHistogram.NUM_SUB_BUCKETS);
+		assertEquals(1.0, datum.counts().get(1), 0);
+	}
+
+	@Test(timeout = 10000)
+	public void testMetricInfoInvalidated() throws IOException {
+		MetricsManager manager = new MetricsManager();
+		StubAsyncClient asyncClient = new StubAsyncClient(0);
+		CloudWatchMetricsPersister persister = createAsyncPersister(manager, asyncClient);
+		persister.initialize();
+		manager.registerMetric(new ControlledMetricValue("test", "stuff", "value", null, "bytes"));
+		try {
+			manager.persist();
+			assertEquals(StandardUnit.BYTES, findDatum(asyncClient, "value").unit());
+			// replacing the metric with a different unit should not use the cached unit
+			manager.registerMetric(new ControlledMetricValue("test", "stuff", "value", null, "ms"));
+			asyncClient.requests.clear();
+			manager.persist();
+			MetricDatum datum = findDatum(asyncClient, "value");
+			assertEquals(StandardUnit.MILLISECONDS, datum.unit());
+			assertEquals(2, datum.dimensions().size());
+			assertEquals("Component", datum.dimensions().get(0).name());
+			assertEquals("stuff", datum.dimensions().get(1).value());
+		} finally {
+			asyncClient.close();
+		}
+	}
+
+	private MetricDatum findDatum(StubAsyncClient asyncClient, String name) {
+		for (PutMetricDataRequest request : asyncClient.requests) {
+			for (MetricDatum datum : request.metricData()) {
+				if (datum.metricName().equals(name)) {
+					return datum;
+				}
+			}
+		}
+		fail("Could not find datum " + name);
+		return null;
+	}
+
+	private CloudWatchMetricsPersister createAsyncPersister(MetricsManager manager,
+			CloudWatchAsyncClient asyncClient) {
+		CloudWatchMetricsPersister persister = new CloudWatchMetricsPersister();
+		persister.setApplicationName(getClass().getSimpleName());
+		persister.setAddInstanceData(false);
+		persister.setCloudWatchAsyncClient(asyncClient);
+		persister.setRetryBackoffMillis(1);
+		persister.setMetricsManager(manager);
+		manager.setMetricDetailsPersisters(new MetricDetailsPersister[] { persister });
+		return persister;
+	}
+
+	/**
+	 * Local stub of the async client which completes the requests on another thread and fails the first requests.
+	 */
+	private static class StubAsyncClient implements CloudWatchAsyncClient {
+
+		final List<Integer> datumCounts = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<PutMetricDataRequest> requests = Collections.synchronizedList(new ArrayList<PutMetricDataRequest>());
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		private final AtomicInteger failuresLeft;
+		volatile boolean hang;
+		volatile RuntimeException failure;
+		private final ExecutorService executor = Executors.newCachedThreadPool();
+
+		public StubAsyncClient(int numFailures) {
+			this.failuresLeft = new AtomicInteger(numFailures);
+		}
+
+		@Override
+		public CompletableFuture<PutMetricDataResponse> putMetricData(final PutMetricDataRequest request) {
+			int current = inFlight.incrementAndGet();
+			while (true) {
+				int max = maxInFlight.get();
+				if (current <= max || maxInFlight.compareAndSet(max, current)) {
+					break;
+				}
+			}
+			if (hang) {
+				return new CompletableFuture<PutMetricDataResponse>();
+			}
+			return CompletableFuture.supplyAsync(new Supplier<PutMetricDataResponse>() {
+				@Override
+				public PutMetricDataResponse get() {
+					try {
+						Thread.sleep(10);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					datumCounts.add(request.metricData().size());
+					requests.add(request);
+					inFlight.decrementAndGet();
+					if (failure != null) {
+						throw failure;
+					}
+					if (failuresLeft.getAndDecrement() > 0) {
+						throw CloudWatchException.builder().statusCode(503).message("unavailable").build();
+					}
+					return PutMetricDataResponse.builder().build();
+				}
+			}, executor);
+		}
+
+		@Override
+		public String serviceName() {
+			return SERVICE_NAME;
+		}
+
+		@Override
+		public void close() {
+			executor.shutdownNow();
+		}
+	}
 }
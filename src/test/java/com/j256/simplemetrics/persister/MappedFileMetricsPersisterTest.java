@@ -0,0 +1,239 @@
+package com.j256.simplemetrics.persister;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
+import com.j256.simplemetrics.metric.MetricsSnapshot;
+import com.j256.simplemetrics.persister.MappedMetricsReader.SlotValues;
+
+public class MappedFileMetricsPersisterTest {
+
+	private final File TEMP_DIR = new File("target/" + getClass().getSimpleName());
+	private final File FILE = new File(TEMP_DIR, "metrics.mmap");
+
+	@Before
+	@After
+	public void cleanTmp() {
+		FILE.delete();
+		TEMP_DIR.delete();
+	}
+
+	@Test
+	public void testBasic() throws Exception {
+		TEMP_DIR.mkdirs();
+		MappedFileMetricsPersister persister = new MappedFileMetricsPersister();
+		persister.setFile(FILE);
+		persister.setCapacity(2);
+		persister.initialize();
+
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", "unit");
+		ControlledMetricValue value = new ControlledMetricValue("comp", "mod", "value", "desc", "unit");
+		ControlledMetricValue third = new ControlledMetricValue("comp", "mod", "third", "desc", "unit");
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		snapshot.reset(1000);
+		accum.add(10);
+		snapshot.setMetric(0, accum);
+		accum.persistToSnapshot(snapshot, 0);
+		value.adjustValue(1);
+		value.adjustValue(3);
+		snapshot.setMetric(1, value);
+		value.persistToSnapshot(snapshot, 1);
+		persister.persist(snapshot);
+
+		MappedMetricsReader reader = new MappedMetricsReader(FILE);
+		assertTrue(reader.isValid());
+		assertEquals(2, reader.getCapacity());
+		assertEquals(1, reader.getPersistCount());
+		assertEquals(1000, reader.getLastPersistMillis());
+		SlotValues values = new SlotValues();
+		assertTrue(reader.readMetric("comp.mod.accum", values));
+		assertEquals(10, values.getValue(), 0);
+		assertEquals(1000, values.getTimeMillis());
+		assertTrue(reader.readMetric("comp.mod.value", values));
+		assertEquals(2, values.getValue(), 0);
+		assertEquals(2, values.getNumSamples());
+		assertEquals(1, values.getMin(), 0);
+		assertEquals(3, values.getMax(), 0);
+		assertFalse(reader.readMetric("comp.mod.third", values));
+
+		// the value metric goes away and its slot is given to the third one in the same persist
+		snapshot.reset(2000);
+		// accumulators are reset when they are persisted
+		accum.add(5);
+		snapshot.setMetric(0, accum);
+		accum.persistToSnapshot(snapshot, 0);
+		snapshot.setMetric(1, third);
+		third.persistToSnapshot(snapshot, 1);
+		persister.persist(snapshot);
+		assertEquals(0, persister.getDroppedMetricCount());
+		assertEquals(2, reader.getPersistCount());
+		assertEquals(-1, reader.findSlot("comp.mod.value"));
+		assertTrue(reader.readMetric("comp.mod.accum", values));
+		assertEquals(5, values.getValue(), 0);
+		assertEquals(2000, values.getTimeMillis());
+		assertTrue(reader.readMetric("comp.mod.third", values));
+		assertEquals(2000, values.getTimeMillis());
+
+		// the file is full
+		snapshot.reset(3000);
+		snapshot.setMetric(0, accum);
+		snapshot.setMetric(1, third);
+		snapshot.setMetric(2, value);
+		persister.persist(snapshot);
+		assertEquals(1, persister.getDroppedMetricCount());
+		assertFalse(reader.readMetric("comp.mod.value", values));
+	}
+
+	@Test
+	public void testEmptySlotAndRestart() throws Exception {
+		TEMP_DIR.mkdirs();
+		MappedFileMetricsPersister persister = new MappedFileMetricsPersister(FILE);
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", "unit");
+		snapshot.reset(1000);
+		snapshot.setMetric(0, accum);
+		snapshot.setValue(0, 5, 1, 5, 5);
+		persister.persist(snapshot);
+
+		MappedMetricsReader reader = new MappedMetricsReader(FILE);
+		assertEquals(1024, reader.getCapacity());
+		assertNull(reader.getMetricName(1));
+		assertFalse(reader.readSlot(1, new SlotValues()));
+		assertEquals("comp.mod.accum", reader.getMetricName(0));
+
+		// a restarted persister with the same layout keeps the reader valid but changes the names
+		MappedFileMetricsPersister persister2 = new MappedFileMetricsPersister(FILE);
+		assertTrue(reader.isValid());
+		assertNull(reader.getMetricName(0));
+		ControlledMetricAccum other = new ControlledMetricAccum("comp", "mod", "other", "desc", "unit");
+		snapshot.reset(2000);
+		snapshot.setMetric(0, other);
+		snapshot.setValue(0, 7, 1, 7, 7);
+		persister2.persist(snapshot);
+		SlotValues values = new SlotValues();
+		assertTrue(reader.readMetric("comp.mod.other", values));
+		assertEquals(7, values.getValue(), 0);
+		assertEquals(-1, reader.findSlot("comp.mod.accum"));
+
+		// different layout
+		long length = FILE.length();
+		MappedFileMetricsPersister persister3 = new MappedFileMetricsPersister();
+		persister3.setFile(FILE);
+		persister3.setCapacity(10);
+		persister3.initialize();
+		assertFalse(reader.isValid());
+		// the smaller layout doesn't truncate the file out from under the reader
+		assertEquals(length, FILE.length());
+		assertEquals(0, reader.getPersistCount());
+	}
+
+	@Test
+	public void testFences() {
+		// we should have real fences on any JVM that we test with
+		assertTrue(MemoryFences.isFenced());
+		MemoryFences.storeFence();
+		MemoryFences.loadFence();
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotMetricsFile() throws Exception {
+		TEMP_DIR.mkdirs();
+		FILE.createNewFile();
+		new MappedMetricsReader(FILE);
+	}
+
+	/**
+	 * Runs a writer in another JVM and makes sure that the reader here never sees a torn set of values.
+	 */
+	@Test(timeout = 60000)
+	public void testMultiProcess() throws Exception {
+		TEMP_DIR.mkdirs();
+		String javaBin = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(javaBin, "-cp", System.getProperty("java.class.path"),
+				WriterProcess.class.getName(), FILE.getPath(), "2000");
+		builder.inheritIO();
+		Process process = builder.start();
+		try {
+			MappedMetricsReader reader = null;
+			while (reader == null) {
+				try {
+					reader = new MappedMetricsReader(FILE);
+				} catch (IOException e) {
+					if (!process.isAlive()) {
+						throw e;
+					}
+					Thread.sleep(10);
+				}
+			}
+			SlotValues values = new SlotValues();
+			long numReads = 0;
+			long lastValue = -1;
+			while (process.isAlive() || numReads == 0) {
+				for (int slot = 0; slot < WriterProcess.NUM_METRICS; slot++) {
+					if (!reader.readSlot(slot, values)) {
+						continue;
+					}
+					// the writer keeps all of the values in step so any mismatch is a torn read
+					long value = (long) values.getValue();
+					assertEquals(value, values.getNumSamples());
+					assertEquals(value - 1, values.getMin(), 0);
+					assertEquals(value + 1, values.getMax(), 0);
+					assertEquals(value * 10, values.getTimeMillis());
+					assertEquals("metric" + slot, reader.getMetricName(slot).substring("comp.mod.".length()));
+					if (slot == 0) {
+						assertTrue(value >= lastValue);
+						lastValue = value;
+					}
+					numReads++;
+				}
+			}
+			assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+			assertEquals(0, process.exitValue());
+			assertTrue(numReads > 0);
+			assertTrue(reader.getPersistCount() > 0);
+		} finally {
+			process.destroy();
+		}
+	}
+
+	/**
+	 * Main of the writer process for {@link MappedFileMetricsPersisterTest#testMultiProcess()}.
+	 */
+	public static class WriterProcess {
+
+		static final int NUM_METRICS = 10;
+
+		public static void main(String[] args) throws Exception {
+			MappedFileMetricsPersister persister = new MappedFileMetricsPersister();
+			persister.setFile(new File(args[0]));
+			persister.setCapacity(NUM_METRICS);
+			persister.initialize();
+			long endMillis = System.currentTimeMillis() + Long.parseLong(args[1]);
+			ControlledMetricAccum[] metrics = new ControlledMetricAccum[NUM_METRICS];
+			for (int i = 0; i < NUM_METRICS; i++) {
+				metrics[i] = new ControlledMetricAccum("comp", "mod", "metric" + i, "desc", "unit");
+			}
+			MetricsSnapshot snapshot = new MetricsSnapshot();
+			for (long value = 1; System.currentTimeMillis() < endMillis; value++) {
+				snapshot.reset(value * 10);
+				for (int i = 0; i < NUM_METRICS; i++) {
+					snapshot.setMetric(i, metrics[i]);
+					snapshot.setValue(i, value, (int) value, value - 1, value + 1);
+				}
+				persister.persist(snapshot);
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.j256.simplemetrics.persister;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
+import com.j256.simplemetrics.metric.MetricValueDetails;
+import com.j256.simplemetrics.metric.MetricsSnapshot;
+
+public class PeriodMetricsPersisterTest {
+
+	@Test
+	public void testCombine() throws Exception {
+		final List<Long> times = new ArrayList<Long>();
+		final List<MetricValueDetails> accumDetails = new ArrayList<MetricValueDetails>();
+		final List<MetricValueDetails> valueDetails = new ArrayList<MetricValueDetails>();
+		PeriodMetricsPersister persister = new PeriodMetricsPersister();
+		persister.setPeriodMillis(60000);
+		persister.setPersister(new MetricsSnapshotPersister() {
+			@Override
+			public void persist(MetricsSnapshot snapshot) {
+				times.add(snapshot.getTimeCollectedMillis());
+				accumDetails.add(snapshot.getValueDetails(0));
+				valueDetails.add(snapshot.getValueDetails(1));
+			}
+		});
+
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", "unit");
+		ControlledMetricValue value = new ControlledMetricValue("comp", "mod", "value", "desc", "unit");
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		for (int i = 1; i <= 7; i++) {
+			snapshot.reset(i * 10000 + 3);
+			snapshot.setMetric(0, accum);
+			snapshot.setValue(0, i, 1, i, i);
+			// the value is missing from the third snapshot
+			if (i != 3) {
+				snapshot.setMetric(1, value);
+				snapshot.setValue(1, i, 2, i - 1, i + 1);
+			}
+			persister.persist(snapshot);
+			if (i < 6) {
+				assertEquals(0, persister.getCallCount());
+			}
+		}
+		// the 6th snapshot crossed the minute
+		assertEquals(1, persister.getCallCount());
+		assertEquals(60003L, (long) times.get(0));
+		// sum of 1 to 6
+		assertDetails(21, 6, 1, 6, accumDetails.get(0));
+		// average of 1, 2, 4, 5, and 6
+		assertDetails(3.6, 10, 0, 7, valueDetails.get(0));
+
+		// the partial period
+		persister.flush();
+		assertEquals(2, persister.getCallCount());
+		assertEquals(70003L, (long) times.get(1));
+		assertDetails(7, 1, 7, 7, accumDetails.get(1));
+		assertDetails(7, 2, 6, 8, valueDetails.get(1));
+		// nothing to flush
+		persister.flush();
+		assertEquals(2, persister.getCallCount());
+	}
+
+	@Test
+	public void testReusedId() throws Exception {
+		final List<Long> times = new ArrayList<Long>();
+		final List<MetricValueDetails> details = new ArrayList<MetricValueDetails>();
+		PeriodMetricsPersister persister = new PeriodMetricsPersister(new MetricsSnapshotPersister() {
+			@Override
+			public void persist(MetricsSnapshot snapshot) {
+				times.add(snapshot.getTimeCollectedMillis());
+				details.add(snapshot.getValueDetails(0));
+			}
+		}, 60000);
+
+		ControlledMetricAccum accum1 = new ControlledMetricAccum("comp", "mod", "accum1", "desc", "unit");
+		ControlledMetricAccum accum2 = new ControlledMetricAccum("comp", "mod", "accum2", "desc", "unit");
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		snapshot.reset(10000);
+		snapshot.setMetric(0, accum1);
+		snapshot.setValue(0, 5, 1, 5, 5);
+		persister.persist(snapshot);
+		// accum1 was unregistered and its id reused by accum2
+		snapshot.reset(20000);
+		snapshot.setMetric(0, accum2);
+		snapshot.setValue(0, 3, 1, 3, 3);
+		persister.persist(snapshot);
+
+		// the values of accum1 were persisted instead of being combined with accum2
+		assertEquals(1, persister.getCallCount());
+		assertEquals(10000L, (long) times.get(0));
+		assertDetails(5, 1, 5, 5, details.get(0));
+		persister.flush();
+		assertEquals(2, persister.getCallCount());
+		assertEquals(20000L, (long) times.get(1));
+		assertDetails(3, 1, 3, 3, details.get(1));
+	}
+
+	@Test
+	public void testExtendedDetails() throws Exception {
+		final List<MetricValueDetails> results = new ArrayList<MetricValueDetails>();
+		PeriodMetricsPersister persister = new PeriodMetricsPersister(new MetricsSnapshotPersister() {
+			@Override
+			public void persist(MetricsSnapshot snapshot) {
+				results.add(snapshot.getValueDetails(0));
+			}
+		}, 1000);
+		// extended details like a histogram's
+		MetricValueDetails details = new MetricValueDetails(1.5, 1, 1.5, 1.5) {
+		};
+		ControlledMetricValue value = new ControlledMetricValue("comp", "mod", "value", "desc", "unit");
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		snapshot.reset(500);
+		snapshot.setMetric(0, value);
+		snapshot.setValueDetails(0, details);
+		persister.persist(snapshot);
+		persister.flush();
+		// single snapshot so the details are passed along
+		assertSame(details, results.get(0));
+
+		persister.persist(snapshot);
+		persister.persist(snapshot);
+		persister.flush();
+		// combined so they are not
+		assertEquals(MetricValueDetails.class, results.get(1).getClass());
+		assertDetails(1.5, 2, 1.5, 1.5, results.get(1));
+	}
+
+	private void assertDetails(double value, int numSamples, double min, double max, MetricValueDetails details) {
+		assertEquals(value, details.getValue().doubleValue(), 0.0000001);
+		assertEquals(numSamples, details.getNumSamples());
+		assertEquals(min, details.getMin().doubleValue(), 0);
+		assertEquals(max, details.getMax().doubleValue(), 0);
+	}
+}
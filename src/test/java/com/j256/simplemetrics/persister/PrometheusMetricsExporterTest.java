@@ -0,0 +1,145 @@
+package com.j256.simplemetrics.persister;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricHistogram;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
+
+public class PrometheusMetricsExporterTest {
+
+	@Test
+	public void testScrape() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "the accum", "unit");
+		manager.registerMetric(accum);
+		PrometheusMetricsExporter exporter = new PrometheusMetricsExporter();
+		exporter.setMetricsManager(manager);
+		exporter.setHost("127.0.0.1");
+		exporter.setPort(0);
+		exporter.initialize();
+		try {
+			// registered after the exporter
+			ControlledMetricValue value = new ControlledMetricValue("comp", null, "value.name", "line1\nline2", "unit");
+			manager.registerMetric(value);
+			accum.add(10);
+			value.adjustValue(2.5);
+
+			URL url = new URL("http://127.0.0.1:" + exporter.getPort() + "/metrics");
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			assertEquals(200, connection.getResponseCode());
+			assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+			String text = readFully(connection.getInputStream());
+			assertTrue(text, text.contains("# HELP accum the accum\n# TYPE accum gauge\n"));
+			assertTrue(text, text.contains("\naccum{component=\"comp\",module=\"mod\"} 10\n"));
+			assertTrue(text, text.contains("# HELP value_name line1\\nline2\n"));
+			assertTrue(text, text.contains("\nvalue_name{component=\"comp\"} 2.5\n"));
+			assertEquals(1, exporter.getScrapeCount());
+
+			// scraping doesn't reset the accumulator
+			assertEquals(10L, accum.getValueToPersist().longValue());
+
+			manager.unregisterMetric(value);
+			text = exporter.getMetricsText();
+			assertFalse(text, text.contains("value_name"));
+			assertTrue(text, text.contains("\naccum{"));
+
+			connection = (HttpURLConnection) url.openConnection();
+			connection.setRequestMethod("POST");
+			assertEquals(405, connection.getResponseCode());
+		} finally {
+			exporter.destroy();
+		}
+	}
+
+	@Test
+	public void testHistogram() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricHistogram histogram =
+				new ControlledMetricHistogram("comp", "mod", "hist", "desc", "ms", new double[] { 50, 99.9 });
+		manager.registerMetric(histogram);
+		PrometheusMetricsExporter exporter = new PrometheusMetricsExporter();
+		exporter.setMetricsManager(manager);
+		manager.registerRegisterListener(exporter);
+		for (int i = 1; i <= 4; i++) {
+			histogram.adjustValue(i);
+		}
+		String text = exporter.getMetricsText();
+		assertTrue(text, text.contains("# TYPE hist summary\n"));
+		assertTrue(text, text.contains("\nhist{component=\"comp\",module=\"mod\",quantile=\"0.5\"} "));
+		assertTrue(text, text.contains("\nhist{component=\"comp\",module=\"mod\",quantile=\"0.999\"} "));
+		assertTrue(text, text.contains("\nhist_sum{component=\"comp\",module=\"mod\"} 10\n"));
+		assertTrue(text, text.contains("\nhist_count{component=\"comp\",module=\"mod\"} 4\n"));
+		// still there after the scrape
+		assertEquals(4, histogram.getValueDetailsToPersist().getNumSamples());
+	}
+
+	@Test
+	public void testSameNameFamilies() {
+		MetricsManager manager = new MetricsManager();
+		PrometheusMetricsExporter exporter = new PrometheusMetricsExporter();
+		exporter.setMetricsManager(manager);
+		manager.registerRegisterListener(exporter);
+		ControlledMetricValue value1 = new ControlledMetricValue("comp", "mod1", "req.count", "first", "u");
+		ControlledMetricValue value2 = new ControlledMetricValue("comp", "mod2", "req-count", "second", "u");
+		ControlledMetricHistogram histogram = new ControlledMetricHistogram("comp", "mod3", "req_count", "d", "u");
+		manager.registerMetric(value1);
+		manager.registerMetric(value2);
+		manager.registerMetric(histogram);
+		value1.adjustValue(1);
+		value2.adjustValue(2);
+
+		String text = exporter.getMetricsText();
+		// one family for the two values with the help of the first
+		assertEquals(text, text.indexOf("# TYPE req_count gauge\n"), text.lastIndexOf("# TYPE req_count "));
+		assertTrue(text, text.contains("# HELP req_count first\n# TYPE req_count gauge\n"
+				+ "req_count{component=\"comp\",module=\"mod1\"} 1\n"
+				+ "req_count{component=\"comp\",module=\"mod2\"} 2\n"));
+		assertFalse(text, text.contains("second"));
+		// a family can only have one type
+		assertTrue(text, text.contains("# TYPE req_count_summary summary\n"));
+		assertTrue(text, text.contains("\nreq_count_summary_count{component=\"comp\",module=\"mod3\"} 0\n"));
+
+		manager.unregisterMetric(value1);
+		text = exporter.getMetricsText();
+		assertTrue(text, text.contains("# HELP req_count first\n# TYPE req_count gauge\n"
+				+ "req_count{component=\"comp\",module=\"mod2\"} 2\n"));
+		manager.unregisterMetric(value2);
+		text = exporter.getMetricsText();
+		assertFalse(text, text.contains("req_count "));
+	}
+
+	@Test
+	public void testPrometheusName() {
+		ControlledMetricValue metric = new ControlledMetricValue("comp", "mod", "name", "d", "u");
+		assertEquals("name", PrometheusMetricsExporter.metricToPrometheusName(metric));
+		assertEquals("component=\"comp\",module=\"mod\"", PrometheusMetricsExporter.metricToPrometheusLabels(metric));
+		metric = new ControlledMetricValue("co\"mp", null, "1name-x", "d", "u");
+		assertEquals("_1name_x", PrometheusMetricsExporter.metricToPrometheusName(metric));
+		assertEquals("component=\"co\\\"mp\"", PrometheusMetricsExporter.metricToPrometheusLabels(metric));
+	}
+
+	private String readFully(InputStream inputStream) throws Exception {
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] bytes = new byte[1024];
+			int num;
+			while ((num = inputStream.read(bytes)) >= 0) {
+				baos.write(bytes, 0, num);
+			}
+			return baos.toString("UTF-8");
+		} finally {
+			inputStream.close();
+		}
+	}
+}
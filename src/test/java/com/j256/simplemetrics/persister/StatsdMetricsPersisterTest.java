@@ -0,0 +1,166 @@
+package com.j256.simplemetrics.persister;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
+import com.j256.simplemetrics.metric.MetricValueDetails;
+
+public class StatsdMetricsPersisterTest {
+
+	private DatagramSocket receiver;
+
+	@Before
+	public void before() throws Exception {
+		receiver = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		receiver.setReceiveBufferSize(1024 * 1024);
+		receiver.setSoTimeout(5000);
+	}
+
+	@After
+	public void after() {
+		receiver.close();
+	}
+
+	@Test
+	public void testBasic() throws Exception {
+		StatsdMetricsPersister persister = new StatsdMetricsPersister();
+		persister.setHost("127.0.0.1");
+		persister.setPort(receiver.getLocalPort());
+		persister.setPrefix("app.");
+		persister.initialize();
+		try {
+			Map<ControlledMetric<?, ?>, MetricValueDetails> detailsMap =
+					new LinkedHashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+			detailsMap.put(new ControlledMetricAccum("comp", "mod", "accum", "desc", "unit"),
+					new MetricValueDetails(10L, 3, 1L, 5L));
+			detailsMap.put(new ControlledMetricValue("comp", null, "value", "desc", "unit"),
+					new MetricValueDetails(-2.5, 2, -3.0, -2.0));
+			persister.persist(detailsMap, 1000);
+
+			List<String> lines = receivePacketLines();
+			assertEquals(Arrays.asList("app.accum:10|c|#component:comp,module:mod", "app.value:0|g|#component:comp",
+					"app.value:-2.5|g|#component:comp"), lines);
+			assertEquals(3, persister.getLineCount());
+			assertEquals(1, persister.getPacketCount());
+			assertEquals(0, persister.getDroppedPacketCount());
+		} finally {
+			persister.close();
+		}
+	}
+
+	@Test
+	public void testSettingsChangedAfterPersist() throws Exception {
+		StatsdMetricsPersister persister = new StatsdMetricsPersister();
+		persister.setHost("127.0.0.1");
+		persister.setPort(receiver.getLocalPort());
+		persister.setPrefix("app.");
+		try {
+			Map<ControlledMetric<?, ?>, MetricValueDetails> detailsMap =
+					new LinkedHashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+			detailsMap.put(new ControlledMetricValue("comp", "mod", "value", "desc", "unit"),
+					new MetricValueDetails(2L, 1, 2L, 2L));
+			persister.persist(detailsMap, 1000);
+			assertEquals(Arrays.asList("app.value:2|g|#component:comp,module:mod"), receivePacketLines());
+
+			// the cached encodings must not hide the new settings
+			persister.setPrefix("other.");
+			persister.setUseDogStatsdTags(false);
+			persister.setAveragesAsDistributions(true);
+			persister.persist(detailsMap, 2000);
+			assertEquals(Arrays.asList("other.comp.mod.value:2|d"), receivePacketLines());
+		} finally {
+			persister.close();
+		}
+	}
+
+	@Test
+	public void testNoTagsDistributions() throws Exception {
+		StatsdMetricsPersister persister = new StatsdMetricsPersister();
+		persister.setHost("127.0.0.1");
+		persister.setPort(receiver.getLocalPort());
+		persister.setUseDogStatsdTags(false);
+		persister.setAveragesAsDistributions(true);
+		try {
+			Map<ControlledMetric<?, ?>, MetricValueDetails> detailsMap =
+					new LinkedHashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+			detailsMap.put(new ControlledMetricValue("comp", "mod", "val|ue", "desc", "unit"),
+					new MetricValueDetails(-4L, 1, -4L, -4L));
+			persister.persist(detailsMap, 1000);
+			assertEquals(Arrays.asList("comp.mod.val_ue:-4|d"), receivePacketLines());
+		} finally {
+			persister.close();
+		}
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		int numMetrics = 2000;
+		int maxPacketSize = 512;
+		StatsdMetricsPersister persister = new StatsdMetricsPersister();
+		persister.setHost("127.0.0.1");
+		persister.setPort(receiver.getLocalPort());
+		persister.setMaxPacketSize(maxPacketSize);
+		try {
+			Map<ControlledMetric<?, ?>, MetricValueDetails> detailsMap =
+					new LinkedHashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+			for (int i = 0; i < numMetrics; i++) {
+				detailsMap.put(new ControlledMetricValue("comp", "mod", "metric" + i, "desc", "unit"),
+						new MetricValueDetails((long) i, 1, (long) i, (long) i));
+			}
+			persister.persist(detailsMap, 1000);
+			assertEquals(numMetrics, persister.getLineCount());
+			assertEquals(0, persister.getDroppedPacketCount());
+
+			Set<String> lines = new HashSet<String>();
+			byte[] bytes = new byte[65536];
+			for (int packetC = 0; packetC < persister.getPacketCount(); packetC++) {
+				DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
+				receiver.receive(packet);
+				assertTrue(packet.getLength() <= maxPacketSize);
+				// should be mostly full
+				if (packetC < persister.getPacketCount() - 1) {
+					assertTrue(packet.getLength() > maxPacketSize - 50);
+				}
+				for (String line : new String(bytes, 0, packet.getLength(), "UTF-8").split("\n")) {
+					lines.add(line);
+				}
+			}
+			assertEquals(numMetrics, lines.size());
+			for (int i = 0; i < numMetrics; i++) {
+				assertTrue(lines.contains("metric" + i + ":" + i + "|g|#component:comp,module:mod"));
+			}
+			assertTrue(persister.getPacketCount() < numMetrics / 10);
+		} finally {
+			persister.close();
+		}
+	}
+
+	private List<String> receivePacketLines() throws Exception {
+		byte[] bytes = new byte[65536];
+		DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
+		receiver.receive(packet);
+		List<String> lines = new ArrayList<String>();
+		for (String line : new String(bytes, 0, packet.getLength(), "UTF-8").split("\n")) {
+			lines.add(line);
+		}
+		return lines;
+	}
+}
@@ -9,6 +9,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.file.Files;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -19,7 +20,10 @@ import org.junit.Test;
 
 import com.j256.simplemetrics.metric.ControlledMetric;
 import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricHistogram;
 import com.j256.simplemetrics.metric.ControlledMetricValue;
+import com.j256.simplemetrics.metric.MetricsSnapshot;
+import com.j256.simplemetrics.persister.TextFileMetricsPersister.FsyncPolicy;
 
 public class TextFileMetricsPersisterTest {
 
@@ -57,6 +61,256 @@ public class TextFileMetricsPersisterTest {
 		assertTrue(findEntry(prefix, true, component + "." + model + "." + label, before, after, "=") != -1L);
 	}
 
+	@Test
+	public void testHistogramPercentiles() throws Exception {
+		TextFileMetricsPersister persister = new TextFileMetricsPersister();
+		String prefix = "log.";
+		persister.setLogFileNamePrefix(prefix);
+		File tmpDir = new File(TEMP_DIR);
+		tmpDir.mkdirs();
+		persister.setOutputDirectory(tmpDir);
+
+		String label = "hist";
+		ControlledMetricHistogram metric = new ControlledMetricHistogram("comp", "mod", label, "desc", "unit");
+		metric.adjustValue(100);
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		long before = System.currentTimeMillis();
+		snapshot.reset(before);
+		snapshot.setMetric(0, metric);
+		metric.persistToSnapshot(snapshot, 0);
+		persister.persist(snapshot);
+		long after = System.currentTimeMillis();
+
+		assertEquals("100", findEntryString(prefix, "comp.mod." + label, before, after));
+		assertEquals("100.0", findEntryString(prefix, "comp.mod." + label + ".p50", before, after));
+		assertEquals("100.0", findEntryString(prefix, "comp.mod." + label + ".p999", before, after));
+	}
+
+	@Test
+	public void testValueFormats() throws Exception {
+		TextFileMetricsPersister persister = new TextFileMetricsPersister();
+		String prefix = "log.";
+		persister.setLogFileNamePrefix(prefix);
+		File tmpDir = new File(TEMP_DIR);
+		tmpDir.mkdirs();
+		persister.setOutputDirectory(tmpDir);
+
+		ControlledMetricValue metric = new ControlledMetricValue("comp", "mod", "value", "desc", "unit");
+		Map<ControlledMetric<?, ?>, Number> metricValues = new HashMap<ControlledMetric<?, ?>, Number>();
+		for (Number value : new Number[] { 0L, -1L, Long.MAX_VALUE, Long.MIN_VALUE, 10, 10.0, 1.5, -0.25, 1.0E-5,
+				1.2345678901234E20, Double.NaN, Float.valueOf(0.1F) }) {
+			metricValues.put(metric, value);
+			long timeMillis = System.currentTimeMillis();
+			persister.persist(metricValues, timeMillis);
+			assertEquals(value.toString(), findEntryString(prefix, "comp.mod.value", timeMillis, timeMillis));
+			new File(tmpDir, prefix + timeMillis).delete();
+		}
+	}
+
+	@Test
+	public void testSnapshotMatchesMap() throws Exception {
+		TextFileMetricsPersister persister = new TextFileMetricsPersister();
+		persister.setAppendSysTimeMillis(false);
+		persister.setShowDescription(true);
+		File tmpDir = new File(TEMP_DIR);
+		tmpDir.mkdirs();
+		persister.setOutputDirectory(tmpDir);
+
+		ControlledMetricValue value = new ControlledMetricValue("comp", "mod", "value", "desc \u00e9", "unit");
+		value.adjustValue(1);
+		value.adjustValue(2);
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", "unit");
+		accum.add(1234);
+		ControlledMetricHistogram histogram = new ControlledMetricHistogram("comp", "mod", "hist", "desc", "unit");
+		histogram.adjustValue(100);
+		histogram.adjustValue(200);
+
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		long now = System.currentTimeMillis();
+		snapshot.reset(now);
+		int id = 0;
+		for (ControlledMetric<?, ?> metric : new ControlledMetric<?, ?>[] { value, accum, histogram }) {
+			snapshot.setMetric(id, metric);
+			metric.persistToSnapshot(snapshot, id);
+			// leave holes in the ids
+			id += 2;
+		}
+
+		persister.setLogFileNamePrefix("snapshot");
+		persister.persist(snapshot);
+		Map<ControlledMetric<?, ?>, Number> valuesMap = snapshot.toValuesMap();
+		persister.setLogFileNamePrefix("map");
+		persister.persist(valuesMap, now);
+		assertEquals(2, persister.getDumpLogCount());
+
+		String snapshotContents = readInFile(new File(tmpDir, "snapshot"));
+		String mapContents = readInFile(new File(tmpDir, "map"));
+		// the percentiles of the histogram are only in the snapshot
+		assertFalse(mapContents.contains("comp.mod.hist.p50="));
+		assertEquals(mapContents, snapshotContents.replaceAll("comp\\.mod\\.hist\\.p[0-9]+=.*\\R", ""));
+		// written as utf-8 regardless of the platform charset
+		String snapshotUtf8 = new String(Files.readAllBytes(new File(tmpDir, "snapshot").toPath()), "UTF-8");
+		assertTrue(snapshotUtf8.contains("# desc \u00e9"));
+		assertTrue(snapshotContents.contains("comp.mod.value=1.5"));
+		assertTrue(snapshotContents.contains("comp.mod.accum=1234"));
+		assertTrue(snapshotContents.contains("comp.mod.hist.p50="));
+		assertEquals("1.5", findEntryString("snapshot", false, "comp.mod.value", 0, 0, "="));
+		assertEquals("1234", findEntryString("snapshot", false, "comp.mod.accum", 0, 0, "="));
+		assertEquals(findEntryString("map", false, "comp.mod.hist", 0, 0, "="),
+				findEntryString("snapshot", false, "comp.mod.hist", 0, 0, "="));
+	}
+
+	@Test
+	public void testLargerThanBuffer() throws Exception {
+		TextFileMetricsPersister persister = new TextFileMetricsPersister();
+		persister.setAppendSysTimeMillis(false);
+		persister.setLogFileNamePrefix("log");
+		persister.setSeparatingString(" : ");
+		File tmpDir = new File(TEMP_DIR);
+		tmpDir.mkdirs();
+		persister.setOutputDirectory(tmpDir);
+
+		int numMetrics = 10000;
+		Map<ControlledMetric<?, ?>, Number> metricValues = new HashMap<ControlledMetric<?, ?>, Number>();
+		for (int i = 0; i < numMetrics; i++) {
+			ControlledMetricAccum metric = new ControlledMetricAccum("comp", "mod", "metric" + i, "desc", "unit");
+			metricValues.put(metric, (long) i);
+		}
+		// twice to make sure the buffer is reset between files
+		persister.persist(metricValues, 0);
+		persister.persist(metricValues, 0);
+
+		File file = new File(tmpDir, "log");
+		assertTrue(file.length() > ChannelLineWriter.DEFAULT_BUFFER_SIZE);
+		int count = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			while (true) {
+				String line = reader.readLine();
+				if (line == null) {
+					break;
+				}
+				String[] fields = line.split(" : ", 2);
+				assertEquals("comp.mod.metric" + fields[1], fields[0]);
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+		assertEquals(numMetrics, count);
+	}
+
+	@Test
+	public void testFsyncPolicies() throws Exception {
+		TextFileMetricsPersister persister = new TextFileMetricsPersister();
+		persister.setLogFileNamePrefix("log.");
+		File tmpDir = new File(TEMP_DIR);
+		tmpDir.mkdirs();
+		persister.setOutputDirectory(tmpDir);
+		ControlledMetricAccum metric = new ControlledMetricAccum("comp", "mod", "accum", "desc", "unit");
+		metric.add(10);
+		Map<ControlledMetric<?, ?>, Number> metricValues = metricValueMap(metric);
+		long timeMillis = 0;
+		for (FsyncPolicy policy : FsyncPolicy.values()) {
+			persister.setFsyncPolicy(policy);
+			timeMillis++;
+			persister.persist(metricValues, timeMillis);
+			assertEquals("10", findEntryString("log.", "comp.mod.accum", timeMillis, timeMillis));
+			assertFalse(new File(tmpDir, "log." + timeMillis + ".t").exists());
+		}
+		assertEquals(FsyncPolicy.values().length, persister.getDumpLogCount());
+	}
+
+	@Test
+	public void testSegmentsRollByTime() throws Exception {
+		TextFileMetricsPersister persister = new TextFileMetricsPersister();
+		persister.setLogFileNamePrefix("seg.");
+		File tmpDir = new File(TEMP_DIR);
+		tmpDir.mkdirs();
+		persister.setOutputDirectory(tmpDir);
+		persister.setUseSegments(true);
+		persister.setSegmentMaxMillis(1000);
+		assertTrue(persister.isUseSegments());
+
+		ControlledMetricAccum metric = new ControlledMetricAccum("comp", "mod", "accum", "desc", "unit");
+		metric.add(10);
+		Map<ControlledMetric<?, ?>, Number> metricValues = metricValueMap(metric);
+		persister.persist(metricValues, 1000);
+		persister.persist(metricValues, 1500);
+		persister.persist(metricValues, 1999);
+		assertEquals(1, persister.getSegmentCount());
+		persister.persist(metricValues, 2000);
+		persister.persist(metricValues, 2500);
+		assertEquals(2, persister.getSegmentCount());
+		assertEquals(5, persister.getDumpLogCount());
+
+		File segmentFile = new File(tmpDir, "seg.1000" + TextFileMetricsPersister.SEGMENT_EXTENSION);
+		assertTrue(segmentFile.exists());
+		assertTrue(new File(tmpDir, "seg.1000" + TextFileMetricsPersister.SEGMENT_INDEX_EXTENSION).exists());
+		assertTrue(new File(tmpDir, "seg.2000" + TextFileMetricsPersister.SEGMENT_EXTENSION).exists());
+		String contents = readInFile(segmentFile);
+		assertTrue(contents.startsWith(TextFileMetricsPersister.SEGMENT_BLOCK_MARKER + "1000"));
+		assertTrue(contents.contains(TextFileMetricsPersister.SEGMENT_BLOCK_MARKER + "1999"));
+		assertFalse(contents.contains(TextFileMetricsPersister.SEGMENT_BLOCK_MARKER + "2000"));
+
+		// times in the segments are well in the past
+		persister.cleanMetricFilesOlderThanMillis(1000);
+		assertEquals(1, persister.getCleanupLogCount());
+		assertEquals(1, persister.getSegmentCount());
+		assertFalse(segmentFile.exists());
+		// the current segment is never deleted
+		persister.cleanMetricFilesOlderThanMillis(1000);
+		assertEquals(1, persister.getSegmentCount());
+	}
+
+	@Test
+	public void testSegmentsRollBySize() throws Exception {
+		TextFileMetricsPersister persister = new TextFileMetricsPersister();
+		persister.setLogFileNamePrefix("seg.");
+		File tmpDir = new File(TEMP_DIR);
+		tmpDir.mkdirs();
+		persister.setOutputDirectory(tmpDir);
+		persister.setUseSegments(true);
+		persister.setSegmentMaxBytes(100);
+
+		ControlledMetricAccum metric = new ControlledMetricAccum("comp", "mod", "accum", "desc", "unit");
+		metric.add(10);
+		Map<ControlledMetric<?, ?>, Number> metricValues = metricValueMap(metric);
+		for (int i = 0; i < 10; i++) {
+			persister.persist(metricValues, 1000 + i);
+		}
+		int segmentCount = persister.getSegmentCount();
+		assertTrue(segmentCount > 1 && segmentCount < 10);
+
+		// a new persister picks up the segments from the earlier run
+		TextFileMetricsPersister persister2 = new TextFileMetricsPersister();
+		persister2.setLogFileNamePrefix("seg.");
+		persister2.setOutputDirectory(tmpDir);
+		persister2.setUseSegments(true);
+		persister2.setSegmentMaxBytes(100);
+		persister2.persist(metricValues, System.currentTimeMillis());
+		assertEquals(segmentCount + 1, persister2.getSegmentCount());
+		// the earlier segments end at the time of their last block and not when their files were modified
+		persister2.cleanMetricFilesOlderThanMillis(60000);
+		assertEquals(1, persister2.getSegmentCount());
+		assertEquals(persister2.getSegmentCount() * 2, tmpDir.listFiles().length);
+	}
+
+	@Test
+	public void testReadLastIndexMillis() throws Exception {
+		File tmpDir = new File(TEMP_DIR);
+		tmpDir.mkdirs();
+		File indexFile = new File(tmpDir, "seg.1000" + TextFileMetricsPersister.SEGMENT_INDEX_EXTENSION);
+		assertEquals(1000, TextFileMetricsPersister.readLastIndexMillis(indexFile, 1000));
+		Files.write(indexFile.toPath(), "1000 0\n1001 50\n".getBytes("UTF-8"));
+		assertEquals(1001, TextFileMetricsPersister.readLastIndexMillis(indexFile, 1000));
+		// partial entry from a crash is ignored
+		Files.write(indexFile.toPath(), "1000 0\n1001 50\n10".getBytes("UTF-8"));
+		assertEquals(1001, TextFileMetricsPersister.readLastIndexMillis(indexFile, 1000));
+		Files.write(indexFile.toPath(), new byte[0]);
+		assertEquals(1000, TextFileMetricsPersister.readLastIndexMillis(indexFile, 1000));
+	}
+
 	@Test
 	public void testGetOutputDirectory() {
 		TextFileMetricsPersister persister = new TextFileMetricsPersister();
@@ -275,6 +529,21 @@ public class TextFileMetricsPersisterTest {
 
 	private long findEntry(String prefix, boolean appendSysTimeMillis, String label, long fromTime, long toTime,
 			String separatingString) throws IOException {
+		String value = findEntryString(prefix, appendSysTimeMillis, label, fromTime, toTime, separatingString);
+		if (value == null) {
+			return -1;
+		} else {
+			return Long.parseLong(value);
+		}
+	}
+
+	private String findEntryString(String prefix, String label, long fromTime, long toTime) throws IOException {
+		return findEntryString(prefix, true, label, fromTime, toTime,
+				TextFileMetricsPersister.DEFAULT_SEPARATING_STRING);
+	}
+
+	private String findEntryString(String prefix, boolean appendSysTimeMillis, String label, long fromTime,
+			long toTime, String separatingString) throws IOException {
 		for (long time = fromTime; time <= toTime; time++) {
 			String fileName = prefix;
 			if (appendSysTimeMillis) {
@@ -292,7 +561,7 @@ public class TextFileMetricsPersisterTest {
 						if (line.contains(label)) {
 							String[] fields = line.split(separatingString, 2);
 							if (fields[0].equals(label)) {
-								return Long.parseLong(fields[1]);
+								return fields[1];
 							}
 						}
 					}
@@ -301,7 +570,7 @@ public class TextFileMetricsPersisterTest {
 				}
 			}
 		}
-		return -1;
+		return null;
 	}
 
 	private void deleteFile(File file) {
@@ -0,0 +1,157 @@
+package com.j256.simplemetrics.persister;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricHistogram;
+import com.j256.simplemetrics.metric.MetricsSnapshot;
+import com.j256.simplemetrics.persister.TextFileSegmentReader.MetricsBlock;
+
+public class TextFileSegmentReaderTest {
+
+	private final File TEMP_DIR = new File("target/" + getClass().getSimpleName());
+
+	@Before
+	@After
+	public void cleanTmp() {
+		File[] files = TEMP_DIR.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		TEMP_DIR.delete();
+	}
+
+	@Test
+	public void testReadRange() throws Exception {
+		TextFileMetricsPersister persister = createPersister();
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", "unit");
+		ControlledMetricHistogram histogram = new ControlledMetricHistogram("comp", "mod", "hist", "desc", "unit");
+		histogram.adjustValue(100);
+		// the percentiles are only written from a snapshot
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		// 10 blocks per segment
+		for (int i = 0; i < 50; i++) {
+			snapshot.reset(i * 100);
+			snapshot.setMetric(0, accum);
+			snapshot.setValue(0, i, 1, i, i);
+			snapshot.setMetric(1, histogram);
+			// the histogram keeps its last value when it isn't adjusted
+			histogram.persistToSnapshot(snapshot, 1);
+			persister.persist(snapshot);
+		}
+		assertEquals(5, persister.getSegmentCount());
+
+		TextFileSegmentReader reader = new TextFileSegmentReader(TEMP_DIR, "seg.");
+		reader.setSeparatingString(": ");
+		assertEquals(1, reader.findSegments(1000, 1999).size());
+		assertEquals(2, reader.findSegments(1500, 2500).size());
+		assertEquals(5, reader.findSegments(0, Long.MAX_VALUE).size());
+		assertEquals(0, reader.findSegments(-100, -1).size());
+		assertEquals(1, reader.findSegments(10000, 20000).size());
+
+		List<MetricsBlock> blocks = reader.readBlocks(1550, 2500);
+		assertEquals(10, blocks.size());
+		for (int i = 0; i < blocks.size(); i++) {
+			MetricsBlock block = blocks.get(i);
+			assertEquals(1600 + i * 100, block.getTimeMillis());
+			assertEquals(Integer.toString(16 + i), block.getValues().get("comp.mod.accum"));
+			assertEquals("100", block.getValues().get("comp.mod.hist"));
+			assertTrue(block.getValues().containsKey("comp.mod.hist.p99"));
+		}
+		assertEquals(50, reader.readBlocks(0, Long.MAX_VALUE).size());
+		assertEquals(0, reader.readBlocks(10000, 20000).size());
+	}
+
+	@Test
+	public void testPartialBlock() throws Exception {
+		TextFileMetricsPersister persister = createPersister();
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", "unit");
+		accum.add(1);
+		Map<ControlledMetric<?, ?>, Number> metricValues = new HashMap<ControlledMetric<?, ?>, Number>();
+		metricValues.put(accum, 1L);
+		persister.persist(metricValues, 100);
+		persister.persist(metricValues, 200);
+
+		// simulate a crash while writing a block and its index entry
+		try (FileOutputStream fos = new FileOutputStream(new File(TEMP_DIR, "seg.100"
+				+ TextFileMetricsPersister.SEGMENT_INDEX_EXTENSION), true);) {
+			fos.write("300".getBytes());
+		}
+		TextFileSegmentReader reader = new TextFileSegmentReader(TEMP_DIR, "seg.");
+		reader.setSeparatingString(": ");
+		List<MetricsBlock> blocks = reader.readBlocks(0, 1000);
+		assertEquals(2, blocks.size());
+		assertEquals("1", blocks.get(1).getValues().get("comp.mod.accum"));
+	}
+
+	@Test
+	public void testUnindexedBlock() throws Exception {
+		TextFileMetricsPersister persister = createPersister();
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", "unit");
+		Map<ControlledMetric<?, ?>, Number> metricValues = new HashMap<ControlledMetric<?, ?>, Number>();
+		metricValues.put(accum, 1L);
+		persister.persist(metricValues, 100);
+		metricValues.put(accum, 2L);
+		persister.persist(metricValues, 200);
+
+		// simulate a crash after the data of the block at 300 was written but before its index entry
+		File segmentFile = new File(TEMP_DIR, "seg.100" + TextFileMetricsPersister.SEGMENT_EXTENSION);
+		File indexFile = new File(TEMP_DIR, "seg.100" + TextFileMetricsPersister.SEGMENT_INDEX_EXTENSION);
+		long indexLength = indexFile.length();
+		metricValues.put(accum, 3L);
+		persister.persist(metricValues, 300);
+		try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");) {
+			raf.setLength(indexLength);
+		}
+		// and part of the block at 350 too
+		try (RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");) {
+			raf.seek(raf.length());
+			raf.write("@350\ncomp.mod.acc".getBytes("UTF-8"));
+		}
+
+		TextFileSegmentReader reader = new TextFileSegmentReader(TEMP_DIR, "seg.");
+		reader.setSeparatingString(": ");
+		List<MetricsBlock> blocks = reader.readBlocks(0, 1000);
+		assertEquals(2, blocks.size());
+		assertEquals(200, blocks.get(1).getTimeMillis());
+		assertEquals("2", blocks.get(1).getValues().get("comp.mod.accum"));
+		assertEquals(1, blocks.get(1).getValues().size());
+
+		// a restarted persister appends after the unindexed data
+		TextFileMetricsPersister persister2 = createPersister();
+		metricValues.put(accum, 4L);
+		persister2.persist(metricValues, 400);
+		blocks = reader.readBlocks(0, 1000);
+		assertEquals(3, blocks.size());
+		assertEquals("2", blocks.get(1).getValues().get("comp.mod.accum"));
+		assertEquals(400, blocks.get(2).getTimeMillis());
+		assertEquals("4", blocks.get(2).getValues().get("comp.mod.accum"));
+	}
+
+	private TextFileMetricsPersister createPersister() {
+		TextFileMetricsPersister persister = new TextFileMetricsPersister();
+		persister.setLogFileNamePrefix("seg.");
+		TEMP_DIR.mkdirs();
+		persister.setOutputDirectory(TEMP_DIR);
+		persister.setSeparatingString(": ");
+		persister.setShowDescription(true);
+		persister.setUseSegments(true);
+		persister.setSegmentMaxMillis(1000);
+		return persister;
+	}
+}
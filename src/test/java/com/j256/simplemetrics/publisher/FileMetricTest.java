@@ -713,6 +713,39 @@ public class FileMetricTest {
 		metric.initialize();
 	}
 
+	@Test
+	public void testFileReplacedByRename() throws Exception {
+		File tmpDir = new File(TEMP_DIR);
+		tmpDir.mkdirs();
+		File file = new File(tmpDir, "value");
+		writeToFile(file, "10\n");
+		FileMetric metric = new FileMetric("name", "comp", null, "desc", file, FileMetricKind.FILE_VALUE, 0, " ", null);
+		// regular files are not kept open by default
+		assertFalse(metric.isKeepFileOpen());
+		metric.updateValue();
+		assertEquals(10, metric.getMetric().getValue().longValue());
+
+		File newFile = new File(tmpDir, "value.new");
+		writeToFile(newFile, "20\n");
+		assertTrue(newFile.renameTo(file));
+		metric.updateValue();
+		// the value is the average of the two samples
+		assertEquals(15, metric.getMetric().getValue().longValue());
+		metric.close();
+	}
+
+	@Test
+	public void testKeepKernelFilesOpen() {
+		FileMetric metric = new FileMetric();
+		metric.setMetricFile("/proc/self/status");
+		assertTrue(metric.isKeepFileOpen());
+		metric.setKeepFileOpen(false);
+		assertFalse(metric.isKeepFileOpen());
+		metric.setMetricFile("/var/tmp/value");
+		metric.setKeepFileOpen(true);
+		assertTrue(metric.isKeepFileOpen());
+	}
+
 	private void writeToFile(File file, String contents) throws IOException {
 		FileWriter writer = new FileWriter(file);
 		try {
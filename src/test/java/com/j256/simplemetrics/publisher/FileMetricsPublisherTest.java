@@ -14,6 +14,7 @@ import com.j256.simplemetrics.metric.ControlledMetric;
 import com.j256.simplemetrics.utils.FileMetric;
 import com.j256.simplemetrics.utils.FileMetric.FileMetricKind;
 import com.j256.simplemetrics.utils.FileMetricsPublisher;
+import com.j256.simplemetrics.utils.FileMetricsPublisher.FileGroup;
 
 public class FileMetricsPublisherTest {
 
@@ -62,4 +63,59 @@ public class FileMetricsPublisherTest {
 		assertEquals(1, values.length);
 		assertEquals("self.foo = 4.0", values[0]);
 	}
+
+	@Test
+	public void testGroupedFiles() {
+		File meminfo = new File(PROC_PREFIX, "meminfo");
+		FileMetric cached =
+				new FileMetric("cached", "mem", null, "desc", meminfo, FileMetricKind.FILE_VALUE, 1, " +", "Cached:");
+		FileMetric total =
+				new FileMetric("total", "mem", null, "desc", meminfo, FileMetricKind.FILE_VALUE, 1, " +", "MemTotal:");
+		FileMetric mapped = new FileMetric();
+		mapped.setMetricName("mapped");
+		mapped.setMetricComponent("mem");
+		mapped.setKind(FileMetricKind.FILE_VALUE);
+		mapped.setColumn(1);
+		mapped.setMetricFile(PROC_PREFIX + "/meminfo");
+		mapped.setLinePattern("Mapped:\\s+(\\d+).*");
+		mapped.initialize();
+		FileMetric missing =
+				new FileMetric("missing", "mem", null, "desc", meminfo, FileMetricKind.FILE_VALUE, 1, " +", "Nope:");
+		FileMetric disk = new FileMetric("disk", "disk", null, "desc", new File(PROC_PREFIX, "disk/stat"),
+				FileMetricKind.FILE_VALUE, 3, "\\s+", null);
+
+		MetricsManager manager = new MetricsManager();
+		FileMetricsPublisher publisher = new FileMetricsPublisher();
+		publisher.setMetricsManager(manager);
+		publisher.setFileMetrics(new FileMetric[] { cached, disk, total, mapped, missing });
+		publisher.initialize();
+
+		manager.updateMetrics();
+		assertEquals(4385684, cached.getMetric().getValue().longValue());
+		assertEquals(8177880, total.getMetric().getValue().longValue());
+		assertEquals(106596, mapped.getMetric().getValue().longValue());
+		assertEquals(13024394, disk.getMetric().getValue().longValue());
+
+		FileGroup[] groups = publisher.getFileGroups();
+		assertEquals(2, groups.length);
+		assertEquals(meminfo.getAbsoluteFile(), groups[0].getFile());
+		assertEquals(4, groups[0].getMetrics().length);
+		assertEquals(1, groups[0].getReadCount());
+		assertEquals(0, groups[0].getReadFailedCount());
+		assertEquals(1, groups[0].getExtractFailedCount());
+		assertNotNull(groups[0].getLastException());
+		assertEquals(1, groups[1].getMetrics().length);
+		assertEquals(0, groups[1].getExtractFailedCount());
+		assertEquals(1, publisher.getFailedUpdateCount());
+		assertEquals(2, publisher.getFileStats().length);
+
+		manager.updateMetrics();
+		assertEquals(2, groups[0].getReadCount());
+		assertEquals(2, publisher.getFailedUpdateCount());
+
+		publisher.destroy();
+		assertEquals(0, manager.getUpdaterDispatchers().length);
+		manager.updateMetrics();
+		assertEquals(2, groups[0].getReadCount());
+	}
 }
@@ -0,0 +1,99 @@
+package com.j256.simplemetrics.publisher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.utils.GcMetricsPublisher;
+import com.j256.simplemetrics.utils.GcMetricsPublisher.CollectorMetrics;
+
+public class GcMetricsPublisherTest {
+
+	@Test
+	public void testGc() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		GcMetricsPublisher publisher = new GcMetricsPublisher();
+		publisher.setMetricsManager(manager);
+		publisher.initialize();
+		try {
+			assertFalse(publisher.getCollectorMetrics().isEmpty());
+			manager.updateMetrics();
+			assertEquals(1, publisher.getPoolPollCount());
+
+			// allocate some garbage and collect it
+			long sum = 0;
+			for (int i = 0; i < 1000; i++) {
+				sum += new byte[1024].length;
+			}
+			assertTrue(sum > 0);
+			long notificationCount = publisher.getNotificationCount();
+			System.gc();
+			if (publisher.getCollectorMetrics().get(0).isNotifications()) {
+				// the notifications are sent asynchronously
+				for (int i = 0; i < 100 && publisher.getNotificationCount() == notificationCount; i++) {
+					Thread.sleep(10);
+				}
+				assertTrue(publisher.getNotificationCount() > notificationCount);
+			}
+
+			manager.updateMetrics();
+			// the pools are refreshed less often
+			assertEquals(1, publisher.getPoolPollCount());
+			long collections = 0;
+			for (CollectorMetrics collector : publisher.getCollectorMetrics()) {
+				long count = collector.getCount().getValueToPersist().longValue();
+				if (count > 0) {
+					assertTrue(collector.getDurations().getValueDetailsToPersist().getNumSamples() > 0);
+				}
+				collections += count;
+			}
+			assertTrue(collections > 0);
+
+			assertNotNull(manager.getMetric("java", "alloc", "allocatedBytes"));
+			assertTrue(manager.getMetric("java", "alloc", "allocatedBytes").getValueToPersist().longValue() > 0);
+		} finally {
+			publisher.destroy();
+		}
+	}
+
+	@Test
+	public void testBufferPools() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(12345);
+		MetricsManager manager = new MetricsManager();
+		GcMetricsPublisher publisher = new GcMetricsPublisher();
+		publisher.setMetricsManager(manager);
+		publisher.setPoolRefreshMillis(0);
+		publisher.initialize();
+		try {
+			manager.updateMetrics();
+			manager.updateMetrics();
+			assertEquals(2, publisher.getPoolPollCount());
+			assertTrue(manager.getMetric("java", "bufferPool", "direct.used").getValue().longValue() >= buffer
+					.capacity());
+			assertNotNull(manager.getMetric("java", "bufferPool", "mapped.count"));
+		} finally {
+			publisher.destroy();
+		}
+	}
+
+	@Test
+	public void testDestroy() {
+		MetricsManager manager = new MetricsManager();
+		GcMetricsPublisher publisher = new GcMetricsPublisher(manager);
+		assertFalse(manager.getMetrics().isEmpty());
+		assertEquals(2, manager.getUpdaterDispatchers().length);
+		publisher.destroy();
+		assertEquals(0, manager.getUpdaterDispatchers().length);
+		assertTrue(manager.getMetrics().isEmpty());
+		assertNull(manager.getMetric("java", "bufferPool", "direct.used"));
+		manager.updateMetrics();
+		assertEquals(0, publisher.getPoolPollCount());
+	}
+}
@@ -0,0 +1,153 @@
+package com.j256.simplemetrics.publisher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.utils.ProcessMetricsPublisher;
+
+public class ProcessMetricsPublisherTest {
+
+	private static final String PROC_PREFIX = "target/test-classes/proc";
+	private static final String CGROUP_PREFIX = "target/test-classes/cgroup";
+	private final String TEMP_DIR = "target/" + getClass().getSimpleName();
+
+	@Before
+	@After
+	public void cleanTmp() {
+		deleteFile(new File(TEMP_DIR));
+	}
+
+	@Test
+	public void testCgroupV2() {
+		MetricsManager manager = new MetricsManager();
+		ProcessMetricsPublisher publisher = new ProcessMetricsPublisher();
+		publisher.setMetricsManager(manager);
+		publisher.setProcessDir(PROC_PREFIX + "/self");
+		publisher.setCgroupDir(CGROUP_PREFIX + "/v2");
+		publisher.initialize();
+		assertEquals(2, publisher.getCgroupVersion());
+		// fd dir, status, io, cpu.stat, memory.current
+		assertEquals(5, publisher.getFileGroups().length);
+
+		manager.updateMetrics();
+		assertEquals(4, getValue(manager, "fd", "openFiles"));
+		assertEquals(398212L * 1024, getValue(manager, "mem", "rss"));
+		assertEquals(57, getValue(manager, "threads", "numThreads"));
+		assertEquals(536870912L, getValue(manager, "cgroup", "memoryUsage"));
+		assertEquals(1.5, manager.getMetric("process", "cgroup", "cpuLimit").getValue().doubleValue(), 0);
+		// max means no limit
+		assertEquals(0, getValue(manager, "cgroup", "memoryLimit"));
+		assertNotNull(manager.getMetric("process", "cgroup", "cpuThrottledTime"));
+		assertEquals(0, publisher.getFailedUpdateCount());
+
+		publisher.destroy();
+		assertEquals(0, manager.getUpdaterDispatchers().length);
+	}
+
+	@Test
+	public void testCgroupV1Diffs() throws Exception {
+		File cgroupDir = new File(TEMP_DIR, "cgroup");
+		copyDir(new File(CGROUP_PREFIX, "v1"), cgroupDir);
+		File procDir = new File(TEMP_DIR, "proc");
+		copyDir(new File(PROC_PREFIX, "self"), procDir);
+
+		MetricsManager manager = new MetricsManager();
+		ProcessMetricsPublisher publisher = new ProcessMetricsPublisher();
+		publisher.setMetricsManager(manager);
+		publisher.setProcessDir(procDir.getPath());
+		publisher.setCgroupDir(cgroupDir.getPath());
+		publisher.initialize();
+		assertEquals(1, publisher.getCgroupVersion());
+
+		manager.updateMetrics();
+		// no quota
+		assertEquals(0, getValue(manager, "cgroup", "cpuLimit"));
+		assertEquals(1073741824L, getValue(manager, "cgroup", "memoryLimit"));
+		assertEquals(268435456L, getValue(manager, "cgroup", "memoryUsage"));
+
+		writeToFile(new File(cgroupDir, "cpu/cpu.stat"),
+				"nr_periods 1300\nnr_throttled 15\nthrottled_time 650000000\n");
+		writeToFile(new File(cgroupDir, "cpuacct/cpuacct.usage"), "9976543210\n");
+		writeToFile(new File(procDir, "io"), "read_bytes: 20481024\nwrite_bytes: 1228800\n");
+		writeToFile(new File(procDir, "status"), "Threads:\t58\nvoluntary_ctxt_switches:\t1850\n");
+		writeToFile(new File(cgroupDir, "memory/memory.limit_in_bytes"), "9223372036854771712\n");
+		manager.updateMetrics();
+		assertEquals(100, getValue(manager, "cgroup", "cpuPeriods"));
+		assertEquals(3, getValue(manager, "cgroup", "cpuThrottledPeriods"));
+		assertEquals(200, getValue(manager, "cgroup", "cpuThrottledTime"));
+		assertEquals(100, getValue(manager, "cgroup", "cpuUsage"));
+		assertEquals(1024, getValue(manager, "io", "readBytes"));
+		assertEquals(0, getValue(manager, "io", "writeBytes"));
+		assertEquals(5, getValue(manager, "cpu", "voluntaryCtxSwitches"));
+		// values are the average of the updates since the last persist
+		assertEquals(57.5, manager.getMetric("process", "threads", "numThreads").getValue().doubleValue(), 0);
+		// the huge limit means no limit
+		assertEquals(1073741824L / 2, getValue(manager, "cgroup", "memoryLimit"));
+		// rss and involuntary switches are missing from the new status file
+		assertEquals(2, publisher.getFailedUpdateCount());
+	}
+
+	@Test
+	public void testNoFiles() {
+		MetricsManager manager = new MetricsManager();
+		ProcessMetricsPublisher publisher = new ProcessMetricsPublisher();
+		publisher.setMetricsManager(manager);
+		publisher.setProcessDir(TEMP_DIR + "/does-not-exist");
+		publisher.setCgroupDir(TEMP_DIR + "/does-not-exist");
+		publisher.initialize();
+		assertEquals(0, publisher.getCgroupVersion());
+		assertEquals(0, publisher.getFileGroups().length);
+		assertNull(manager.getMetric("process", "cgroup", "cpuLimit"));
+		manager.updateMetrics();
+		assertEquals(0, publisher.getFailedUpdateCount());
+	}
+
+	private long getValue(MetricsManager manager, String module, String name) {
+		ControlledMetric<?, ?> metric = manager.getMetric("process", module, name);
+		assertNotNull(module + "." + name, metric);
+		return metric.getValue().longValue();
+	}
+
+	private void copyDir(File from, File to) throws IOException {
+		to.mkdirs();
+		for (File file : from.listFiles()) {
+			File toFile = new File(to, file.getName());
+			if (file.isDirectory()) {
+				copyDir(file, toFile);
+			} else {
+				Files.copy(file.toPath(), toFile.toPath());
+			}
+		}
+	}
+
+	private void writeToFile(File file, String contents) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(contents);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private void deleteFile(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File subFile : files) {
+				deleteFile(subFile);
+			}
+		}
+		file.delete();
+	}
+}
@@ -1,8 +1,18 @@
 package com.j256.simplemetrics.publisher;
 
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.junit.Test;
 
 import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
 import com.j256.simplemetrics.utils.SystemMetricsPublisher;
 
 public class SystemMetricsPublisherTest {
@@ -15,4 +25,49 @@ public class SystemMetricsPublisherTest {
 		publisher.initialize();
 		publisher.updateMetrics();
 	}
+
+	@Test
+	public void testThreadGroupCpu() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		SystemMetricsPublisher publisher = new SystemMetricsPublisher();
+		publisher.setMetricsManager(manager);
+		publisher.setThreadGroupCpu(true);
+		publisher.initialize();
+		publisher.updateMetrics();
+
+		final AtomicBoolean done = new AtomicBoolean();
+		final CountDownLatch started = new CountDownLatch(1);
+		// the spin count is published so the loop isn't dead code and checked here since the thread can't fail the test
+		final AtomicLong spinCount = new AtomicLong();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				long count = 0;
+				while (!done.get()) {
+					count++;
+				}
+				spinCount.set(count);
+			}
+		}, "busy-worker-12");
+		thread.start();
+		try {
+			started.await();
+			Thread.sleep(50);
+			publisher.updateMetrics();
+		} finally {
+			done.set(true);
+			thread.join();
+		}
+		assertTrue(spinCount.get() > 0);
+
+		Map<String, ControlledMetricAccum> groupMetrics = publisher.getThreadGroupMetrics();
+		ControlledMetricAccum busyMetric = groupMetrics.get("busy-worker");
+		assertNotNull(groupMetrics.keySet().toString(), busyMetric);
+		assertTrue(busyMetric.getValueToPersist().longValue() > 0);
+		assertSame(busyMetric, manager.getMetric("java", "threadGroupCpu", "busy-worker"));
+		assertNotNull(manager.getMetric("java", "cpu", "publisherCpuTime"));
+		assertTrue(publisher.getLastUpdateCpuMicros() >= 0);
+		assertTrue(manager.getMetric("java", "cpu", "totalCpuTime").getValue().longValue() > 0);
+	}
 }
@@ -0,0 +1,184 @@
+package com.j256.simplemetrics.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.j256.simplemetrics.utils.FileMetric.FileMetricKind;
+
+public class FileMetricReaderTest {
+
+	private final String TEMP_DIR = "target/" + getClass().getSimpleName();
+
+	@Before
+	@After
+	public void cleanTmp() {
+		File dir = new File(TEMP_DIR);
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testParseLong() {
+		String[] values = new String[] { "0", "-0", "+12", "-12", "123456789012345678", "1234567890123456789",
+				"9223372036854775807", "-9223372036854775808", "9223372036854775808", "", "-", "+", "1.0", "12 ",
+				" 12", "1a", "\u0661\u0662" };
+		for (String value : values) {
+			// the bytes are in the default charset which may not handle all of the characters
+			value = new String(value.getBytes(FileMetricReader.FILE_CHARSET), FileMetricReader.FILE_CHARSET);
+			Long expected = null;
+			try {
+				expected = Long.parseLong(value);
+			} catch (NumberFormatException nfe) {
+				// expected is null
+			}
+			byte[] bytes = value.getBytes(FileMetricReader.FILE_CHARSET);
+			try {
+				long result = FileMetricReader.parseLong(bytes, 0, bytes.length);
+				assertEquals(value, expected, (Long) result);
+			} catch (NumberFormatException nfe) {
+				assertEquals(value, null, expected);
+			}
+		}
+	}
+
+	@Test
+	public void testParseDouble() {
+		String[] values = new String[] { "0", "-0", "0.0", "+1.5", "-2.25", "1.", ".5", "1e10", "1.5E-3", "1e-22",
+				"1e22", "1e23", "123456789012345", "1234567890123456", "0.1", "0.3", "3.14159265358979",
+				"1.7976931348623157E308", "4.9E-324", "NaN", "-Infinity", "0x1p3", "1d", "2f", " 3 ", "", ".", "-",
+				"1e", "1e+", "1.2.3", "12abc", "1e0001", "99999999999999.9" };
+		for (String value : values) {
+			assertDoubleMatches(value);
+		}
+		Random random = new Random(1);
+		for (int i = 0; i < 10000; i++) {
+			long mantissa = random.nextLong() % 1000000000000000L;
+			int exponent = random.nextInt(40) - 20;
+			assertDoubleMatches(mantissa + "e" + exponent);
+			assertDoubleMatches(Double.toString(random.nextDouble() * 1000000));
+			assertDoubleMatches(random.nextInt(100000) + "." + random.nextInt(1000));
+		}
+	}
+
+	@Test
+	public void testLineSplits() throws Exception {
+		File dir = new File(TEMP_DIR);
+		dir.mkdirs();
+		File file = new File(dir, "file");
+		String[] lines = new String[] { "key 1 2  3   4  ", " key 1\t2 3", "key:1::2:3", "key\t1\t\t2", "key\u00e91 2",
+				"key\\1\\2", "key.1.2", "key  ", "key", "key1 2" };
+		String[] splits = new String[] { " ", " +", "\\s", "\\s+", ":", ":+", "\t", "\\t+", "\\.", "\\\\", "[ :]+",
+				"\u00e9", "\\d" };
+		for (String line : lines) {
+			writeToFile(file, "first 1 2\nsecond 3 4\r\n" + line + "\r\nafter 5 6\n");
+			// the file is written in the default charset which may not handle all of the characters
+			String written = new String(line.getBytes(FileMetricReader.FILE_CHARSET), FileMetricReader.FILE_CHARSET);
+			for (String split : splits) {
+				String[] columns = written.split(split);
+				for (int column = 0; column < 6; column++) {
+					FileMetric metric = new FileMetric();
+					metric.setMetricName("foo");
+					metric.setMetricComponent("comp");
+					metric.setKind(FileMetricKind.FILE_VALUE);
+					metric.setColumn(column);
+					metric.setMetricFile(file.getPath());
+					metric.setLineNumber(3);
+					metric.setLineSplit(split);
+					metric.setDecimalNumber(true);
+					metric.initialize();
+					Long expected = null;
+					if (column < columns.length) {
+						try {
+							expected = Long.parseLong(columns[column]);
+						} catch (NumberFormatException nfe) {
+							// expected is null
+						}
+					}
+					String label = "line '" + line + "' split '" + split + "' column " + column;
+					try {
+						metric.updateValue();
+						assertEquals(label, expected, (Long) metric.getMetric().getValue().longValue());
+					} catch (IOException ioe) {
+						assertEquals(label, null, expected);
+					} finally {
+						metric.close();
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRereadKeptOpen() throws Exception {
+		File dir = new File(TEMP_DIR);
+		dir.mkdirs();
+		File file = new File(dir, "file");
+		StringBuilder sb = new StringBuilder();
+		// bigger than the initial buffer
+		for (int i = 0; i < 1000; i++) {
+			sb.append("line").append(i).append(' ').append(i).append('\n');
+		}
+		writeToFile(file, sb.toString());
+		FileMetricReader reader = new FileMetricReader(file, true);
+		try {
+			int length = reader.read();
+			assertEquals(sb.length(), length);
+			assertEquals(sb.toString(), new String(reader.getBytes(), 0, length, StandardCharsets.US_ASCII));
+			writeToFile(file, "shorter 1\n");
+			length = reader.read();
+			assertEquals("shorter 1\n", new String(reader.getBytes(), 0, length, StandardCharsets.US_ASCII));
+			assertTrue(file.delete());
+			// still reads the deleted file because it is open
+			assertEquals(length, reader.read());
+		} finally {
+			reader.close();
+		}
+		try {
+			reader.read();
+			fail("should have thrown");
+		} catch (IOException ioe) {
+			// expected
+		}
+	}
+
+	private void assertDoubleMatches(String value) {
+		Double expected = null;
+		try {
+			expected = Double.parseDouble(value);
+		} catch (NumberFormatException nfe) {
+			// expected is null
+		}
+		byte[] bytes = value.getBytes(FileMetricReader.FILE_CHARSET);
+		try {
+			double result = FileMetricReader.parseDouble(bytes, 0, bytes.length);
+			assertEquals(value, expected, (Double) result);
+		} catch (NumberFormatException nfe) {
+			assertEquals(value, null, expected);
+		}
+	}
+
+	private void writeToFile(File file, String contents) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(contents);
+		} finally {
+			writer.close();
+		}
+	}
+}